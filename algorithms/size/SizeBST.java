@@ -26,11 +26,10 @@ package algorithms.size;
 
 import algorithms.size.core.*;
 
-import measurements.support.ThreadID;
-
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
-public class SizeBST<K extends Comparable<? super K>, V> {
+public class SizeBST<K extends Comparable<? super K>, V> implements SizedMap<K,V> {
     //--------------------------------------------------------------------------------
     // Class: Node, LeafNode, InternalNode
     //--------------------------------------------------------------------------------
@@ -44,9 +43,9 @@ public class SizeBST<K extends Comparable<? super K>, V> {
 
     protected final static class LeafNode<E extends Comparable<? super E>, V> extends Node<E,V> {
         final V value;
-        volatile UpdateInfo insertInfo;
+        volatile long insertInfo; // UpdateInfo.NONE once the insertion is linearized
 
-        LeafNode(final E key, final V value, final UpdateInfo insertInfo) {
+        LeafNode(final E key, final V value, final long insertInfo) {
             super(key);
             this.value = value;
             this.insertInfo = insertInfo;
@@ -54,7 +53,7 @@ public class SizeBST<K extends Comparable<? super K>, V> {
 
         // For dummy nodes
         LeafNode() {
-            this(null, null, null);
+            this(null, null, UpdateInfo.NONE);
         }
 
         // For sibling nodes produced in insertions
@@ -82,7 +81,7 @@ public class SizeBST<K extends Comparable<? super K>, V> {
     protected static abstract class Info<E extends Comparable<? super E>, V> {
     }
 
-    protected final static class DInfo<E extends Comparable<? super E>, V> extends Info<E,V> implements UpdateInfoHolder {
+    protected final static class DInfo<E extends Comparable<? super E>, V> extends Info<E,V> {
         final InternalNode<E,V> p;
         final LeafNode<E,V> l;
         final InternalNode<E,V> gp;
@@ -100,16 +99,6 @@ public class SizeBST<K extends Comparable<? super K>, V> {
             this.removeTid = removeTid;
             this.removeCount = removeCount;
         }
-
-        @Override
-        public int getTid() {
-            return removeTid;
-        }
-
-        @Override
-        public long getCounter() {
-            return removeCount;
-        }
     }
 
     protected final static class IInfo<E extends Comparable<? super E>, V> extends Info<E,V> {
@@ -140,12 +129,30 @@ public class SizeBST<K extends Comparable<? super K>, V> {
     private static final AtomicReferenceFieldUpdater<InternalNode, Node> leftUpdater = AtomicReferenceFieldUpdater.newUpdater(InternalNode.class, Node.class, "left");
     private static final AtomicReferenceFieldUpdater<InternalNode, Node> rightUpdater = AtomicReferenceFieldUpdater.newUpdater(InternalNode.class, Node.class, "right");
     private static final AtomicReferenceFieldUpdater<InternalNode, Info> infoUpdater = AtomicReferenceFieldUpdater.newUpdater(InternalNode.class, Info.class, "info");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<SizeBST, CapacityReservations> capacityReservationsUpdater = AtomicReferenceFieldUpdater.newUpdater(SizeBST.class, CapacityReservations.class, "capacityReservations");
 
     final InternalNode<K,V> root;
 
-    private final SizeCalculator sizeCalculator = new SizeCalculator();
+    private final SizeCalculator sizeCalculator;
+    // The category of sizeCalculator that counts the keys of this tree: 0, unless sizeCalculator is shared by a SizeGroup
+    private final int category;
+    // Admits the bounded inserts of putIfAbsentAndSizeBelow, created upon the first one
+    private volatile CapacityReservations capacityReservations;
 
     public SizeBST() {
+        this(Backoff.Strategy.getDefault());
+    }
+
+    // Constructs a tree whose sizes back off by the given strategy, rather than the strategy chosen per JVM
+    public SizeBST(Backoff.Strategy backoffStrategy) {
+        this(new SizeCalculator(backoffStrategy), 0);
+    }
+
+    // Constructs a tree whose keys are counted by the given category of sizeCalculator, as for the trees of a SizeGroup
+    SizeBST(SizeCalculator sizeCalculator, int category) {
+        this.sizeCalculator = sizeCalculator;
+        this.category = category;
         // to avoid handling special case when <= 2 nodes,
         // create 2 dummy nodes, both contain key null
         // All real keys inside BST are required to be non-null
@@ -178,14 +185,15 @@ public class SizeBST<K extends Comparable<? super K>, V> {
         // l might have already been removed by now, but only after its parent was changed from p to another node,
         // so l has been in the tree at the moment it was obtained from p's child pointer.
         if (pinfo != null && pinfo.getClass() == Mark.class && ((Mark<K, V>) pinfo).dinfo.l == l) { // l is being removed
-            sizeCalculator.updateMetadata(UpdateOperations.OpKind.REMOVE, ((Mark<K, V>) pinfo).dinfo);
+            DInfo<K,V> dinfo = ((Mark<K, V>) pinfo).dinfo;
+            sizeCalculator.updateMetadata(category, UpdateOperations.OpKind.REMOVE, dinfo.removeTid, dinfo.removeCount);
             return null;
         }
         // l's insertion might be still ongoing
-        UpdateInfo insertInfo = ((LeafNode<K, V>) l).insertInfo;
-        if (insertInfo != null) {
+        long insertInfo = ((LeafNode<K, V>) l).insertInfo;
+        if (insertInfo != UpdateInfo.NONE) {
             sizeCalculator.updateMetadata(UpdateOperations.OpKind.INSERT, insertInfo);
-            ((LeafNode<K, V>) l).insertInfo = null;
+            ((LeafNode<K, V>) l).insertInfo = UpdateInfo.NONE;
         }
         return ((LeafNode<K,V>)l).value;
     }
@@ -195,6 +203,17 @@ public class SizeBST<K extends Comparable<? super K>, V> {
     /** PRECONDITION: key, value CANNOT BE NULL **/
     public final V putIfAbsent(final K key, final V value){
         if (key == null || value == null) throw new NullPointerException();
+        int dormantTid = sizeCalculator.enterDormantUpdate();
+        if (dormantTid == SizeCalculator.NOT_DORMANT) return doPutIfAbsent(key, value);
+        V result = value; // stands for no insert unless doPutIfAbsent returns null
+        try {
+            return result = doPutIfAbsent(key, value);
+        } finally {
+            exitDormantUpdate(dormantTid, UpdateOperations.OpKind.INSERT, result == null);
+        }
+    }
+
+    private V doPutIfAbsent(final K key, final V value) {
         InternalNode<K,V> newInternal;
         LeafNode<K,V> newSibling, newNode;
 
@@ -204,7 +223,7 @@ public class SizeBST<K extends Comparable<? super K>, V> {
         Node<K,V> l;
         /** END SEARCH VARIABLES **/
 
-        UpdateInfo newNodeInsertInfo = sizeCalculator.createUpdateInfo(UpdateOperations.OpKind.INSERT);
+        long newNodeInsertInfo = sizeCalculator.createUpdateInfo(category, UpdateOperations.OpKind.INSERT, 1);
         newNode = new LeafNode<K,V>(key, value, newNodeInsertInfo);
 
         while (true) {
@@ -226,10 +245,10 @@ public class SizeBST<K extends Comparable<? super K>, V> {
             if (pinfo != null && pinfo.getClass() == Mark.class) {
                 helpMarked(((Mark<K,V>)pinfo).dinfo);
             } else if (key.equals(foundLeaf.key)) {
-                UpdateInfo insertInfo = foundLeaf.insertInfo;
-                if (insertInfo != null) {
+                long insertInfo = foundLeaf.insertInfo;
+                if (insertInfo != UpdateInfo.NONE) {
                     sizeCalculator.updateMetadata(UpdateOperations.OpKind.INSERT, insertInfo);
-                    foundLeaf.insertInfo = null;
+                    foundLeaf.insertInfo = UpdateInfo.NONE;
                 }
                 return foundLeaf.value; // key already in the tree, no duplicate allowed
             } else if (!(pinfo == null || pinfo.getClass() == Clean.class)) {
@@ -247,7 +266,7 @@ public class SizeBST<K extends Comparable<? super K>, V> {
                 if (infoUpdater.compareAndSet(p, pinfo, newPInfo)) { // iflag step
                     helpInsert(newPInfo);
                     sizeCalculator.updateMetadata(UpdateOperations.OpKind.INSERT, newNodeInsertInfo);
-                    newNode.insertInfo = null;
+                    newNode.insertInfo = UpdateInfo.NONE;
                     return null;
                 } else {
                     // if fails, help the current operation
@@ -259,11 +278,40 @@ public class SizeBST<K extends Comparable<? super K>, V> {
         }
     }
 
+    // Insert key to dictionary if it is absent and the dictionary holds fewer than limit keys, returns true if inserted.
+    // Bounded inserts never grow the dictionary beyond limit keys (see CapacityReservations); put is not bounded
+    /** PRECONDITION: key, value CANNOT BE NULL **/
+    public final boolean putIfAbsentAndSizeBelow(final K key, final V value, final long limit) {
+        if (key == null || value == null) throw new NullPointerException();
+        CapacityReservations reservations = capacityReservations;
+        if (reservations == null) {
+            capacityReservationsUpdater.compareAndSet(this, null, new CapacityReservations(sizeCalculator, category, category + 1));
+            reservations = capacityReservations;
+        }
+        if (!reservations.reserve(limit)) return false;
+        try {
+            return putIfAbsent(key, value) == null;
+        } finally {
+            reservations.release();
+        }
+    }
+
     // Insert key to dictionary, return the previous value associated with the specified key,
     // or null if there was no mapping for the key
     /** PRECONDITION: key, value CANNOT BE NULL **/
     public final V put(final K key, final V value) {
         if (key == null || value == null) throw new NullPointerException();
+        int dormantTid = sizeCalculator.enterDormantUpdate();
+        if (dormantTid == SizeCalculator.NOT_DORMANT) return doPut(key, value);
+        V result = value; // stands for no insert unless doPut returns null
+        try {
+            return result = doPut(key, value);
+        } finally {
+            exitDormantUpdate(dormantTid, UpdateOperations.OpKind.INSERT, result == null);
+        }
+    }
+
+    private V doPut(final K key, final V value) {
         InternalNode<K, V> newInternal;
         LeafNode<K, V> newSibling;
         IInfo<K, V> newPInfo;
@@ -273,7 +321,7 @@ public class SizeBST<K extends Comparable<? super K>, V> {
         Info<K, V> pinfo;
         Node<K, V> l;
         /** END SEARCH VARIABLES **/
-        UpdateInfo newNodeInsertInfo = sizeCalculator.createUpdateInfo(UpdateOperations.OpKind.INSERT);
+        long newNodeInsertInfo = sizeCalculator.createUpdateInfo(category, UpdateOperations.OpKind.INSERT, 1);
         LeafNode<K, V> newNode = new LeafNode<K,V>(key, value, newNodeInsertInfo);
 
         while (true) {
@@ -297,15 +345,15 @@ public class SizeBST<K extends Comparable<? super K>, V> {
                 if (key.equals(foundLeaf.key)) {
                     // key already in the tree, try to replace the old node with a new node.
                     // In the new node, place the insert info of the insert operation that inserted key to the tree.
-                    UpdateInfo insertInfo = foundLeaf.insertInfo;
+                    long insertInfo = foundLeaf.insertInfo;
                     LeafNode<K, V> newNodeReplacingExisting = new LeafNode<K,V>(key, value, insertInfo); // a new node with the same key but the new value
                     newPInfo = new IInfo<K, V>(foundLeaf, p, newNodeReplacingExisting);
                     // try to IFlag parent
                     if (infoUpdater.compareAndSet(p, pinfo, newPInfo)) { // iflag step
                         helpInsert(newPInfo);
-                        if (insertInfo != null) {
+                        if (insertInfo != UpdateInfo.NONE) {
                             sizeCalculator.updateMetadata(UpdateOperations.OpKind.INSERT, insertInfo);
-                            newNodeReplacingExisting.insertInfo = null;
+                            newNodeReplacingExisting.insertInfo = UpdateInfo.NONE;
                         }
                         return foundLeaf.value;
                     }
@@ -323,7 +371,7 @@ public class SizeBST<K extends Comparable<? super K>, V> {
                     if (infoUpdater.compareAndSet(p, pinfo, newPInfo)) { // iflag step
                         helpInsert(newPInfo);
                         sizeCalculator.updateMetadata(UpdateOperations.OpKind.INSERT, newNodeInsertInfo);
-                        newNode.insertInfo = null;
+                        newNode.insertInfo = UpdateInfo.NONE;
                         return null;
                     }
                 }
@@ -339,6 +387,38 @@ public class SizeBST<K extends Comparable<? super K>, V> {
     /** PRECONDITION: key CANNOT BE NULL **/
     public final V remove(final K key){
         if (key == null) throw new NullPointerException();
+        return removeMapping(key, null);
+    }
+
+    // Delete key from dictionary only if it is associated with value, return true when successful
+    /** PRECONDITION: key, value CANNOT BE NULL **/
+    public final boolean remove(final K key, final V value) {
+        if (key == null || value == null) throw new NullPointerException();
+        return removeMapping(key, value) != null;
+    }
+
+    // Removes key as doRemove does, within a dormant update while the tree is dormant
+    private V removeMapping(final K key, final V value) {
+        int dormantTid = sizeCalculator.enterDormantUpdate();
+        if (dormantTid == SizeCalculator.NOT_DORMANT) return doRemove(key, value);
+        V result = null;
+        try {
+            return result = doRemove(key, value);
+        } finally {
+            exitDormantUpdate(dormantTid, UpdateOperations.OpKind.REMOVE, result != null);
+        }
+    }
+
+    // Exits the dormant update of a putIfAbsent, put or remove (see SizeCalculator.enterDormantUpdate), counting it if it
+    // changed the size
+    private void exitDormantUpdate(int dormantTid, int opKind, boolean didChangeSize) {
+        if (didChangeSize) sizeCalculator.exitDormantUpdate(dormantTid, category, opKind, 1);
+        else sizeCalculator.exitDormantUpdate(dormantTid);
+    }
+
+    // Removes key if it is associated with value, or with any value if value is null. Leaves are immutable, so a leaf
+    // holding another value is linearized as not removed when it is found
+    private V doRemove(final K key, final V value) {
         
         /** SEARCH VARIABLES **/
         InternalNode<K,V> gp;
@@ -373,6 +453,7 @@ public class SizeBST<K extends Comparable<? super K>, V> {
             /** END SEARCH **/
             
             if (!key.equals(l.key)) return null;
+            if (value != null && !value.equals(((LeafNode<K,V>)l).value)) return null;
             if (!(gpinfo == null || gpinfo.getClass() == Clean.class)) {
                 help(gpinfo);
             } else if (!(pinfo == null || pinfo.getClass() == Clean.class)) {
@@ -380,16 +461,16 @@ public class SizeBST<K extends Comparable<? super K>, V> {
             } else {
                 LeafNode<K,V> foundLeaf = (LeafNode<K,V>)l;
 
-                UpdateInfo insertInfo = foundLeaf.insertInfo;
-                if (insertInfo != null) {
+                long insertInfo = foundLeaf.insertInfo;
+                if (insertInfo != UpdateInfo.NONE) {
                     sizeCalculator.updateMetadata(UpdateOperations.OpKind.INSERT, insertInfo);
-                    foundLeaf.insertInfo = null;
+                    foundLeaf.insertInfo = UpdateInfo.NONE;
                 }
 
                 // try to DFlag grandparent
-                int tid = ThreadID.threadID.get();
+                long removeInfo = sizeCalculator.createUpdateInfo(category, UpdateOperations.OpKind.REMOVE, 1);
                 final DInfo<K,V> newGPInfo = new DInfo<K,V>(foundLeaf, p, gp, pinfo,
-                        tid, sizeCalculator.getThreadUpdateCounter(tid, UpdateOperations.OpKind.REMOVE) + 1);
+                        UpdateInfo.tid(removeInfo), UpdateInfo.counter(removeInfo));
                 if (infoUpdater.compareAndSet(gp, gpinfo, newGPInfo)) { // dflag step
                     if (helpDelete(newGPInfo)) return foundLeaf.value;
                 } else {
@@ -400,12 +481,84 @@ public class SizeBST<K extends Comparable<? super K>, V> {
         }
     }
 
+    /**
+     * Returns the number of keys, or {@code Integer.MAX_VALUE} if
+     * there are more. Use {@link #mappingCount()} for larger sizes.
+     */
     public int size() {
         long c;
-        return ((c = sizeCalculator.compute()) >= Integer.MAX_VALUE) ?
+        return ((c = mappingCount()) >= Integer.MAX_VALUE) ?
+                Integer.MAX_VALUE : (int) c;
+    }
+
+    /**
+     * Returns the number of keys at some point during the last
+     * {@code maxAgeNanos} nanoseconds, which may avoid computing the
+     * size anew when a size has been computed recently enough.
+     */
+    public int size(long maxAgeNanos) {
+        long c;
+        return ((c = mappingCount(maxAgeNanos)) >= Integer.MAX_VALUE) ?
                 Integer.MAX_VALUE : (int) c;
     }
 
+    /**
+     * Returns the number of keys. This method should be used instead
+     * of {@link #size()} when there may be more keys than can be
+     * represented as an int.
+     */
+    public long mappingCount() {
+        return sizeCalculator.computeCategories(category, category + 1);
+    }
+
+    /**
+     * Returns the number of keys at some point during the last
+     * {@code maxAgeNanos} nanoseconds, as {@link #size(long)} does,
+     * without clamping it to an int.
+     */
+    public long mappingCount(long maxAgeNanos) {
+        return sizeCalculator.computeCategories(category, category + 1, maxAgeNanos);
+    }
+
+    /**
+     * Waits until the tree holds at most {@code threshold} keys, and
+     * returns whether it did before the timeout elapsed. The updates
+     * check the threshold only once they could have crossed it, so
+     * waiting does not compute the size repeatedly as polling size()
+     * would.
+     */
+    public boolean awaitSizeAtMost(long threshold, long timeout, TimeUnit unit) throws InterruptedException {
+        return sizeCalculator.awaitSizeAtMost(category, category + 1, threshold, timeout, unit);
+    }
+
+    /**
+     * Waits until the tree holds at least {@code threshold} keys, as
+     * awaitSizeAtMost does.
+     */
+    public boolean awaitSizeAtLeast(long threshold, long timeout, TimeUnit unit) throws InterruptedException {
+        return sizeCalculator.awaitSizeAtLeast(category, category + 1, threshold, timeout, unit);
+    }
+
+    /**
+     * Returns the number of inserts and removes of keys linearized
+     * so far, which changes whenever the set of keys changes. Like
+     * size(), it is linearizable, and it is computed without a
+     * collection while no update has been linearized since the latest
+     * computation. Replacing the value of a key does not change it.
+     * For a tree of a SizeGroup, it is the version of the whole group.
+     */
+    public long version() {
+        return sizeCalculator.computeVersion();
+    }
+
+    /**
+     * Returns whether keys have been inserted or removed since
+     * version() returned the given version.
+     */
+    public boolean changedSince(long version) {
+        return sizeCalculator.changedSince(version);
+    }
+
 //--------------------------------------------------------------------------------
 // PRIVATE METHODS
 // - helpInsert
@@ -442,7 +595,7 @@ public class SizeBST<K extends Comparable<? super K>, V> {
     }
 
     private void helpMarked(final DInfo<K,V> info) {
-        sizeCalculator.updateMetadata(UpdateOperations.OpKind.REMOVE, info);
+        sizeCalculator.updateMetadata(category, UpdateOperations.OpKind.REMOVE, info.removeTid, info.removeCount);
         final Node<K,V> other = (info.p.right == info.l) ? info.p.left : info.p.right;
         (info.gp.left == info.p ? leftUpdater : rightUpdater).compareAndSet(info.gp, info.p, other); // dchild step
         infoUpdater.compareAndSet(info.gp, info, new Clean()); // dunflag step
@@ -25,8 +25,14 @@ package algorithms.size;
 import algorithms.size.core.*;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.Map;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongBiFunction;
 
 /**
  * A scalable concurrent skiplist map implementation.
@@ -51,7 +57,7 @@ import java.util.concurrent.ThreadLocalRandom;
  * @param <V> the type of mapped values
  * @since 1.6
  */
-public class SizeConcurrentSkipListMap<K,V> {
+public class SizeConcurrentSkipListMap<K,V> implements SizedMap<K,V> {
     /*
      * This class implements a tree-like two-dimensionally linked skip
      * list in which the index levels are represented in separate
@@ -275,31 +281,50 @@ public class SizeConcurrentSkipListMap<K,V> {
     /** Lazily initialized topmost index of the skiplist. */
     private transient Index<K,V> head;
 
-    private final transient SizeCalculator sizeCalculator = new SizeCalculator();
+    private final transient SizeCalculator sizeCalculator;
+    // The categories of sizeCalculator that count the mappings of this map, from fromCategory (inclusive) to toCategory
+    // (exclusive): all of them, unless sizeCalculator is shared by a SizeGroup, which gives each of its maps a category
+    private final int fromCategory;
+    private final int toCategory;
+    // The category of each key, whose mappings are counted separately (see categorySize), or null if there is a single category
+    private final ToIntFunction<? super K> classifier;
+    // The weight of each mapping, or null if the total weight of the mappings is not tracked
+    private final ToLongBiFunction<? super K, ? super V> weigher;
+    // Tracks the total weight of the mappings as sizeCalculator tracks their number, with counters that advance by weights
+    // (see WeightUpdate). Null if there is no weigher
+    private final transient SizeCalculator weightCalculator;
+    // Admits the bounded inserts of putIfAbsentAndSizeBelow, created upon the first one
+    private transient volatile CapacityReservations capacityReservations;
 
     /**
      * Nodes hold keys and values, and are singly linked in sorted
      * order, possibly with some intervening marker nodes. The list is
      * headed by a header node accessible as head.node. Headers and
-     * marker nodes have null keys. The val field (but currently not
-     * the key field) is nulled out upon deletion.
+     * marker nodes have null keys. Upon deletion, the val field is
+     * replaced by a removal mark - a marker node holding the remove
+     * info, which the remover then splices in as the node's marker.
+     * In a map with a weigher, a value whose weight metadata may not
+     * be updated yet is wrapped by a WeightUpdate, and the val field
+     * of a removal mark holds the WeightUpdate of the removal, if any.
      */
     static final class Node<K,V> {
         final K key; // currently, never detached
         Object valOrRemoveInfo;
         Node<K,V> next;
-        volatile UpdateInfo insertInfo;
-       
-        Node(K key, V value, Node<K,V> next, UpdateInfo insertInfo) {
+        // The insert info of a node whose insertion may not be linearized yet (UpdateInfo.NONE once it is),
+        // or the remove info of a removal mark
+        volatile long updateInfo;
+
+        Node(K key, V value, Node<K,V> next, long updateInfo) {
             this.key = key;
             this.valOrRemoveInfo = value;
             this.next = next;
-            this.insertInfo = insertInfo;
+            this.updateInfo = updateInfo;
         }
 
         // For head and marker nodes
         Node(K key, V value, Node<K,V> next) {
-            this(key, value, next, null);
+            this(key, value, next, UpdateInfo.NONE);
         }
     }
 
@@ -317,6 +342,64 @@ public class SizeConcurrentSkipListMap<K,V> {
         }
     }
 
+    /**
+     * The updates of a putAll or removeAll, whose size metadata is
+     * updated once for the whole batch by publishBatch (see
+     * UpdateBatch). Until then, the new nodes keep their insert info,
+     * and the removed nodes are not unlinked.
+     */
+    static final class Batch<K,V> {
+        // The slot of the batch's thread if the batch is a dormant update, and otherwise SizeCalculator.NOT_DORMANT
+        final int dormantTid;
+        final UpdateBatch updateBatch;
+        // The batch of the weight metadata, or null if there is no weigher
+        final UpdateBatch weightBatch;
+        private final int capacity;
+        Node<K,V>[] insertedNodes;
+        int insertedNodesNum;
+        // Removed nodes and their predecessors upon removal, at the same indices
+        Node<K,V>[] removedNodes;
+        Node<K,V>[] removedPredecessors;
+        int removedNodesNum;
+
+        Batch(int dormantTid, UpdateBatch updateBatch, UpdateBatch weightBatch, int capacity) {
+            this.dormantTid = dormantTid;
+            this.updateBatch = updateBatch;
+            this.weightBatch = weightBatch;
+            this.capacity = Math.max(capacity, 1);
+        }
+
+        void weighed(long weightDelta) {
+            if (weightDelta != 0)
+                weightBatch.linked(WeightUpdate.opKindOf(weightDelta), Math.abs(weightDelta));
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        void inserted(Node<K,V> n, int category) {
+            updateBatch.linked(category, UpdateOperations.OpKind.INSERT, 1);
+            if (insertedNodes == null)
+                insertedNodes = new Node[capacity];
+            else if (insertedNodesNum == insertedNodes.length)
+                insertedNodes = Arrays.copyOf(insertedNodes, 2 * insertedNodesNum);
+            insertedNodes[insertedNodesNum++] = n;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        void removed(Node<K,V> b, Node<K,V> n, int category) {
+            updateBatch.linked(category, UpdateOperations.OpKind.REMOVE, 1);
+            if (removedNodes == null) {
+                removedNodes = new Node[capacity];
+                removedPredecessors = new Node[capacity];
+            }
+            else if (removedNodesNum == removedNodes.length) {
+                removedNodes = Arrays.copyOf(removedNodes, 2 * removedNodesNum);
+                removedPredecessors = Arrays.copyOf(removedPredecessors, 2 * removedNodesNum);
+            }
+            removedNodes[removedNodesNum] = n;
+            removedPredecessors[removedNodesNum++] = b;
+        }
+    }
+
     /* ----------------  Utilities -------------- */
 
     /**
@@ -343,31 +426,160 @@ public class SizeConcurrentSkipListMap<K,V> {
      * Upon return, node n is sure to be unlinked from b, possibly
      * via the actions of some other thread.
      *
-     * 	1. Update sizeCalculator and linearize remove
+     * 	1. Update sizeCalculator (and weightCalculator) and linearize remove
      *  2. Insert marker node succeeding n
      *  3. Unlink n
      *
      * @param b if nonnull, predecessor
      * @param n if nonnull, node known to be deleted
      */
+    @SuppressWarnings("unchecked")
     void completeRemove(Node<K,V> b, Node<K,V> n) {
         if (b != null && n != null) {
-            sizeCalculator.updateMetadata(UpdateOperations.OpKind.REMOVE, (UpdateInfo)n.valOrRemoveInfo);
+            reportRemove((Node<K,V>) n.valOrRemoveInfo);
+            unlink(b, n, null);
+        }
+    }
 
-            Node<K,V> f, p;
-            for (;;) {
-                if ((f = n.next) != null && f.key == null) {
-                    p = f.next;               // already marked
-                    break;
-                }
-                else if (NEXT.compareAndSet(n, f,
-                        new Node<K,V>(null, null, f))) {
-                    p = f;                    // add marker
-                    break;
-                }
+    /**
+     * Steps 2 and 3 of completeRemove, for a node whose removal has
+     * already been reported to sizeCalculator.
+     *
+     * @param removeMark if nonnull, n's removal mark, which is then
+     * used as the marker. Only the remover of n may pass it, as it
+     * writes the mark's next field before splicing it in.
+     */
+    private void unlink(Node<K,V> b, Node<K,V> n, Node<K,V> removeMark) {
+        Node<K,V> f, p, marker;
+        for (;;) {
+            if ((f = n.next) != null && f.key == null) {
+                p = f.next;               // already marked
+                break;
             }
-            NEXT.compareAndSet(b, n, p);
+            if (removeMark != null) {
+                removeMark.next = f;      // published by the CAS below
+                marker = removeMark;
+            }
+            else
+                marker = new Node<K,V>(null, null, f);
+            if (NEXT.compareAndSet(n, f, marker)) {
+                p = f;                    // add marker
+                break;
+            }
+        }
+        NEXT.compareAndSet(b, n, p);
+    }
+
+    private long createUpdateInfo(int category, int opKind, Batch<K,V> batch) {
+        return batch == null ? sizeCalculator.createUpdateInfo(category, opKind, 1) :
+                batch.updateBatch.createUpdateInfo(category, opKind, 1);
+    }
+
+    /**
+     * Returns the category of the key, as given by the classifier.
+     *
+     * @throws IllegalArgumentException if the category is out of range
+     */
+    private int category(K key) {
+        if (classifier == null)
+            return fromCategory;
+        int category = classifier.applyAsInt(key);
+        if (category < 0 || category >= toCategory - fromCategory)
+            throw new IllegalArgumentException("Category " + category + " is out of range");
+        return fromCategory + category;
+    }
+
+    // Starts a batch, within a dormant update while sizeCalculator is dormant
+    private Batch<K,V> startBatch(int capacity) {
+        int dormantTid = sizeCalculator.enterDormantUpdate();
+        return new Batch<K,V>(dormantTid, sizeCalculator.startBatch(),
+                weightCalculator == null ? null : weightCalculator.startBatch(), capacity);
+    }
+
+    /**
+     * Updates the size metadata of the batch's updates, and only then
+     * completes them: clears the insert infos of its new nodes, and
+     * unlinks its removed nodes. Then exits the batch's dormant update,
+     * if any, in which publishing has counted its updates.
+     */
+    @SuppressWarnings("unchecked")
+    private void publishBatch(Batch<K,V> batch) {
+        batch.updateBatch.publish();
+        if (batch.weightBatch != null)
+            batch.weightBatch.publish();
+        for (int i = 0; i < batch.insertedNodesNum; ++i) {
+            Node<K,V> n = batch.insertedNodes[i];
+            n.updateInfo = UpdateInfo.NONE;
+            Object valOrRemoveInfo = n.valOrRemoveInfo;
+            if (valOrRemoveInfo.getClass() == WeightUpdate.class)
+                helpWeightUpdate(n, (WeightUpdate) valOrRemoveInfo);
         }
+        for (int i = 0; i < batch.removedNodesNum; ++i)
+            unlink(batch.removedPredecessors[i], batch.removedNodes[i],
+                    (Node<K,V>) batch.removedNodes[i].valOrRemoveInfo);
+        if (batch.dormantTid != SizeCalculator.NOT_DORMANT)
+            sizeCalculator.exitDormantUpdate(batch.dormantTid);
+    }
+
+    /* ---------------- Weights -------------- */
+
+    @SuppressWarnings("unchecked")
+    private long weigh(Object key, Object value) {
+        long weight = weigher.applyAsLong((K) key, (V) value);
+        if (weight < 0)
+            throw new IllegalArgumentException("Negative weight " + weight + " of the mapping of " + key);
+        return weight;
+    }
+
+    /**
+     * Returns what an update that changes the total weight by
+     * weightDelta installs as its value: the value itself if the
+     * change is 0 (always, if there is no weigher), and otherwise a
+     * WeightUpdate that wraps it. The WeightUpdate of a removal wraps
+     * a null value, and is installed in its removal mark.
+     */
+    private Object weighed(V value, long weightDelta, Batch<K,V> batch) {
+        if (weightDelta == 0)
+            return value;
+        int opKind = WeightUpdate.opKindOf(weightDelta);
+        long amount = Math.abs(weightDelta);
+        long updateInfo = batch == null ? weightCalculator.createUpdateInfo(opKind, amount) :
+                batch.weightBatch.createUpdateInfo(opKind, amount);
+        return new WeightUpdate(value, opKind, updateInfo);
+    }
+
+    /**
+     * Updates the weight metadata of the update that has just
+     * installed valOrWeightUpdate as n's value (as returned by
+     * weighed), or leaves it to publishBatch in a batch.
+     */
+    private void weighLinked(Node<K,V> n, Object valOrWeightUpdate, long weightDelta, Batch<K,V> batch) {
+        if (weightDelta == 0)
+            return;
+        if (batch != null)
+            batch.weighed(weightDelta);
+        else
+            helpWeightUpdate(n, (WeightUpdate) valOrWeightUpdate);
+    }
+
+    /**
+     * Updates the weight metadata of the update that installed
+     * weightUpdate as n's value, and then unwraps the value.
+     */
+    private void helpWeightUpdate(Node<K,V> n, WeightUpdate weightUpdate) {
+        weightUpdate.help(weightCalculator);
+        VAL_OR_REMOVE_INFO.compareAndSet(n, weightUpdate, weightUpdate.value);
+    }
+
+    /**
+     * Updates the size metadata of the removal whose removal mark is
+     * given, and its weight metadata if it has a WeightUpdate.
+     */
+    private void reportRemove(Node<K,V> removeMark) {
+        sizeCalculator.updateMetadata(UpdateOperations.OpKind.REMOVE, removeMark.updateInfo);
+        Object weightUpdate = removeMark.valOrRemoveInfo;
+        if (weightUpdate != null)
+            ((WeightUpdate) weightUpdate).help(weightCalculator);
     }
 
     /* ---------------- Traversal -------------- */
@@ -391,7 +603,7 @@ public class SizeConcurrentSkipListMap<K,V> {
                 while ((r = q.right) != null) {
                     Node<K,V> p; K k;
                     if ((p = r.node) == null || (k = p.key) == null ||
-                            p.valOrRemoveInfo.getClass() == UpdateInfo.class)  // unlink index to deleted node
+                            p.valOrRemoveInfo.getClass() == Node.class)  // unlink index to deleted node
                         RIGHT.compareAndSet(q, r, r.right);
                     else if (cpr(cmp, key, k) > 0)
                         q = r;
@@ -414,6 +626,7 @@ public class SizeConcurrentSkipListMap<K,V> {
      * @param key the key
      * @return the value, or null if absent
      */
+    @SuppressWarnings("unchecked")
     private V doGet(Object key) {
         Index<K,V> q;
         VarHandle.acquireFence();
@@ -426,17 +639,21 @@ public class SizeConcurrentSkipListMap<K,V> {
                 while ((r = q.right) != null) {
                     Node<K,V> p; K k; Object valOrRemoveInfo; int c;
                     if ((p = r.node) == null || (k = p.key) == null ||
-                            (valOrRemoveInfo = p.valOrRemoveInfo).getClass() == UpdateInfo.class)
+                            (valOrRemoveInfo = p.valOrRemoveInfo).getClass() == Node.class)
                         RIGHT.compareAndSet(q, r, r.right);
                     else if ((c = cpr(cmp, key, k)) > 0)
                         q = r;
                     else if (c == 0) {
-                        result = (V) valOrRemoveInfo;
-                        UpdateInfo insertInfo = p.insertInfo;
-                        if (insertInfo != null) {
+                        long insertInfo = p.updateInfo;
+                        if (insertInfo != UpdateInfo.NONE) {
                             sizeCalculator.updateMetadata(UpdateOperations.OpKind.INSERT, insertInfo);
-                            p.insertInfo = null;
+                            p.updateInfo = UpdateInfo.NONE;
                         }
+                        if (valOrRemoveInfo.getClass() == WeightUpdate.class) {
+                            helpWeightUpdate(p, (WeightUpdate) valOrRemoveInfo);
+                            valOrRemoveInfo = ((WeightUpdate) valOrRemoveInfo).value;
+                        }
+                        result = (V) valOrRemoveInfo;
                         break outer;
                     }
                     else
@@ -459,13 +676,17 @@ public class SizeConcurrentSkipListMap<K,V> {
                             else {
                                 if (c == 0) {
                                     Object valOrRemoveInfo = n.valOrRemoveInfo;
-                                    if (valOrRemoveInfo.getClass() == UpdateInfo.class)
-                                        sizeCalculator.updateMetadata(UpdateOperations.OpKind.REMOVE, (UpdateInfo)n.valOrRemoveInfo);
+                                    if (valOrRemoveInfo.getClass() == Node.class)
+                                        reportRemove((Node<K,V>) valOrRemoveInfo);
                                     else {
-                                        UpdateInfo insertInfo = n.insertInfo;
-                                        if (insertInfo != null) {
+                                        long insertInfo = n.updateInfo;
+                                        if (insertInfo != UpdateInfo.NONE) {
                                             sizeCalculator.updateMetadata(UpdateOperations.OpKind.INSERT, insertInfo);
-                                            n.insertInfo = null;
+                                            n.updateInfo = UpdateInfo.NONE;
+                                        }
+                                        if (valOrRemoveInfo.getClass() == WeightUpdate.class) {
+                                            helpWeightUpdate(n, (WeightUpdate) valOrRemoveInfo);
+                                            valOrRemoveInfo = ((WeightUpdate) valOrRemoveInfo).value;
                                         }
                                         result = (V) valOrRemoveInfo;
                                     }
@@ -481,6 +702,46 @@ public class SizeConcurrentSkipListMap<K,V> {
         return result;
     }
 
+    /**
+     * Puts as doPut does for a single update, within a dormant update
+     * while sizeCalculator is dormant (see
+     * SizeCalculator.enterDormantUpdate).
+     */
+    private V doPut(K key, V value, boolean onlyIfAbsent) {
+        int dormantTid = sizeCalculator.enterDormantUpdate();
+        if (dormantTid == SizeCalculator.NOT_DORMANT)
+            return doPut(key, value, onlyIfAbsent, null);
+        V result = value; // Stands for no insert unless doPut returns null
+        try {
+            return result = doPut(key, value, onlyIfAbsent, null);
+        } finally {
+            if (result == null)
+                sizeCalculator.exitDormantUpdate(dormantTid, category(key), UpdateOperations.OpKind.INSERT, 1);
+            else
+                sizeCalculator.exitDormantUpdate(dormantTid);
+        }
+    }
+
+    /**
+     * Removes as doRemove does for a single update, within a dormant
+     * update while sizeCalculator is dormant.
+     */
+    @SuppressWarnings("unchecked")
+    private V doRemove(Object key, Object value) {
+        int dormantTid = sizeCalculator.enterDormantUpdate();
+        if (dormantTid == SizeCalculator.NOT_DORMANT)
+            return doRemove(key, value, null);
+        V result = null;
+        try {
+            return result = doRemove(key, value, null);
+        } finally {
+            if (result != null)
+                sizeCalculator.exitDormantUpdate(dormantTid, category((K) key), UpdateOperations.OpKind.REMOVE, 1);
+            else
+                sizeCalculator.exitDormantUpdate(dormantTid);
+        }
+    }
+
     /* ---------------- Insertion -------------- */
 
     /**
@@ -490,12 +751,16 @@ public class SizeConcurrentSkipListMap<K,V> {
      * @param key the key
      * @param value the value that must be associated with key
      * @param onlyIfAbsent if should not insert if already present
+     * @param batch if nonnull, the batch whose size metadata includes a new node
      * @return the old value, or null if newly inserted
      */
-    private V doPut(K key, V value, boolean onlyIfAbsent) {
+    @SuppressWarnings("unchecked")
+    private V doPut(K key, V value, boolean onlyIfAbsent, Batch<K,V> batch) {
         if (key == null)
             throw new NullPointerException();
         Comparator<? super K> cmp = comparator;
+        int category = category(key);
+        long weight = weigher == null ? 0 : weigh(key, value);
         for (;;) {
             Index<K,V> h; Node<K,V> b;
             VarHandle.acquireFence();
@@ -510,7 +775,7 @@ public class SizeConcurrentSkipListMap<K,V> {
                     while ((r = q.right) != null) {
                         Node<K,V> p; K k;
                         if ((p = r.node) == null || (k = p.key) == null ||
-                                p.valOrRemoveInfo.getClass() == UpdateInfo.class)
+                                p.valOrRemoveInfo.getClass() == Node.class)
                             RIGHT.compareAndSet(q, r, r.right);
                         else if (cpr(cmp, key, k) > 0)
                             q = r;
@@ -531,6 +796,7 @@ public class SizeConcurrentSkipListMap<K,V> {
                 Node<K,V> z = null;              // new node, if inserted
                 for (;;) {                       // find insertion point
                     Node<K,V> n, p; K k; Object valOrRemoveInfo; int c;
+                    Object newValue = null; long weightDelta = 0;
                     if ((n = b.next) == null) {
                         if (b.key == null)       // if empty, type check key now
                             cpr(cmp, key, key);
@@ -538,29 +804,44 @@ public class SizeConcurrentSkipListMap<K,V> {
                     }
                     else if ((k = n.key) == null)
                         break;                   // can't append; restart
-                    else if ((valOrRemoveInfo = n.valOrRemoveInfo).getClass() == UpdateInfo.class) {
+                    else if ((valOrRemoveInfo = n.valOrRemoveInfo).getClass() == Node.class) {
                         completeRemove(b, n);
                         c = 1;
                     }
                     else if ((c = cpr(cmp, key, k)) > 0)
                         b = n;
+                    else if (c == 0 && valOrRemoveInfo.getClass() == WeightUpdate.class) {
+                        helpWeightUpdate(n, (WeightUpdate) valOrRemoveInfo);
+                        continue;                // reread the unwrapped value
+                    }
                     else if (c == 0 &&
-                            (onlyIfAbsent || VAL_OR_REMOVE_INFO.compareAndSet(n, valOrRemoveInfo, value))) {
+                            (onlyIfAbsent || VAL_OR_REMOVE_INFO.compareAndSet(n, valOrRemoveInfo,
+                                    newValue = weighed(value, weightDelta = weigher == null ? 0 :
+                                            weight - weigh(k, valOrRemoveInfo), batch)))) {
                         // In case n.val was CASed and n's insertion was not yet linearized then, the current insert is linearized right after that insertion
-                        UpdateInfo insertInfo = n.insertInfo;
-                        if (insertInfo != null) {
+                        long insertInfo = n.updateInfo;
+                        if (insertInfo != UpdateInfo.NONE) {
                             sizeCalculator.updateMetadata(UpdateOperations.OpKind.INSERT, insertInfo);
-                            n.insertInfo = null;
+                            n.updateInfo = UpdateInfo.NONE;
                         }
+                        weighLinked(n, newValue, weightDelta, batch);
                         return (V) valOrRemoveInfo;
                     }
 
-                    UpdateInfo insertInfo;
+                    long insertInfo;
                     if (c < 0 &&
                             NEXT.compareAndSet(b, n,
-                                    p = new Node<K,V>(key, value, n, insertInfo = sizeCalculator.createUpdateInfo(UpdateOperations.OpKind.INSERT)))) {
-                        sizeCalculator.updateMetadata(UpdateOperations.OpKind.INSERT, insertInfo);
-                        p.insertInfo = null;
+                                    p = new Node<K,V>(key, (V) (newValue = weighed(value, weight, batch)), n,
+                                            insertInfo = createUpdateInfo(category, UpdateOperations.OpKind.INSERT, batch)))) {
+                        if (batch != null) {
+                            batch.inserted(p, category);
+                            batch.weighed(weight);
+                        }
+                        else {
+                            sizeCalculator.updateMetadata(UpdateOperations.OpKind.INSERT, insertInfo);
+                            p.updateInfo = UpdateInfo.NONE;
+                            weighLinked(p, newValue, weight, null);
+                        }
                         z = p;
                         break;
                     }
@@ -586,7 +867,7 @@ public class SizeConcurrentSkipListMap<K,V> {
                             Index<K,V> nh = new Index<K,V>(h.node, h, hx);
                             HEAD.compareAndSet(this, h, nh);
                         }
-                        if (z.valOrRemoveInfo.getClass() == UpdateInfo.class)       // deleted while adding indices
+                        if (z.valOrRemoveInfo.getClass() == Node.class)       // deleted while adding indices
                             findPredecessor(key, cmp); // clean
                     }
                     return null;
@@ -618,7 +899,7 @@ public class SizeConcurrentSkipListMap<K,V> {
                 if ((r = q.right) != null) {
                     Node<K,V> p; K k;
                     if ((p = r.node) == null || (k = p.key) == null ||
-                            p.valOrRemoveInfo.getClass() == UpdateInfo.class) {
+                            p.valOrRemoveInfo.getClass() == Node.class) {
                         RIGHT.compareAndSet(q, r, r.right);
                         c = 0;
                     }
@@ -661,9 +942,11 @@ public class SizeConcurrentSkipListMap<K,V> {
      * @param key the key
      * @param value if non-null, the value that must be
      * associated with key
+     * @param batch if nonnull, the batch whose size metadata includes the removal
      * @return the node, or null if not found
      */
-    final V doRemove(Object key, Object value) {
+    @SuppressWarnings("unchecked")
+    final V doRemove(Object key, Object value, Batch<K,V> batch) {
         if (key == null)
             throw new NullPointerException();
         Comparator<? super K> cmp = comparator;
@@ -677,25 +960,39 @@ public class SizeConcurrentSkipListMap<K,V> {
                     break outer;
                 else if ((k = n.key) == null)
                     break;
-                else if ((valOrRemoveInfo = n.valOrRemoveInfo).getClass() == UpdateInfo.class)
+                else if ((valOrRemoveInfo = n.valOrRemoveInfo).getClass() == Node.class)
                     completeRemove(b, n);
                 else if ((c = cpr(cmp, key, k)) > 0)
                     b = n;
                 else if (c < 0)
                     break outer;
+                else if (valOrRemoveInfo.getClass() == WeightUpdate.class)
+                    helpWeightUpdate(n, (WeightUpdate) valOrRemoveInfo); // and reread the unwrapped value
                 else if (value != null && !value.equals(valOrRemoveInfo))
                     // Either n's insert is linearized and so n.val==value is linearized too, or n's insert is not linearized.
                     // Thus, the remove should anyhow fail, and there is no need to call updateMetadataAndLinearize for the insert.
                     break outer;
                 else {
-                    UpdateInfo insertInfo = n.insertInfo;
-                    if (insertInfo != null) {
+                    long insertInfo = n.updateInfo;
+                    if (insertInfo != UpdateInfo.NONE) {
                         sizeCalculator.updateMetadata(UpdateOperations.OpKind.INSERT, insertInfo);
-                        n.insertInfo = null;
+                        n.updateInfo = UpdateInfo.NONE;
                     }
-                    if (VAL_OR_REMOVE_INFO.compareAndSet(n, valOrRemoveInfo, sizeCalculator.createUpdateInfo(UpdateOperations.OpKind.REMOVE))) {
+                    long weight = weigher == null ? 0 : weigh(k, valOrRemoveInfo);
+                    int category = category(k);
+                    long removeInfo = createUpdateInfo(category, UpdateOperations.OpKind.REMOVE, batch);
+                    Node<K,V> removeMark = new Node<K,V>(null, null, null, removeInfo);
+                    removeMark.valOrRemoveInfo = weighed(null, -weight, batch); // published by the CAS below
+                    if (VAL_OR_REMOVE_INFO.compareAndSet(n, valOrRemoveInfo, removeMark)) {
                         result = (V) valOrRemoveInfo;
-                        completeRemove(b, n);
+                        if (batch != null) {
+                            batch.removed(b, n, category);
+                            batch.weighed(-weight);
+                        }
+                        else {
+                            reportRemove(removeMark);
+                            unlink(b, n, removeMark);
+                        }
                         break; // loop to clean up
                     }
                 }
@@ -744,7 +1041,7 @@ public class SizeConcurrentSkipListMap<K,V> {
      * {@linkplain Comparable natural ordering} of the keys.
      */
     public SizeConcurrentSkipListMap() {
-        this.comparator = null;
+        this(null);
     }
 
     /**
@@ -756,7 +1053,92 @@ public class SizeConcurrentSkipListMap<K,V> {
      *        ordering} of the keys will be used.
      */
     public SizeConcurrentSkipListMap(Comparator<? super K> comparator) {
+        this(comparator, null);
+    }
+
+    /**
+     * Constructs a new, empty map, sorted according to the specified
+     * comparator, which tracks the total weight of its mappings.
+     *
+     * @param comparator the comparator that will be used to order this map.
+     *        If {@code null}, the {@linkplain Comparable natural
+     *        ordering} of the keys will be used.
+     * @param weigher the weight of a mapping, which must be nonnegative and
+     *        the same whenever the mapping is weighed. If {@code null}, the
+     *        total weight is not tracked.
+     */
+    public SizeConcurrentSkipListMap(Comparator<? super K> comparator,
+                                     ToLongBiFunction<? super K, ? super V> weigher) {
+        this(comparator, weigher, 1, null);
+    }
+
+    /**
+     * Constructs a new, empty map, sorted according to the specified
+     * comparator, which counts the mappings of each category of keys
+     * separately, in addition to their total number.
+     *
+     * @param comparator the comparator that will be used to order this map.
+     *        If {@code null}, the {@linkplain Comparable natural
+     *        ordering} of the keys will be used.
+     * @param weigher the weight of a mapping, which must be nonnegative and
+     *        the same whenever the mapping is weighed. If {@code null}, the
+     *        total weight is not tracked.
+     * @param categoriesNum the number of categories, at most
+     *        {@link UpdateInfo#MAX_CATEGORIES}
+     * @param classifier the category of a key, in [0, categoriesNum), which
+     *        must be the same whenever the key is classified. If
+     *        {@code null}, categoriesNum must be 1.
+     */
+    public SizeConcurrentSkipListMap(Comparator<? super K> comparator,
+                                     ToLongBiFunction<? super K, ? super V> weigher,
+                                     int categoriesNum, ToIntFunction<? super K> classifier) {
+        this(comparator, weigher, categoriesNum, classifier, Backoff.Strategy.getDefault());
+    }
+
+    /**
+     * Constructs a new, empty map, sorted according to the specified
+     * comparator, which counts the mappings of each category of keys
+     * separately, in addition to their total number, and whose sizes back
+     * off by the given strategy.
+     *
+     * @param comparator the comparator that will be used to order this map.
+     *        If {@code null}, the {@linkplain Comparable natural
+     *        ordering} of the keys will be used.
+     * @param weigher the weight of a mapping, which must be nonnegative and
+     *        the same whenever the mapping is weighed. If {@code null}, the
+     *        total weight is not tracked.
+     * @param categoriesNum the number of categories, at most
+     *        {@link UpdateInfo#MAX_CATEGORIES}
+     * @param classifier the category of a key, in [0, categoriesNum), which
+     *        must be the same whenever the key is classified. If
+     *        {@code null}, categoriesNum must be 1.
+     * @param backoffStrategy how a size that encounters a concurrent size
+     *        backs off, rather than the strategy chosen per JVM
+     */
+    public SizeConcurrentSkipListMap(Comparator<? super K> comparator,
+                                     ToLongBiFunction<? super K, ? super V> weigher,
+                                     int categoriesNum, ToIntFunction<? super K> classifier,
+                                     Backoff.Strategy backoffStrategy) {
+        this(comparator, weigher, new SizeCalculator(categoriesNum, backoffStrategy), 0, categoriesNum, classifier);
+    }
+
+    /**
+     * Constructs a new, empty map whose mappings are counted by the
+     * categories of sizeCalculator from fromCategory (inclusive) to
+     * toCategory (exclusive), as for the maps of a SizeGroup.
+     */
+    SizeConcurrentSkipListMap(Comparator<? super K> comparator,
+                              ToLongBiFunction<? super K, ? super V> weigher, SizeCalculator sizeCalculator,
+                              int fromCategory, int toCategory, ToIntFunction<? super K> classifier) {
+        if (classifier == null && toCategory - fromCategory != 1)
+            throw new IllegalArgumentException("Several categories require a classifier");
         this.comparator = comparator;
+        this.sizeCalculator = sizeCalculator;
+        this.fromCategory = fromCategory;
+        this.toCategory = toCategory;
+        this.classifier = classifier;
+        this.weigher = weigher;
+        this.weightCalculator = weigher == null ? null : new SizeCalculator(sizeCalculator.getBackoffStrategy());
     }
 
     /* ------ Map API methods ------ */
@@ -842,12 +1224,191 @@ public class SizeConcurrentSkipListMap<K,V> {
         return doRemove(key, null);
     }
 
+    /**
+     * Copies all of the mappings from the specified map to this map, as
+     * {@link #put} would do for each of them. Every mapping is
+     * linearized on its own, but the size metadata of the new mappings
+     * is updated once for the whole batch.
+     *
+     * @param m mappings to be stored in this map
+     * @throws ClassCastException if the class of a key or value in the
+     *         specified map prevents it from being stored in this map
+     * @throws NullPointerException if the specified map is null or any of
+     *         its keys or values are null
+     */
+    public void putAll(Map<? extends K, ? extends V> m) {
+        Batch<K,V> batch = startBatch(m.size());
+        try {
+            for (Map.Entry<? extends K, ? extends V> e : m.entrySet()) {
+                V value = e.getValue();
+                if (value == null)
+                    throw new NullPointerException();
+                doPut(e.getKey(), value, false, batch);
+            }
+        } finally {
+            publishBatch(batch);
+        }
+    }
+
+    /**
+     * Removes the mappings for the specified keys from this map if
+     * present, as {@link #remove(Object)} would do for each of them.
+     * Every removal is linearized on its own, but the size metadata of
+     * the removals is updated once for the whole batch.
+     *
+     * @param keys keys whose mappings should be removed
+     * @return the number of mappings removed
+     * @throws ClassCastException if a specified key cannot be compared
+     *         with the keys currently in the map
+     * @throws NullPointerException if the specified collection is null or
+     *         any of its keys are null
+     */
+    public int removeAll(Collection<?> keys) {
+        Batch<K,V> batch = startBatch(keys.size());
+        try {
+            for (Object key : keys) {
+                doRemove(key, null, batch);
+            }
+        } finally {
+            publishBatch(batch);
+        }
+        return batch.removedNodesNum;
+    }
+
+    /**
+     * Returns the number of mappings, or {@code Integer.MAX_VALUE} if
+     * there are more. Use {@link #mappingCount()} for larger sizes.
+     */
     public int size() {
         long c;
-        return ((c = sizeCalculator.compute()) >= Integer.MAX_VALUE) ?
+        return ((c = mappingCount()) >= Integer.MAX_VALUE) ?
+                Integer.MAX_VALUE : (int) c;
+    }
+
+    /**
+     * Returns the number of mappings at some point during the last
+     * {@code maxAgeNanos} nanoseconds, which may avoid computing the
+     * size anew when a size has been computed recently enough.
+     */
+    public int size(long maxAgeNanos) {
+        long c;
+        return ((c = mappingCount(maxAgeNanos)) >= Integer.MAX_VALUE) ?
                 Integer.MAX_VALUE : (int) c;
     }
 
+    /**
+     * Returns the number of mappings. This method should be used instead
+     * of {@link #size()} when there may be more mappings than can be
+     * represented as an int.
+     */
+    public long mappingCount() {
+        return sizeCalculator.computeCategories(fromCategory, toCategory);
+    }
+
+    /**
+     * Returns the number of mappings at some point during the last
+     * {@code maxAgeNanos} nanoseconds, as {@link #size(long)} does,
+     * without clamping it to an int.
+     */
+    public long mappingCount(long maxAgeNanos) {
+        return sizeCalculator.computeCategories(fromCategory, toCategory, maxAgeNanos);
+    }
+
+    /**
+     * Waits until the map holds at most {@code threshold} mappings, and
+     * returns whether it did before the timeout elapsed. The updates
+     * check the threshold only once they could have crossed it, so
+     * waiting does not compute the size repeatedly as polling size()
+     * would.
+     */
+    public boolean awaitSizeAtMost(long threshold, long timeout, TimeUnit unit) throws InterruptedException {
+        return sizeCalculator.awaitSizeAtMost(fromCategory, toCategory, threshold, timeout, unit);
+    }
+
+    /**
+     * Waits until the map holds at least {@code threshold} mappings, as
+     * awaitSizeAtMost does.
+     */
+    public boolean awaitSizeAtLeast(long threshold, long timeout, TimeUnit unit) throws InterruptedException {
+        return sizeCalculator.awaitSizeAtLeast(fromCategory, toCategory, threshold, timeout, unit);
+    }
+
+    /**
+     * Returns the number of inserts and removes of mappings linearized
+     * so far, which changes whenever the set of keys changes. Like
+     * size(), it is linearizable, and it is computed without a
+     * collection while no update has been linearized since the latest
+     * computation. Replacing the value of a key does not change it.
+     * For a map of a SizeGroup, it is the version of the whole group.
+     */
+    public long version() {
+        return sizeCalculator.computeVersion();
+    }
+
+    /**
+     * Returns whether mappings have been inserted or removed since
+     * version() returned the given version.
+     */
+    public boolean changedSince(long version) {
+        return sizeCalculator.changedSince(version);
+    }
+
+    /**
+     * Returns the number of mappings whose keys are of the given category,
+     * or {@code Integer.MAX_VALUE} if there are more. Like size(), it is
+     * linearizable. Use {@link #categoryMappingCount(int)} for larger sizes.
+     */
+    public int categorySize(int category) {
+        long c;
+        return ((c = categoryMappingCount(category)) >= Integer.MAX_VALUE) ?
+                Integer.MAX_VALUE : (int) c;
+    }
+
+    /**
+     * Returns the number of mappings of each category, all computed
+     * together, so that they held at the same point during the call.
+     * Each is clamped to {@code Integer.MAX_VALUE} as by categorySize.
+     */
+    public int[] categorySizes() {
+        long[] counts = categoryMappingCounts();
+        int[] result = new int[counts.length];
+        for (int category = 0; category < result.length; ++category)
+            result[category] = counts[category] >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) counts[category];
+        return result;
+    }
+
+    /**
+     * Returns the number of mappings whose keys are of the given category,
+     * as {@link #categorySize(int)} does, without clamping it to an int.
+     */
+    public long categoryMappingCount(int category) {
+        return sizeCalculator.computeCategory(fromCategory + category);
+    }
+
+    /**
+     * Returns the number of mappings of each category, as
+     * {@link #categorySizes()} does, without clamping them to ints.
+     */
+    public long[] categoryMappingCounts() {
+        return Arrays.copyOfRange(sizeCalculator.computeAllCategories(), fromCategory, toCategory);
+    }
+
+    /**
+     * Returns the total weight of the mappings, as given by the weigher
+     * this map was constructed with. Like size(), it is linearizable,
+     * and it is computed from the weight metadata without traversing
+     * the map. The total weight that each thread has inserted, and that
+     * it has removed, must stay below 2^46: an update that would reach
+     * it throws ArithmeticException without changing the map.
+     *
+     * @throws UnsupportedOperationException if this map has no weigher
+     */
+    public long weight() {
+        if (weightCalculator == null)
+            throw new UnsupportedOperationException("The map was constructed without a weigher");
+        return weightCalculator.compute();
+    }
+
     /* ------ ConcurrentMap API methods ------ */
 
     /**
@@ -865,6 +1426,44 @@ public class SizeConcurrentSkipListMap<K,V> {
         return doPut(key, value, true);
     }
 
+    /**
+     * Inserts the mapping if the key is absent and the map holds fewer
+     * than {@code limit} mappings. Bounded inserts never grow the map
+     * beyond {@code limit} mappings, and a bounded insert fails because
+     * of the limit only if the mappings and the concurrent bounded
+     * inserts reach it. Far below the limit, the capacity is reserved
+     * by each thread without computing the size (see
+     * CapacityReservations). Inserts by put and putAll are not bounded.
+     *
+     * @return {@code true} if the mapping was inserted
+     * @throws ClassCastException if the specified key cannot be compared
+     *         with the keys currently in the map
+     * @throws NullPointerException if the specified key or value is null
+     */
+    public boolean putIfAbsentAndSizeBelow(K key, V value, long limit) {
+        if (key == null || value == null)
+            throw new NullPointerException();
+        CapacityReservations reservations = capacityReservations();
+        if (!reservations.reserve(limit))
+            return false;
+        try {
+            return doPut(key, value, true) == null;
+        } finally {
+            reservations.release();
+        }
+    }
+
+    private CapacityReservations capacityReservations() {
+        CapacityReservations reservations = capacityReservations;
+        if (reservations == null) {
+            CapacityReservations witnessed = (CapacityReservations) CAPACITY_RESERVATIONS.compareAndExchange(
+                    this, null, reservations = new CapacityReservations(sizeCalculator, fromCategory, toCategory));
+            if (witnessed != null)
+                reservations = witnessed;
+        }
+        return reservations;
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -885,6 +1484,7 @@ public class SizeConcurrentSkipListMap<K,V> {
     }
 
     // VarHandle mechanics
+    private static final VarHandle CAPACITY_RESERVATIONS;
     private static final VarHandle HEAD;
     private static final VarHandle NEXT;
     private static final VarHandle VAL_OR_REMOVE_INFO;
@@ -894,6 +1494,8 @@ public class SizeConcurrentSkipListMap<K,V> {
             MethodHandles.Lookup l = MethodHandles.lookup();
             HEAD = l.findVarHandle(SizeConcurrentSkipListMap.class, "head",
                     Index.class);
+            CAPACITY_RESERVATIONS = l.findVarHandle(SizeConcurrentSkipListMap.class, "capacityReservations",
+                    CapacityReservations.class);
             NEXT = l.findVarHandle(Node.class, "next", Node.class);
             VAL_OR_REMOVE_INFO = l.findVarHandle(Node.class, "valOrRemoveInfo", Object.class);
             RIGHT = l.findVarHandle(Index.class, "right", Index.class);
@@ -911,7 +1513,7 @@ public class SizeConcurrentSkipListMap<K,V> {
         }
         while ((n = b.next) != null) {
             K k = n.key;
-            if (k != null && n.valOrRemoveInfo.getClass() != UpdateInfo.class) // not accurate if concurrent with remove, since remove info is installed in n.valOrRemoveInfo before n's remove is linearized
+            if (k != null && n.valOrRemoveInfo.getClass() != Node.class) // not accurate if concurrent with remove, since remove info is installed in n.valOrRemoveInfo before n's remove is linearized
                 keysSum += (Integer) k;
             b = n;
         }
@@ -0,0 +1,174 @@
+package algorithms.size;
+
+/**
+ *  This is an implementation of the paper "Concurrent Size" by Gal Sela and Erez Petrank.
+ *  The current file groups several size-transformed structures under one SizeCalculator,
+ *  so that their total size is computed linearizably.
+ *
+ *  Copyright (C) 2022  Gal Sela
+ *  Contact Gal Sela (sela.galy@gmail.com) with any questions or comments.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import algorithms.size.core.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Comparator;
+
+/**
+ * A group of structures (shards) whose sizes are computed by one SizeCalculator, each shard counted by a category of its own.
+ * Since a single collection of the metadata counters covers all the shards, the total size of the group is linearizable, and
+ * so are the sizes of the shards computed together with it: a key moved between shards (inserted into one and then removed
+ * from the other) is never missing from the total, though it is counted in both shards between the insert and the remove.
+ *
+ * Shards are created by the factory methods of the group, at most shardsNum of them, and are numbered in order of creation.
+ * Each shard supports all the size operations of its class, applied to its own category; its version() is the version of
+ * the whole group.
+ */
+public class SizeGroup {
+    private final SizeCalculator sizeCalculator;
+    private final int shardsNum;
+    // The number of shards created so far, which is the category of the next one
+    private volatile int createdShardsNum;
+
+    /**
+     * Constructs a new group of at most shardsNum shards.
+     *
+     * @param shardsNum the maximal number of shards, at most
+     *        {@link UpdateInfo#MAX_CATEGORIES}
+     */
+    public SizeGroup(int shardsNum) {
+        this(shardsNum, false);
+    }
+
+    /**
+     * Constructs a new group of at most shardsNum shards, whose updates skip
+     * the size metadata until the size of the group or of a shard is first
+     * computed if isDormant.
+     *
+     * @param shardsNum the maximal number of shards, at most
+     *        {@link UpdateInfo#MAX_CATEGORIES}
+     * @param isDormant whether the shards are updated dormantly until the
+     *        first size
+     */
+    public SizeGroup(int shardsNum, boolean isDormant) {
+        this(shardsNum, isDormant, Backoff.Strategy.getDefault());
+    }
+
+    /**
+     * Constructs a new group of at most shardsNum shards, as
+     * SizeGroup(shardsNum, isDormant) does, whose sizes back off by the
+     * given strategy rather than the strategy chosen per JVM.
+     *
+     * @param backoffStrategy how a size that encounters a concurrent size
+     *        backs off
+     */
+    public SizeGroup(int shardsNum, boolean isDormant, Backoff.Strategy backoffStrategy) {
+        this(shardsNum, isDormant, backoffStrategy, CountersLayout.getDefault());
+    }
+
+    /**
+     * Constructs a new group of at most shardsNum shards, as
+     * SizeGroup(shardsNum, isDormant, backoffStrategy) does, whose size
+     * metadata counters are laid out by the given layout rather than the
+     * layout chosen per JVM.
+     *
+     * @param countersLayout the layout of the per-thread counters
+     */
+    public SizeGroup(int shardsNum, boolean isDormant, Backoff.Strategy backoffStrategy, CountersLayout countersLayout) {
+        this.sizeCalculator = new SizeCalculator(shardsNum, backoffStrategy, isDormant, countersLayout);
+        this.shardsNum = shardsNum;
+    }
+
+    public <K,V> SizeHashTable<K,V> newSizeHashTable(int requestedTableSize) {
+        return newSizeHashTable(requestedTableSize, null);
+    }
+
+    public <K,V> SizeHashTable<K,V> newSizeHashTable(int requestedTableSize, Comparator<? super K> comparator) {
+        return newSizeHashTable(requestedTableSize, comparator, SizeHashTable.PADDED_HEADS);
+    }
+
+    // Creates a map whose bucket heads are padded if paddedHeads, rather than as chosen per JVM with -DsizeHashTable.paddedHeads
+    public <K,V> SizeHashTable<K,V> newSizeHashTable(int requestedTableSize, Comparator<? super K> comparator, boolean paddedHeads) {
+        int shard = nextShard();
+        return new SizeHashTable<>(requestedTableSize, comparator, null, sizeCalculator, shard, shard + 1, null, paddedHeads);
+    }
+
+    public <K,V> SizeConcurrentSkipListMap<K,V> newSizeConcurrentSkipListMap() {
+        return newSizeConcurrentSkipListMap(null);
+    }
+
+    public <K,V> SizeConcurrentSkipListMap<K,V> newSizeConcurrentSkipListMap(Comparator<? super K> comparator) {
+        int shard = nextShard();
+        return new SizeConcurrentSkipListMap<>(comparator, null, sizeCalculator, shard, shard + 1, null);
+    }
+
+    public <K extends Comparable<? super K>,V> SizeBST<K,V> newSizeBST() {
+        return new SizeBST<>(sizeCalculator, nextShard());
+    }
+
+    private int nextShard() {
+        int shard = (int) CREATED_SHARDS_NUM.getAndAdd(this, 1);
+        if (shard >= shardsNum) {
+            CREATED_SHARDS_NUM.getAndAdd(this, -1);
+            throw new IllegalStateException("The group already has " + shardsNum + " shards");
+        }
+        return shard;
+    }
+
+    // The number of shards created so far
+    public int getShardsNum() {
+        return Math.min(createdShardsNum, shardsNum);
+    }
+
+    /**
+     * Returns the total number of key-value mappings in the shards of this
+     * group, linearizable with the updates of all of them.
+     */
+    public long size() {
+        return sizeCalculator.compute();
+    }
+
+    /**
+     * Returns the number of key-value mappings in each shard, indexed by the
+     * shard number, all taken from the same linearizable snapshot, so that
+     * they sum up to a total size of the group.
+     */
+    public long[] shardSizes() {
+        return sizeCalculator.computeAllCategories();
+    }
+
+    public long shardSize(int shard) {
+        return sizeCalculator.computeCategory(shard);
+    }
+
+    /**
+     * Returns a version of the group that advances with every update of its
+     * shards that changes its total size or the size of a shard.
+     */
+    public long version() {
+        return sizeCalculator.computeVersion();
+    }
+
+    private static final VarHandle CREATED_SHARDS_NUM;
+    static {
+        try {
+            MethodHandles.Lookup l = MethodHandles.lookup();
+            CREATED_SHARDS_NUM = l.findVarHandle(SizeGroup.class, "createdShardsNum", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
@@ -5,6 +5,9 @@ package algorithms.size;
  *  The current file applies a size transformation to algorithms.baseline.HashTable -
  *  a hash table implemented as a table of linked lists, whose implementation is based on the
  *  linked list in the base level of java.util.concurrent.ConcurrentSkipListMap by Doug Lea.
+ *  Unlike HashTable, its table grows: the lists of all its buckets are parts of a single list in
+ *  split order, as in "Split-Ordered Lists: Lock-Free Extensible Hash Tables" by Ori Shalev and
+ *  Nir Shavit, so that doubling the table splits the buckets without moving any node.
  *
  *  Copyright (C) 2022  Gal Sela
  *  Contact Gal Sela (sela.galy@gmail.com) with any questions or comments.
@@ -26,24 +29,65 @@ package algorithms.size;
 import algorithms.size.core.*;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongBiFunction;
 
-public class SizeHashTable<K,V> {
+public class SizeHashTable<K,V> extends AbstractMap<K,V> implements ConcurrentMap<K,V>, SizedMap<K,V> {
     /**
-     * The comparator used to maintain order in this map, or null if
-     * using natural ordering.  (Non-private to simplify access in
-     * nested classes.)
+     * The comparator whose zero result defines key equality in this
+     * map, or null if keys are matched by equals.  Keys are ordered
+     * only by their hashes, so they need not be comparable.
+     * (Non-private to simplify access in nested classes.)
      */
     final Comparator<? super K> comparator;
 
-    private final int tableSize;
-    private final Node<K,V>[] table;
+    // The number of buckets, a power of two that only grows (see tryGrow). Every bucket is the part of the list that starts at
+    // its head, and doubling tableSize splits it in two by inserting the heads of the new buckets (see initializeBucket)
+    private volatile int tableSize;
+    // The heads of the initial buckets and of the buckets accessed since, in segments (see SplitOrder)
+    private final Object[][] buckets;
+    // Whether the heads of the buckets are padded (see PADDED_HEADS)
+    private final boolean paddedHeads;
 
-    private final SizeCalculator sizeCalculator = new SizeCalculator();
+    private final SizeCalculator sizeCalculator;
+    // The categories of sizeCalculator that count the mappings of this map, from fromCategory (inclusive) to toCategory
+    // (exclusive): all of them, unless sizeCalculator is shared by a SizeGroup, which gives each of its maps a category
+    private final int fromCategory;
+    private final int toCategory;
+    // The category of each key, whose mappings are counted separately (see categorySize), or null if there is a single category
+    private final ToIntFunction<? super K> classifier;
+    // The weight of each mapping, or null if the total weight of the mappings is not tracked
+    private final ToLongBiFunction<? super K, ? super V> weigher;
+    // Tracks the total weight of the mappings as sizeCalculator tracks their number, with counters that advance by weights
+    // (see WeightUpdate). Null if there is no weigher
+    private final SizeCalculator weightCalculator;
+    // Admits the bounded inserts of putIfAbsentAndSizeBelow, created upon the first one
+    private volatile CapacityReservations capacityReservations;
+
+    /** Lazily initialized key set */
+    private KeySet keySet;
+    /** Lazily initialized values collection */
+    private Values values;
+    /** Lazily initialized entry set */
+    private EntrySet entrySet;
 
     /* ------ Taken from https://github.com/openjdk/jdk/blob/dc7d30d08eacbe4d00d16b13e921359d38c77cd8/src/java.base/share/classes/java/util/concurrent/ConcurrentHashMap.java ------ */
 
-    private static final int MAXIMUM_CAPACITY = 1 << 30;
     static final int HASH_BITS = 0x7fffffff;
 
     /**
@@ -66,14 +110,13 @@ public class SizeHashTable<K,V> {
         return (h ^ (h >>> 16)) & HASH_BITS;
     }
 
-    /**
-     * Returns a power of two table size for the given desired capacity.
-     * See Hackers Delight, sec 3.2
-     */
-    private static final int tableSizeFor(int c) {
-        int n = -1 >>> Integer.numberOfLeadingZeros(c - 1);
-        return (n < 0) ? 1 : (n >= MAXIMUM_CAPACITY) ? MAXIMUM_CAPACITY : n + 1;
-    }
+    /* ---------------- Split order -------------- */
+
+    // Whether the heads of the buckets are padded, chosen per JVM with -DsizeHashTable.paddedHeads=true unless chosen for the
+    // map by its SizeGroup. An insert at the front of a bucket CASes the next field of its head, and heads allocated back to
+    // back (as the constructor does) share cache lines, so such CASes on neighbouring buckets false-share under write load.
+    // Padding costs 128 bytes per bucket, and so more cache misses for read-mostly tables
+    static final boolean PADDED_HEADS = Boolean.getBoolean("sizeHashTable.paddedHeads");
 
     /* ---------------- Node -------------- */
 
@@ -81,78 +124,582 @@ public class SizeHashTable<K,V> {
      * Nodes hold keys and values, and are singly linked in sorted
      * order, possibly with some intervening marker nodes. The list is
      * headed by a header node accessible as head.node. Headers and
-     * marker nodes have null keys. The val field (but currently not
-     * the key field) is nulled out upon deletion.
+     * marker nodes have null keys. The list is sorted by split-order
+     * keys, so each header (the head of a bucket) precedes the nodes of
+     * its bucket, while the nodes of keys with the same split-order key
+     * are in order of insertion, as keys are only matched by equality
+     * (see cpr). Upon deletion, the val field is
+     * replaced by a removal mark - a marker node holding the remove
+     * info, which the remover then splices in as the node's marker.
+     * In a map with a weigher, a value whose weight metadata may not
+     * be updated yet is wrapped by a WeightUpdate, and the val field
+     * of a removal mark holds the WeightUpdate of the removal, if any.
      */
-    static final class Node<K,V> {
+    static class Node<K,V> {
+        // The split-order key (see SplitOrder.splitOrderKey), which is even only for headers. A marker has the key of the node it marks
+        final int orderKey;
         final K key;
         Object valOrRemoveInfo;
         Node<K,V> next;
-        volatile UpdateInfo insertInfo;
-
+        // The insert info of a node whose insertion may not be linearized yet (UpdateInfo.NONE once it is),
+        // or the remove info of a removal mark
+        volatile long updateInfo;
 
-        Node(K key, V value, Node<K,V> next, UpdateInfo insertInfo) {
+        Node(int orderKey, K key, V value, Node<K,V> next, long updateInfo) {
+            this.orderKey = orderKey;
             this.key = key;
             this.valOrRemoveInfo = value;
             this.next = next;
-            this.insertInfo = insertInfo;
+            this.updateInfo = updateInfo;
         }
 
         // For head and marker nodes
-        Node(K key, V value, Node<K,V> next) {
-            this(key, value, next, null);
+        Node(int orderKey, K key, V value, Node<K,V> next) {
+            this(orderKey, key, value, next, UpdateInfo.NONE);
+        }
+
+        boolean isMarker() {
+            return key == null && (orderKey & 1) != 0;
+        }
+    }
+
+    /**
+     * A head whose next field does not share a cache line with the
+     * object allocated after it (see PADDED_HEADS), padded by 128 bytes
+     * as the counters of SizeCalculator are. Fields of a subclass are
+     * laid out after those of its superclass, so the padding can only
+     * follow next; it is preceded by the padding of the previous head
+     * when heads are allocated back to back, as the constructor does.
+     */
+    static final class PaddedHead<K,V> extends Node<K,V> {
+        long p0, p1, p2, p3, p4, p5, p6, p7;
+        long p8, p9, p10, p11, p12, p13, p14, p15;
+
+        PaddedHead(int orderKey, Node<K,V> next) {
+            super(orderKey, null, null, next);
         }
     }
 
 
+    /* ---------------- Batch -------------- */
+
+    /**
+     * The updates of a putAll or removeAll, whose size metadata is
+     * updated once for the whole batch by publishBatch (see
+     * UpdateBatch). Until then, the new nodes keep their insert info,
+     * and the removed nodes are not unlinked.
+     */
+    static final class Batch<K,V> {
+        // The slot of the batch's thread if the batch is a dormant update, and otherwise SizeCalculator.NOT_DORMANT
+        final int dormantTid;
+        final UpdateBatch updateBatch;
+        // The batch of the weight metadata, or null if there is no weigher
+        final UpdateBatch weightBatch;
+        private final int capacity;
+        Node<K,V>[] insertedNodes;
+        int insertedNodesNum;
+        // Removed nodes and their predecessors upon removal, at the same indices
+        Node<K,V>[] removedNodes;
+        Node<K,V>[] removedPredecessors;
+        int removedNodesNum;
+
+        Batch(int dormantTid, UpdateBatch updateBatch, UpdateBatch weightBatch, int capacity) {
+            this.dormantTid = dormantTid;
+            this.updateBatch = updateBatch;
+            this.weightBatch = weightBatch;
+            this.capacity = Math.max(capacity, 1);
+        }
+
+        void weighed(long weightDelta) {
+            if (weightDelta != 0)
+                weightBatch.linked(WeightUpdate.opKindOf(weightDelta), Math.abs(weightDelta));
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        void inserted(Node<K,V> n, int category) {
+            updateBatch.linked(category, UpdateOperations.OpKind.INSERT, 1);
+            if (insertedNodes == null)
+                insertedNodes = new Node[capacity];
+            else if (insertedNodesNum == insertedNodes.length)
+                insertedNodes = Arrays.copyOf(insertedNodes, 2 * insertedNodesNum);
+            insertedNodes[insertedNodesNum++] = n;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        void removed(Node<K,V> b, Node<K,V> n, int category) {
+            updateBatch.linked(category, UpdateOperations.OpKind.REMOVE, 1);
+            if (removedNodes == null) {
+                removedNodes = new Node[capacity];
+                removedPredecessors = new Node[capacity];
+            }
+            else if (removedNodesNum == removedNodes.length) {
+                removedNodes = Arrays.copyOf(removedNodes, 2 * removedNodesNum);
+                removedPredecessors = Arrays.copyOf(removedPredecessors, 2 * removedNodesNum);
+            }
+            removedNodes[removedNodesNum] = n;
+            removedPredecessors[removedNodesNum++] = b;
+        }
+    }
+
     /* ---------------- Constructors -------------- */
 
     /**
-     * Constructs a new, empty map, sorted according to the
-     * {@linkplain Comparable natural ordering} of the keys.
+     * Constructs a new, empty map, whose keys are matched by
+     * {@link Object#equals equals}.
      */
     public SizeHashTable(int requestedTableSize) {
         this(requestedTableSize, null);
     }
 
     /**
-     * Constructs a new, empty map, sorted according to the specified
-     * comparator.
+     * Constructs a new, empty map, whose keys are matched by the
+     * specified comparator.
      *
-     * @param comparator the comparator that will be used to order this map.
-     *        If {@code null}, the {@linkplain Comparable natural
-     *        ordering} of the keys will be used.
+     * @param comparator the comparator that will be used to match keys,
+     *        which are equal if it returns 0 for them. If {@code null},
+     *        {@link Object#equals equals} will be used.
      */
     public SizeHashTable(int requestedTableSize, Comparator<? super K> comparator) {
+        this(requestedTableSize, comparator, null);
+    }
+
+    /**
+     * Constructs a new, empty map, whose keys are matched by the
+     * specified comparator, which tracks the total weight of its mappings.
+     *
+     * @param comparator the comparator that will be used to match keys,
+     *        which are equal if it returns 0 for them. If {@code null},
+     *        {@link Object#equals equals} will be used.
+     * @param weigher the weight of a mapping, which must be nonnegative and
+     *        the same whenever the mapping is weighed. If {@code null}, the
+     *        total weight is not tracked.
+     */
+    public SizeHashTable(int requestedTableSize, Comparator<? super K> comparator,
+                         ToLongBiFunction<? super K, ? super V> weigher) {
+        this(requestedTableSize, comparator, weigher, 1, null);
+    }
+
+    /**
+     * Constructs a new, empty map, whose keys are matched by the
+     * specified comparator, which counts the mappings of each category of keys
+     * separately, in addition to their total number.
+     *
+     * @param comparator the comparator that will be used to match keys,
+     *        which are equal if it returns 0 for them. If {@code null},
+     *        {@link Object#equals equals} will be used.
+     * @param weigher the weight of a mapping, which must be nonnegative and
+     *        the same whenever the mapping is weighed. If {@code null}, the
+     *        total weight is not tracked.
+     * @param categoriesNum the number of categories, at most
+     *        {@link UpdateInfo#MAX_CATEGORIES}
+     * @param classifier the category of a key, in [0, categoriesNum), which
+     *        must be the same whenever the key is classified. If
+     *        {@code null}, categoriesNum must be 1.
+     */
+    public SizeHashTable(int requestedTableSize, Comparator<? super K> comparator,
+                         ToLongBiFunction<? super K, ? super V> weigher,
+                         int categoriesNum, ToIntFunction<? super K> classifier) {
+        this(requestedTableSize, comparator, weigher, categoriesNum, classifier, Backoff.Strategy.getDefault());
+    }
+
+    /**
+     * Constructs a new, empty map, whose keys are matched by the
+     * specified comparator, which counts the mappings of each category of keys
+     * separately, in addition to their total number, and whose sizes back
+     * off by the given strategy.
+     *
+     * @param comparator the comparator that will be used to match keys,
+     *        which are equal if it returns 0 for them. If {@code null},
+     *        {@link Object#equals equals} will be used.
+     * @param weigher the weight of a mapping, which must be nonnegative and
+     *        the same whenever the mapping is weighed. If {@code null}, the
+     *        total weight is not tracked.
+     * @param categoriesNum the number of categories, at most
+     *        {@link UpdateInfo#MAX_CATEGORIES}
+     * @param classifier the category of a key, in [0, categoriesNum), which
+     *        must be the same whenever the key is classified. If
+     *        {@code null}, categoriesNum must be 1.
+     * @param backoffStrategy how a size that encounters a concurrent size
+     *        backs off, rather than the strategy chosen per JVM
+     */
+    public SizeHashTable(int requestedTableSize, Comparator<? super K> comparator,
+                         ToLongBiFunction<? super K, ? super V> weigher,
+                         int categoriesNum, ToIntFunction<? super K> classifier,
+                         Backoff.Strategy backoffStrategy) {
+        this(requestedTableSize, comparator, weigher, new SizeCalculator(categoriesNum, backoffStrategy), 0, categoriesNum, classifier,
+                PADDED_HEADS);
+    }
+
+    /**
+     * Constructs a new, empty map whose mappings are counted by the
+     * categories of sizeCalculator from fromCategory (inclusive) to
+     * toCategory (exclusive), as for the maps of a SizeGroup, with padded
+     * bucket heads if paddedHeads.
+     */
+    SizeHashTable(int requestedTableSize, Comparator<? super K> comparator,
+                  ToLongBiFunction<? super K, ? super V> weigher, SizeCalculator sizeCalculator,
+                  int fromCategory, int toCategory, ToIntFunction<? super K> classifier, boolean paddedHeads) {
+        if (classifier == null && toCategory - fromCategory != 1)
+            throw new IllegalArgumentException("Several categories require a classifier");
         this.comparator = comparator;
+        this.sizeCalculator = sizeCalculator;
+        this.fromCategory = fromCategory;
+        this.toCategory = toCategory;
+        this.classifier = classifier;
+        this.weigher = weigher;
+        this.weightCalculator = weigher == null ? null : new SizeCalculator(sizeCalculator.getBackoffStrategy());
+        this.paddedHeads = paddedHeads;
 
         if (requestedTableSize <= 0) throw new NegativeArraySizeException();
-        this.tableSize = tableSizeFor(requestedTableSize);
-        Node<K,V>[] constructedTable = new Node[tableSize];
-        // Initialize each of the table cells with a dummy head for its linked list:
-        for (int i = 0; i < tableSize; ++i) {
-            constructedTable[i] = new Node<K, V>(null, null, null);
+        this.tableSize = SplitOrder.tableSizeFor(requestedTableSize);
+        this.buckets = SplitOrder.newBuckets(tableSize);
+        // Initialize each of the initial buckets with a dummy head, linked in split order. The heads of the buckets added by
+        // doubling the table are inserted upon first access
+        int bits = Integer.numberOfTrailingZeros(tableSize);
+        Node<K,V> next = null;
+        for (int i = tableSize - 1; i >= 0; --i) {
+            int bucket = SplitOrder.bucketAt(i, bits);
+            next = newHead(SplitOrder.bucketOrderKey(bucket), next);
+            SplitOrder.setHead(buckets, bucket, next);
         }
-        this.table = constructedTable;
         // Now the table's content is visible to all, see https://stackoverflow.com/questions/2830739/do-the-up-to-date-guarantees-for-values-of-javas-final-fields-extend-to-indir
     }
 
-    private Node<K,V> getListHead(Object key) {
-        int keyHash = spread(key.hashCode());
-        int tableIndex = (tableSize - 1) & keyHash;
-        return table[tableIndex];
+    /* ---------------- Buckets -------------- */
+
+    @SuppressWarnings("unchecked")
+    private Node<K,V> getListHead(int hash) {
+        int bucket = (tableSize - 1) & hash;
+        Node<K,V> head = (Node<K,V>) SplitOrder.getHead(buckets, bucket);
+        if (head == null)
+            head = initializeBucket(bucket);
+        return head;
+    }
+
+    /**
+     * Inserts the head of the bucket into the list, after initializing
+     * its parent bucket - the bucket it was split from, whose index is
+     * the same without the highest bit - from whose head the new head
+     * is inserted, and installs it in the table. Concurrent
+     * initializations of a bucket find the same head in the list.
+     */
+    @SuppressWarnings("unchecked")
+    private Node<K,V> initializeBucket(int bucket) {
+        int parent = SplitOrder.parentOf(bucket); // bucket > 0, as the constructor initializes bucket 0
+        Node<K,V> parentHead = (Node<K,V>) SplitOrder.getHead(buckets, parent);
+        if (parentHead == null)
+            parentHead = initializeBucket(parent);
+        Node<K,V> head = listInsertHead(SplitOrder.bucketOrderKey(bucket), parentHead);
+        SplitOrder.setHead(buckets, bucket, head);
+        return head;
+    }
+
+    private Node<K,V> newHead(int orderKey, Node<K,V> next) {
+        return paddedHeads ? new PaddedHead<K,V>(orderKey, next) : new Node<K,V>(orderKey, null, null, next);
+    }
+
+    /**
+     * Doubles the table if the map holds more than SplitOrder.MAX_LOAD
+     * mappings per bucket, as estimated from the size metadata without a
+     * collection, so that neither a dormant sizeCalculator nor an insert
+     * within a batch waits for it. The new buckets are initialized
+     * lazily, so doubling costs a single CAS.
+     */
+    private void tryGrow() {
+        int currentTableSize = tableSize;
+        if (SplitOrder.isOverloaded(currentTableSize, sizeCalculator.estimateCategories(fromCategory, toCategory)))
+            TABLE_SIZE.compareAndSet(this, currentTableSize, currentTableSize << 1);
     }
 
     private V doGet(Object key) {
-        return listDoGet(key, getListHead(key));
+        return listDoGet(key);
     }
 
+    /**
+     * Puts as listDoPut does, within a dormant update while
+     * sizeCalculator is dormant (see SizeCalculator.enterDormantUpdate).
+     */
     private V doPut(K key, V value, boolean onlyIfAbsent) {
-        return listDoPut(key, value, onlyIfAbsent, getListHead(key));
+        int dormantTid = sizeCalculator.enterDormantUpdate();
+        if (dormantTid == SizeCalculator.NOT_DORMANT)
+            return listDoPut(key, value, onlyIfAbsent, null);
+        V result = value; // Stands for no insert unless listDoPut returns null
+        try {
+            return result = listDoPut(key, value, onlyIfAbsent, null);
+        } finally {
+            if (result == null)
+                sizeCalculator.exitDormantUpdate(dormantTid, category(key), UpdateOperations.OpKind.INSERT, 1);
+            else
+                sizeCalculator.exitDormantUpdate(dormantTid);
+        }
     }
 
+    /**
+     * Removes as listDoRemove does, within a dormant update while
+     * sizeCalculator is dormant.
+     */
+    @SuppressWarnings("unchecked")
     private V doRemove(Object key, Object value) {
-        return listDoRemove(key, value, getListHead(key));
+        int dormantTid = sizeCalculator.enterDormantUpdate();
+        if (dormantTid == SizeCalculator.NOT_DORMANT)
+            return listDoRemove(key, value, null);
+        V result = null;
+        try {
+            return result = listDoRemove(key, value, null);
+        } finally {
+            if (result != null)
+                sizeCalculator.exitDormantUpdate(dormantTid, category((K) key), UpdateOperations.OpKind.REMOVE, 1);
+            else
+                sizeCalculator.exitDormantUpdate(dormantTid);
+        }
+    }
+
+    /**
+     * Main compute method, used by the compute methods, merge and the
+     * replace methods. Locates the node of key and applies the
+     * remapping function to the key and its value (or null if absent),
+     * all in a single traversal: if the function returns null, the
+     * mapping is removed as by listDoRemove; if it returns the value
+     * itself, the mapping is left as is; and otherwise the value is
+     * replaced, or a node inserted, as by listDoPut. If the value
+     * changes before it is replaced or removed, the function is applied
+     * again to the new one, so it may be applied more than once -
+     * though only once to null. While sizeCalculator is dormant, only
+     * the CAS that inserts or removes the mapping is within a dormant
+     * update, so that the function may compute a size, or take its
+     * time, without holding back the first size.
+     *
+     * @param returnsOld whether to return the previous value rather
+     * than the new one
+     * @return the previous or the new value, or null if none
+     */
+    @SuppressWarnings("unchecked")
+    private V doCompute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction, boolean returnsOld) {
+        if (key == null || remappingFunction == null)
+            throw new NullPointerException();
+        Comparator<? super K> cmp = comparator;
+        int hash = spread(key.hashCode());
+        int orderKey = SplitOrder.splitOrderKey(hash);
+        int category = category(key);
+        Node<K,V> head = getListHead(hash);
+        V absentValue = null;                // the function applied to null, once
+        boolean isAbsentValueComputed = false;
+        for (;;) {
+            VarHandle.acquireFence();
+            Node<K,V> b = head;
+            int chainLength = 0;
+            for (;;) {                       // find the node or insertion point
+                Node<K,V> n, p; K k; Object valOrRemoveInfo; int c;
+                if ((n = b.next) == null)
+                    c = -1;
+                else if ((k = n.key) == null) {
+                    if (n.isMarker())
+                        break;               // can't append; restart
+                    if ((c = cpr(cmp, orderKey, key, n)) > 0)
+                        b = n;               // the head of a later bucket, split from this one
+                }
+                else if ((valOrRemoveInfo = n.valOrRemoveInfo).getClass() == Node.class) {
+                    completeRemove(b, n);
+                    c = 1;
+                }
+                else if ((c = cpr(cmp, orderKey, key, n)) > 0) {
+                    b = n;
+                    ++chainLength;
+                }
+                else if (c == 0 && valOrRemoveInfo.getClass() == WeightUpdate.class) {
+                    helpWeightUpdate(n, (WeightUpdate) valOrRemoveInfo);
+                    continue;                // reread the unwrapped value
+                }
+                else if (c == 0) {
+                    // The function observes n's mapping, so n's insert is linearized before it is applied
+                    long insertInfo = n.updateInfo;
+                    if (insertInfo != UpdateInfo.NONE) {
+                        sizeCalculator.updateMetadata(UpdateOperations.OpKind.INSERT, insertInfo);
+                        n.updateInfo = UpdateInfo.NONE;
+                    }
+                    V v = (V) valOrRemoveInfo;
+                    V r = remappingFunction.apply(key, v);
+                    if (r == v)
+                        return v;
+                    if (r != null) {
+                        long weightDelta = weigher == null ? 0 : weigh(key, r) - weigh(k, v);
+                        Object newValue = weighed(r, weightDelta, null);
+                        if (VAL_OR_REMOVE_INFO.compareAndSet(n, v, newValue)) {
+                            weighLinked(n, newValue, weightDelta, null);
+                            return returnsOld ? v : r;
+                        }
+                    }
+                    else {
+                        long weight = weigher == null ? 0 : weigh(k, v);
+                        int dormantTid = sizeCalculator.enterDormantUpdate();
+                        boolean isRemoved = false;
+                        try {
+                            long removeInfo = createUpdateInfo(category, UpdateOperations.OpKind.REMOVE, null);
+                            Node<K,V> removeMark = new Node<K,V>(n.orderKey, null, null, null, removeInfo);
+                            removeMark.valOrRemoveInfo = weighed(null, -weight, null); // published by the CAS below
+                            if (isRemoved = VAL_OR_REMOVE_INFO.compareAndSet(n, v, removeMark)) {
+                                reportRemove(removeMark);
+                                unlink(b, n, removeMark);
+                            }
+                        } finally {
+                            exitDormantUpdate(dormantTid, category, UpdateOperations.OpKind.REMOVE, isRemoved);
+                        }
+                        if (isRemoved)
+                            return returnsOld ? v : null;
+                    }
+                    continue;                // the value has changed; reread it
+                }
+
+                if (c < 0) {
+                    if (!isAbsentValueComputed) {
+                        absentValue = remappingFunction.apply(key, null);
+                        isAbsentValueComputed = true;
+                    }
+                    if (absentValue == null)
+                        return null;
+                    long weight = weigher == null ? 0 : weigh(key, absentValue);
+                    int dormantTid = sizeCalculator.enterDormantUpdate();
+                    boolean isInserted = false;
+                    try {
+                        Object newValue; long insertInfo;
+                        if (isInserted = NEXT.compareAndSet(b, n, p = new Node<K,V>(orderKey, key, (V) (newValue = weighed(absentValue, weight, null)), n,
+                                insertInfo = createUpdateInfo(category, UpdateOperations.OpKind.INSERT, null)))) {
+                            if (SplitOrder.isLoadCheckDue(chainLength))
+                                tryGrow();
+                            sizeCalculator.updateMetadata(UpdateOperations.OpKind.INSERT, insertInfo);
+                            p.updateInfo = UpdateInfo.NONE;
+                            weighLinked(p, newValue, weight, null);
+                        }
+                    } finally {
+                        exitDormantUpdate(dormantTid, category, UpdateOperations.OpKind.INSERT, isInserted);
+                    }
+                    if (isInserted)
+                        return returnsOld ? null : absentValue;
+                }
+            }
+        }
+    }
+
+    // Exits a dormant update (see SizeCalculator.enterDormantUpdate), counting it if it changed the size
+    private void exitDormantUpdate(int dormantTid, int category, int opKind, boolean didChangeSize) {
+        if (dormantTid == SizeCalculator.NOT_DORMANT)
+            return;
+        if (didChangeSize)
+            sizeCalculator.exitDormantUpdate(dormantTid, category, opKind, 1);
+        else
+            sizeCalculator.exitDormantUpdate(dormantTid);
+    }
+
+    private long createUpdateInfo(int category, int opKind, Batch<K,V> batch) {
+        return batch == null ? sizeCalculator.createUpdateInfo(category, opKind, 1) :
+                batch.updateBatch.createUpdateInfo(category, opKind, 1);
+    }
+
+    /**
+     * Returns the category of the key, as given by the classifier.
+     *
+     * @throws IllegalArgumentException if the category is out of range
+     */
+    private int category(K key) {
+        if (classifier == null)
+            return fromCategory;
+        int category = classifier.applyAsInt(key);
+        if (category < 0 || category >= toCategory - fromCategory)
+            throw new IllegalArgumentException("Category " + category + " is out of range");
+        return fromCategory + category;
+    }
+
+    // Starts a batch, within a dormant update while sizeCalculator is dormant
+    private Batch<K,V> startBatch(int capacity) {
+        int dormantTid = sizeCalculator.enterDormantUpdate();
+        return new Batch<K,V>(dormantTid, sizeCalculator.startBatch(),
+                weightCalculator == null ? null : weightCalculator.startBatch(), capacity);
+    }
+
+    /**
+     * Updates the size metadata of the batch's updates, and only then
+     * completes them: clears the insert infos of its new nodes, and
+     * unlinks its removed nodes. Then exits the batch's dormant update,
+     * if any, in which publishing has counted its updates.
+     */
+    @SuppressWarnings("unchecked")
+    private void publishBatch(Batch<K,V> batch) {
+        batch.updateBatch.publish();
+        if (batch.weightBatch != null)
+            batch.weightBatch.publish();
+        for (int i = 0; i < batch.insertedNodesNum; ++i) {
+            Node<K,V> n = batch.insertedNodes[i];
+            n.updateInfo = UpdateInfo.NONE;
+            Object valOrRemoveInfo = n.valOrRemoveInfo;
+            if (valOrRemoveInfo.getClass() == WeightUpdate.class)
+                helpWeightUpdate(n, (WeightUpdate) valOrRemoveInfo);
+        }
+        for (int i = 0; i < batch.removedNodesNum; ++i)
+            unlink(batch.removedPredecessors[i], batch.removedNodes[i],
+                    (Node<K,V>) batch.removedNodes[i].valOrRemoveInfo);
+        if (batch.dormantTid != SizeCalculator.NOT_DORMANT)
+            sizeCalculator.exitDormantUpdate(batch.dormantTid);
+    }
+
+    /* ---------------- Weights -------------- */
+
+    @SuppressWarnings("unchecked")
+    private long weigh(Object key, Object value) {
+        long weight = weigher.applyAsLong((K) key, (V) value);
+        if (weight < 0)
+            throw new IllegalArgumentException("Negative weight " + weight + " of the mapping of " + key);
+        return weight;
+    }
+
+    /**
+     * Returns what an update that changes the total weight by
+     * weightDelta installs as its value: the value itself if the
+     * change is 0 (always, if there is no weigher), and otherwise a
+     * WeightUpdate that wraps it. The WeightUpdate of a removal wraps
+     * a null value, and is installed in its removal mark.
+     */
+    private Object weighed(V value, long weightDelta, Batch<K,V> batch) {
+        if (weightDelta == 0)
+            return value;
+        int opKind = WeightUpdate.opKindOf(weightDelta);
+        long amount = Math.abs(weightDelta);
+        long updateInfo = batch == null ? weightCalculator.createUpdateInfo(opKind, amount) :
+                batch.weightBatch.createUpdateInfo(opKind, amount);
+        return new WeightUpdate(value, opKind, updateInfo);
+    }
+
+    /**
+     * Updates the weight metadata of the update that has just
+     * installed valOrWeightUpdate as n's value (as returned by
+     * weighed), or leaves it to publishBatch in a batch.
+     */
+    private void weighLinked(Node<K,V> n, Object valOrWeightUpdate, long weightDelta, Batch<K,V> batch) {
+        if (weightDelta == 0)
+            return;
+        if (batch != null)
+            batch.weighed(weightDelta);
+        else
+            helpWeightUpdate(n, (WeightUpdate) valOrWeightUpdate);
+    }
+
+    /**
+     * Updates the weight metadata of the update that installed
+     * weightUpdate as n's value, and then unwraps the value.
+     */
+    private void helpWeightUpdate(Node<K,V> n, WeightUpdate weightUpdate) {
+        weightUpdate.help(weightCalculator);
+        VAL_OR_REMOVE_INFO.compareAndSet(n, weightUpdate, weightUpdate.value);
+    }
+
+    /**
+     * Updates the size metadata of the removal whose removal mark is
+     * given, and its weight metadata if it has a WeightUpdate.
+     */
+    private void reportRemove(Node<K,V> removeMark) {
+        sizeCalculator.updateMetadata(UpdateOperations.OpKind.REMOVE, removeMark.updateInfo);
+        Object weightUpdate = removeMark.valOrRemoveInfo;
+        if (weightUpdate != null)
+            ((WeightUpdate) weightUpdate).help(weightCalculator);
     }
 
     /* ---------------- List traversal -------------- */
@@ -165,19 +712,21 @@ public class SizeHashTable<K,V> {
      * @param key the key
      * @return the value, or null if absent
      */
-    private V listDoGet(Object key, Node<K,V> head) {
+    @SuppressWarnings("unchecked")
+    private V listDoGet(Object key) {
         VarHandle.acquireFence();
         if (key == null)
             throw new NullPointerException();
         Comparator<? super K> cmp = comparator;
+        int hash = spread(key.hashCode());
+        int orderKey = SplitOrder.splitOrderKey(hash);
         V result = null;
-        Node<K,V> b = head;
+        Node<K,V> b = getListHead(hash);
         Node<K,V> n;
         while ((n = b.next) != null) {
             int c;
-            K k = n.key;
-            if (k == null ||
-                    (c = cpr(cmp, key, k)) > 0) {
+            if (n.isMarker() ||
+                    (c = cpr(cmp, orderKey, key, n)) > 0) {
                 // Cannot simply advance b in case remove info is installed in n.valOrRemoveInfo similarly to LinkedList,
                 // because then if c==0, the removal of n must be reported to sizeCalculator before returning null.
                 b = n;
@@ -185,13 +734,17 @@ public class SizeHashTable<K,V> {
             else {
                 if (c == 0) {
                     Object valOrRemoveInfo = n.valOrRemoveInfo;
-                    if (valOrRemoveInfo.getClass() == UpdateInfo.class)
-                        sizeCalculator.updateMetadata(UpdateOperations.OpKind.REMOVE, (UpdateInfo)n.valOrRemoveInfo);
+                    if (valOrRemoveInfo.getClass() == Node.class)
+                        reportRemove((Node<K,V>) valOrRemoveInfo);
                     else {
-                        UpdateInfo insertInfo = n.insertInfo;
-                        if (insertInfo != null) {
+                        long insertInfo = n.updateInfo;
+                        if (insertInfo != UpdateInfo.NONE) {
                             sizeCalculator.updateMetadata(UpdateOperations.OpKind.INSERT, insertInfo);
-                            n.insertInfo = null;
+                            n.updateInfo = UpdateInfo.NONE;
+                        }
+                        if (valOrRemoveInfo.getClass() == WeightUpdate.class) {
+                            helpWeightUpdate(n, (WeightUpdate) valOrRemoveInfo);
+                            valOrRemoveInfo = ((WeightUpdate) valOrRemoveInfo).value;
                         }
                         result = (V) valOrRemoveInfo;
                     }
@@ -212,46 +765,74 @@ public class SizeHashTable<K,V> {
      * @param key the key
      * @param value the value that must be associated with key
      * @param onlyIfAbsent if should not insert if already present
+     * @param batch if nonnull, the batch whose size metadata includes a new node
      * @return the old value, or null if newly inserted
      */
-    private V listDoPut(K key, V value, boolean onlyIfAbsent, Node<K,V> head) {
+    @SuppressWarnings("unchecked")
+    private V listDoPut(K key, V value, boolean onlyIfAbsent, Batch<K,V> batch) {
         if (key == null)
             throw new NullPointerException();
         Comparator<? super K> cmp = comparator;
+        int hash = spread(key.hashCode());
+        int orderKey = SplitOrder.splitOrderKey(hash);
+        int category = category(key);
+        long weight = weigher == null ? 0 : weigh(key, value);
+        Node<K,V> head = getListHead(hash);
         for (;;) {
             VarHandle.acquireFence();
             Node<K,V> b = head;
+            int chainLength = 0;             // the nodes passed in the bucket
             for (;;) {                       // find insertion point
                 Node<K,V> n, p; K k; Object valOrRemoveInfo; int c;
-                if ((n = b.next) == null) {
-                    if (b.key == null)       // if empty, type check key now
-                        cpr(cmp, key, key);
+                Object newValue = null; long weightDelta = 0;
+                if ((n = b.next) == null)
                     c = -1;
+                else if ((k = n.key) == null) {
+                    if (n.isMarker())
+                        break;               // can't append; restart
+                    if ((c = cpr(cmp, orderKey, key, n)) > 0)
+                        b = n;               // the head of a later bucket, split from this one
                 }
-                else if ((k = n.key) == null)
-                    break;                   // can't append; restart
-                else if ((valOrRemoveInfo = n.valOrRemoveInfo).getClass() == UpdateInfo.class) {
+                else if ((valOrRemoveInfo = n.valOrRemoveInfo).getClass() == Node.class) {
                     completeRemove(b, n);
                     c = 1;
                 }
-                else if ((c = cpr(cmp, key, k)) > 0)
+                else if ((c = cpr(cmp, orderKey, key, n)) > 0) {
                     b = n;
+                    ++chainLength;
+                }
+                else if (c == 0 && valOrRemoveInfo.getClass() == WeightUpdate.class) {
+                    helpWeightUpdate(n, (WeightUpdate) valOrRemoveInfo);
+                    continue;                // reread the unwrapped value
+                }
                 else if (c == 0 &&
-                        (onlyIfAbsent || VAL_OR_REMOVE_INFO.compareAndSet(n, valOrRemoveInfo, value))) {
+                        (onlyIfAbsent || VAL_OR_REMOVE_INFO.compareAndSet(n, valOrRemoveInfo,
+                                newValue = weighed(value, weightDelta = weigher == null ? 0 :
+                                        weight - weigh(k, valOrRemoveInfo), batch)))) {
                     // In case n.val was CASed and n's insertion was not yet linearized then, the current insert is linearized right after that insertion
-                    UpdateInfo insertInfo = n.insertInfo;
-                    if (insertInfo != null) {
+                    long insertInfo = n.updateInfo;
+                    if (insertInfo != UpdateInfo.NONE) {
                         sizeCalculator.updateMetadata(UpdateOperations.OpKind.INSERT, insertInfo);
-                        n.insertInfo = null;
+                        n.updateInfo = UpdateInfo.NONE;
                     }
+                    weighLinked(n, newValue, weightDelta, batch);
                     return (V) valOrRemoveInfo;
                 }
 
-                UpdateInfo insertInfo;
+                long insertInfo;
                 if (c < 0 &&
-                        NEXT.compareAndSet(b, n, p = new Node<K,V>(key, value, n, insertInfo = sizeCalculator.createUpdateInfo(UpdateOperations.OpKind.INSERT)))) {
+                        NEXT.compareAndSet(b, n, p = new Node<K,V>(orderKey, key, (V) (newValue = weighed(value, weight, batch)), n,
+                                insertInfo = createUpdateInfo(category, UpdateOperations.OpKind.INSERT, batch)))) {
+                    if (SplitOrder.isLoadCheckDue(chainLength))
+                        tryGrow();
+                    if (batch != null) {
+                        batch.inserted(p, category);
+                        batch.weighed(weight);
+                        return null;
+                    }
                     sizeCalculator.updateMetadata(UpdateOperations.OpKind.INSERT, insertInfo);
-                    p.insertInfo = null;
+                    p.updateInfo = UpdateInfo.NONE;
+                    weighLinked(p, newValue, weight, null);
                     return null;
                 }
             }
@@ -267,12 +848,17 @@ public class SizeHashTable<K,V> {
      * @param key the key
      * @param value if non-null, the value that must be
      * associated with key
+     * @param batch if nonnull, the batch whose size metadata includes the removal
      * @return the node, or null if not found
      */
-    final V listDoRemove(Object key, Object value, Node<K,V> head) {
+    @SuppressWarnings("unchecked")
+    final V listDoRemove(Object key, Object value, Batch<K,V> batch) {
         if (key == null)
             throw new NullPointerException();
         Comparator<? super K> cmp = comparator;
+        int hash = spread(key.hashCode());
+        int orderKey = SplitOrder.splitOrderKey(hash);
+        Node<K,V> head = getListHead(hash);
         V result = null;
         outer: for (;;) { // Each iteration starts a traversal from the head
             VarHandle.acquireFence();
@@ -281,27 +867,46 @@ public class SizeHashTable<K,V> {
                 Node<K,V> n; K k; Object valOrRemoveInfo; int c;
                 if ((n = b.next) == null)
                     break outer;
-                else if ((k = n.key) == null)
-                    break;
-                else if ((valOrRemoveInfo = n.valOrRemoveInfo).getClass() == UpdateInfo.class)
+                else if ((k = n.key) == null) {
+                    if (n.isMarker())
+                        break;
+                    if (cpr(cmp, orderKey, key, n) < 0)
+                        break outer; // the head of a later bucket, past the key
+                    b = n;
+                }
+                else if ((valOrRemoveInfo = n.valOrRemoveInfo).getClass() == Node.class)
                     completeRemove(b, n);
-                else if ((c = cpr(cmp, key, k)) > 0)
+                else if ((c = cpr(cmp, orderKey, key, n)) > 0)
                     b = n;
                 else if (c < 0)
                     break outer;
+                else if (valOrRemoveInfo.getClass() == WeightUpdate.class)
+                    helpWeightUpdate(n, (WeightUpdate) valOrRemoveInfo); // and reread the unwrapped value
                 else if (value != null && !value.equals(valOrRemoveInfo))
                     // Either n's insert is linearized and so n.val==value is linearized too, or n's insert is not linearized.
                     // Thus, the remove should anyhow fail, and there is no need to call updateMetadataAndLinearize for the insert.
                     break outer;
                 else {
-                    UpdateInfo insertInfo = n.insertInfo;
-                    if (insertInfo != null) {
+                    long insertInfo = n.updateInfo;
+                    if (insertInfo != UpdateInfo.NONE) {
                         sizeCalculator.updateMetadata(UpdateOperations.OpKind.INSERT, insertInfo);
-                        n.insertInfo = null;
+                        n.updateInfo = UpdateInfo.NONE;
                     }
-                    if (VAL_OR_REMOVE_INFO.compareAndSet(n, valOrRemoveInfo, sizeCalculator.createUpdateInfo(UpdateOperations.OpKind.REMOVE))) {
+                    long weight = weigher == null ? 0 : weigh(k, valOrRemoveInfo);
+                    int category = category(k);
+                    long removeInfo = createUpdateInfo(category, UpdateOperations.OpKind.REMOVE, batch);
+                    Node<K,V> removeMark = new Node<K,V>(n.orderKey, null, null, null, removeInfo);
+                    removeMark.valOrRemoveInfo = weighed(null, -weight, batch); // published by the CAS below
+                    if (VAL_OR_REMOVE_INFO.compareAndSet(n, valOrRemoveInfo, removeMark)) {
                         result = (V) valOrRemoveInfo;
-                        completeRemove(b, n);
+                        if (batch != null) {
+                            batch.removed(b, n, category);
+                            batch.weighed(-weight);
+                        }
+                        else {
+                            reportRemove(removeMark);
+                            unlink(b, n, removeMark);
+                        }
                         break outer;
                     }
                 }
@@ -313,12 +918,56 @@ public class SizeHashTable<K,V> {
     /* ----------------  Utilities -------------- */
 
     /**
-     * Compares using comparator or natural ordering if null.
-     * Called only by methods that have performed required type checks.
+     * Matches keys using comparator, or equals if null.
      */
     @SuppressWarnings({"unchecked", "rawtypes"})
-    static int cpr(Comparator c, Object x, Object y) {
-        return (c != null) ? c.compare(x, y) : ((Comparable)x).compareTo(y);
+    static boolean matches(Comparator c, Object x, Object y) {
+        return (c != null) ? c.compare(x, y) == 0 : x == y || x.equals(y);
+    }
+
+    /**
+     * Compares a key, whose split-order key is given, with the key of
+     * node n, which is not a marker, in list order: by split-order
+     * keys, and only if they are equal (so the keys have the same
+     * spread hash and n is not a header) by matching the keys. The
+     * nodes of other keys with the same hash are unordered, and compare
+     * as preceding the key, so the node of a key, or its insertion
+     * point, is found after all of them, as in ConcurrentHashMap's bins.
+     */
+    @SuppressWarnings("rawtypes")
+    static int cpr(Comparator c, int orderKey, Object key, Node<?,?> n) {
+        int d = Integer.compareUnsigned(orderKey, n.orderKey);
+        return (d != 0) ? d : matches(c, key, n.key) ? 0 : 1;
+    }
+
+    /**
+     * Inserts a header with the given split-order key after start, which
+     * precedes it, unless it is in the list already, and returns the
+     * header in the list. Removed nodes on the way are unlinked as in
+     * listDoPut.
+     */
+    private Node<K,V> listInsertHead(int orderKey, Node<K,V> start) {
+        for (;;) {
+            VarHandle.acquireFence();
+            Node<K,V> b = start;
+            for (;;) {                       // find insertion point
+                Node<K,V> n, p; int c;
+                if ((n = b.next) == null)
+                    c = -1;
+                else if (n.isMarker())
+                    break;                   // can't append; restart
+                else if (n.key != null && n.valOrRemoveInfo.getClass() == Node.class) {
+                    completeRemove(b, n);
+                    c = 1;
+                }
+                else if ((c = Integer.compareUnsigned(orderKey, n.orderKey)) > 0)
+                    b = n;
+                else if (c == 0)
+                    return n;                // inserted by a concurrent initialization
+                if (c < 0 && NEXT.compareAndSet(b, n, p = newHead(orderKey, n)))
+                    return p;
+            }
+        }
     }
 
     /**
@@ -327,31 +976,79 @@ public class SizeHashTable<K,V> {
      * Upon return, node n is sure to be unlinked from b, possibly
      * via the actions of some other thread.
      *
-     * 	1. Update sizeCalculator and linearize remove
+     * 	1. Update sizeCalculator (and weightCalculator) and linearize remove
      *  2. Insert marker node succeeding n
      *  3. Unlink n
      *
      * @param b if nonnull, predecessor
      * @param n if nonnull, node known to be deleted
      */
+    @SuppressWarnings("unchecked")
     void completeRemove(Node<K,V> b, Node<K,V> n) {
         if (b != null && n != null) {
-            sizeCalculator.updateMetadata(UpdateOperations.OpKind.REMOVE, (UpdateInfo)n.valOrRemoveInfo);
+            reportRemove((Node<K,V>) n.valOrRemoveInfo);
+            unlink(b, n, null);
+        }
+    }
 
-            Node<K,V> f, p;
-            for (;;) {
-                if ((f = n.next) != null && f.key == null) {
-                    p = f.next;               // already marked
-                    break;
-                }
-                else if (NEXT.compareAndSet(n, f,
-                        new Node<K,V>(null, null, f))) {
-                    p = f;                    // add marker
-                    break;
-                }
+    /**
+     * Steps 2 and 3 of completeRemove, for a node whose removal has
+     * already been reported to sizeCalculator.
+     *
+     * @param removeMark if nonnull, n's removal mark, which is then
+     * used as the marker. Only the remover of n may pass it, as it
+     * writes the mark's next field before splicing it in.
+     */
+    private void unlink(Node<K,V> b, Node<K,V> n, Node<K,V> removeMark) {
+        Node<K,V> f, p, marker;
+        for (;;) {
+            if ((f = n.next) != null && f.isMarker()) {
+                p = f.next;               // already marked
+                break;
+            }
+            if (removeMark != null) {
+                removeMark.next = f;      // published by the CAS below
+                marker = removeMark;
+            }
+            else
+                marker = new Node<K,V>(n.orderKey, null, null, f);
+            if (NEXT.compareAndSet(n, f, marker)) {
+                p = f;                    // add marker
+                break;
             }
-            NEXT.compareAndSet(b, n, p);
         }
+        NEXT.compareAndSet(b, n, p);
+    }
+
+    /**
+     * Returns the value of n if n holds a mapping that has not been
+     * removed, after linearizing its insert as listDoGet does, so that
+     * a mapping that has been observed is counted by any later size.
+     * Returns null for removed nodes, headers and markers.
+     */
+    @SuppressWarnings("unchecked")
+    private V liveValue(Node<K,V> n) {
+        if (n.key == null)
+            return null;
+        Object valOrRemoveInfo = n.valOrRemoveInfo;
+        if (valOrRemoveInfo.getClass() == Node.class)
+            return null;
+        long insertInfo = n.updateInfo;
+        if (insertInfo != UpdateInfo.NONE) {
+            sizeCalculator.updateMetadata(UpdateOperations.OpKind.INSERT, insertInfo);
+            n.updateInfo = UpdateInfo.NONE;
+        }
+        if (valOrRemoveInfo.getClass() == WeightUpdate.class) {
+            helpWeightUpdate(n, (WeightUpdate) valOrRemoveInfo);
+            valOrRemoveInfo = ((WeightUpdate) valOrRemoveInfo).value;
+        }
+        return (V) valOrRemoveInfo;
+    }
+
+    // The head of the whole list, which is the head of bucket 0
+    @SuppressWarnings("unchecked")
+    private Node<K,V> listHead() {
+        return (Node<K,V>) buckets[0][0];
     }
 
     /* ------ Map API methods ------ */
@@ -404,6 +1101,38 @@ public class SizeHashTable<K,V> {
         return (v = doGet(key)) == null ? defaultValue : v;
     }
 
+    /**
+     * Returns {@code true} if this map maps one or more keys to the
+     * specified value.  This operation requires time linear in the
+     * map size.
+     *
+     * @param value value whose presence in this map is to be tested
+     * @return {@code true} if a mapping to {@code value} exists;
+     *         {@code false} otherwise
+     * @throws NullPointerException if the specified value is null
+     */
+    public boolean containsValue(Object value) {
+        if (value == null)
+            throw new NullPointerException();
+        for (Node<K,V> n = listHead().next; n != null; n = n.next) {
+            V v = liveValue(n);
+            if (v != null && value.equals(v))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes all of the mappings from this map, one by one, as
+     * {@link #remove(Object)} would do for each of them.
+     */
+    public void clear() {
+        for (Node<K,V> n = listHead().next; n != null; n = n.next) {
+            if (liveValue(n) != null)
+                doRemove(n.key, null);
+        }
+    }
+
     /**
      * Associates the specified value with the specified key in this map.
      * If the map previously contained a mapping for the key, the old
@@ -437,12 +1166,192 @@ public class SizeHashTable<K,V> {
         return doRemove(key, null);
     }
 
+    /**
+     * Copies all of the mappings from the specified map to this map, as
+     * {@link #put} would do for each of them. Every mapping is
+     * linearized on its own, but the size metadata of the new mappings
+     * is updated once for the whole batch.
+     *
+     * @param m mappings to be stored in this map
+     * @throws ClassCastException if the class of a key or value in the
+     *         specified map prevents it from being stored in this map
+     * @throws NullPointerException if the specified map is null or any of
+     *         its keys or values are null
+     */
+    public void putAll(Map<? extends K, ? extends V> m) {
+        Batch<K,V> batch = startBatch(m.size());
+        try {
+            for (Map.Entry<? extends K, ? extends V> e : m.entrySet()) {
+                K key = e.getKey();
+                V value = e.getValue();
+                if (value == null)
+                    throw new NullPointerException();
+                listDoPut(key, value, false, batch);
+            }
+        } finally {
+            publishBatch(batch);
+        }
+    }
+
+    /**
+     * Removes the mappings for the specified keys from this map if
+     * present, as {@link #remove(Object)} would do for each of them.
+     * Every removal is linearized on its own, but the size metadata of
+     * the removals is updated once for the whole batch.
+     *
+     * @param keys keys whose mappings should be removed
+     * @return the number of mappings removed
+     * @throws ClassCastException if a specified key cannot be compared
+     *         with the keys currently in the map
+     * @throws NullPointerException if the specified collection is null or
+     *         any of its keys are null
+     */
+    public int removeAll(Collection<?> keys) {
+        Batch<K,V> batch = startBatch(keys.size());
+        try {
+            for (Object key : keys) {
+                listDoRemove(key, null, batch);
+            }
+        } finally {
+            publishBatch(batch);
+        }
+        return batch.removedNodesNum;
+    }
+
+    /**
+     * Returns the number of mappings, or {@code Integer.MAX_VALUE} if
+     * there are more. Use {@link #mappingCount()} for larger sizes.
+     */
     public int size() {
         long c;
-        return ((c = sizeCalculator.compute()) >= Integer.MAX_VALUE) ?
+        return ((c = mappingCount()) >= Integer.MAX_VALUE) ?
                 Integer.MAX_VALUE : (int) c;
     }
 
+    /**
+     * Returns the number of mappings at some point during the last
+     * {@code maxAgeNanos} nanoseconds, which may avoid computing the
+     * size anew when a size has been computed recently enough.
+     */
+    public int size(long maxAgeNanos) {
+        long c;
+        return ((c = mappingCount(maxAgeNanos)) >= Integer.MAX_VALUE) ?
+                Integer.MAX_VALUE : (int) c;
+    }
+
+    /**
+     * Returns the number of mappings. This method should be used instead
+     * of {@link #size()} when there may be more mappings than can be
+     * represented as an int.
+     */
+    public long mappingCount() {
+        return sizeCalculator.computeCategories(fromCategory, toCategory);
+    }
+
+    /**
+     * Returns the number of mappings at some point during the last
+     * {@code maxAgeNanos} nanoseconds, as {@link #size(long)} does,
+     * without clamping it to an int.
+     */
+    public long mappingCount(long maxAgeNanos) {
+        return sizeCalculator.computeCategories(fromCategory, toCategory, maxAgeNanos);
+    }
+
+    /**
+     * Waits until the map holds at most {@code threshold} mappings, and
+     * returns whether it did before the timeout elapsed. The updates
+     * check the threshold only once they could have crossed it, so
+     * waiting does not compute the size repeatedly as polling size()
+     * would.
+     */
+    public boolean awaitSizeAtMost(long threshold, long timeout, TimeUnit unit) throws InterruptedException {
+        return sizeCalculator.awaitSizeAtMost(fromCategory, toCategory, threshold, timeout, unit);
+    }
+
+    /**
+     * Waits until the map holds at least {@code threshold} mappings, as
+     * awaitSizeAtMost does.
+     */
+    public boolean awaitSizeAtLeast(long threshold, long timeout, TimeUnit unit) throws InterruptedException {
+        return sizeCalculator.awaitSizeAtLeast(fromCategory, toCategory, threshold, timeout, unit);
+    }
+
+    /**
+     * Returns the number of inserts and removes of mappings linearized
+     * so far, which changes whenever the set of keys changes. Like
+     * size(), it is linearizable, and it is computed without a
+     * collection while no update has been linearized since the latest
+     * computation. Replacing the value of a key does not change it.
+     * For a map of a SizeGroup, it is the version of the whole group.
+     */
+    public long version() {
+        return sizeCalculator.computeVersion();
+    }
+
+    /**
+     * Returns whether mappings have been inserted or removed since
+     * version() returned the given version.
+     */
+    public boolean changedSince(long version) {
+        return sizeCalculator.changedSince(version);
+    }
+
+    /**
+     * Returns the number of mappings whose keys are of the given category,
+     * or {@code Integer.MAX_VALUE} if there are more. Like size(), it is
+     * linearizable. Use {@link #categoryMappingCount(int)} for larger sizes.
+     */
+    public int categorySize(int category) {
+        long c;
+        return ((c = categoryMappingCount(category)) >= Integer.MAX_VALUE) ?
+                Integer.MAX_VALUE : (int) c;
+    }
+
+    /**
+     * Returns the number of mappings of each category, all computed
+     * together, so that they held at the same point during the call.
+     * Each is clamped to {@code Integer.MAX_VALUE} as by categorySize.
+     */
+    public int[] categorySizes() {
+        long[] counts = categoryMappingCounts();
+        int[] result = new int[counts.length];
+        for (int category = 0; category < result.length; ++category)
+            result[category] = counts[category] >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) counts[category];
+        return result;
+    }
+
+    /**
+     * Returns the number of mappings whose keys are of the given category,
+     * as {@link #categorySize(int)} does, without clamping it to an int.
+     */
+    public long categoryMappingCount(int category) {
+        return sizeCalculator.computeCategory(fromCategory + category);
+    }
+
+    /**
+     * Returns the number of mappings of each category, as
+     * {@link #categorySizes()} does, without clamping them to ints.
+     */
+    public long[] categoryMappingCounts() {
+        return Arrays.copyOfRange(sizeCalculator.computeAllCategories(), fromCategory, toCategory);
+    }
+
+    /**
+     * Returns the total weight of the mappings, as given by the weigher
+     * this map was constructed with. Like size(), it is linearizable,
+     * and it is computed from the weight metadata without traversing
+     * the map. The total weight that each thread has inserted, and that
+     * it has removed, must stay below 2^46: an update that would reach
+     * it throws ArithmeticException without changing the map.
+     *
+     * @throws UnsupportedOperationException if this map has no weigher
+     */
+    public long weight() {
+        if (weightCalculator == null)
+            throw new UnsupportedOperationException("The map was constructed without a weigher");
+        return weightCalculator.compute();
+    }
+
     /* ------ ConcurrentMap API methods ------ */
 
     /**
@@ -460,6 +1369,44 @@ public class SizeHashTable<K,V> {
         return doPut(key, value, true);
     }
 
+    /**
+     * Inserts the mapping if the key is absent and the map holds fewer
+     * than {@code limit} mappings. Bounded inserts never grow the map
+     * beyond {@code limit} mappings, and a bounded insert fails because
+     * of the limit only if the mappings and the concurrent bounded
+     * inserts reach it. Far below the limit, the capacity is reserved
+     * by each thread without computing the size (see
+     * CapacityReservations). Inserts by put and putAll are not bounded.
+     *
+     * @return {@code true} if the mapping was inserted
+     * @throws ClassCastException if the specified key cannot be compared
+     *         with the keys currently in the map
+     * @throws NullPointerException if the specified key or value is null
+     */
+    public boolean putIfAbsentAndSizeBelow(K key, V value, long limit) {
+        if (key == null || value == null)
+            throw new NullPointerException();
+        CapacityReservations reservations = capacityReservations();
+        if (!reservations.reserve(limit))
+            return false;
+        try {
+            return doPut(key, value, true) == null;
+        } finally {
+            reservations.release();
+        }
+    }
+
+    private CapacityReservations capacityReservations() {
+        CapacityReservations reservations = capacityReservations;
+        if (reservations == null) {
+            CapacityReservations witnessed = (CapacityReservations) CAPACITY_RESERVATIONS.compareAndExchange(
+                    this, null, reservations = new CapacityReservations(sizeCalculator, fromCategory, toCategory));
+            if (witnessed != null)
+                reservations = witnessed;
+        }
+        return reservations;
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -473,18 +1420,311 @@ public class SizeHashTable<K,V> {
         return value != null && doRemove(key, value) != null;
     }
 
-    /* ------ SortedMap API methods ------ */
+    /**
+     * {@inheritDoc}
+     *
+     * @throws ClassCastException if the specified key cannot be compared
+     *         with the keys currently in the map
+     * @throws NullPointerException if any of the arguments are null
+     */
+    public boolean replace(K key, V oldValue, V newValue) {
+        if (oldValue == null || newValue == null)
+            throw new NullPointerException();
+        V v = doCompute(key, (k, currentValue) -> oldValue.equals(currentValue) ? newValue : currentValue, true);
+        return v != null && oldValue.equals(v);
+    }
 
+    /**
+     * {@inheritDoc}
+     *
+     * @return the previous value associated with the specified key,
+     *         or {@code null} if there was no mapping for the key
+     * @throws ClassCastException if the specified key cannot be compared
+     *         with the keys currently in the map
+     * @throws NullPointerException if the specified key or value is null
+     */
+    public V replace(K key, V value) {
+        if (value == null)
+            throw new NullPointerException();
+        return doCompute(key, (k, currentValue) -> currentValue == null ? null : value, true);
+    }
+
+    /**
+     * If the specified key is not already associated with a value,
+     * attempts to compute its value using the given mapping function
+     * and enters it into this map unless {@code null}, in the same
+     * traversal that finds the key absent. The function is applied at
+     * most once, but the insert may be
+     * preempted by a concurrent insert of the key, whose value is then
+     * returned. The function may compute sizes, and update other maps
+     * (e.g., the other shards of its SizeGroup) and other keys of this
+     * map. An insert of the key itself by the function preempts the
+     * insert as a concurrent one does.
+     *
+     * @param key key with which the specified value is to be associated
+     * @param mappingFunction the function to compute a value
+     * @return the current (existing or computed) value associated with
+     *         the specified key, or null if the computed value is null
+     * @throws NullPointerException if the specified key is null
+     *         or the mappingFunction is null
+     */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        if (mappingFunction == null)
+            throw new NullPointerException();
+        return doCompute(key, (k, v) -> v != null ? v : mappingFunction.apply(k), false);
+    }
+
+    /**
+     * If the value for the specified key is present, attempts to
+     * compute a new mapping given the key and its current mapped
+     * value, and removes the mapping if the new value is null. The
+     * function may be applied multiple times under contention. It may
+     * compute sizes, and update other maps (e.g., the other shards of
+     * its SizeGroup) and other keys of this map. An update of the key
+     * itself by the function is handled as a concurrent one, after
+     * which the function is applied again, so it must not update the
+     * key every time it is applied.
+     *
+     * @param key key with which a value may be associated
+     * @param remappingFunction the function to compute a value
+     * @return the new value associated with the specified key, or null if none
+     * @throws NullPointerException if the specified key is null
+     *         or the remappingFunction is null
+     */
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        if (remappingFunction == null)
+            throw new NullPointerException();
+        return doCompute(key, (k, v) -> v == null ? null : remappingFunction.apply(k, v), false);
+    }
+
+    /**
+     * Attempts to compute a mapping for the specified key and its
+     * current mapped value (or {@code null} if there is no current
+     * mapping): the mapping is inserted, replaced, or removed if the
+     * computed value is null, and the size metadata is updated
+     * accordingly. The function may be applied multiple times under
+     * contention. It may compute sizes, and update other maps (e.g.,
+     * the other shards of its SizeGroup) and other keys of this map.
+     * An update of the key itself by the function is handled as a
+     * concurrent one, after which the function may be applied again,
+     * so it must not update the key every time it is applied.
+     *
+     * @param key key with which the specified value is to be associated
+     * @param remappingFunction the function to compute a value
+     * @return the new value associated with the specified key, or null if none
+     * @throws NullPointerException if the specified key is null
+     *         or the remappingFunction is null
+     */
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        return doCompute(key, remappingFunction, false);
+    }
+
+    /**
+     * If the specified key is not already associated with a value,
+     * associates it with the given value.  Otherwise, replaces the
+     * value with the results of the given remapping function, or
+     * removes if {@code null}. The function may be applied multiple
+     * times under contention. It may compute sizes, and update other
+     * maps (e.g., the other shards of its SizeGroup) and other keys of
+     * this map. An update of the key itself by the function is handled
+     * as a concurrent one, after which the function may be applied
+     * again, so it must not update the key every time it is applied.
+     *
+     * @param key key with which the specified value is to be associated
+     * @param value the value to use if absent
+     * @param remappingFunction the function to recompute a value if present
+     * @return the new value associated with the specified key, or null if none
+     * @throws NullPointerException if the specified key or value is null
+     *         or the remappingFunction is null
+     */
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        if (value == null || remappingFunction == null)
+            throw new NullPointerException();
+        return doCompute(key, (k, v) -> v == null ? value : remappingFunction.apply(v, value), false);
+    }
+
+    /* ------ View methods and iteration ------ */
+
+    /**
+     * Performs the given action for each mapping in this map, in split
+     * order, until all mappings have been processed. Like the views,
+     * it is weakly consistent: it reflects every mapping that exists
+     * throughout the traversal, and possibly some of the updates
+     * concurrent with it.
+     *
+     * @throws NullPointerException if the specified action is null
+     */
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        if (action == null)
+            throw new NullPointerException();
+        for (Node<K,V> n = listHead().next; n != null; n = n.next) {
+            V v = liveValue(n);
+            if (v != null)
+                action.accept(n.key, v);
+        }
+    }
+
+    /**
+     * Returns a {@link Set} view of the keys contained in this map. The
+     * set is backed by the map, and supports element removal, but not
+     * addition. Its iterators are weakly consistent, and its size is
+     * the linearizable size of the map.
+     */
+    public Set<K> keySet() {
+        KeySet ks;
+        if ((ks = keySet) != null) return ks;
+        return keySet = new KeySet();
+    }
+
+    /**
+     * Returns a {@link Collection} view of the values contained in this
+     * map, backed by the map as {@link #keySet} is.
+     */
+    public Collection<V> values() {
+        Values vs;
+        if ((vs = values) != null) return vs;
+        return values = new Values();
+    }
+
+    /**
+     * Returns a {@link Set} view of the mappings contained in this map,
+     * backed by the map as {@link #keySet} is. Its entries are
+     * snapshots of the mappings, which do not support setValue.
+     */
+    public Set<Map.Entry<K,V>> entrySet() {
+        EntrySet es;
+        if ((es = entrySet) != null) return es;
+        return entrySet = new EntrySet();
+    }
+
+    /**
+     * Base of iterator classes. Each one holds the next node with a
+     * mapping and its value, read when the iterator advanced to it.
+     */
+    abstract class Iter<T> implements Iterator<T> {
+        /** the last node returned by next() */
+        Node<K,V> lastReturned;
+        /** the next node to return from next(); */
+        Node<K,V> next;
+        /** Cache of next value field to maintain weak consistency */
+        V nextValue;
+
+        /** Initializes ascending iterator for entire range. */
+        Iter() {
+            advance(listHead());
+        }
+
+        public final boolean hasNext() {
+            return next != null;
+        }
+
+        /** Advances next to the first node with a mapping after b. */
+        final void advance(Node<K,V> b) {
+            Node<K,V> n = null;
+            V v = null;
+            if ((lastReturned = b) != null) {
+                while ((n = b.next) != null && (v = liveValue(n)) == null)
+                    b = n;
+            }
+            nextValue = v;
+            next = n;
+        }
+
+        public final void remove() {
+            Node<K,V> n; K k;
+            if ((n = lastReturned) == null || (k = n.key) == null)
+                throw new IllegalStateException();
+            SizeHashTable.this.remove(k);
+            lastReturned = null;
+        }
+    }
+
+    final class ValueIterator extends Iter<V> {
+        public V next() {
+            V v;
+            if ((v = nextValue) == null)
+                throw new NoSuchElementException();
+            advance(next);
+            return v;
+        }
+    }
+
+    final class KeyIterator extends Iter<K> {
+        public K next() {
+            Node<K,V> n;
+            if ((n = next) == null)
+                throw new NoSuchElementException();
+            K k = n.key;
+            advance(n);
+            return k;
+        }
+    }
+
+    final class EntryIterator extends Iter<Map.Entry<K,V>> {
+        public Map.Entry<K,V> next() {
+            Node<K,V> n;
+            if ((n = next) == null)
+                throw new NoSuchElementException();
+            K k = n.key;
+            V v = nextValue;
+            advance(n);
+            return new AbstractMap.SimpleImmutableEntry<K,V>(k, v);
+        }
+    }
+
+    final class KeySet extends AbstractSet<K> {
+        public Iterator<K> iterator() { return new KeyIterator(); }
+        public int size() { return SizeHashTable.this.size(); }
+        public boolean isEmpty() { return SizeHashTable.this.isEmpty(); }
+        public boolean contains(Object o) { return containsKey(o); }
+        public boolean remove(Object o) { return SizeHashTable.this.remove(o) != null; }
+        public void clear() { SizeHashTable.this.clear(); }
+    }
+
+    final class Values extends AbstractCollection<V> {
+        public Iterator<V> iterator() { return new ValueIterator(); }
+        public int size() { return SizeHashTable.this.size(); }
+        public boolean isEmpty() { return SizeHashTable.this.isEmpty(); }
+        public boolean contains(Object o) { return containsValue(o); }
+        public void clear() { SizeHashTable.this.clear(); }
+    }
+
+    final class EntrySet extends AbstractSet<Map.Entry<K,V>> {
+        public Iterator<Map.Entry<K,V>> iterator() { return new EntryIterator(); }
+        public int size() { return SizeHashTable.this.size(); }
+        public boolean isEmpty() { return SizeHashTable.this.isEmpty(); }
+        public boolean contains(Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?,?> e = (Map.Entry<?,?>) o;
+            V v = get(e.getKey());
+            return v != null && v.equals(e.getValue());
+        }
+        public boolean remove(Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?,?> e = (Map.Entry<?,?>) o;
+            return SizeHashTable.this.remove(e.getKey(), e.getValue());
+        }
+        public void clear() { SizeHashTable.this.clear(); }
+    }
+
+    // The comparator that matches keys, or null if they are matched by equals
     public Comparator<? super K> comparator() {
         return comparator;
     }
 
     // VarHandle mechanics
+    private static final VarHandle CAPACITY_RESERVATIONS;
+    private static final VarHandle TABLE_SIZE;
     private static final VarHandle NEXT;
     private static final VarHandle VAL_OR_REMOVE_INFO;
     static {
         try {
             MethodHandles.Lookup l = MethodHandles.lookup();
+            CAPACITY_RESERVATIONS = l.findVarHandle(SizeHashTable.class, "capacityReservations",
+                    CapacityReservations.class);
+            TABLE_SIZE = l.findVarHandle(SizeHashTable.class, "tableSize", int.class);
             NEXT = l.findVarHandle(Node.class, "next", Node.class);
             VAL_OR_REMOVE_INFO = l.findVarHandle(Node.class, "valOrRemoveInfo", Object.class);
         } catch (ReflectiveOperationException e) {
@@ -492,18 +1732,21 @@ public class SizeHashTable<K,V> {
         }
     }
 
+    // For debug
+    public int getTableSize() {
+        return tableSize;
+    }
+
     // For debug
     public long getSumOfKeys() {
         Node<K, V> n;
         long keysSum = 0;
-        for (int i = 0; i < tableSize; i++) {
-            Node<K, V> b = table[i];
-            while ((n = b.next) != null) {
-                K k = n.key;
-                if (k != null && n.valOrRemoveInfo.getClass() != UpdateInfo.class) // not accurate if concurrent with remove, since remove info is installed in n.valOrRemoveInfo before n's remove is linearized
-                    keysSum += (Integer) k;
-                b = n;
-            }
+        Node<K, V> b = listHead();
+        while ((n = b.next) != null) {
+            K k = n.key;
+            if (k != null && n.valOrRemoveInfo.getClass() != Node.class) // not accurate if concurrent with remove, since remove info is installed in n.valOrRemoveInfo before n's remove is linearized
+                keysSum += (Integer) k;
+            b = n;
         }
         return keysSum;
     }
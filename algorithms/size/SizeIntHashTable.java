@@ -0,0 +1,535 @@
+package algorithms.size;
+
+/**
+ *  This is an implementation of the paper "Concurrent Size" by Gal Sela and Erez Petrank.
+ *  The current file specializes SizeHashTable to primitive int keys, which are stored in the nodes
+ *  and hashed and matched without boxing.
+ *
+ *  Copyright (C) 2022  Gal Sela
+ *  Contact Gal Sela (sela.galy@gmail.com) with any questions or comments.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import algorithms.size.core.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * A SizeHashTable whose keys are ints: the same split-ordered list, which grows
+ * the same way (see SplitOrder), and whose size is computed by a SizeCalculator
+ * the same way, including in dormant mode (see SizePrimitiveMap). Each key is
+ * stored in its node as an int, so no update or lookup allocates or
+ * dereferences a boxed key.
+ *
+ * It has the single-key operations and the size operations of SizeHashTable,
+ * but not its weigher, categories, batches or ConcurrentMap methods, which are
+ * left to the generic class.
+ *
+ * @param <V> the type of mapped values
+ */
+public class SizeIntHashTable<V> extends SizePrimitiveMap<V> {
+    // The number of buckets, a power of two that only grows (see tryGrow), as in SizeHashTable
+    private volatile int tableSize;
+    // The heads of the buckets in segments (see SplitOrder)
+    private final Object[][] buckets;
+
+    /* ---------------- Node -------------- */
+
+    /**
+     * Nodes are linked as in SizeHashTable, except that a key cannot be
+     * null, so headers and markers are told apart by their null val
+     * field: a node that holds a mapping always has a value or a
+     * removal mark. Headers have even split-order keys, and markers
+     * have the odd split-order key of the node they mark.
+     */
+    static final class Node<V> extends UpdateNode {
+        final int orderKey;
+        final int key;
+        Node<V> next;
+
+        Node(int orderKey, int key, V value, Node<V> next, long updateInfo) {
+            super(value, updateInfo);
+            this.orderKey = orderKey;
+            this.key = key;
+            this.next = next;
+        }
+
+        // For head and marker nodes
+        Node(int orderKey, Node<V> next) {
+            this(orderKey, 0, null, next, UpdateInfo.NONE);
+        }
+
+        boolean isMarker() {
+            return valOrRemoveInfo == null && (orderKey & 1) != 0;
+        }
+    }
+
+    /* ---------------- Constructors -------------- */
+
+    /**
+     * Constructs a new, empty map with at least the given number of
+     * buckets, which doubles as the map grows.
+     */
+    public SizeIntHashTable(int requestedTableSize) {
+        this(requestedTableSize, Backoff.Strategy.getDefault());
+    }
+
+    /**
+     * Constructs a new, empty map as SizeIntHashTable(requestedTableSize)
+     * does, whose sizes back off by the given strategy rather than the
+     * strategy chosen per JVM.
+     */
+    public SizeIntHashTable(int requestedTableSize, Backoff.Strategy backoffStrategy) {
+        super(backoffStrategy);
+        if (requestedTableSize <= 0) throw new NegativeArraySizeException();
+        this.tableSize = SplitOrder.tableSizeFor(requestedTableSize);
+        this.buckets = SplitOrder.newBuckets(tableSize);
+        // Initialize each of the initial buckets with a dummy head, linked in split order, as SizeHashTable does
+        int bits = Integer.numberOfTrailingZeros(tableSize);
+        Node<V> next = null;
+        for (int i = tableSize - 1; i >= 0; --i) {
+            int bucket = SplitOrder.bucketAt(i, bits);
+            next = new Node<V>(SplitOrder.bucketOrderKey(bucket), next);
+            SplitOrder.setHead(buckets, bucket, next);
+        }
+    }
+
+    /* ---------------- Buckets -------------- */
+
+    @SuppressWarnings("unchecked")
+    private Node<V> getListHead(int hash) {
+        int bucket = (tableSize - 1) & hash;
+        Node<V> head = (Node<V>) SplitOrder.getHead(buckets, bucket);
+        if (head == null)
+            head = initializeBucket(bucket);
+        return head;
+    }
+
+    // Inserts the head of the bucket into the list and installs it in the table, as SizeHashTable.initializeBucket does
+    @SuppressWarnings("unchecked")
+    private Node<V> initializeBucket(int bucket) {
+        int parent = SplitOrder.parentOf(bucket); // bucket > 0, as the constructor initializes bucket 0
+        Node<V> parentHead = (Node<V>) SplitOrder.getHead(buckets, parent);
+        if (parentHead == null)
+            parentHead = initializeBucket(parent);
+        Node<V> head = listInsertHead(SplitOrder.bucketOrderKey(bucket), parentHead);
+        SplitOrder.setHead(buckets, bucket, head);
+        return head;
+    }
+
+    // Doubles the table if the map holds more than SplitOrder.MAX_LOAD mappings per bucket, as SizeHashTable.tryGrow does
+    private void tryGrow() {
+        int currentTableSize = tableSize;
+        if (SplitOrder.isOverloaded(currentTableSize, sizeCalculator.estimateCategories(0, 1)))
+            TABLE_SIZE.compareAndSet(this, currentTableSize, currentTableSize << 1);
+    }
+
+    /**
+     * Puts as listDoPut does, within a dormant update while
+     * sizeCalculator is dormant (see SizeCalculator.enterDormantUpdate).
+     */
+    private V doPut(int key, V value, boolean onlyIfAbsent) {
+        int dormantTid = sizeCalculator.enterDormantUpdate();
+        if (dormantTid == SizeCalculator.NOT_DORMANT)
+            return listDoPut(key, value, onlyIfAbsent);
+        V result = value; // Stands for no insert unless listDoPut returns null
+        try {
+            return result = listDoPut(key, value, onlyIfAbsent);
+        } finally {
+            exitDormantUpdate(dormantTid, UpdateOperations.OpKind.INSERT, result == null);
+        }
+    }
+
+    /**
+     * Removes as listDoRemove does, within a dormant update while
+     * sizeCalculator is dormant.
+     */
+    private V doRemove(int key, Object value) {
+        int dormantTid = sizeCalculator.enterDormantUpdate();
+        if (dormantTid == SizeCalculator.NOT_DORMANT)
+            return listDoRemove(key, value);
+        V result = null;
+        try {
+            return result = listDoRemove(key, value);
+        } finally {
+            exitDormantUpdate(dormantTid, UpdateOperations.OpKind.REMOVE, result != null);
+        }
+    }
+
+    /* ---------------- List traversal -------------- */
+
+    /**
+     * Gets value for key, as SizeHashTable.listDoGet does.
+     *
+     * @param key the key
+     * @return the value, or null if absent
+     */
+    @SuppressWarnings("unchecked")
+    private V listDoGet(int key) {
+        VarHandle.acquireFence();
+        int hash = SizeHashTable.spread(key);
+        int orderKey = SplitOrder.splitOrderKey(hash);
+        V result = null;
+        Node<V> b = getListHead(hash);
+        Node<V> n;
+        while ((n = b.next) != null) {
+            int c;
+            if (n.isMarker() ||
+                    (c = cpr(orderKey, key, n)) > 0) {
+                // Cannot simply advance b in case remove info is installed in n.valOrRemoveInfo similarly to LinkedList,
+                // because then if c==0, the removal of n must be reported to sizeCalculator before returning null.
+                b = n;
+            }
+            else {
+                if (c == 0) {
+                    Object valOrRemoveInfo = n.valOrRemoveInfo;
+                    if (valOrRemoveInfo.getClass() == Node.class)
+                        reportRemove((Node<V>) valOrRemoveInfo);
+                    else {
+                        linearizeInsert(n);
+                        result = (V) valOrRemoveInfo;
+                    }
+                }
+                break;
+            }
+        }
+
+        return result;
+    }
+
+    /* ---------------- List insertion -------------- */
+
+    /**
+     * Main insertion method, as SizeHashTable.listDoPut.
+     *
+     * @param key the key
+     * @param value the value that must be associated with key
+     * @param onlyIfAbsent if should not insert if already present
+     * @return the old value, or null if newly inserted
+     */
+    @SuppressWarnings("unchecked")
+    private V listDoPut(int key, V value, boolean onlyIfAbsent) {
+        int hash = SizeHashTable.spread(key);
+        int orderKey = SplitOrder.splitOrderKey(hash);
+        Node<V> head = getListHead(hash);
+        for (;;) {
+            VarHandle.acquireFence();
+            Node<V> b = head;
+            int chainLength = 0;             // the nodes passed in the bucket
+            for (;;) {                       // find insertion point
+                Node<V> n, p; Object valOrRemoveInfo; int c;
+                if ((n = b.next) == null)
+                    c = -1;
+                else if ((valOrRemoveInfo = n.valOrRemoveInfo) == null) {
+                    if ((n.orderKey & 1) != 0)
+                        break;               // a marker: can't append; restart
+                    if ((c = Integer.compareUnsigned(orderKey, n.orderKey)) > 0)
+                        b = n;               // the head of a later bucket, split from this one
+                }
+                else if (valOrRemoveInfo.getClass() == Node.class) {
+                    completeRemove(b, n);
+                    c = 1;
+                }
+                else if ((c = cpr(orderKey, key, n)) > 0) {
+                    b = n;
+                    ++chainLength;
+                }
+                else if (c == 0 &&
+                        (onlyIfAbsent || VAL_OR_REMOVE_INFO.compareAndSet(n, valOrRemoveInfo, value))) {
+                    // In case n.val was CASed and n's insertion was not yet linearized then, the current insert is linearized right after that insertion
+                    linearizeInsert(n);
+                    return (V) valOrRemoveInfo;
+                }
+
+                long insertInfo;
+                if (c < 0 &&
+                        NEXT.compareAndSet(b, n, p = new Node<V>(orderKey, key, value, n,
+                                insertInfo = sizeCalculator.createUpdateInfo(UpdateOperations.OpKind.INSERT)))) {
+                    if (SplitOrder.isLoadCheckDue(chainLength))
+                        tryGrow();
+                    sizeCalculator.updateMetadata(UpdateOperations.OpKind.INSERT, insertInfo);
+                    p.updateInfo = UpdateInfo.NONE;
+                    return null;
+                }
+            }
+        }
+    }
+
+    /* ---------------- List deletion -------------- */
+
+    /**
+     * Main deletion method, as SizeHashTable.listDoRemove.
+     *
+     * @param key the key
+     * @param value if non-null, the value that must be
+     * associated with key
+     * @return the node, or null if not found
+     */
+    @SuppressWarnings("unchecked")
+    private V listDoRemove(int key, Object value) {
+        int hash = SizeHashTable.spread(key);
+        int orderKey = SplitOrder.splitOrderKey(hash);
+        Node<V> head = getListHead(hash);
+        V result = null;
+        outer: for (;;) { // Each iteration starts a traversal from the head
+            VarHandle.acquireFence();
+            Node<V> b = head;
+            for (;;) { // Each iteration advances the pointers one step ahead in the list
+                Node<V> n; Object valOrRemoveInfo; int c;
+                if ((n = b.next) == null)
+                    break outer;
+                else if ((valOrRemoveInfo = n.valOrRemoveInfo) == null) {
+                    if ((n.orderKey & 1) != 0)
+                        break;       // a marker
+                    if (Integer.compareUnsigned(orderKey, n.orderKey) < 0)
+                        break outer; // the head of a later bucket, past the key
+                    b = n;
+                }
+                else if (valOrRemoveInfo.getClass() == Node.class)
+                    completeRemove(b, n);
+                else if ((c = cpr(orderKey, key, n)) > 0)
+                    b = n;
+                else if (c < 0)
+                    break outer;
+                else if (value != null && !value.equals(valOrRemoveInfo))
+                    // Either n's insert is linearized and so n.val==value is linearized too, or n's insert is not linearized.
+                    // Thus, the remove should anyhow fail, and there is no need to call updateMetadataAndLinearize for the insert.
+                    break outer;
+                else {
+                    linearizeInsert(n);
+                    long removeInfo = sizeCalculator.createUpdateInfo(UpdateOperations.OpKind.REMOVE);
+                    Node<V> removeMark = new Node<V>(n.orderKey, 0, null, null, removeInfo);
+                    if (VAL_OR_REMOVE_INFO.compareAndSet(n, valOrRemoveInfo, removeMark)) {
+                        result = (V) valOrRemoveInfo;
+                        reportRemove(removeMark);
+                        unlink(b, n, removeMark);
+                        break outer;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /* ----------------  Utilities -------------- */
+
+    /**
+     * Compares a key, whose split-order key is given, with the key of
+     * node n, which holds a mapping, in list order, as SizeHashTable.cpr
+     * does: by split-order keys, and only if they are equal by the keys
+     * themselves, the nodes of other keys comparing as preceding it.
+     */
+    static int cpr(int orderKey, int key, Node<?> n) {
+        int d = Integer.compareUnsigned(orderKey, n.orderKey);
+        return (d != 0) ? d : (key == n.key) ? 0 : 1;
+    }
+
+    // Inserts a header with the given split-order key after start, as SizeHashTable.listInsertHead does
+    private Node<V> listInsertHead(int orderKey, Node<V> start) {
+        for (;;) {
+            VarHandle.acquireFence();
+            Node<V> b = start;
+            for (;;) {                       // find insertion point
+                Node<V> n, p; Object valOrRemoveInfo; int c;
+                if ((n = b.next) == null)
+                    c = -1;
+                else if ((valOrRemoveInfo = n.valOrRemoveInfo) == null && (n.orderKey & 1) != 0)
+                    break;                   // a marker: can't append; restart
+                else if (valOrRemoveInfo != null && valOrRemoveInfo.getClass() == Node.class) {
+                    completeRemove(b, n);
+                    c = 1;
+                }
+                else if ((c = Integer.compareUnsigned(orderKey, n.orderKey)) > 0)
+                    b = n;
+                else if (c == 0)
+                    return n;                // inserted by a concurrent initialization
+                if (c < 0 && NEXT.compareAndSet(b, n, p = new Node<V>(orderKey, n)))
+                    return p;
+            }
+        }
+    }
+
+    /**
+     * Reports the removal of deleted node n, and unlinks it from its
+     * predecessor b, as SizeHashTable.completeRemove does.
+     */
+    @SuppressWarnings("unchecked")
+    void completeRemove(Node<V> b, Node<V> n) {
+        if (b != null && n != null) {
+            reportRemove((Node<V>) n.valOrRemoveInfo);
+            unlink(b, n, null);
+        }
+    }
+
+    /**
+     * Steps 2 and 3 of completeRemove, for a node whose removal has
+     * already been reported to sizeCalculator.
+     *
+     * @param removeMark if nonnull, n's removal mark, which is then
+     * used as the marker. Only the remover of n may pass it, as it
+     * writes the mark's next field before splicing it in.
+     */
+    private void unlink(Node<V> b, Node<V> n, Node<V> removeMark) {
+        Node<V> f, p, marker;
+        for (;;) {
+            if ((f = n.next) != null && f.isMarker()) {
+                p = f.next;               // already marked
+                break;
+            }
+            if (removeMark != null) {
+                removeMark.next = f;      // published by the CAS below
+                marker = removeMark;
+            }
+            else
+                marker = new Node<V>(n.orderKey, f);
+            if (NEXT.compareAndSet(n, f, marker)) {
+                p = f;                    // add marker
+                break;
+            }
+        }
+        NEXT.compareAndSet(b, n, p);
+    }
+
+    /* ------ Map API methods ------ */
+
+    /**
+     * Returns {@code true} if this map contains a mapping for the specified
+     * key.
+     */
+    public boolean containsKey(int key) {
+        return listDoGet(key) != null;
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped,
+     * or {@code null} if this map contains no mapping for the key.
+     */
+    public V get(int key) {
+        return listDoGet(key);
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped,
+     * or the given defaultValue if this map contains no mapping for the key.
+     */
+    public V getOrDefault(int key, V defaultValue) {
+        V v;
+        return (v = listDoGet(key)) == null ? defaultValue : v;
+    }
+
+    /**
+     * Associates the specified value with the specified key in this map.
+     * If the map previously contained a mapping for the key, the old
+     * value is replaced.
+     *
+     * @return the previous value associated with the specified key, or
+     *         {@code null} if there was no mapping for the key
+     * @throws NullPointerException if the specified value is null
+     */
+    public V put(int key, V value) {
+        if (value == null)
+            throw new NullPointerException();
+        return doPut(key, value, false);
+    }
+
+    /**
+     * Removes the mapping for the specified key from this map if present.
+     *
+     * @return the previous value associated with the specified key, or
+     *         {@code null} if there was no mapping for the key
+     */
+    public V remove(int key) {
+        return doRemove(key, null);
+    }
+
+    /* ------ ConcurrentMap API methods ------ */
+
+    /**
+     * If the specified key is not already associated with a value,
+     * associates it with the given value.
+     *
+     * @return the previous value associated with the specified key,
+     *         or {@code null} if there was no mapping for the key
+     * @throws NullPointerException if the specified value is null
+     */
+    public V putIfAbsent(int key, V value) {
+        if (value == null)
+            throw new NullPointerException();
+        return doPut(key, value, true);
+    }
+
+    /**
+     * Inserts the mapping if the key is absent and the map holds fewer
+     * than {@code limit} mappings, as
+     * SizeHashTable.putIfAbsentAndSizeBelow does.
+     *
+     * @return {@code true} if the mapping was inserted
+     * @throws NullPointerException if the specified value is null
+     */
+    public boolean putIfAbsentAndSizeBelow(int key, V value, long limit) {
+        if (value == null)
+            throw new NullPointerException();
+        CapacityReservations reservations = capacityReservations();
+        if (!reservations.reserve(limit))
+            return false;
+        try {
+            return doPut(key, value, true) == null;
+        } finally {
+            reservations.release();
+        }
+    }
+
+    /**
+     * Removes the entry for a key only if currently mapped to a given value.
+     *
+     * @return {@code true} if the value was removed
+     */
+    public boolean remove(int key, Object value) {
+        return value != null && doRemove(key, value) != null;
+    }
+
+    // VarHandle mechanics
+    private static final VarHandle TABLE_SIZE;
+    private static final VarHandle NEXT;
+    static {
+        try {
+            MethodHandles.Lookup l = MethodHandles.lookup();
+            TABLE_SIZE = l.findVarHandle(SizeIntHashTable.class, "tableSize", int.class);
+            NEXT = l.findVarHandle(Node.class, "next", Node.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // For debug
+    public int getTableSize() {
+        return tableSize;
+    }
+
+    // For debug
+    @SuppressWarnings("unchecked")
+    public long getSumOfKeys() {
+        Node<V> n;
+        long keysSum = 0;
+        Node<V> b = (Node<V>) buckets[0][0]; // The head of the whole list
+        while ((n = b.next) != null) {
+            Object valOrRemoveInfo = n.valOrRemoveInfo;
+            if (valOrRemoveInfo != null && valOrRemoveInfo.getClass() != Node.class) // not accurate if concurrent with remove, since remove info is installed in n.valOrRemoveInfo before n's remove is linearized
+                keysSum += n.key;
+            b = n;
+        }
+        return keysSum;
+    }
+}
@@ -0,0 +1,652 @@
+package algorithms.size;
+
+/**
+ *  This is an implementation of the paper "Concurrent Size" by Gal Sela and Erez Petrank.
+ *  The current file specializes SizeConcurrentSkipListMap to primitive long keys, which are stored
+ *  in the nodes and compared without boxing.
+ *
+ *  Copyright (C) 2022  Gal Sela
+ *  Contact Gal Sela (sela.galy@gmail.com) with any questions or comments.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import algorithms.size.core.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A SizeConcurrentSkipListMap whose keys are longs, sorted in their natural
+ * order: the same skip list, whose size is computed by a SizeCalculator the
+ * same way, including in dormant mode (see SizePrimitiveMap). Each key is stored in its node as a
+ * long, so no update or lookup allocates or dereferences a boxed key, and
+ * comparisons are inlined.
+ *
+ * It has the single-key operations and the size operations of
+ * SizeConcurrentSkipListMap, but not its weigher, categories or batches,
+ * which are left to the generic class.
+ *
+ * @param <V> the type of mapped values
+ */
+public class SizeLongSkipListMap<V> extends SizePrimitiveMap<V> {
+    /*
+     * See SizeConcurrentSkipListMap for the algorithm and the notation.
+     * The only difference is that keys cannot be null, so headers and
+     * markers are told apart from the other nodes by their null val
+     * field: a node that holds a mapping always has a value or a
+     * removal mark.
+     */
+
+    /** Lazily initialized topmost index of the skiplist. */
+    private transient Index<V> head;
+
+    /**
+     * Nodes hold keys and values, and are singly linked in sorted
+     * order, possibly with some intervening marker nodes. The list is
+     * headed by a header node accessible as head.node. Headers and
+     * marker nodes have null values, and a removal mark is a node too
+     * (see UpdateNode).
+     */
+    static final class Node<V> extends UpdateNode {
+        final long key;
+        Node<V> next;
+
+        Node(long key, V value, Node<V> next, long updateInfo) {
+            super(value, updateInfo);
+            this.key = key;
+            this.next = next;
+        }
+
+        // For head and marker nodes
+        Node(Node<V> next) {
+            this(0L, null, next, UpdateInfo.NONE);
+        }
+    }
+
+    /**
+     * Index nodes represent the levels of the skip list.
+     */
+    static final class Index<V> {
+        final Node<V> node;  // currently, never detached
+        final Index<V> down;
+        Index<V> right;
+        Index(Node<V> node, Index<V> down, Index<V> right) {
+            this.node = node;
+            this.down = down;
+            this.right = right;
+        }
+    }
+
+    /* ----------------  Utilities -------------- */
+
+    /**
+     * Returns the header for base node list, or null if uninitialized
+     */
+    final Node<V> baseHead() {
+        Index<V> h;
+        VarHandle.acquireFence();
+        return ((h = head) == null) ? null : h.node;
+    }
+
+    /**
+     * Tries to unlink deleted node n from predecessor b (if both
+     * exist), by first splicing in a marker if not already present.
+     * Upon return, node n is sure to be unlinked from b, possibly
+     * via the actions of some other thread.
+     *
+     * 	1. Update sizeCalculator and linearize remove
+     *  2. Insert marker node succeeding n
+     *  3. Unlink n
+     *
+     * @param b if nonnull, predecessor
+     * @param n if nonnull, node known to be deleted
+     */
+    @SuppressWarnings("unchecked")
+    void completeRemove(Node<V> b, Node<V> n) {
+        if (b != null && n != null) {
+            reportRemove((Node<V>) n.valOrRemoveInfo);
+            unlink(b, n, null);
+        }
+    }
+
+    /**
+     * Steps 2 and 3 of completeRemove, for a node whose removal has
+     * already been reported to sizeCalculator.
+     *
+     * @param removeMark if nonnull, n's removal mark, which is then
+     * used as the marker. Only the remover of n may pass it, as it
+     * writes the mark's next field before splicing it in.
+     */
+    private void unlink(Node<V> b, Node<V> n, Node<V> removeMark) {
+        Node<V> f, p, marker;
+        for (;;) {
+            if ((f = n.next) != null && f.valOrRemoveInfo == null) {
+                p = f.next;               // already marked
+                break;
+            }
+            if (removeMark != null) {
+                removeMark.next = f;      // published by the CAS below
+                marker = removeMark;
+            }
+            else
+                marker = new Node<V>(f);
+            if (NEXT.compareAndSet(n, f, marker)) {
+                p = f;                    // add marker
+                break;
+            }
+        }
+        NEXT.compareAndSet(b, n, p);
+    }
+
+    /* ---------------- Traversal -------------- */
+
+    /**
+     * Returns an index node with key strictly less than given key.
+     * Also unlinks indexes to deleted nodes found along the way.
+     * Callers rely on this side-effect of clearing indices to deleted
+     * nodes.
+     *
+     * @param key the key
+     * @return a predecessor node of key, or null if uninitialized
+     */
+    private Node<V> findPredecessor(long key) {
+        Index<V> q;
+        VarHandle.acquireFence();
+        if ((q = head) == null)
+            return null;
+        else {
+            for (Index<V> r, d;;) {
+                while ((r = q.right) != null) {
+                    Node<V> p;
+                    if ((p = r.node) == null ||
+                            p.valOrRemoveInfo.getClass() == Node.class)  // unlink index to deleted node
+                        RIGHT.compareAndSet(q, r, r.right);
+                    else if (key > p.key)
+                        q = r;
+                    else
+                        break;
+                }
+                if ((d = q.down) != null)
+                    q = d;
+                else
+                    return q.node;
+            }
+        }
+    }
+
+    /**
+     * Gets value for key, as SizeConcurrentSkipListMap.doGet does.
+     *
+     * @param key the key
+     * @return the value, or null if absent
+     */
+    @SuppressWarnings("unchecked")
+    private V doGet(long key) {
+        Index<V> q;
+        VarHandle.acquireFence();
+        V result = null;
+        if ((q = head) != null) {
+            outer: for (Index<V> r, d;;) {
+                while ((r = q.right) != null) {
+                    Node<V> p; long k; Object valOrRemoveInfo;
+                    if ((p = r.node) == null ||
+                            (valOrRemoveInfo = p.valOrRemoveInfo).getClass() == Node.class)
+                        RIGHT.compareAndSet(q, r, r.right);
+                    else if (key > (k = p.key))
+                        q = r;
+                    else if (key == k) {
+                        linearizeInsert(p);
+                        result = (V) valOrRemoveInfo;
+                        break outer;
+                    }
+                    else
+                        break;
+                }
+                if ((d = q.down) != null)
+                    q = d;
+                else {
+                    Node<V> b, n;
+                    if ((b = q.node) != null) {
+                        while ((n = b.next) != null) {
+                            Object valOrRemoveInfo = n.valOrRemoveInfo;
+                            long k = n.key;
+                            if (valOrRemoveInfo == null || key > k) {
+                                // Cannot simply advance b in case remove info is installed in n.valOrRemoveInfo similarly to ConcurrentSkipListMap,
+                                // because then if key == k, the removal of n must be reported to sizeCalculator before returning null.
+                                b = n;
+                            }
+                            else {
+                                if (key == k) {
+                                    if (valOrRemoveInfo.getClass() == Node.class)
+                                        reportRemove((Node<V>) valOrRemoveInfo);
+                                    else {
+                                        linearizeInsert(n);
+                                        result = (V) valOrRemoveInfo;
+                                    }
+                                }
+                                break;
+                            }
+                        }
+                    }
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Puts as doInsert does, within a dormant update while
+     * sizeCalculator is dormant (see
+     * SizeCalculator.enterDormantUpdate).
+     */
+    private V doPut(long key, V value, boolean onlyIfAbsent) {
+        int dormantTid = sizeCalculator.enterDormantUpdate();
+        if (dormantTid == SizeCalculator.NOT_DORMANT)
+            return doInsert(key, value, onlyIfAbsent);
+        V result = value; // Stands for no insert unless doInsert returns null
+        try {
+            return result = doInsert(key, value, onlyIfAbsent);
+        } finally {
+            exitDormantUpdate(dormantTid, UpdateOperations.OpKind.INSERT, result == null);
+        }
+    }
+
+    /**
+     * Removes as doDelete does, within a dormant update while
+     * sizeCalculator is dormant.
+     */
+    private V doRemove(long key, Object value) {
+        int dormantTid = sizeCalculator.enterDormantUpdate();
+        if (dormantTid == SizeCalculator.NOT_DORMANT)
+            return doDelete(key, value);
+        V result = null;
+        try {
+            return result = doDelete(key, value);
+        } finally {
+            exitDormantUpdate(dormantTid, UpdateOperations.OpKind.REMOVE, result != null);
+        }
+    }
+
+    /* ---------------- Insertion -------------- */
+
+    /**
+     * Main insertion method, as SizeConcurrentSkipListMap.doPut.
+     *
+     * @param key the key
+     * @param value the value that must be associated with key
+     * @param onlyIfAbsent if should not insert if already present
+     * @return the old value, or null if newly inserted
+     */
+    @SuppressWarnings("unchecked")
+    private V doInsert(long key, V value, boolean onlyIfAbsent) {
+        for (;;) {
+            Index<V> h; Node<V> b;
+            VarHandle.acquireFence();
+            int levels = 0;                    // number of levels descended
+            if ((h = head) == null) {          // try to initialize
+                Node<V> base = new Node<V>(null);
+                h = new Index<V>(base, null, null);
+                b = (HEAD.compareAndSet(this, null, h)) ? base : null;
+            }
+            else {
+                for (Index<V> q = h, r, d;;) { // count while descending
+                    while ((r = q.right) != null) {
+                        Node<V> p;
+                        if ((p = r.node) == null ||
+                                p.valOrRemoveInfo.getClass() == Node.class)
+                            RIGHT.compareAndSet(q, r, r.right);
+                        else if (key > p.key)
+                            q = r;
+                        else
+                            break;
+                    }
+                    if ((d = q.down) != null) {
+                        ++levels;
+                        q = d;
+                    }
+                    else {
+                        b = q.node;
+                        break;
+                    }
+                }
+            }
+            if (b != null) {
+                Node<V> z = null;                // new node, if inserted
+                for (;;) {                       // find insertion point
+                    Node<V> n, p; long k; Object valOrRemoveInfo; int c;
+                    if ((n = b.next) == null)
+                        c = -1;
+                    else if ((valOrRemoveInfo = n.valOrRemoveInfo) == null)
+                        break;                   // can't append; restart
+                    else if (valOrRemoveInfo.getClass() == Node.class) {
+                        completeRemove(b, n);
+                        c = 1;
+                    }
+                    else if ((c = Long.compare(key, k = n.key)) > 0)
+                        b = n;
+                    else if (c == 0 &&
+                            (onlyIfAbsent || VAL_OR_REMOVE_INFO.compareAndSet(n, valOrRemoveInfo, value))) {
+                        // In case n.val was CASed and n's insertion was not yet linearized then, the current insert is linearized right after that insertion
+                        linearizeInsert(n);
+                        return (V) valOrRemoveInfo;
+                    }
+
+                    long insertInfo;
+                    if (c < 0 &&
+                            NEXT.compareAndSet(b, n,
+                                    p = new Node<V>(key, value, n,
+                                            insertInfo = sizeCalculator.createUpdateInfo(UpdateOperations.OpKind.INSERT)))) {
+                        sizeCalculator.updateMetadata(UpdateOperations.OpKind.INSERT, insertInfo);
+                        p.updateInfo = UpdateInfo.NONE;
+                        z = p;
+                        break;
+                    }
+                }
+
+                if (z != null) {
+                    int lr = ThreadLocalRandom.current().nextInt();
+                    if ((lr & 0x3) == 0) {       // add indices with 1/4 prob
+                        int hr = ThreadLocalRandom.current().nextInt();
+                        long rnd = ((long)hr << 32) | ((long)lr & 0xffffffffL);
+                        int skips = levels;      // levels to descend before add
+                        Index<V> x = null;
+                        for (;;) {               // create at most 62 indices
+                            x = new Index<V>(z, x, null);
+                            if (rnd >= 0L || --skips < 0)
+                                break;
+                            else
+                                rnd <<= 1;
+                        }
+                        if (addIndices(h, skips, x) && skips < 0 &&
+                                head == h) {         // try to add new level
+                            Index<V> hx = new Index<V>(z, x, null);
+                            Index<V> nh = new Index<V>(h.node, h, hx);
+                            HEAD.compareAndSet(this, h, nh);
+                        }
+                        if (z.valOrRemoveInfo.getClass() == Node.class)       // deleted while adding indices
+                            findPredecessor(key); // clean
+                    }
+                    return null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Add indices after an insertion, as
+     * SizeConcurrentSkipListMap.addIndices does.
+     *
+     * @param q starting index for current level
+     * @param skips levels to skip before inserting
+     * @param x index for this insertion
+     */
+    static <V> boolean addIndices(Index<V> q, int skips, Index<V> x) {
+        Node<V> z;
+        if (x != null && (z = x.node) != null && q != null) { // hoist checks
+            long key = z.key;
+            boolean retrying = false;
+            for (;;) {                              // find splice point
+                Index<V> r, d; int c;
+                if ((r = q.right) != null) {
+                    Node<V> p;
+                    if ((p = r.node) == null ||
+                            p.valOrRemoveInfo.getClass() == Node.class) {
+                        RIGHT.compareAndSet(q, r, r.right);
+                        c = 0;
+                    }
+                    else if ((c = Long.compare(key, p.key)) > 0)
+                        q = r;
+                    else if (c == 0)
+                        break;                      // stale
+                }
+                else
+                    c = -1;
+
+                if (c < 0) {
+                    if ((d = q.down) != null && skips > 0) {
+                        --skips;
+                        q = d;
+                    }
+                    else if (d != null && !retrying &&
+                            !addIndices(d, 0, x.down))
+                        break;
+                    else {
+                        x.right = r;
+                        if (RIGHT.compareAndSet(q, r, x))
+                            return true;
+                        else
+                            retrying = true;         // re-find splice point
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /* ---------------- Deletion -------------- */
+
+    /**
+     * Main deletion method, as SizeConcurrentSkipListMap.doRemove.
+     *
+     * @param key the key
+     * @param value if non-null, the value that must be
+     * associated with key
+     * @return the node, or null if not found
+     */
+    @SuppressWarnings("unchecked")
+    private V doDelete(long key, Object value) {
+        V result = null;
+        Node<V> b;
+        outer: while ((b = findPredecessor(key)) != null &&
+                result == null) {
+            for (;;) {
+                Node<V> n; long k; Object valOrRemoveInfo; int c;
+                if ((n = b.next) == null)
+                    break outer;
+                else if ((valOrRemoveInfo = n.valOrRemoveInfo) == null)
+                    break;
+                else if (valOrRemoveInfo.getClass() == Node.class)
+                    completeRemove(b, n);
+                else if ((c = Long.compare(key, k = n.key)) > 0)
+                    b = n;
+                else if (c < 0)
+                    break outer;
+                else if (value != null && !value.equals(valOrRemoveInfo))
+                    // Either n's insert is linearized and so n.val==value is linearized too, or n's insert is not linearized.
+                    // Thus, the remove should anyhow fail, and there is no need to call updateMetadataAndLinearize for the insert.
+                    break outer;
+                else {
+                    linearizeInsert(n);
+                    long removeInfo = sizeCalculator.createUpdateInfo(UpdateOperations.OpKind.REMOVE);
+                    Node<V> removeMark = new Node<V>(0L, null, null, removeInfo);
+                    if (VAL_OR_REMOVE_INFO.compareAndSet(n, valOrRemoveInfo, removeMark)) {
+                        result = (V) valOrRemoveInfo;
+                        reportRemove(removeMark);
+                        unlink(b, n, removeMark);
+                        break; // loop to clean up
+                    }
+                }
+            }
+        }
+        if (result != null) {
+            tryReduceLevel();
+        }
+        return result;
+    }
+
+    /**
+     * Possibly reduce head level if it has no nodes, as
+     * SizeConcurrentSkipListMap.tryReduceLevel does.
+     */
+    private void tryReduceLevel() {
+        Index<V> h, d, e;
+        if ((h = head) != null && h.right == null &&
+                (d = h.down) != null && d.right == null &&
+                (e = d.down) != null && e.right == null &&
+                HEAD.compareAndSet(this, h, d) &&
+                h.right != null)   // recheck
+            HEAD.compareAndSet(this, d, h);  // try to backout
+    }
+
+    /* ---------------- Constructors -------------- */
+
+    /**
+     * Constructs a new, empty map, sorted according to the natural
+     * ordering of the keys.
+     */
+    public SizeLongSkipListMap() {
+        this(Backoff.Strategy.getDefault());
+    }
+
+    /**
+     * Constructs a new, empty map, sorted according to the natural
+     * ordering of the keys, whose sizes back off by the given strategy
+     * rather than the strategy chosen per JVM.
+     */
+    public SizeLongSkipListMap(Backoff.Strategy backoffStrategy) {
+        super(backoffStrategy);
+    }
+
+    /* ------ Map API methods ------ */
+
+    /**
+     * Returns {@code true} if this map contains a mapping for the specified
+     * key.
+     */
+    public boolean containsKey(long key) {
+        return doGet(key) != null;
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped,
+     * or {@code null} if this map contains no mapping for the key.
+     */
+    public V get(long key) {
+        return doGet(key);
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped,
+     * or the given defaultValue if this map contains no mapping for the key.
+     */
+    public V getOrDefault(long key, V defaultValue) {
+        V v;
+        return (v = doGet(key)) == null ? defaultValue : v;
+    }
+
+    /**
+     * Associates the specified value with the specified key in this map.
+     * If the map previously contained a mapping for the key, the old
+     * value is replaced.
+     *
+     * @return the previous value associated with the specified key, or
+     *         {@code null} if there was no mapping for the key
+     * @throws NullPointerException if the specified value is null
+     */
+    public V put(long key, V value) {
+        if (value == null)
+            throw new NullPointerException();
+        return doPut(key, value, false);
+    }
+
+    /**
+     * Removes the mapping for the specified key from this map if present.
+     *
+     * @return the previous value associated with the specified key, or
+     *         {@code null} if there was no mapping for the key
+     */
+    public V remove(long key) {
+        return doRemove(key, null);
+    }
+
+    /* ------ ConcurrentMap API methods ------ */
+
+    /**
+     * If the specified key is not already associated with a value,
+     * associates it with the given value.
+     *
+     * @return the previous value associated with the specified key,
+     *         or {@code null} if there was no mapping for the key
+     * @throws NullPointerException if the specified value is null
+     */
+    public V putIfAbsent(long key, V value) {
+        if (value == null)
+            throw new NullPointerException();
+        return doPut(key, value, true);
+    }
+
+    /**
+     * Inserts the mapping if the key is absent and the map holds fewer
+     * than {@code limit} mappings, as
+     * SizeConcurrentSkipListMap.putIfAbsentAndSizeBelow does.
+     *
+     * @return {@code true} if the mapping was inserted
+     * @throws NullPointerException if the specified value is null
+     */
+    public boolean putIfAbsentAndSizeBelow(long key, V value, long limit) {
+        if (value == null)
+            throw new NullPointerException();
+        CapacityReservations reservations = capacityReservations();
+        if (!reservations.reserve(limit))
+            return false;
+        try {
+            return doPut(key, value, true) == null;
+        } finally {
+            reservations.release();
+        }
+    }
+
+    /**
+     * Removes the entry for a key only if currently mapped to a given value.
+     *
+     * @return {@code true} if the value was removed
+     */
+    public boolean remove(long key, Object value) {
+        return value != null && doRemove(key, value) != null;
+    }
+
+    // VarHandle mechanics
+    private static final VarHandle HEAD;
+    private static final VarHandle NEXT;
+    private static final VarHandle RIGHT;
+    static {
+        try {
+            MethodHandles.Lookup l = MethodHandles.lookup();
+            HEAD = l.findVarHandle(SizeLongSkipListMap.class, "head",
+                    Index.class);
+            NEXT = l.findVarHandle(Node.class, "next", Node.class);
+            RIGHT = l.findVarHandle(Index.class, "right", Index.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // For debug
+    public long getSumOfKeys() {
+        Node<V> b, n;
+        long keysSum = 0;
+        if ((b = baseHead()) == null) {
+            return 0;
+        }
+        while ((n = b.next) != null) {
+            Object valOrRemoveInfo = n.valOrRemoveInfo;
+            if (valOrRemoveInfo != null && valOrRemoveInfo.getClass() != Node.class) // not accurate if concurrent with remove, since remove info is installed in n.valOrRemoveInfo before n's remove is linearized
+                keysSum += n.key;
+            b = n;
+        }
+        return keysSum;
+    }
+}
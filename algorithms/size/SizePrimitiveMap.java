@@ -0,0 +1,192 @@
+package algorithms.size;
+
+/**
+ *  This is an implementation of the paper "Concurrent Size" by Gal Sela and Erez Petrank.
+ *  The current file holds the size metadata of the maps with primitive keys, SizeIntHashTable and
+ *  SizeLongSkipListMap, which differ only in how they store, order and find their keys.
+ *
+ *  Copyright (C) 2022  Gal Sela
+ *  Contact Gal Sela (sela.galy@gmail.com) with any questions or comments.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import algorithms.size.core.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The size metadata of a map with primitive keys: its SizeCalculator, the
+ * size operations computed from it, the reservations of the bounded
+ * inserts, and the helping by which an operation linearizes the insert or
+ * remove of a node it encounters. The size operations are those of the
+ * generic maps (see SizedMap), without their weights and categories.
+ *
+ * @param <V> the type of mapped values
+ */
+abstract class SizePrimitiveMap<V> {
+    final SizeCalculator sizeCalculator;
+    // Admits the bounded inserts of putIfAbsentAndSizeBelow, created upon the first one
+    private volatile CapacityReservations capacityReservations;
+
+    SizePrimitiveMap(Backoff.Strategy backoffStrategy) {
+        this.sizeCalculator = new SizeCalculator(backoffStrategy);
+    }
+
+    /**
+     * The part of a node that the size metadata reads and writes. A node
+     * that holds a mapping has a value, which its remover replaces by a
+     * removal mark - a node of the same class holding the remove info,
+     * which the remover then splices in as the node's marker. Headers
+     * and markers have a null valOrRemoveInfo.
+     */
+    static class UpdateNode {
+        Object valOrRemoveInfo;
+        // The insert info of a node whose insertion may not be linearized yet (UpdateInfo.NONE once it is),
+        // or the remove info of a removal mark
+        volatile long updateInfo;
+
+        UpdateNode(Object valOrRemoveInfo, long updateInfo) {
+            this.valOrRemoveInfo = valOrRemoveInfo;
+            this.updateInfo = updateInfo;
+        }
+    }
+
+    /* ---------------- Helping -------------- */
+
+    // Linearizes the insertion of node n unless it is linearized already, as an operation that encounters n must before it
+    // returns a result that depends on n
+    final void linearizeInsert(UpdateNode n) {
+        long insertInfo = n.updateInfo;
+        if (insertInfo != UpdateInfo.NONE) {
+            sizeCalculator.updateMetadata(UpdateOperations.OpKind.INSERT, insertInfo);
+            n.updateInfo = UpdateInfo.NONE;
+        }
+    }
+
+    // Linearizes the removal whose removal mark is given
+    final void reportRemove(UpdateNode removeMark) {
+        sizeCalculator.updateMetadata(UpdateOperations.OpKind.REMOVE, removeMark.updateInfo);
+    }
+
+    // Exits a dormant update (see SizeCalculator.enterDormantUpdate), counting it if it changed the size
+    final void exitDormantUpdate(int dormantTid, int opKind, boolean didChangeSize) {
+        if (dormantTid == SizeCalculator.NOT_DORMANT)
+            return;
+        if (didChangeSize)
+            sizeCalculator.exitDormantUpdate(dormantTid, 0, opKind, 1);
+        else
+            sizeCalculator.exitDormantUpdate(dormantTid);
+    }
+
+    final CapacityReservations capacityReservations() {
+        CapacityReservations reservations = capacityReservations;
+        if (reservations == null) {
+            CapacityReservations witnessed = (CapacityReservations) CAPACITY_RESERVATIONS.compareAndExchange(
+                    this, null, reservations = new CapacityReservations(sizeCalculator));
+            if (witnessed != null)
+                reservations = witnessed;
+        }
+        return reservations;
+    }
+
+    /* ------ Size API methods ------ */
+
+    /**
+     * Returns the number of mappings, or {@code Integer.MAX_VALUE} if
+     * there are more. Use {@link #mappingCount()} for larger sizes.
+     */
+    public int size() {
+        long c;
+        return ((c = mappingCount()) >= Integer.MAX_VALUE) ?
+                Integer.MAX_VALUE : (int) c;
+    }
+
+    /**
+     * Returns the number of mappings at some point during the last
+     * {@code maxAgeNanos} nanoseconds, which may avoid computing the
+     * size anew when a size has been computed recently enough.
+     */
+    public int size(long maxAgeNanos) {
+        long c;
+        return ((c = mappingCount(maxAgeNanos)) >= Integer.MAX_VALUE) ?
+                Integer.MAX_VALUE : (int) c;
+    }
+
+    /**
+     * Returns the number of mappings. This method should be used instead
+     * of {@link #size()} when there may be more mappings than can be
+     * represented as an int.
+     */
+    public long mappingCount() {
+        return sizeCalculator.compute();
+    }
+
+    /**
+     * Returns the number of mappings at some point during the last
+     * {@code maxAgeNanos} nanoseconds, as {@link #size(long)} does,
+     * without clamping it to an int.
+     */
+    public long mappingCount(long maxAgeNanos) {
+        return sizeCalculator.compute(maxAgeNanos);
+    }
+
+    /**
+     * Waits until the map holds at most {@code threshold} mappings, and
+     * returns whether it did before the timeout elapsed, as
+     * SizeHashTable.awaitSizeAtMost does.
+     */
+    public boolean awaitSizeAtMost(long threshold, long timeout, TimeUnit unit) throws InterruptedException {
+        return sizeCalculator.awaitSizeAtMost(threshold, timeout, unit);
+    }
+
+    /**
+     * Waits until the map holds at least {@code threshold} mappings, as
+     * awaitSizeAtMost does.
+     */
+    public boolean awaitSizeAtLeast(long threshold, long timeout, TimeUnit unit) throws InterruptedException {
+        return sizeCalculator.awaitSizeAtLeast(threshold, timeout, unit);
+    }
+
+    /**
+     * Returns the number of inserts and removes of mappings linearized
+     * so far, as SizeHashTable.version does.
+     */
+    public long version() {
+        return sizeCalculator.computeVersion();
+    }
+
+    /**
+     * Returns whether mappings have been inserted or removed since
+     * version() returned the given version.
+     */
+    public boolean changedSince(long version) {
+        return sizeCalculator.changedSince(version);
+    }
+
+    // VarHandle mechanics
+    private static final VarHandle CAPACITY_RESERVATIONS;
+    static final VarHandle VAL_OR_REMOVE_INFO;
+    static {
+        try {
+            MethodHandles.Lookup l = MethodHandles.lookup();
+            CAPACITY_RESERVATIONS = l.findVarHandle(SizePrimitiveMap.class, "capacityReservations",
+                    CapacityReservations.class);
+            VAL_OR_REMOVE_INFO = l.findVarHandle(UpdateNode.class, "valOrRemoveInfo", Object.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
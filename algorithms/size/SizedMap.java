@@ -0,0 +1,92 @@
+package algorithms.size;
+
+/**
+ *  This is an implementation of the paper "Concurrent Size" by Gal Sela and Erez Petrank.
+ *  The current file groups several size-transformed structures under one SizeCalculator,
+ *  so that their total size is computed linearizably.
+ *
+ *  Copyright (C) 2022  Gal Sela
+ *  Contact Gal Sela (sela.galy@gmail.com) with any questions or comments.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The operations shared by the size-aware maps (SizeHashTable,
+ * SizeConcurrentSkipListMap and SizeBST): their basic updates, and the
+ * linearizable size, version and bounded inserts computed from their
+ * size metadata.
+ *
+ * The weight, the category sizes and the batches are optional: a map
+ * without a weigher has no weight, a map without a classifier has a
+ * single category, and a map without batches updates their keys one
+ * by one.
+ */
+public interface SizedMap<K,V> {
+    V put(K key, V value);
+
+    V putIfAbsent(K key, V value);
+
+    V remove(K key);
+
+    // Removes the key only if it is mapped to the given value, and returns whether it did
+    boolean remove(K key, V value);
+
+    // Inserts the key only if the map holds fewer than limit mappings, and returns whether it did
+    boolean putIfAbsentAndSizeBelow(K key, V value, long limit);
+
+    // The number of mappings, or Integer.MAX_VALUE if there are more
+    int size();
+
+    long mappingCount();
+
+    boolean awaitSizeAtMost(long threshold, long timeout, TimeUnit unit) throws InterruptedException;
+
+    boolean awaitSizeAtLeast(long threshold, long timeout, TimeUnit unit) throws InterruptedException;
+
+    long version();
+
+    boolean changedSince(long version);
+
+    // Puts the given mappings as a single batch if the map supports batches
+    default void putAll(Map<? extends K, ? extends V> m) {
+        for (Map.Entry<? extends K, ? extends V> e : m.entrySet()) put(e.getKey(), e.getValue());
+    }
+
+    // Removes the given keys as a single batch if the map supports batches, and returns the number of mappings removed
+    @SuppressWarnings("unchecked")
+    default int removeAll(Collection<?> keys) {
+        int removed = 0;
+        for (Object key : keys) if (remove((K) key) != null) removed++;
+        return removed;
+    }
+
+    /**
+     * Returns the total weight of the mappings.
+     *
+     * @throws UnsupportedOperationException if the map has no weigher
+     */
+    default long weight() {
+        throw new UnsupportedOperationException("The map was constructed without a weigher");
+    }
+
+    // The number of mappings of each category, all computed together
+    default long[] categoryMappingCounts() {
+        return new long[]{mappingCount()};
+    }
+}
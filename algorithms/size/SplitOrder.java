@@ -0,0 +1,135 @@
+package algorithms.size;
+
+/**
+ *  This is an implementation of the paper "Concurrent Size" by Gal Sela and Erez Petrank.
+ *  The current file holds the split order of the hash tables - the order of "Split-Ordered Lists:
+ *  Lock-Free Extensible Hash Tables" by Ori Shalev and Nir Shavit - and their table of bucket heads,
+ *  which SizeHashTable and SizeIntHashTable share, as they differ only in their keys.
+ *
+ *  Copyright (C) 2022  Gal Sela
+ *  Contact Gal Sela (sela.galy@gmail.com) with any questions or comments.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Static helpers for a table whose buckets are parts of a single list in
+ * split order. The heads of the buckets are kept in segments: bucket 0
+ * alone in segment 0, and the buckets from 2^(s-1) to 2^s - 1 in segment
+ * s, so that once the table doubles, the segment of the new buckets is
+ * allocated only when one of them is accessed. A table holds the heads
+ * as Objects, and each map casts them to its own node class.
+ */
+final class SplitOrder {
+    private SplitOrder() {}
+
+    static final int MAXIMUM_CAPACITY = 1 << 30;
+    private static final int BUCKET_SEGMENTS_NUM = 31; // Enough for MAXIMUM_CAPACITY buckets
+    // The table doubles once the mappings exceed MAX_LOAD per bucket, which is checked only after an insert that has passed
+    // RESIZE_CHAIN_LENGTH nodes in its bucket, or a larger power of two of them (see isLoadCheckDue)
+    static final int MAX_LOAD = 2;
+    private static final int RESIZE_CHAIN_LENGTH = 8;
+
+    /**
+     * Returns a power of two table size for the given desired capacity.
+     * See Hackers Delight, sec 3.2
+     */
+    static int tableSizeFor(int c) {
+        int n = -1 >>> Integer.numberOfLeadingZeros(c - 1);
+        return (n < 0) ? 1 : (n >= MAXIMUM_CAPACITY) ? MAXIMUM_CAPACITY : n + 1;
+    }
+
+    /**
+     * Returns the split-order key of a node whose key has the given
+     * spread hash: the hash with its bits reversed, so that the nodes
+     * of a bucket stay consecutive in the list whenever the table
+     * doubles, and with its lowest bit set, so that they follow the
+     * head of their bucket. Split-order keys are compared unsigned.
+     */
+    static int splitOrderKey(int hash) {
+        return Integer.reverse(hash) | 1;
+    }
+
+    // Returns the split-order key of the head of a bucket, which is even
+    static int bucketOrderKey(int bucket) {
+        return Integer.reverse(bucket);
+    }
+
+    // Returns the bucket of the i-th head in split order in a table of 2^bits buckets
+    static int bucketAt(int i, int bits) {
+        return bits == 0 ? 0 : Integer.reverse(i) >>> (Integer.SIZE - bits);
+    }
+
+    // Returns the bucket that the given bucket (> 0) was split from, whose index is the same without the highest bit
+    static int parentOf(int bucket) {
+        return bucket & ~Integer.highestOneBit(bucket);
+    }
+
+    // Allocates the segments of the heads of a table of tableSize buckets, to be filled by setHead
+    static Object[][] newBuckets(int tableSize) {
+        Object[][] buckets = new Object[BUCKET_SEGMENTS_NUM][];
+        int bits = Integer.numberOfTrailingZeros(tableSize);
+        for (int segmentIndex = 0; segmentIndex <= bits; ++segmentIndex) {
+            buckets[segmentIndex] = new Object[segmentIndex == 0 ? 1 : 1 << (segmentIndex - 1)];
+        }
+        return buckets;
+    }
+
+    // Returns the head of the given bucket, or null if the bucket has not been initialized yet
+    static Object getHead(Object[][] buckets, int bucket) {
+        Object[] segment = (Object[]) BUCKET_SEGMENTS.getAcquire(buckets, segmentOf(bucket));
+        return segment == null ? null : BUCKETS.getAcquire(segment, offsetOf(bucket));
+    }
+
+    // Installs the head of the given bucket, allocating its segment if no other bucket of the segment has been initialized yet.
+    // Concurrent initializations of a bucket install the same head, which they find in the list
+    static void setHead(Object[][] buckets, int bucket, Object head) {
+        int segmentIndex = segmentOf(bucket);
+        Object[] segment = (Object[]) BUCKET_SEGMENTS.getAcquire(buckets, segmentIndex);
+        if (segment == null) {
+            Object[] witnessed = (Object[]) BUCKET_SEGMENTS.compareAndExchange(buckets, segmentIndex, null,
+                    segment = new Object[1 << (segmentIndex - 1)]);
+            if (witnessed != null)
+                segment = witnessed;
+        }
+        BUCKETS.setRelease(segment, offsetOf(bucket), head);
+    }
+
+    private static int segmentOf(int bucket) {
+        return Integer.SIZE - Integer.numberOfLeadingZeros(bucket);
+    }
+
+    private static int offsetOf(int bucket) {
+        return bucket & ~Integer.highestOneBit(bucket);
+    }
+
+    // Whether an insert that has passed chainLength nodes in its bucket checks the load of the table: only at RESIZE_CHAIN_LENGTH
+    // and the powers of two above it, so that the inserts into a chain that stays long (e.g., of colliding keys) estimate the
+    // size at a rate inverse to its length rather than every time
+    static boolean isLoadCheckDue(int chainLength) {
+        return chainLength >= RESIZE_CHAIN_LENGTH && (chainLength & (chainLength - 1)) == 0;
+    }
+
+    // Whether a table of tableSize buckets that holds the given number of mappings should double
+    static boolean isOverloaded(int tableSize, long mappings) {
+        return tableSize < MAXIMUM_CAPACITY && mappings > (long) MAX_LOAD * tableSize;
+    }
+
+    // VarHandle mechanics
+    private static final VarHandle BUCKETS = MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final VarHandle BUCKET_SEGMENTS = MethodHandles.arrayElementVarHandle(Object[][].class);
+}
@@ -20,18 +20,23 @@ package algorithms.size.core;
  *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
  */
 
-public class Backoff {
-    private int backoffAmount = 1;
-    public int dummyCounter = 0;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
-    public void backoff() {
-        for (int i = 0; i < backoffAmount; i++)
-            dummyCounter += 1;
-    }
+/**
+ * A per-thread backoff of a size that encountered a concurrent size, giving the concurrent size a chance to complete
+ * before this size computes on its own. The amount of backoff grows when concurrent sizes turn out to have already
+ * computed the size, and shrinks when this thread computes it itself. Strategies differ in how they wait out an amount.
+ */
+public abstract class Backoff {
+    private static final int MAX_BACKOFF_AMOUNT = 512;
+    protected int backoffAmount = 1;
+
+    public abstract void backoff();
 
     public void increase() {
         int backoff = backoffAmount * 2;
-        if (backoff > 512) backoff = 512;
+        if (backoff > MAX_BACKOFF_AMOUNT) backoff = MAX_BACKOFF_AMOUNT;
         backoffAmount = backoff;
     }
 
@@ -40,4 +45,83 @@ public class Backoff {
         if (backoff == 0) backoff = 1;
         backoffAmount = backoff;
     }
+
+    public enum Strategy {
+        BUSY(BusyBackoff::new),
+        SPIN(SpinBackoff::new),
+        SPIN_THEN_YIELD(SpinThenYieldBackoff::new),
+        PARK(ParkBackoff::new);
+
+        // Read once, as the property is a per-JVM choice
+        private static final Strategy DEFAULT = of(System.getProperty("sizeCalculator.backoff", "busy"));
+
+        private final Supplier<Backoff> factory;
+
+        Strategy(Supplier<Backoff> factory) {
+            this.factory = factory;
+        }
+
+        public Backoff create() {
+            return factory.get();
+        }
+
+        // The strategy named busy, spin, spin_then_yield or park (in any case), busy being the fallback of unknown names
+        public static Strategy of(String name) {
+            for (Strategy strategy : values()) {
+                if (strategy.name().equalsIgnoreCase(name)) {
+                    return strategy;
+                }
+            }
+            return BUSY;
+        }
+
+        // The strategy of SizeCalculators that are not given one, chosen per JVM with -DsizeCalculator.backoff=busy|spin|spin_then_yield|park
+        public static Strategy getDefault() {
+            return DEFAULT;
+        }
+    }
+
+    // Busy-waits by incrementing a counter
+    public static class BusyBackoff extends Backoff {
+        public int dummyCounter = 0;
+
+        @Override
+        public void backoff() {
+            for (int i = 0; i < backoffAmount; i++)
+                dummyCounter += 1;
+        }
+    }
+
+    // Spins with a spin-wait hint, which lets the processor save power and yield resources to a sibling hardware thread
+    public static class SpinBackoff extends Backoff {
+        @Override
+        public void backoff() {
+            for (int i = 0; i < backoffAmount; i++)
+                Thread.onSpinWait();
+        }
+    }
+
+    // Spins for small amounts, and yields the processor once the amount has grown beyond MAX_SPINS
+    public static class SpinThenYieldBackoff extends Backoff {
+        private static final int MAX_SPINS = 64;
+
+        @Override
+        public void backoff() {
+            int spins = Math.min(backoffAmount, MAX_SPINS);
+            for (int i = 0; i < spins; i++)
+                Thread.onSpinWait();
+            if (backoffAmount > MAX_SPINS)
+                Thread.yield();
+        }
+    }
+
+    // Parks for PARK_NANOS_PER_AMOUNT nanoseconds per unit of amount, releasing the processor to other threads
+    public static class ParkBackoff extends Backoff {
+        private static final long PARK_NANOS_PER_AMOUNT = 100;
+
+        @Override
+        public void backoff() {
+            LockSupport.parkNanos(backoffAmount * PARK_NANOS_PER_AMOUNT);
+        }
+    }
 }
@@ -0,0 +1,191 @@
+package algorithms.size.core;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ *  This is an implementation of the paper "Concurrent Size" by Gal Sela and Erez Petrank.
+ *  The current file bounds the inserts of a structure by a capacity limit, using per-thread reservations.
+ *
+ *  Copyright (C) 2022  Gal Sela
+ *  Contact Gal Sela (sela.galy@gmail.com) with any questions or comments.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Admits bounded inserts into a structure whose size is computed by the given SizeCalculator, so that the structure does not
+ * grow beyond a limit by bounded inserts. Each thread is granted capacity in terms of its own insert count (over the
+ * structure's categories, as counted by its metadata counters): while its insert count is below its grant, a bounded insert by the thread
+ * is admitted without any shared access. Once its grant is used up, the thread computes the size and grants itself a share of
+ * the remaining room, revoking the unused grants of the other threads when the room is used up. Hence a full collection happens
+ * only once per share, and the grants shrink as the size approaches the limit. Removes free capacity through the size rather
+ * than through the grant of their thread, so that an unused grant may only shrink while the room is computed.
+ *
+ * A bounded insert calls reserve, and if admitted, performs its insert and then calls release. While admitted, it holds one
+ * unit of capacity, so a bounded insert fails only if the size plus the concurrent admitted inserts reach the limit.
+ * Inserts that are not bounded are not admitted, yet they use up the grant of their thread as any insert does.
+ */
+public final class CapacityReservations {
+    // The lowest bit of a thread's grant word marks an admitted insert that is in progress. The other bits hold the grant
+    private static final long ADMITTED = 1;
+
+    private final SizeCalculator sizeCalculator;
+    // The structure's categories of the SizeCalculator, from fromCategory (inclusive) to toCategory (exclusive)
+    private final int fromCategory;
+    private final int toCategory;
+    // Segments of per-thread grant words, indexed by ThreadSlots slots and allocated once a thread of the segment first reserves,
+    // in chunks as SizeCalculator allocates its segments. Threads that have never reserved have a grant of 0, so they have no
+    // unused grant
+    private final Object[][] grants = new Object[SizeCalculator.CHUNKS_NUM][];
+    // Advanced by every thread that grants itself capacity, after setting its grant, so that a thread whose grant was computed
+    // without seeing a concurrent grant retracts it and tries again
+    private volatile long grantsVersion;
+
+    public CapacityReservations(SizeCalculator sizeCalculator) {
+        this(sizeCalculator, 0, sizeCalculator.getCategoriesNum());
+    }
+
+    public CapacityReservations(SizeCalculator sizeCalculator, int fromCategory, int toCategory) {
+        this.sizeCalculator = sizeCalculator;
+        this.fromCategory = fromCategory;
+        this.toCategory = toCategory;
+    }
+
+    /**
+     * Admits a bounded insert by the current thread, unless the size plus the concurrent admitted inserts has reached limit.
+     * If admitted, the thread must call release once its insert completes, whether it inserted or not.
+     */
+    public boolean reserve(long limit) {
+        int tid = ThreadSlots.current();
+        long[] segment = getGrantsSegment(tid);
+        int index = grantIndex(tid);
+        for (;;) {
+            long grantWord = (long) GRANTS.getVolatile(segment, index);
+            if (insertCount(tid) < (grantWord >> 1)) {
+                if (GRANTS.compareAndSet(segment, index, grantWord, grantWord | ADMITTED)) {
+                    return true;
+                }
+                continue; // The grant has just been revoked
+            }
+            if (!grant(tid, segment, index, limit)) {
+                return false;
+            }
+        }
+    }
+
+    // Ends the admitted insert of the current thread. Its unit of capacity is kept in its insert count if it inserted
+    public void release() {
+        int tid = ThreadSlots.current();
+        GRANTS.getAndAdd(getGrantsSegment(tid), grantIndex(tid), -ADMITTED);
+    }
+
+    // Grants the current thread a share of the room left below limit, revoking the unused grants of all the threads if
+    // there is no room left. Returns false if there is no room even then
+    private boolean grant(int tid, long[] segment, int index, long limit) {
+        boolean didRevoke = false;
+        for (;;) {
+            long version = grantsVersion;
+            // Summed before the size is computed, so that an insert that uses up a grant meanwhile is counted twice rather than
+            // not at all. This can only leave less room
+            long committed = 0;
+            int threadsNum = ThreadSlots.highWater();
+            for (int segmentIndex = 0; segmentIndex < ThreadSlots.MAX_SEGMENTS && segmentIndex << ThreadSlots.SEGMENT_SHIFT < threadsNum; ++segmentIndex) {
+                long[] grantsSegment = (long[]) SizeCalculator.getChunkedSegment(grants, segmentIndex);
+                if (grantsSegment == null) {
+                    continue;
+                }
+                for (int slot = 0; slot < ThreadSlots.SEGMENT_SIZE; ++slot) {
+                    int otherTid = (segmentIndex << ThreadSlots.SEGMENT_SHIFT) + slot;
+                    long grantWord = (long) GRANTS.getVolatile(grantsSegment, grantIndex(otherTid));
+                    // The unused grant of a thread includes the unit of its admitted insert until it is counted
+                    committed += Math.max(0, (grantWord >> 1) - insertCount(otherTid));
+                }
+            }
+            long room = limit - sizeCalculator.computeCategories(fromCategory, toCategory) - committed;
+            if (room <= 0) {
+                if (didRevoke) {
+                    return false;
+                }
+                revokeAll();
+                didRevoke = true;
+                continue;
+            }
+            // A thread never inserts more than UpdateInfo.MAX_COUNTER keys, so a larger share is of no use, and capping it keeps
+            // the grant within the grant word under limits close to Long.MAX_VALUE
+            long share = Math.min(Math.max(1, room / (2L * threadsNum)), UpdateInfo.MAX_COUNTER);
+            long grantWord = (long) GRANTS.getVolatile(segment, index);
+            long newGrantWord = ((insertCount(tid) + share) << 1) | (grantWord & ADMITTED);
+            if (!GRANTS.compareAndSet(segment, index, grantWord, newGrantWord)) {
+                continue; // Revoked meanwhile
+            }
+            if (GRANTS_VERSION.compareAndSet(this, version, version + 1)) {
+                return true;
+            }
+            // Another thread has granted itself capacity, possibly without counting this grant, so retract it
+            GRANTS.compareAndSet(segment, index, newGrantWord, grantWord);
+        }
+    }
+
+    // Lowers the grant of every thread to its insert count, keeping only the unit of its admitted insert, if any
+    private void revokeAll() {
+        int threadsNum = ThreadSlots.highWater();
+        for (int segmentIndex = 0; segmentIndex < ThreadSlots.MAX_SEGMENTS && segmentIndex << ThreadSlots.SEGMENT_SHIFT < threadsNum; ++segmentIndex) {
+            long[] grantsSegment = (long[]) SizeCalculator.getChunkedSegment(grants, segmentIndex);
+            if (grantsSegment == null) {
+                continue;
+            }
+            for (int slot = 0; slot < ThreadSlots.SEGMENT_SIZE; ++slot) {
+                int otherTid = (segmentIndex << ThreadSlots.SEGMENT_SHIFT) + slot;
+                int index = grantIndex(otherTid);
+                for (;;) {
+                    long grantWord = (long) GRANTS.getVolatile(grantsSegment, index);
+                    long admitted = grantWord & ADMITTED;
+                    long revokedGrant = insertCount(otherTid) + admitted;
+                    if ((grantWord >> 1) <= revokedGrant ||
+                            GRANTS.compareAndSet(grantsSegment, index, grantWord, (revokedGrant << 1) | admitted)) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private long insertCount(int tid) {
+        long insertCount = 0;
+        for (int category = fromCategory; category < toCategory; ++category) {
+            insertCount += sizeCalculator.getThreadUpdateCounter(category, tid, UpdateOperations.OpKind.INSERT);
+        }
+        return insertCount;
+    }
+
+    private long[] getGrantsSegment(int tid) {
+        return SizeCalculator.getPaddedSegment(grants, tid, SizeCalculator.PADDING);
+    }
+
+    private static int grantIndex(int tid) {
+        return SizeCalculator.paddedWordIndex(tid, SizeCalculator.PADDING);
+    }
+
+    private static final VarHandle GRANTS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle GRANTS_VERSION;
+    static {
+        try {
+            MethodHandles.Lookup l = MethodHandles.lookup();
+            GRANTS_VERSION = l.findVarHandle(CapacityReservations.class, "grantsVersion", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
@@ -20,7 +20,19 @@ package algorithms.size.core;
  *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
  */
 
-public interface UpdateInfoHolder {
-    int getTid();
-    long getCounter();
+/**
+ * A thread that carries its ThreadContext, sparing the thread-local lookup on every update of a size-aware structure.
+ * The slot of the thread is returned to ThreadSlots once the thread has terminated and this Thread object became
+ * unreachable.
+ */
+public class ContextThread extends Thread {
+    final ThreadContext context = new ThreadContext();
+
+    public ContextThread() {
+        super();
+    }
+
+    public ContextThread(Runnable task) {
+        super(task);
+    }
 }
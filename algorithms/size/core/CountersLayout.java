@@ -0,0 +1,90 @@
+package algorithms.size.core;
+
+/**
+ *  This is an implementation of the paper "Concurrent Size" by Gal Sela and Erez Petrank.
+ *
+ *  Copyright (C) 2022  Gal Sela
+ *  Contact Gal Sela (sela.galy@gmail.com) with any questions or comments.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The layout of a segment of the per-thread metadata counters of a SizeCalculator:
+ * rows - a long[SEGMENT_SIZE + 1][PADDING], a padded row object per thread;
+ * flat - a single long[(SEGMENT_SIZE + 1) * PADDING], a thread's counters at a padded offset, so no row is dereferenced on access;
+ * compact - a single unpadded long[SEGMENT_SIZE * OPS_NUM], a sixteenth of the padded layouts, for deployments with many small
+ * instances, where the footprint of the counters matters more than false sharing between the few threads that update each instance.
+ * In all layouts the counters of all operation kinds of a thread share a cache line.
+ */
+public final class CountersLayout {
+    private static final int PADDING = 16; // This is for 128-bytes padding: PADDING*sizeof(long)
+
+    public static final CountersLayout ROWS = new CountersLayout("rows", true, true);
+    public static final CountersLayout FLAT = new CountersLayout("flat", false, true);
+    public static final CountersLayout COMPACT = new CountersLayout("compact", false, false);
+
+    // Read once, as the property is a per-JVM choice
+    private static final CountersLayout DEFAULT = of(System.getProperty("sizeCalculator.countersLayout", "rows"));
+
+    private final String name;
+    private final boolean isRows;
+    // In the single-array layouts, the counters of consecutive slots are slotStride longs apart, and those of the first slot start
+    // at countersOffset (after a padding in the flat layout, to prevent false sharing with the preceding object)
+    private final int slotStride;
+    private final int countersOffset;
+
+    private CountersLayout(String name, boolean isRows, boolean isPadded) {
+        this.name = name;
+        this.isRows = isRows;
+        this.slotStride = isPadded ? PADDING : UpdateOperations.OPS_NUM;
+        this.countersOffset = isPadded ? PADDING : 0;
+    }
+
+    // The layout named rows, flat or compact, rows being the fallback of unknown names
+    public static CountersLayout of(String name) {
+        switch (name) {
+            case "flat": return FLAT;
+            case "compact": return COMPACT;
+            default: return ROWS;
+        }
+    }
+
+    // The layout of SizeCalculators that are not given one, chosen per JVM with -DsizeCalculator.countersLayout=rows|flat|compact
+    public static CountersLayout getDefault() {
+        return DEFAULT;
+    }
+
+    // Allocates a segment of counters. In the padded layouts, the '+1' is for padding before the segment, to prevent false sharing
+    // with its first thread
+    Object newSegment() {
+        return isRows ? new long[ThreadSlots.SEGMENT_SIZE + 1][PADDING] :
+                new long[countersOffset + ThreadSlots.SEGMENT_SIZE * slotStride];
+    }
+
+    // The array holding the counters of the given slot in a segment of this layout
+    long[] counters(Object segment, int tid) {
+        return isRows ? ((long[][]) segment)[(tid & ThreadSlots.SEGMENT_MASK) + 1] : (long[]) segment;
+    }
+
+    // The index of the counter of the given slot and operation kind in counters(segment, tid)
+    int counterIndex(int tid, int opKind) {
+        return isRows ? opKind : countersOffset + (tid & ThreadSlots.SEGMENT_MASK) * slotStride + opKind;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,176 @@
+package algorithms.size.core;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ *  This is an implementation of the paper "Concurrent Size" by Gal Sela and Erez Petrank.
+ *  The current file counts the updates of a dormant SizeCalculator, before its size is first computed.
+ *
+ *  Copyright (C) 2022  Gal Sela
+ *  Contact Gal Sela (sela.galy@gmail.com) with any questions or comments.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+/**
+ * While a SizeCalculator is dormant, an update that enters a dormant update is not linearized through the metadata counters:
+ * its update info is UpdateInfo.NONE, so no operation helps it, and its thread counts it in a plain per-thread count once it
+ * completes. The first size activates the SizeCalculator: it stops new dormant updates from entering, waits for the entered
+ * ones to exit, and sums their counts into a baseline, which every computed size includes. Hence every dormant update
+ * completes before any size is computed, and is linearized before it.
+ *
+ * An entered update is marked busy in its thread's word, and checks the state only after marking itself, while the activator
+ * checks the busy marks only after changing the state, so that either the update sees the activation and is not dormant, or
+ * the activator sees the update and waits for it. The busy mark is the depth of the thread's dormant updates, so that an
+ * update entered within another one (e.g., of another shard of a SizeGroup) neither checks the state again nor ends the
+ * outer update when it exits.
+ *
+ * The activator waits for the entered updates, so they must complete without computing the size, which would wait for the
+ * activation in turn. An entered update may still help an update that started after the activation and is linearized through
+ * the metadata counters, and so reach the quota of a size watcher, whose check is therefore deferred until the thread exits
+ * its outermost dormant update (see SizeWatchers).
+ */
+final class DormantUpdates {
+    private static final int DORMANT = 0;
+    private static final int ACTIVATING = 1;
+    private static final int ACTIVE = 2;
+
+    private final int categoriesNum;
+    // The longs of a thread: its busy mark (the depth of its dormant updates), then its count per category and operation kind
+    // (at 1 + category * OPS_NUM + opKind)
+    private final int stride;
+    // Segments of per-thread longs, indexed by ThreadSlots slots and allocated once a thread of the segment first enters, in
+    // chunks as SizeCalculator allocates its segments. Only the thread itself writes its longs
+    private final Object[][] words = new Object[SizeCalculator.CHUNKS_NUM][];
+    private volatile int state = DORMANT;
+    // The counts of all the threads per category and operation kind, written before the state becomes ACTIVE
+    private long[] baseline;
+
+    DormantUpdates(int categoriesNum) {
+        this.categoriesNum = categoriesNum;
+        this.stride = (1 + categoriesNum * UpdateOperations.OPS_NUM + SizeCalculator.PADDING - 1) / SizeCalculator.PADDING * SizeCalculator.PADDING;
+    }
+
+    // Enters a dormant update by the given thread, unless activation has started, in which case the update must be linearized
+    // through the metadata counters. Within a dormant update of the thread, enters a nested one, which the activator already
+    // waits for
+    boolean enter(int tid) {
+        long[] segment = getSegment(tid);
+        int index = wordIndex(tid);
+        long depth = (long) WORDS.getOpaque(segment, index);
+        if (depth != 0) {
+            WORDS.setOpaque(segment, index, depth + 1);
+            return true;
+        }
+        WORDS.setVolatile(segment, index, 1L);
+        if (state == DORMANT) {
+            return true;
+        }
+        WORDS.setRelease(segment, index, 0L);
+        return false;
+    }
+
+    // Whether the given thread, which must be the current one, is in a dormant update
+    boolean isEntered(int tid) {
+        long[] segment = (long[]) SizeCalculator.getChunkedSegment(words, tid >>> ThreadSlots.SEGMENT_SHIFT);
+        return segment != null && (long) WORDS.getOpaque(segment, wordIndex(tid)) != 0;
+    }
+
+    // Counts an amount of updates of the given category and kind by the given thread, which must be in a dormant update
+    void count(int tid, int category, int opKind, long amount) {
+        long[] segment = (long[]) SizeCalculator.getChunkedSegment(words, tid >>> ThreadSlots.SEGMENT_SHIFT);
+        int index = wordIndex(tid) + 1 + category * UpdateOperations.OPS_NUM + opKind;
+        WORDS.setOpaque(segment, index, (long) WORDS.getOpaque(segment, index) + amount);
+    }
+
+    // Exits the innermost dormant update of the given thread, publishing its counts once the outermost one exits
+    void exit(int tid) {
+        long[] segment = (long[]) SizeCalculator.getChunkedSegment(words, tid >>> ThreadSlots.SEGMENT_SHIFT);
+        int index = wordIndex(tid);
+        WORDS.setRelease(segment, index, (long) WORDS.getOpaque(segment, index) - 1);
+    }
+
+    /**
+     * Activates the SizeCalculator, or waits for a concurrent activation, and returns the counts of all the dormant updates
+     * per category and operation kind. No dormant update is in progress or may start once it returns.
+     */
+    long[] activate() {
+        if (state != ACTIVE && STATE.compareAndSet(this, DORMANT, ACTIVATING)) {
+            long[] counts = new long[categoriesNum * UpdateOperations.OPS_NUM];
+            int threadsNum = ThreadSlots.highWater();
+            for (int segmentIndex = 0; segmentIndex < ThreadSlots.MAX_SEGMENTS && segmentIndex << ThreadSlots.SEGMENT_SHIFT < threadsNum; ++segmentIndex) {
+                long[] segment = (long[]) SizeCalculator.getChunkedSegment(words, segmentIndex);
+                if (segment == null) {
+                    continue;
+                }
+                for (int slot = 0; slot < ThreadSlots.SEGMENT_SIZE; ++slot) {
+                    int index = wordIndex(slot);
+                    while ((long) WORDS.getVolatile(segment, index) != 0) {
+                        Thread.onSpinWait(); // The update is in progress, and will complete without computing the size
+                    }
+                    for (int countIndex = 0; countIndex < counts.length; ++countIndex) {
+                        counts[countIndex] += (long) WORDS.getOpaque(segment, index + 1 + countIndex);
+                    }
+                }
+            }
+            baseline = counts;
+            state = ACTIVE;
+            return counts;
+        }
+        while (state != ACTIVE) {
+            Thread.onSpinWait();
+        }
+        return baseline;
+    }
+
+    // Sums the counts of the given categories, inserts minus removes, as they are read one by one
+    long estimate(int fromCategory, int toCategory) {
+        long estimate = 0;
+        int threadsNum = ThreadSlots.highWater();
+        for (int segmentIndex = 0; segmentIndex < ThreadSlots.MAX_SEGMENTS && segmentIndex << ThreadSlots.SEGMENT_SHIFT < threadsNum; ++segmentIndex) {
+            long[] segment = (long[]) SizeCalculator.getChunkedSegment(words, segmentIndex);
+            if (segment == null) {
+                continue;
+            }
+            for (int slot = 0; slot < ThreadSlots.SEGMENT_SIZE; ++slot) {
+                int index = wordIndex(slot) + 1;
+                for (int category = fromCategory; category < toCategory; ++category) {
+                    estimate += (long) WORDS.getOpaque(segment, index + category * UpdateOperations.OPS_NUM + UpdateOperations.OpKind.INSERT) -
+                            (long) WORDS.getOpaque(segment, index + category * UpdateOperations.OPS_NUM + UpdateOperations.OpKind.REMOVE);
+                }
+            }
+        }
+        return estimate;
+    }
+
+    private long[] getSegment(int tid) {
+        return SizeCalculator.getPaddedSegment(words, tid, stride);
+    }
+
+    private int wordIndex(int tid) {
+        return SizeCalculator.paddedWordIndex(tid, stride);
+    }
+
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle STATE;
+    static {
+        try {
+            MethodHandles.Lookup l = MethodHandles.lookup();
+            STATE = l.findVarHandle(DormantUpdates.class, "state", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
@@ -21,147 +21,877 @@ package algorithms.size.core;
  *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
  */
 
-import measurements.support.ThreadID;
-
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 public class SizeCalculator {
-    private static final int PADDING = 16; // This is for 128-bytes padding: PADDING*sizeof(long)
-    private final long[][] metadataCounters = new long[ThreadID.MAX_THREADS + 1][PADDING]; // The '+1' is for padding before the array, to prevent false sharing with thread 0
-    private volatile CountersSnapshot countersSnapshot = new CountersSnapshot().deactivate();
+    // Whether SizeCalculators start dormant, chosen per JVM with -DsizeCalculator.dormant=true: until the size is first computed,
+    // the updates that enter a dormant update skip the metadata counters and are only counted per thread (see DormantUpdates),
+    // for deployments in which most structures never compute their size
+    private static final boolean DORMANT = Boolean.getBoolean("sizeCalculator.dormant");
+    // Returned by enterDormantUpdate when the update must be linearized through the metadata counters
+    public static final int NOT_DORMANT = -1;
+
+    // The arrays indexed by segment are split into chunks of CHUNK_SEGMENTS segments, each allocated on its first write, so that
+    // an instance pays only for the slot ranges of the threads that have used it. A missing chunk stands for null segments and zero words
+    private static final int CHUNK_SHIFT = 4;
+    private static final int CHUNK_SEGMENTS = 1 << CHUNK_SHIFT;
+    static final int CHUNKS_NUM = ThreadSlots.MAX_SEGMENTS >>> CHUNK_SHIFT;
+    // The padding of the per-thread words of the helpers of a SizeCalculator (see getPaddedSegment)
+    static final int PADDING = 16; // This is for 128-bytes padding: PADDING*sizeof(long)
+
+    // The number of categories, each with its own counters (e.g., for the elements of each tenant), whose sizes are computed
+    // together by a single collection. The size is the sum of the sizes of all the categories
+    private final int categoriesNum;
+    // Per category, segments of per-thread counters, indexed by ThreadSlots slots. A segment is allocated once a thread of its
+    // slot range first updates in the category
+    private final Object[][][] metadataCounters;
+    // The layout of the segments of metadataCounters, chosen per JVM unless given to the constructor (see CountersLayout)
+    private final CountersLayout countersLayout;
+    // A bitmap with a word per segment, marking the slots whose counters (of any category) have ever been advanced in this
+    // SizeCalculator. A slot is marked before its first counter advance, so an unmarked slot has zero counters.
+    private final long[][] activeSlots = new long[CHUNKS_NUM][];
+    private volatile CountersSnapshot countersSnapshot;
+    // The CountersSnapshot most recently replaced in countersSnapshot, to be recycled by the next size that starts a collection
+    private volatile CountersSnapshot retiredCountersSnapshot;
+
+    // The counts of the dormant updates while this SizeCalculator is dormant, and null once it has been activated
+    private volatile DormantUpdates dormantUpdates;
+    // The counts of all the dormant updates per category and operation kind, set upon activation, which every computed size includes
+    private long[] dormantCounts;
+
+    private final Backoff.Strategy backoffStrategy;
+    // The threads waiting for the size to cross thresholds, created upon the first wait
+    private volatile SizeWatchers sizeWatchers;
+
+    public SizeCalculator() {
+        this(1);
+    }
+
+    public SizeCalculator(Backoff.Strategy backoffStrategy) {
+        this(1, backoffStrategy);
+    }
+
+    public SizeCalculator(int categoriesNum) {
+        this(categoriesNum, Backoff.Strategy.getDefault());
+    }
+
+    public SizeCalculator(int categoriesNum, Backoff.Strategy backoffStrategy) {
+        this(categoriesNum, backoffStrategy, DORMANT);
+    }
+
+    public SizeCalculator(int categoriesNum, Backoff.Strategy backoffStrategy, boolean isDormant) {
+        this(categoriesNum, backoffStrategy, isDormant, CountersLayout.getDefault());
+    }
+
+    public SizeCalculator(int categoriesNum, Backoff.Strategy backoffStrategy, boolean isDormant, CountersLayout countersLayout) {
+        if (categoriesNum < 1 || categoriesNum > UpdateInfo.MAX_CATEGORIES) {
+            throw new IllegalArgumentException("The number of categories must be between 1 and " + UpdateInfo.MAX_CATEGORIES);
+        }
+        this.categoriesNum = categoriesNum;
+        this.metadataCounters = new Object[categoriesNum][CHUNKS_NUM][];
+        this.countersLayout = countersLayout;
+        this.backoffStrategy = backoffStrategy;
+        this.dormantUpdates = isDormant ? new DormantUpdates(categoriesNum) : null;
+        COUNTERS_SNAPSHOT.setVolatile(this, new CountersSnapshot(categoriesNum));
+    }
 
-    private final ThreadLocal<Backoff> backoff = ThreadLocal.withInitial(Backoff::new);
+    public Backoff.Strategy getBackoffStrategy() {
+        return backoffStrategy;
+    }
+
+    public CountersLayout getCountersLayout() {
+        return countersLayout;
+    }
+
+    public int getCategoriesNum() {
+        return categoriesNum;
+    }
 
     public long compute() {
-        // Obtain collecting CountersSnapshot:
-        CountersSnapshot activeCountersSnapshot;
-        boolean didEncounterConcurrentSize = false;
+        CountersSnapshot computedCountersSnapshot = computeSnapshot();
+        long size = computedCountersSnapshot.retrieveSize();
+        computedCountersSnapshot.release();
+        return size;
+    }
+
+    /**
+     * Returns the size of the given category, linearizable as compute() is. The sizes of all the categories are computed
+     * together, so a concurrent call for another category may share the computation.
+     */
+    public long computeCategory(int category) {
+        CountersSnapshot computedCountersSnapshot = computeSnapshot();
+        long size = computedCountersSnapshot.retrieveCategorySize(category);
+        computedCountersSnapshot.release();
+        return size;
+    }
+
+    // Returns the sizes of all the categories, which held together at the linearization point of the call
+    public long[] computeAllCategories() {
+        CountersSnapshot computedCountersSnapshot = computeSnapshot();
+        long[] sizes = computedCountersSnapshot.retrieveCategorySizes();
+        computedCountersSnapshot.release();
+        return sizes;
+    }
+
+    /**
+     * Returns the number of updates linearized so far, i.e., the sum of all the insert and remove counters (the total amount
+     * of the updates, if they advance counters by amounts). It is computed along with the size, so it is linearizable as
+     * compute() is, and as cheap when no update has been linearized since the latest computation.
+     */
+    public long computeVersion() {
+        CountersSnapshot computedCountersSnapshot = computeSnapshot();
+        long version = computedCountersSnapshot.retrieveVersion();
+        computedCountersSnapshot.release();
+        return version;
+    }
+
+    /**
+     * Returns whether updates have been linearized since the given version was computed, i.e., whether computeVersion()
+     * would differ from it. No collection is needed if the latest computed version already differs (versions only grow),
+     * or if no update has been linearized since it was computed.
+     */
+    public boolean changedSince(long version) {
         CountersSnapshot currentCountersSnapshot = (CountersSnapshot) COUNTERS_SNAPSHOT.getVolatile(this);
-        if (currentCountersSnapshot.isCollecting()) {
-            activeCountersSnapshot = currentCountersSnapshot;
-            didEncounterConcurrentSize = true;
+        long currentGuard = currentCountersSnapshot.getGuard();
+        if (CountersSnapshot.stateOf(currentGuard) == CountersSnapshot.DONE && currentCountersSnapshot.hold(currentGuard)) {
+            long latestVersion = currentCountersSnapshot.retrieveSize() != CountersSnapshot.INVALID_SIZE ?
+                    currentCountersSnapshot.retrieveVersion() : version;
+            currentCountersSnapshot.release();
+            if (latestVersion != version) {
+                return true;
+            }
+        }
+        return computeVersion() != version;
+    }
+
+    /**
+     * Waits until the size is at most threshold, and returns whether it was before the timeout elapsed. The updates check the
+     * threshold only once they could have crossed it (see SizeWatchers), so the waiting thread does not poll the size.
+     */
+    public boolean awaitSizeAtMost(long threshold, long timeout, TimeUnit unit) throws InterruptedException {
+        return awaitSizeAtMost(0, categoriesNum, threshold, timeout, unit);
+    }
+
+    // As awaitSizeAtMost, until the size is at least threshold
+    public boolean awaitSizeAtLeast(long threshold, long timeout, TimeUnit unit) throws InterruptedException {
+        return awaitSizeAtLeast(0, categoriesNum, threshold, timeout, unit);
+    }
+
+    // As awaitSizeAtMost, for the total size of the categories from fromCategory (inclusive) to toCategory (exclusive)
+    public boolean awaitSizeAtMost(int fromCategory, int toCategory, long threshold, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return sizeWatchers().await(fromCategory, toCategory, threshold, true, unit.toNanos(timeout));
+    }
+
+    // As awaitSizeAtLeast, for the total size of the categories from fromCategory (inclusive) to toCategory (exclusive)
+    public boolean awaitSizeAtLeast(int fromCategory, int toCategory, long threshold, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return sizeWatchers().await(fromCategory, toCategory, threshold, false, unit.toNanos(timeout));
+    }
+
+    private SizeWatchers sizeWatchers() {
+        SizeWatchers currentSizeWatchers = sizeWatchers;
+        if (currentSizeWatchers == null) {
+            SizeWatchers newSizeWatchers = new SizeWatchers(this);
+            SizeWatchers witnessed = (SizeWatchers) SIZE_WATCHERS.compareAndExchange(this, null, newSizeWatchers);
+            currentSizeWatchers = witnessed == null ? newSizeWatchers : witnessed;
         }
-        else {
-            CountersSnapshot newCountersSnapshot = new CountersSnapshot();
+        return currentSizeWatchers;
+    }
+
+    // Returns a CountersSnapshot whose sizes have been computed, and were current at some point during the call, held by the
+    // current thread so that it is not recycled before its sizes are retrieved
+    private CountersSnapshot computeSnapshot() {
+        DormantUpdates currentDormantUpdates = dormantUpdates;
+        if (currentDormantUpdates != null) {
+            // Only a size activates the SizeCalculator, and every size passes here before it collects
+            dormantCounts = currentDormantUpdates.activate();
+            dormantUpdates = null;
+        }
+        // Obtain collecting CountersSnapshot, and hold it so that it is not recycled while in use:
+        CountersSnapshot activeCountersSnapshot;
+        boolean didEncounterConcurrentSize;
+        for (;;) {
+            CountersSnapshot currentCountersSnapshot = (CountersSnapshot) COUNTERS_SNAPSHOT.getVolatile(this);
+            long currentGuard = currentCountersSnapshot.getGuard();
+            if (CountersSnapshot.stateOf(currentGuard) == CountersSnapshot.DONE && !CountersSnapshot.isStale(currentGuard)) {
+                // No counter has been advanced since the current CountersSnapshot was installed (every update marks it stale
+                // after advancing its counter, and before any operation that observes the update completes), so its size,
+                // if already computed, is still the current size. This is the linearization point of such a size
+                if (currentCountersSnapshot.hold(currentGuard)) {
+                    if (currentCountersSnapshot.retrieveSize() != CountersSnapshot.INVALID_SIZE) {
+                        return currentCountersSnapshot;
+                    }
+                    currentCountersSnapshot.release();
+                }
+            }
+            if (CountersSnapshot.stateOf(currentGuard) != CountersSnapshot.DONE) {
+                if (currentCountersSnapshot.hold(currentGuard)) {
+                    activeCountersSnapshot = currentCountersSnapshot;
+                    didEncounterConcurrentSize = true;
+                    break;
+                }
+                continue; // It has been recycled in the meantime
+            }
+            // Hold the current CountersSnapshot while replacing it, so that it cannot be recycled and reinstalled meanwhile (ABA)
+            if (!currentCountersSnapshot.hold(currentGuard)) {
+                continue;
+            }
+            CountersSnapshot newCountersSnapshot = obtainCountersSnapshot();
+            newCountersSnapshot.setInstallTime(System.nanoTime());
             CountersSnapshot witnessedCountersSnapshot = (CountersSnapshot) COUNTERS_SNAPSHOT.compareAndExchange(
                     this, currentCountersSnapshot, newCountersSnapshot);
+            currentCountersSnapshot.release();
             if (witnessedCountersSnapshot == currentCountersSnapshot) {
+                RETIRED_COUNTERS_SNAPSHOT.setRelease(this, currentCountersSnapshot);
                 activeCountersSnapshot = newCountersSnapshot;
+                didEncounterConcurrentSize = false;
+                break;
             }
-            else {
-                // Our exchange failed, adopt the CountersSnapshot written by a concurrent thread
-                activeCountersSnapshot = witnessedCountersSnapshot;
-                didEncounterConcurrentSize = true;
-            }
+            // Our exchange failed, keep our CountersSnapshot for later and adopt the one written by a concurrent thread
+            newCountersSnapshot.deactivate();
+            newCountersSnapshot.release();
+            RETIRED_COUNTERS_SNAPSHOT.setRelease(this, newCountersSnapshot);
         }
+        // Start collecting only now that the CountersSnapshot is installed, so that updates concurrent with the collection forward their counters into it
+        activeCountersSnapshot.activate();
+
         if (didEncounterConcurrentSize) {
-            backoff.get().backoff();
-            long currentSize = activeCountersSnapshot.retrieveSize();
-            if (currentSize != CountersSnapshot.INVALID_SIZE) {
-                return currentSize;
+            ThreadContext.current().backoff(backoffStrategy).backoff();
+            if (activeCountersSnapshot.retrieveSize() != CountersSnapshot.INVALID_SIZE) {
+                return activeCountersSnapshot;
             }
         }
 
         collect(activeCountersSnapshot);
         activeCountersSnapshot.deactivate(); // This is size's linearization point
-        return activeCountersSnapshot.computeSize(backoff.get());
+        activeCountersSnapshot.computeSize(activeSlots, dormantCounts, ThreadContext.current().backoff(backoffStrategy));
+        return activeCountersSnapshot;
+    }
+
+    /**
+     * Returns a size that held at some point during the last maxAgeNanos nanoseconds: the size computed by the latest
+     * collection if that collection started recently enough, and otherwise a freshly computed size (as compute() does).
+     */
+    public long compute(long maxAgeNanos) {
+        return computeCategories(0, categoriesNum, maxAgeNanos);
+    }
+
+    // Returns the total size of the categories from fromCategory (inclusive) to toCategory (exclusive), computed together
+    public long computeCategories(int fromCategory, int toCategory) {
+        CountersSnapshot computedCountersSnapshot = computeSnapshot();
+        long size = computedCountersSnapshot.retrieveCategoriesSize(fromCategory, toCategory);
+        computedCountersSnapshot.release();
+        return size;
+    }
+
+    // As compute(maxAgeNanos), for the total size of the categories from fromCategory (inclusive) to toCategory (exclusive)
+    public long computeCategories(int fromCategory, int toCategory, long maxAgeNanos) {
+        CountersSnapshot currentCountersSnapshot = (CountersSnapshot) COUNTERS_SNAPSHOT.getVolatile(this);
+        long currentGuard = currentCountersSnapshot.getGuard();
+        if (CountersSnapshot.stateOf(currentGuard) == CountersSnapshot.DONE && currentCountersSnapshot.hold(currentGuard)) {
+            long size = currentCountersSnapshot.retrieveSize();
+            long age = System.nanoTime() - currentCountersSnapshot.getInstallTime();
+            if (size != CountersSnapshot.INVALID_SIZE && age <= maxAgeNanos) {
+                size = currentCountersSnapshot.retrieveCategoriesSize(fromCategory, toCategory);
+                currentCountersSnapshot.release();
+                return size;
+            }
+            currentCountersSnapshot.release();
+        }
+        return computeCategories(fromCategory, toCategory);
+    }
+
+    /**
+     * Returns an estimate of the total size of the categories from fromCategory (inclusive) to toCategory (exclusive), summed
+     * from the metadata counters as they are read one by one rather than from a collection. It may miss or double count the
+     * updates concurrent with it, so it is not linearizable, but it neither waits nor helps, and it does not activate a dormant
+     * SizeCalculator, so that it may be called within a dormant update. It suits heuristics, such as when to resize a structure.
+     */
+    public long estimateCategories(int fromCategory, int toCategory) {
+        long estimate = 0;
+        DormantUpdates currentDormantUpdates = dormantUpdates;
+        if (currentDormantUpdates != null) {
+            estimate = currentDormantUpdates.estimate(fromCategory, toCategory);
+        } else if (dormantCounts != null) { // Set before dormantUpdates is cleared
+            for (int category = fromCategory; category < toCategory; ++category) {
+                estimate += dormantCounts[category * UpdateOperations.OPS_NUM + UpdateOperations.OpKind.INSERT] -
+                        dormantCounts[category * UpdateOperations.OPS_NUM + UpdateOperations.OpKind.REMOVE];
+            }
+        }
+        int threadsNum = ThreadSlots.highWater();
+        for (int category = fromCategory; category < toCategory; ++category) {
+            for (int tid = 0; tid < threadsNum; ++tid) {
+                estimate += getThreadUpdateCounter(category, tid, UpdateOperations.OpKind.INSERT) -
+                        getThreadUpdateCounter(category, tid, UpdateOperations.OpKind.REMOVE);
+            }
+        }
+        return estimate;
+    }
+
+    // Returns a CountersSnapshot that is held by the current thread and is not yet collecting, recycling the retired one when no thread holds it anymore
+    private CountersSnapshot obtainCountersSnapshot() {
+        CountersSnapshot retired = (CountersSnapshot) RETIRED_COUNTERS_SNAPSHOT.getAndSet(this, null);
+        if (retired != null && retired.tryRecycle(activeSlots)) {
+            return retired;
+        }
+        CountersSnapshot newCountersSnapshot = new CountersSnapshot(categoriesNum);
+        newCountersSnapshot.tryRecycle(activeSlots); // Always succeeds, as no other thread has seen it
+        return newCountersSnapshot;
     }
 
     private void collect(CountersSnapshot targetCountersSnapshot) {
-        for (int tid = 0; tid < ThreadID.MAX_THREADS; ++tid) {
-            for (int opKind = 0; opKind < UpdateOperations.OPS_NUM; ++opKind) {
-                targetCountersSnapshot.add(tid, opKind, getThreadUpdateCounter(tid, opKind));
+        int segmentsNum = segmentsNum(targetCountersSnapshot.collectBound());
+        for (int segmentIndex = 0; segmentIndex < segmentsNum; ++segmentIndex) {
+            long collectedSlots = targetCountersSnapshot.collectedSlots(segmentIndex,
+                    getChunkedWord(activeSlots, segmentIndex, CHUNK_SHIFT));
+            if (collectedSlots == 0) {
+                continue;
+            }
+            for (int category = 0; category < categoriesNum; ++category) {
+                // The segment of a collected slot is missing only in a category in which no thread of the segment has updated
+                Object segment = getChunkedSegment(metadataCounters[category], segmentIndex);
+                for (long mask = collectedSlots; mask != 0; mask &= mask - 1) {
+                    int tid = (segmentIndex << ThreadSlots.SEGMENT_SHIFT) + Long.numberOfTrailingZeros(mask);
+                    for (int opKind = 0; opKind < UpdateOperations.OPS_NUM; ++opKind) {
+                        targetCountersSnapshot.add(category, tid, opKind, segment == null ? 0 : getSegmentCounter(segment, tid, opKind));
+                    }
+                }
             }
         }
     }
 
-    public void updateMetadata(int opKind, UpdateInfoHolder updateInfoHolder) {
-        int tid = updateInfoHolder.getTid();
-        long newCounter = updateInfoHolder.getCounter();
+    public void updateMetadata(int opKind, long updateInfo) {
+        updateMetadata(UpdateInfo.category(updateInfo), opKind, UpdateInfo.tid(updateInfo), UpdateInfo.counter(updateInfo));
+    }
+
+    public void updateMetadata(int opKind, int tid, long newCounter) {
+        updateMetadata(0, opKind, tid, newCounter);
+    }
 
-        if (getThreadUpdateCounter(tid, opKind) == newCounter - 1) {
-            METADATA_COUNTERS.compareAndSet(metadataCounters[tid + 1], opKind, newCounter - 1, newCounter);
+    // Advances the counter of the given slot in the given category to newCounter unless it is already there. This linearizes every
+    // update of the slot in the category up to newCounter, which is a single update unless the slot's updates were linked as an UpdateBatch
+    public void updateMetadata(int category, int opKind, int tid, long newCounter) {
+        if (newCounter == 0) {
+            return; // UpdateInfo.NONE, as of an update counted by DormantUpdates
+        }
+        // The segment is allocated here only if the counter is still 0, and so is about to be advanced
+        Object segment = getCountersSegment(category, tid);
+        long[] counters = countersLayout.counters(segment, tid);
+        int counterIndex = countersLayout.counterIndex(tid, opKind);
+        long counter = (long) METADATA_COUNTERS.getVolatile(counters, counterIndex);
+        long advance = 0;
+        if (counter < newCounter) {
+            if (counter == 0) {
+                markActive(tid);
+            }
+            while (counter < newCounter) {
+                long witnessedCounter = (long) METADATA_COUNTERS.compareAndExchange(counters, counterIndex, counter, newCounter);
+                if (witnessedCounter == counter) {
+                    advance = newCounter - counter;
+                    break;
+                }
+                counter = witnessedCounter;
+            }
         }
 
         CountersSnapshot currentCountersSnapshot = (CountersSnapshot) COUNTERS_SNAPSHOT.getVolatile(this);
-        if (currentCountersSnapshot.isCollecting() && getThreadUpdateCounter(tid, opKind) == newCounter) {
-            currentCountersSnapshot.forward(tid, opKind, newCounter);
+        long currentGuard = currentCountersSnapshot.getGuard();
+        // The counter has been advanced by now, so the size of the current CountersSnapshot may not be returned as current anymore
+        if (!CountersSnapshot.isStale(currentGuard)) {
+            currentCountersSnapshot.markStale();
         }
+        if (CountersSnapshot.stateOf(currentGuard) == CountersSnapshot.COLLECTING && (long) METADATA_COUNTERS.getVolatile(counters, counterIndex) == newCounter) {
+            // If the CountersSnapshot has been recycled since we read its guard, the collection we would forward to is over
+            if (currentCountersSnapshot.hold(currentGuard)) {
+                currentCountersSnapshot.forward(category, tid, opKind, newCounter);
+                currentCountersSnapshot.release();
+            }
+        }
+
+        if (advance != 0) {
+            SizeWatchers currentSizeWatchers = sizeWatchers;
+            if (currentSizeWatchers != null) {
+                currentSizeWatchers.advanced(advance);
+            }
+        }
+    }
+
+    /**
+     * Starts a batch of updates by the current thread, whose counters are advanced together by UpdateBatch.publish()
+     * rather than one update at a time.
+     */
+    public UpdateBatch startBatch() {
+        return new UpdateBatch(this, ThreadSlots.current());
+    }
+
+    // Returns the update info of the next update of the given kind by the current thread, packed by UpdateInfo.pack
+    public long createUpdateInfo(int opKind) {
+        return createUpdateInfo(opKind, 1);
     }
 
-    public UpdateInfo createUpdateInfo(int opKind) {
-        int tid = ThreadID.threadID.get();
-        return new UpdateInfo(tid, getThreadUpdateCounter(tid, opKind) + 1);
+    /**
+     * As createUpdateInfo(opKind), for an update that advances the counter by the given positive amount rather than by 1.
+     * The computed size is then the total amount of the inserts minus that of the removes, e.g., the total weight of the
+     * elements when each update advances the counter by the weight of its element. Each thread's counter must stay below
+     * 2^UpdateInfo.COUNTER_BITS: an update info that would advance it further is not created, and ArithmeticException is
+     * thrown instead, so the update fails before it takes effect.
+     */
+    public long createUpdateInfo(int opKind, long amount) {
+        return createUpdateInfo(0, opKind, amount);
+    }
+
+    // As createUpdateInfo(opKind, amount), for an update of the given category
+    public long createUpdateInfo(int category, int opKind, long amount) {
+        int tid = ThreadSlots.current();
+        if (isInDormantUpdate(tid)) {
+            return UpdateInfo.NONE; // Counted upon exitDormantUpdate instead
+        }
+        return UpdateInfo.pack(category, tid, getThreadUpdateCounter(category, tid, opKind) + amount);
+    }
+
+    /**
+     * Enters a dormant update by the current thread if this SizeCalculator is dormant, and returns the slot of the thread, or
+     * NOT_DORMANT if the update must be linearized as usual. Until the thread calls exitDormantUpdate, its update infos are
+     * UpdateInfo.NONE, and it must not compute the size (which would wait for the update to exit). Every operation that may
+     * change the size must enter before it creates update infos and exit once it has completed (also if it has thrown). An
+     * update entered within a dormant update of the same thread is dormant as well, and must exit before the outer one.
+     */
+    public int enterDormantUpdate() {
+        DormantUpdates currentDormantUpdates = dormantUpdates;
+        if (currentDormantUpdates == null) {
+            return NOT_DORMANT;
+        }
+        int tid = ThreadSlots.current();
+        return currentDormantUpdates.enter(tid) ? tid : NOT_DORMANT;
+    }
+
+    // Exits the dormant update of the given thread, which changed the size of the category by the given amount of updates of
+    // the given kind (0 if it did not change the size). The SizeCalculator is not activated before the update exits
+    public void exitDormantUpdate(int tid, int category, int opKind, long amount) {
+        DormantUpdates currentDormantUpdates = dormantUpdates;
+        if (amount != 0) {
+            currentDormantUpdates.count(tid, category, opKind, amount);
+        }
+        exitDormantUpdate(currentDormantUpdates, tid);
+    }
+
+    // Exits the dormant update of the given thread, which did not change the size
+    public void exitDormantUpdate(int tid) {
+        exitDormantUpdate(dormantUpdates, tid);
+    }
+
+    private void exitDormantUpdate(DormantUpdates currentDormantUpdates, int tid) {
+        currentDormantUpdates.exit(tid);
+        SizeWatchers currentSizeWatchers = sizeWatchers;
+        if (currentSizeWatchers != null && !currentDormantUpdates.isEntered(tid)) {
+            // The thread has exited its outermost dormant update, so it may run the checks of the size watchers that were
+            // deferred within dormant updates
+            currentSizeWatchers.checkDeferred();
+        }
+    }
+
+    // Counts updates of a dormant update that changes the size by several amounts, as a batch does before it exits
+    void countDormantUpdates(int tid, int category, int opKind, long amount) {
+        dormantUpdates.count(tid, category, opKind, amount);
+    }
+
+    boolean isInDormantUpdate(int tid) {
+        DormantUpdates currentDormantUpdates = dormantUpdates;
+        return currentDormantUpdates != null && currentDormantUpdates.isEntered(tid);
     }
 
     public long getThreadUpdateCounter(int tid, int opKind) {
-        return (long) METADATA_COUNTERS.getVolatile(metadataCounters[tid + 1], opKind);
+        return getThreadUpdateCounter(0, tid, opKind);
+    }
+
+    public long getThreadUpdateCounter(int category, int tid, int opKind) {
+        Object segment = getChunkedSegment(metadataCounters[category], tid >>> ThreadSlots.SEGMENT_SHIFT);
+        if (segment == null) {
+            return 0; // No thread of this segment has updated yet
+        }
+        return getSegmentCounter(segment, tid, opKind);
+    }
+
+    private long getSegmentCounter(Object segment, int tid, int opKind) {
+        return (long) METADATA_COUNTERS.getVolatile(countersLayout.counters(segment, tid), countersLayout.counterIndex(tid, opKind));
+    }
+
+    private Object getCountersSegment(int category, int tid) {
+        int segmentIndex = tid >>> ThreadSlots.SEGMENT_SHIFT;
+        Object segment = getChunkedSegment(metadataCounters[category], segmentIndex);
+        if (segment == null) {
+            segment = installChunkedSegment(metadataCounters[category], segmentIndex, countersLayout.newSegment());
+        }
+        return segment;
+    }
+
+    private void markActive(int tid) {
+        int segmentIndex = tid >>> ThreadSlots.SEGMENT_SHIFT;
+        long bit = 1L << (tid & ThreadSlots.SEGMENT_MASK);
+        long mask = getChunkedWord(activeSlots, segmentIndex, CHUNK_SHIFT);
+        while ((mask & bit) == 0) {
+            long witnessedMask = compareAndExchangeChunkedWord(activeSlots, segmentIndex, CHUNK_SHIFT, mask, mask | bit);
+            if (witnessedMask == mask) {
+                break;
+            }
+            mask = witnessedMask;
+        }
+    }
+
+    private static int segmentsNum(int slotsNum) {
+        return (slotsNum + ThreadSlots.SEGMENT_MASK) >>> ThreadSlots.SEGMENT_SHIFT;
+    }
+
+    static Object getChunkedSegment(Object[][] chunks, int segmentIndex) {
+        Object[] chunk = (Object[]) CHUNKS.getAcquire(chunks, segmentIndex >>> CHUNK_SHIFT);
+        return chunk == null ? null : CHUNKS.getAcquire(chunk, segmentIndex & (CHUNK_SEGMENTS - 1));
+    }
+
+    // Installs newSegment unless a segment has already been installed at segmentIndex, and returns the installed segment
+    static Object installChunkedSegment(Object[][] chunks, int segmentIndex, Object newSegment) {
+        int chunkIndex = segmentIndex >>> CHUNK_SHIFT;
+        Object[] chunk = (Object[]) CHUNKS.getAcquire(chunks, chunkIndex);
+        if (chunk == null) {
+            Object[] newChunk = new Object[CHUNK_SEGMENTS];
+            chunk = (Object[]) CHUNKS.compareAndExchange(chunks, chunkIndex, null, newChunk);
+            if (chunk == null) {
+                chunk = newChunk;
+            }
+        }
+        Object segment = CHUNKS.compareAndExchange(chunk, segmentIndex & (CHUNK_SEGMENTS - 1), null, newSegment);
+        return segment == null ? newSegment : segment;
+    }
+
+    // Returns the segment of the given slot in chunks of segments of per-thread words, stride longs apart (a multiple of
+    // PADDING), allocating it once a thread of the segment first needs it
+    static long[] getPaddedSegment(Object[][] chunks, int tid, int stride) {
+        int segmentIndex = tid >>> ThreadSlots.SEGMENT_SHIFT;
+        long[] segment = (long[]) getChunkedSegment(chunks, segmentIndex);
+        if (segment == null) {
+            // The '+1' is for padding before the segment, to prevent false sharing with its first thread
+            segment = (long[]) installChunkedSegment(chunks, segmentIndex, new long[(ThreadSlots.SEGMENT_SIZE + 1) * stride]);
+        }
+        return segment;
+    }
+
+    // The index of the first word of the given slot in its segment of getPaddedSegment
+    static int paddedWordIndex(int tid, int stride) {
+        return ((tid & ThreadSlots.SEGMENT_MASK) + 1) * stride;
+    }
+
+    // Words are chunked by 1 << chunkShift words, which is CHUNK_SEGMENTS times the number of words per segment
+    private static long getChunkedWord(long[][] chunks, int wordIndex, int chunkShift) {
+        long[] chunk = (long[]) CHUNKS.getAcquire(chunks, wordIndex >>> chunkShift);
+        return chunk == null ? 0 : (long) CHUNK_WORDS.getVolatile(chunk, wordIndex & ((1 << chunkShift) - 1));
+    }
+
+    private static long compareAndExchangeChunkedWord(long[][] chunks, int wordIndex, int chunkShift, long expectedWord, long newWord) {
+        int chunkIndex = wordIndex >>> chunkShift;
+        long[] chunk = (long[]) CHUNKS.getAcquire(chunks, chunkIndex);
+        if (chunk == null) {
+            long[] newChunk = new long[1 << chunkShift];
+            chunk = (long[]) CHUNKS.compareAndExchange(chunks, chunkIndex, null, newChunk);
+            if (chunk == null) {
+                chunk = newChunk;
+            }
+        }
+        return (long) CHUNK_WORDS.compareAndExchange(chunk, wordIndex & ((1 << chunkShift) - 1), expectedWord, newWord);
     }
 
     private static final VarHandle METADATA_COUNTERS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle CHUNKS = MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final VarHandle CHUNK_WORDS = MethodHandles.arrayElementVarHandle(long[].class);
 
     private static final VarHandle COUNTERS_SNAPSHOT;
+    private static final VarHandle RETIRED_COUNTERS_SNAPSHOT;
+    private static final VarHandle SIZE_WATCHERS;
     static {
         try {
             MethodHandles.Lookup l = MethodHandles.lookup();
             COUNTERS_SNAPSHOT = l.findVarHandle(
                     SizeCalculator.class, "countersSnapshot", CountersSnapshot.class);
+            RETIRED_COUNTERS_SNAPSHOT = l.findVarHandle(
+                    SizeCalculator.class, "retiredCountersSnapshot", CountersSnapshot.class);
+            SIZE_WATCHERS = l.findVarHandle(SizeCalculator.class, "sizeWatchers", SizeWatchers.class);
         } catch (ReflectiveOperationException e) {
             throw new ExceptionInInitializerError(e);
         }
     }
 
+    /**
+     * A CountersSnapshot is reused across collections. Its guard packs a generation, which is advanced whenever it is recycled,
+     * its state, and the number of threads that currently hold it. A thread holds a CountersSnapshot while it may write to it,
+     * and a CountersSnapshot is recycled only when it is DONE and not held, so a thread that holds a CountersSnapshot of a past
+     * generation cannot corrupt a later collection.
+     */
     private static class CountersSnapshot {
-        private final long[][] snapshot = new long[ThreadID.MAX_THREADS][UpdateOperations.OPS_NUM];
-        private volatile boolean collecting;
+        private final int categoriesNum;
+        // Per category, segments of per-thread snapshot counters with OPS_NUM entries per thread, allocated upon first use and kept
+        // across generations. An entry holds the counter plus 1, so that 0 (the initial value) stands for an invalid counter.
+        private final Object[][][] snapshot;
+        // For each half of a segment, the slots of the half that are collected, with CAPTURED set once they are fixed
+        private final long[][] collectedSlots = new long[CHUNKS_NUM][];
+        private volatile long guard;
         private volatile long size;
-
-        private static final long INVALID_COUNTER = Long.MAX_VALUE;
+        // The sizes of the categories, followed by the version (the sum of all the collected counters), of the computation whose
+        // size is published: they are set before size (and so are valid once size is valid), and size is derived from them
+        private volatile long[] totals;
+        // An array for the totals of the next computation, so that a computation allocates only when it races with another one.
+        // The published totals become the spare once this snapshot is recycled
+        private volatile long[] spareTotals;
+        // Segments below the bound are collected. Slots of other segments were never leased when the bound was fixed
+        // (after this snapshot had been activated), so their counters are regarded as collected with the value 0
+        private volatile int collectBound;
+        // The System.nanoTime() at which this generation was installed, which precedes its linearization point.
+        // Written before the installation, which publishes it
+        private long installTime;
+
+        private static final long INVALID_COUNTER = 0;
         private static final long INVALID_SIZE = Long.MAX_VALUE;
+        private static final int INVALID_BOUND = -1;
+        private static final long CAPTURED = 1L << 32;
+        private static final long HALF_SEGMENT_MASK = 0xFFFFFFFFL;
+        private static final int COLLECTED_SLOTS_CHUNK_SHIFT = CHUNK_SHIFT + 1; // Two words per segment
+
+        static final int DONE = 0;
+        static final int PREPARING = 1;
+        static final int COLLECTING = 2;
+        private static final int HOLDERS_BITS = 24;
+        private static final long HOLDERS_MASK = (1L << HOLDERS_BITS) - 1;
+        private static final int STATE_SHIFT = HOLDERS_BITS;
+        private static final long STATE_MASK = 3L << STATE_SHIFT;
+        // Set once a counter has been advanced since this generation was installed, so that its size may no longer be current
+        private static final long STALE = 1L << (STATE_SHIFT + 2);
+        private static final int GENERATION_SHIFT = STATE_SHIFT + 3;
+
+        public CountersSnapshot(int categoriesNum) {
+            this.categoriesNum = categoriesNum;
+            this.snapshot = new Object[categoriesNum][CHUNKS_NUM][];
+            this.spareTotals = new long[categoriesNum + 1];
+            GUARD.setVolatile(this, 0L); // generation 0, DONE, no holders
+            COLLECT_BOUND.setVolatile(this, INVALID_BOUND);
+            SIZE.setVolatile(this, INVALID_SIZE);
+        }
+
+        static int stateOf(long guard) {
+            return (int) ((guard & STATE_MASK) >>> STATE_SHIFT);
+        }
+
+        static boolean isStale(long guard) {
+            return (guard & STALE) != 0;
+        }
+
+        public void markStale() {
+            GUARD.getAndBitwiseOr(this, STALE);
+        }
+
+        private static long generationOf(long guard) {
+            return guard >>> GENERATION_SHIFT;
+        }
+
+        public long getGuard() {
+            return (long) GUARD.getVolatile(this);
+        }
 
-        public CountersSnapshot() {
-            for (int tid = 0; tid < ThreadID.MAX_THREADS; ++tid) {
-                for (int opKind = 0; opKind < UpdateOperations.OPS_NUM; ++opKind) {
-                    SNAPSHOT.setVolatile(this.snapshot[tid], opKind, INVALID_COUNTER);
+        // Holds this CountersSnapshot, given a guard previously read from it, provided that it has not been recycled since
+        public boolean hold(long expectedGuard) {
+            long witnessedGuard = (long) GUARD.getAndAdd(this, 1L);
+            if (generationOf(witnessedGuard) == generationOf(expectedGuard)) {
+                return true;
+            }
+            GUARD.getAndAdd(this, -1L);
+            return false;
+        }
+
+        public void release() {
+            GUARD.getAndAdd(this, -1L);
+        }
+
+        private boolean changeState(int fromState, int toState) {
+            long currentGuard = getGuard();
+            while (stateOf(currentGuard) == fromState) {
+                long newGuard = (currentGuard & ~STATE_MASK) | ((long) toState << STATE_SHIFT);
+                long witnessedGuard = (long) GUARD.compareAndExchange(this, currentGuard, newGuard);
+                if (witnessedGuard == currentGuard) {
+                    return true;
                 }
+                currentGuard = witnessedGuard;
             }
+            return false;
+        }
 
-            COLLECTING.setVolatile(this, true);
+        // Starts a new generation of this CountersSnapshot, held by the current thread in the PREPARING state, if no thread holds it
+        public boolean tryRecycle(long[][] activeSlots) {
+            long currentGuard = getGuard();
+            if (stateOf(currentGuard) != DONE || (currentGuard & HOLDERS_MASK) != 0) {
+                return false;
+            }
+            long newGuard = ((generationOf(currentGuard) + 1) << GENERATION_SHIFT) | ((long) PREPARING << STATE_SHIFT) | 1L;
+            if (!GUARD.compareAndSet(this, currentGuard, newGuard)) {
+                return false;
+            }
+
+            // Every entry that was ever written belongs to an active slot
+            int activeSegmentsNum = segmentsNum(ThreadSlots.highWater());
+            for (int category = 0; category < categoriesNum; ++category) {
+                for (int segmentIndex = 0; segmentIndex < activeSegmentsNum; ++segmentIndex) {
+                    long[] segment = (long[]) getChunkedSegment(snapshot[category], segmentIndex);
+                    if (segment == null) {
+                        continue;
+                    }
+                    for (long mask = getChunkedWord(activeSlots, segmentIndex, CHUNK_SHIFT); mask != 0; mask &= mask - 1) {
+                        int entryIndex = Long.numberOfTrailingZeros(mask) * UpdateOperations.OPS_NUM;
+                        for (int opKind = 0; opKind < UpdateOperations.OPS_NUM; ++opKind) {
+                            segment[entryIndex + opKind] = INVALID_COUNTER;
+                        }
+                    }
+                }
+            }
+            int bound = (int) COLLECT_BOUND.getVolatile(this);
+            if (bound != INVALID_BOUND) {
+                for (int i = 0; i < 2 * segmentsNum(bound); ++i) {
+                    long[] chunk = collectedSlots[i >>> COLLECTED_SLOTS_CHUNK_SHIFT];
+                    if (chunk != null) {
+                        chunk[i & ((1 << COLLECTED_SLOTS_CHUNK_SHIFT) - 1)] = 0;
+                    }
+                }
+            }
+            COLLECT_BOUND.setVolatile(this, INVALID_BOUND);
             SIZE.setVolatile(this, INVALID_SIZE);
+            long[] publishedTotals = (long[]) TOTALS.getVolatile(this);
+            if (publishedTotals != null) {
+                // No holder of an earlier generation reads the totals any more
+                SPARE_TOTALS.setVolatile(this, publishedTotals);
+                TOTALS.setVolatile(this, null);
+            }
+            return true;
+        }
+
+        // Must be called only after this snapshot has been installed in countersSnapshot
+        public void activate() {
+            changeState(PREPARING, COLLECTING);
+        }
+
+        private long[] getSegment(int category, int tid) {
+            int segmentIndex = tid >>> ThreadSlots.SEGMENT_SHIFT;
+            long[] segment = (long[]) getChunkedSegment(snapshot[category], segmentIndex);
+            if (segment == null) {
+                segment = (long[]) installChunkedSegment(snapshot[category], segmentIndex,
+                        new long[ThreadSlots.SEGMENT_SIZE * UpdateOperations.OPS_NUM]);
+            }
+            return segment;
+        }
+
+        private static int entryIndex(int tid, int opKind) {
+            return (tid & ThreadSlots.SEGMENT_MASK) * UpdateOperations.OPS_NUM + opKind;
+        }
+
+        // All collecting threads must agree on the collected slots, so the first to read them fixes them for this generation
+        public int collectBound() {
+            int bound = (int) COLLECT_BOUND.getVolatile(this);
+            if (bound != INVALID_BOUND) {
+                return bound;
+            }
+            int witnessedBound = (int) COLLECT_BOUND.compareAndExchange(this, INVALID_BOUND, ThreadSlots.highWater());
+            return witnessedBound == INVALID_BOUND ? (int) COLLECT_BOUND.getVolatile(this) : witnessedBound;
+        }
+
+        public long collectedSlots(int segmentIndex, long activeSlots) {
+            return captureHalf(2 * segmentIndex, activeSlots & HALF_SEGMENT_MASK) |
+                    (captureHalf(2 * segmentIndex + 1, activeSlots >>> 32) << 32);
         }
 
-        public void add(int tid, int opKind, long counter) {
-            if (getThreadSnapshotUpdateCounter(tid, opKind) == INVALID_COUNTER) {
-                SNAPSHOT.compareAndSet(snapshot[tid], opKind, INVALID_COUNTER, counter);
+        private long captureHalf(int index, long slots) {
+            long captured = getChunkedWord(collectedSlots, index, COLLECTED_SLOTS_CHUNK_SHIFT);
+            if (captured == 0) {
+                captured = compareAndExchangeChunkedWord(collectedSlots, index, COLLECTED_SLOTS_CHUNK_SHIFT, 0L, CAPTURED | slots);
+                if (captured == 0) {
+                    captured = CAPTURED | slots;
+                }
             }
+            return captured & HALF_SEGMENT_MASK;
         }
 
-        public void forward(int tid, int opKind, long counter) {
-            long snapshotCounter = getThreadSnapshotUpdateCounter(tid, opKind);
-            while (snapshotCounter == INVALID_COUNTER || counter > snapshotCounter) { // shall not execute more than 2 iterations
-                long witnessedSnapshotCounter = (long) SNAPSHOT.compareAndExchange(snapshot[tid], opKind, snapshotCounter, counter);
-                if (witnessedSnapshotCounter == snapshotCounter) {
+        public void add(int category, int tid, int opKind, long counter) {
+            long[] segment = getSegment(category, tid);
+            int entryIndex = entryIndex(tid, opKind);
+            if ((long) SNAPSHOT.getVolatile(segment, entryIndex) == INVALID_COUNTER) {
+                SNAPSHOT.compareAndSet(segment, entryIndex, INVALID_COUNTER, counter + 1);
+            }
+        }
+
+        public void forward(int category, int tid, int opKind, long counter) {
+            long[] segment = getSegment(category, tid);
+            int entryIndex = entryIndex(tid, opKind);
+            long snapshotEntry = (long) SNAPSHOT.getVolatile(segment, entryIndex);
+            while (snapshotEntry == INVALID_COUNTER || counter + 1 > snapshotEntry) { // shall not execute more than 2 iterations
+                long witnessedSnapshotEntry = (long) SNAPSHOT.compareAndExchange(segment, entryIndex, snapshotEntry, counter + 1);
+                if (witnessedSnapshotEntry == snapshotEntry) {
                     break;
                 }
-                snapshotCounter = witnessedSnapshotCounter;
+                snapshotEntry = witnessedSnapshotEntry;
             }
         }
 
-        public boolean isCollecting() {
-            return (boolean) COLLECTING.getVolatile(this);
+        public void deactivate() {
+            changeState(COLLECTING, DONE);
+            changeState(PREPARING, DONE);
+        }
+
+        public void setInstallTime(long installTime) {
+            this.installTime = installTime;
         }
 
-        public CountersSnapshot deactivate() {
-            COLLECTING.setVolatile(this, false);
-            return this;
+        public long getInstallTime() {
+            return installTime;
         }
 
         public long retrieveSize() {
             return (long) SIZE.getOpaque(this);
         }
 
-        public long computeSize(Backoff backoff) {
+        // Must be called only once the size has been read valid
+        public long retrieveCategorySize(int category) {
+            return categoriesNum == 1 ? retrieveSize() : retrieveValidCategorySizes()[category];
+        }
+
+        // Must be called only once the size has been read valid
+        public long retrieveCategoriesSize(int fromCategory, int toCategory) {
+            if (fromCategory == 0 && toCategory == categoriesNum) {
+                return retrieveSize();
+            }
+            long[] validCategorySizes = retrieveValidCategorySizes();
+            long size = 0;
+            for (int category = fromCategory; category < toCategory; ++category) {
+                size += validCategorySizes[category];
+            }
+            return size;
+        }
+
+        // Must be called only once the size has been read valid
+        public long[] retrieveCategorySizes() {
+            return categoriesNum == 1 ? new long[]{retrieveSize()} : Arrays.copyOf(retrieveValidCategorySizes(), categoriesNum);
+        }
+
+        // Must be called only once the size has been read valid
+        public long retrieveVersion() {
+            VarHandle.acquireFence(); // The totals were set before the size that has been read
+            return ((long[]) TOTALS.getOpaque(this))[categoriesNum];
+        }
+
+        // The category sizes, followed by the version
+        private long[] retrieveValidCategorySizes() {
+            VarHandle.acquireFence(); // The totals were set before the size that has been read
+            return (long[]) TOTALS.getOpaque(this);
+        }
+
+        // Sums the counters of all the slots that are active by now: the collected ones and any other slot that might have forwarded
+        // a counter, and the counts of the dormant updates, if any
+        public long computeSize(long[][] activeSlots, long[] dormantCounts, Backoff backoff) {
             long currentSize = retrieveSize();
             if (currentSize != INVALID_SIZE) {
                 backoff.increase();
@@ -169,17 +899,58 @@ public class SizeCalculator {
             }
 
             long computedSize = 0;
-            for (int tid = 0; tid < ThreadID.MAX_THREADS; ++tid) {
-                computedSize += getThreadSnapshotUpdateCounter(tid, UpdateOperations.OpKind.INSERT) -
-                        getThreadSnapshotUpdateCounter(tid, UpdateOperations.OpKind.REMOVE);
+            long computedVersion = 0;
+            long[] computedTotals = (long[]) SPARE_TOTALS.getAndSet(this, null);
+            if (computedTotals == null) {
+                computedTotals = new long[categoriesNum + 1];
             }
+            int segmentsNum = segmentsNum(ThreadSlots.highWater());
+            for (int category = 0; category < categoriesNum; ++category) {
+                long categorySize = 0;
+                if (dormantCounts != null) {
+                    long dormantInserts = dormantCounts[category * UpdateOperations.OPS_NUM + UpdateOperations.OpKind.INSERT];
+                    long dormantRemoves = dormantCounts[category * UpdateOperations.OPS_NUM + UpdateOperations.OpKind.REMOVE];
+                    categorySize += dormantInserts - dormantRemoves;
+                    computedVersion += dormantInserts + dormantRemoves;
+                }
+                for (int segmentIndex = 0; segmentIndex < segmentsNum; ++segmentIndex) {
+                    long[] segment = (long[]) getChunkedSegment(snapshot[category], segmentIndex);
+                    if (segment == null) {
+                        continue;
+                    }
+                    for (long mask = getChunkedWord(activeSlots, segmentIndex, CHUNK_SHIFT); mask != 0; mask &= mask - 1) {
+                        int tid = Long.numberOfTrailingZeros(mask);
+                        // An invalid counter may remain only for a slot that was not collected, whose collected value is 0
+                        long insertCounter = getSnapshotUpdateCounter(segment, entryIndex(tid, UpdateOperations.OpKind.INSERT));
+                        long removeCounter = getSnapshotUpdateCounter(segment, entryIndex(tid, UpdateOperations.OpKind.REMOVE));
+                        categorySize += insertCounter - removeCounter;
+                        computedVersion += insertCounter + removeCounter;
+                    }
+                }
+                computedSize += categorySize;
+                computedTotals[category] = categorySize;
+            }
+            computedTotals[categoriesNum] = computedVersion;
 
             currentSize = retrieveSize();
             if (currentSize != INVALID_SIZE) {
+                SPARE_TOTALS.compareAndSet(this, null, computedTotals);
                 backoff.increase();
                 return currentSize;
             }
 
+            // Threads may compute different totals, as counters forwarded late may be missing from some computations. The totals
+            // are published before the size, by the first thread to publish them, whose size the others adopt, so that the
+            // published size, category sizes and version all come from the same computation
+            long[] witnessedTotals = (long[]) TOTALS.compareAndExchange(this, null, computedTotals);
+            if (witnessedTotals != null) {
+                SPARE_TOTALS.compareAndSet(this, null, computedTotals);
+                computedSize = 0;
+                for (int category = 0; category < categoriesNum; ++category) {
+                    computedSize += witnessedTotals[category];
+                }
+            }
+
             long witnessedSize = (long) SIZE.compareAndExchange(this, INVALID_SIZE, computedSize);
 
             if (witnessedSize == INVALID_SIZE) {
@@ -191,19 +962,26 @@ public class SizeCalculator {
             return witnessedSize;
         }
 
-        private long getThreadSnapshotUpdateCounter(int tid, int opKind) {
-            return (long) SNAPSHOT.getVolatile(snapshot[tid], opKind);
+        private static long getSnapshotUpdateCounter(long[] segment, int entryIndex) {
+            long snapshotEntry = (long) SNAPSHOT.getVolatile(segment, entryIndex);
+            return snapshotEntry == INVALID_COUNTER ? 0 : snapshotEntry - 1;
         }
 
         private static final VarHandle SNAPSHOT = MethodHandles.arrayElementVarHandle(long[].class);
 
-        private static final VarHandle COLLECTING;
+        private static final VarHandle GUARD;
         private static final VarHandle SIZE;
+        private static final VarHandle TOTALS;
+        private static final VarHandle SPARE_TOTALS;
+        private static final VarHandle COLLECT_BOUND;
         static {
             try {
                 MethodHandles.Lookup l = MethodHandles.lookup();
-                COLLECTING = l.findVarHandle(CountersSnapshot.class, "collecting", boolean.class);
+                GUARD = l.findVarHandle(CountersSnapshot.class, "guard", long.class);
                 SIZE = l.findVarHandle(CountersSnapshot.class, "size", long.class);
+                TOTALS = l.findVarHandle(CountersSnapshot.class, "totals", long[].class);
+                SPARE_TOTALS = l.findVarHandle(CountersSnapshot.class, "spareTotals", long[].class);
+                COLLECT_BOUND = l.findVarHandle(CountersSnapshot.class, "collectBound", int.class);
             } catch (ReflectiveOperationException e) {
                 throw new ExceptionInInitializerError(e);
             }
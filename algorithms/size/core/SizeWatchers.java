@@ -0,0 +1,228 @@
+package algorithms.size.core;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *  This is an implementation of the paper "Concurrent Size" by Gal Sela and Erez Petrank.
+ *  The current file wakes threads that wait for the size of a SizeCalculator to cross a threshold.
+ *
+ *  Copyright (C) 2022  Gal Sela
+ *  Contact Gal Sela (sela.galy@gmail.com) with any questions or comments.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The watchers of a SizeCalculator wait for its size to cross their thresholds without polling it. Every exact check of the
+ * thresholds computes the size, and installs a new Watch, which gives each thread a quota: the distance of the size from the
+ * nearest threshold divided by the number of threads. Every thread that advances a counter adds the advance to its own count
+ * for the Watch, and only once its count reaches the quota does it check the thresholds again. Until then, the counters have
+ * advanced by less than the distance in total, so no threshold can have been crossed. Hence far from the thresholds the
+ * updates check them rarely, and near them every update does.
+ */
+final class SizeWatchers {
+    private final SizeCalculator sizeCalculator;
+    private final ConcurrentLinkedQueue<Watcher> watchers = new ConcurrentLinkedQueue<>();
+    // Advanced after every registration, so that a check that may have missed a new watcher checks again
+    private volatile long registrationsNum;
+    // The current Watch, or null if there are no watchers, in which case updates are not counted
+    private volatile Watch watch;
+    private volatile long generationsNum;
+    // Set when a thread whose check is due is in a dormant update, which the check must not wait for (see DormantUpdates)
+    private volatile boolean isCheckDeferred;
+    // Segments of per-thread counts, indexed by ThreadSlots slots and allocated in chunks as SizeCalculator allocates its
+    // segments: the generation of the Watch counted for, and the count. A thread writes only its own count
+    private final Object[][] counts = new Object[SizeCalculator.CHUNKS_NUM][];
+
+    SizeWatchers(SizeCalculator sizeCalculator) {
+        this.sizeCalculator = sizeCalculator;
+    }
+
+    // Waits until the total size of the given categories is at most (or at least) threshold, and returns whether it was
+    // before the timeout elapsed
+    boolean await(int fromCategory, int toCategory, long threshold, boolean atMost, long timeoutNanos) throws InterruptedException {
+        Watcher watcher = new Watcher(fromCategory, toCategory, threshold, atMost, Thread.currentThread());
+        watchers.add(watcher);
+        REGISTRATIONS_NUM.getAndAdd(this, 1L);
+        check(watch);
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (!watcher.isSatisfied) {
+            long remainingNanos = deadline - System.nanoTime();
+            if (remainingNanos <= 0) {
+                break;
+            }
+            LockSupport.parkNanos(this, remainingNanos);
+            if (Thread.interrupted()) {
+                watchers.remove(watcher);
+                throw new InterruptedException();
+            }
+        }
+        if (!watcher.isSatisfied) {
+            watchers.remove(watcher);
+        }
+        return watcher.isSatisfied;
+    }
+
+    // Counts an advance of a counter by the current thread, which has linearized the updates it advanced by
+    void advanced(long advance) {
+        Watch currentWatch = watch;
+        if (currentWatch == null) {
+            return;
+        }
+        int tid = ThreadSlots.current();
+        if (tid >= currentWatch.threadsNum) { // The thread has no quota in this Watch
+            checkOrDefer(tid, currentWatch);
+            return;
+        }
+        long[] segment = getCountsSegment(tid);
+        int index = countIndex(tid);
+        long count = (long) COUNTS.getOpaque(segment, index) == currentWatch.generation ?
+                (long) COUNTS.getOpaque(segment, index + 1) + advance : advance;
+        if (count < currentWatch.quota) {
+            COUNTS.setOpaque(segment, index, currentWatch.generation);
+            COUNTS.setOpaque(segment, index + 1, count);
+            return;
+        }
+        checkOrDefer(tid, currentWatch);
+    }
+
+    // Checks the thresholds, unless the current thread is in a dormant update. The size computed by the check would wait for the
+    // activation of the SizeCalculator, which waits for the dormant update to exit, so the check is deferred until it does
+    private void checkOrDefer(int tid, Watch expectedWatch) {
+        if (sizeCalculator.isInDormantUpdate(tid)) {
+            isCheckDeferred = true;
+            return;
+        }
+        check(expectedWatch);
+    }
+
+    // Runs the checks deferred by threads in dormant updates, by a thread that is no longer in any. A check deferred after the
+    // flag is cleared sets it again, and one deferred before is covered by the size that this check computes
+    void checkDeferred() {
+        if (isCheckDeferred) {
+            isCheckDeferred = false;
+            check(watch);
+        }
+    }
+
+    // Checks the thresholds against the computed size, provided that the Watch is still the expected one
+    private void check(Watch expectedWatch) {
+        int threadsNum = Math.max(1, ThreadSlots.highWater());
+        // Until the check installs its quota, every counted advance starts a new check
+        Watch checkingWatch = new Watch((long) GENERATIONS_NUM.getAndAdd(this, 1L) + 1, threadsNum, 1);
+        if (!WATCH.compareAndSet(this, expectedWatch, checkingWatch)) {
+            return; // Another check has started since, after the counted advances
+        }
+        for (;;) {
+            long checkedRegistrationsNum = registrationsNum;
+            long[] categorySizes = sizeCalculator.computeAllCategories();
+            long distance = Long.MAX_VALUE;
+            for (Iterator<Watcher> iterator = watchers.iterator(); iterator.hasNext(); ) {
+                Watcher watcher = iterator.next();
+                long watcherDistance = watcher.distance(categorySizes);
+                if (watcherDistance <= 0) {
+                    iterator.remove();
+                    watcher.signal();
+                } else {
+                    distance = Math.min(distance, watcherDistance);
+                }
+            }
+            Watch nextWatch = distance == Long.MAX_VALUE ? null :
+                    new Watch(checkingWatch.generation, threadsNum, Math.max(1, distance / threadsNum));
+            if (!WATCH.compareAndSet(this, checkingWatch, nextWatch)) {
+                return;
+            }
+            if (registrationsNum == checkedRegistrationsNum) {
+                return;
+            }
+            // A watcher that has registered meanwhile may have been missed by the scan, so check again
+            threadsNum = Math.max(1, ThreadSlots.highWater());
+            checkingWatch = new Watch((long) GENERATIONS_NUM.getAndAdd(this, 1L) + 1, threadsNum, 1);
+            if (!WATCH.compareAndSet(this, nextWatch, checkingWatch)) {
+                return;
+            }
+        }
+    }
+
+    private long[] getCountsSegment(int tid) {
+        return SizeCalculator.getPaddedSegment(counts, tid, SizeCalculator.PADDING);
+    }
+
+    private static int countIndex(int tid) {
+        return SizeCalculator.paddedWordIndex(tid, SizeCalculator.PADDING);
+    }
+
+    // The quota of every thread with a slot below threadsNum for the advances counted since the Watch was installed
+    private static final class Watch {
+        final long generation;
+        final int threadsNum;
+        final long quota;
+
+        Watch(long generation, int threadsNum, long quota) {
+            this.generation = generation;
+            this.threadsNum = threadsNum;
+            this.quota = quota;
+        }
+    }
+
+    private static final class Watcher {
+        private final int fromCategory;
+        private final int toCategory;
+        private final long threshold;
+        private final boolean atMost;
+        private final Thread thread;
+        volatile boolean isSatisfied;
+
+        Watcher(int fromCategory, int toCategory, long threshold, boolean atMost, Thread thread) {
+            this.fromCategory = fromCategory;
+            this.toCategory = toCategory;
+            this.threshold = threshold;
+            this.atMost = atMost;
+            this.thread = thread;
+        }
+
+        // The number of updates that the size of the watched categories is at least away from the threshold
+        long distance(long[] categorySizes) {
+            long size = 0;
+            for (int category = fromCategory; category < toCategory; ++category) {
+                size += categorySizes[category];
+            }
+            return atMost ? size - threshold : threshold - size;
+        }
+
+        void signal() {
+            isSatisfied = true;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private static final VarHandle COUNTS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle WATCH;
+    private static final VarHandle REGISTRATIONS_NUM;
+    private static final VarHandle GENERATIONS_NUM;
+    static {
+        try {
+            MethodHandles.Lookup l = MethodHandles.lookup();
+            WATCH = l.findVarHandle(SizeWatchers.class, "watch", Watch.class);
+            REGISTRATIONS_NUM = l.findVarHandle(SizeWatchers.class, "registrationsNum", long.class);
+            GENERATIONS_NUM = l.findVarHandle(SizeWatchers.class, "generationsNum", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
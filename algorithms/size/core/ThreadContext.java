@@ -0,0 +1,60 @@
+package algorithms.size.core;
+
+/**
+ *  This is an implementation of the paper "Concurrent Size" by Gal Sela and Erez Petrank.
+ *  The current file holds the per-thread state of the size methodology.
+ *
+ *  Copyright (C) 2022  Gal Sela
+ *  Contact Gal Sela (sela.galy@gmail.com) with any questions or comments.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The state a thread needs for its operations on size-aware structures: its slot in ThreadSlots, leased on first use,
+ * and its Backoff of each strategy, shared by all the SizeCalculators of that strategy.
+ * A ContextThread carries its context in a field, so that it is found by a type check of the current thread.
+ * Any other thread finds its context in a thread-local.
+ * A context is confined to its thread.
+ */
+public final class ThreadContext {
+    private static final ThreadLocal<ThreadContext> context = ThreadLocal.withInitial(ThreadContext::new);
+    private static final Backoff.Strategy[] STRATEGIES = Backoff.Strategy.values();
+
+    private int slot = -1;
+    private final Backoff[] backoffs = new Backoff[STRATEGIES.length];
+
+    ThreadContext() {}
+
+    public static ThreadContext current() {
+        Thread thread = Thread.currentThread();
+        if (thread instanceof ContextThread)
+            return ((ContextThread) thread).context;
+        return context.get();
+    }
+
+    public int slot() {
+        int currentSlot = slot;
+        if (currentSlot < 0)
+            slot = currentSlot = ThreadSlots.lease(this);
+        return currentSlot;
+    }
+
+    public Backoff backoff(Backoff.Strategy strategy) {
+        Backoff backoff = backoffs[strategy.ordinal()];
+        if (backoff == null)
+            backoffs[strategy.ordinal()] = backoff = strategy.create();
+        return backoff;
+    }
+}
@@ -0,0 +1,96 @@
+package algorithms.size.core;
+
+/**
+ *  This is an implementation of the paper "Concurrent Size" by Gal Sela and Erez Petrank.
+ *  The current file is the registry of thread slots used to index the per-thread metadata counters.
+ *
+ *  Copyright (C) 2022  Gal Sela
+ *  Contact Gal Sela (sela.galy@gmail.com) with any questions or comments.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.Cleaner;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Leases each thread that updates a size-aware structure a slot, which is its index into the
+ * metadata counters of every SizeCalculator. A slot is leased on the thread's first update and
+ * returned to the registry once the thread has terminated and its ThreadContext became unreachable.
+ * A recycled slot keeps the counter values of its previous owner, which is safe since all the
+ * updates of a terminated thread have already been reported to the SizeCalculators.
+ *
+ * Slots are grouped into segments of SEGMENT_SIZE slots, so that the counter storage may grow
+ * segment by segment as more threads show up.
+ */
+public final class ThreadSlots {
+    public static final int SEGMENT_SHIFT = 6;
+    public static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    public static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+    public static final int MAX_SEGMENTS = 256;
+    public static final int MAX_SLOTS = MAX_SEGMENTS * SEGMENT_SIZE;
+
+    // The number of slots ever leased. Slots at or above it have never been used, so their counters are 0 in every SizeCalculator.
+    private static volatile int highWater = 0;
+    private static final ConcurrentLinkedQueue<Integer> freeSlots = new ConcurrentLinkedQueue<>();
+    private static final Cleaner cleaner = Cleaner.create();
+
+    private ThreadSlots() {}
+
+    /**
+     * Returns the slot of the current thread, leasing one if the thread has none yet.
+     */
+    public static int current() {
+        return ThreadContext.current().slot();
+    }
+
+    /**
+     * Returns an upper bound (exclusive) on the slots that have ever been leased.
+     */
+    public static int highWater() {
+        return (int) HIGH_WATER.getVolatile();
+    }
+
+    private static int acquire() {
+        Integer recycled = freeSlots.poll();
+        if (recycled != null)
+            return recycled;
+        int slot = (int) HIGH_WATER.getAndAdd(1);
+        if (slot >= MAX_SLOTS) {
+            HIGH_WATER.getAndAdd(-1);
+            throw new IllegalStateException("More than " + MAX_SLOTS + " threads concurrently use size-aware structures");
+        }
+        return slot;
+    }
+
+    // Leases a slot to the thread of the given context. The context is referenced only by its thread, either from its
+    // thread-local map or as a ContextThread, so it becomes unreachable after the thread terminates
+    static int lease(ThreadContext owner) {
+        int slot = acquire();
+        cleaner.register(owner, () -> freeSlots.add(slot));
+        return slot;
+    }
+
+    private static final VarHandle HIGH_WATER;
+    static {
+        try {
+            MethodHandles.Lookup l = MethodHandles.lookup();
+            HIGH_WATER = l.findStaticVarHandle(ThreadSlots.class, "highWater", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package algorithms.size.core;
+
+/**
+ *  This is an implementation of the paper "Concurrent Size" by Gal Sela and Erez Petrank.
+ *  The current file batches the metadata updates of a thread's consecutive updates.
+ *
+ *  Copyright (C) 2022  Gal Sela
+ *  Contact Gal Sela (sela.galy@gmail.com) with any questions or comments.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The updates of one thread that are linked into a structure one after the other and linearized together.
+ * Each update gets the next counter of its kind, as with SizeCalculator.createUpdateInfo, but the thread does not advance
+ * its metadata counter after each update. Instead, publish() advances each counter once to the counter of the latest
+ * update of its kind. Until then, the updates are linearized lazily like any update whose updater has not yet reached
+ * updateMetadata: an operation that observes one of them advances the counter up to it, and with it all the earlier
+ * updates of the batch.
+ * Hence an update of the batch must not be hidden from other operations before it is published (e.g., a removed node
+ * must not be unlinked), and publish() must be called before the batch operation returns.
+ * An UpdateBatch is confined to the thread that started it.
+ * A batch started in a dormant update (see SizeCalculator.enterDormantUpdate) creates UpdateInfo.NONE infos, and publish()
+ * counts its updates in the dormant update instead.
+ */
+public final class UpdateBatch {
+    private final SizeCalculator sizeCalculator;
+    private final int tid;
+    private final boolean isDormant;
+    // Per category and operation kind (at category * OPS_NUM + opKind), the thread's counter as of the latest publish, and the
+    // counter of its latest linked update
+    private final long[] publishedCounters;
+    private final long[] linkedCounters;
+
+    UpdateBatch(SizeCalculator sizeCalculator, int tid) {
+        this.sizeCalculator = sizeCalculator;
+        this.tid = tid;
+        this.isDormant = sizeCalculator.isInDormantUpdate(tid);
+        int countersNum = sizeCalculator.getCategoriesNum() * UpdateOperations.OPS_NUM;
+        publishedCounters = new long[countersNum];
+        linkedCounters = new long[countersNum];
+        // All the earlier updates of the thread have been published, so its counters are its latest updates
+        for (int index = 0; index < countersNum; ++index) {
+            publishedCounters[index] = linkedCounters[index] = sizeCalculator.getThreadUpdateCounter(
+                    index / UpdateOperations.OPS_NUM, tid, index % UpdateOperations.OPS_NUM);
+        }
+    }
+
+    // Returns the update info for the next update of the given kind. Once it has been installed in the structure, call linked
+    public long createUpdateInfo(int opKind) {
+        return createUpdateInfo(0, opKind, 1);
+    }
+
+    // As createUpdateInfo(opKind), for an update that advances the counter by the given positive amount (see SizeCalculator)
+    public long createUpdateInfo(int opKind, long amount) {
+        return createUpdateInfo(0, opKind, amount);
+    }
+
+    // As createUpdateInfo(opKind, amount), for an update of the given category
+    public long createUpdateInfo(int category, int opKind, long amount) {
+        if (isDormant) {
+            return UpdateInfo.NONE;
+        }
+        return UpdateInfo.pack(category, tid, linkedCounters[category * UpdateOperations.OPS_NUM + opKind] + amount);
+    }
+
+    public void linked(int opKind) {
+        linked(0, opKind, 1);
+    }
+
+    public void linked(int opKind, long amount) {
+        linked(0, opKind, amount);
+    }
+
+    public void linked(int category, int opKind, long amount) {
+        linkedCounters[category * UpdateOperations.OPS_NUM + opKind] += amount;
+    }
+
+    public void publish() {
+        for (int index = 0; index < linkedCounters.length; ++index) {
+            if (linkedCounters[index] != publishedCounters[index]) {
+                if (isDormant) {
+                    sizeCalculator.countDormantUpdates(tid, index / UpdateOperations.OPS_NUM, index % UpdateOperations.OPS_NUM,
+                            linkedCounters[index] - publishedCounters[index]);
+                } else {
+                    sizeCalculator.updateMetadata(index / UpdateOperations.OPS_NUM, index % UpdateOperations.OPS_NUM, tid, linkedCounters[index]);
+                }
+                publishedCounters[index] = linkedCounters[index];
+            }
+        }
+    }
+}
@@ -20,14 +20,50 @@ package algorithms.size.core;
  *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
  */
 
-public record UpdateInfo(int tid, long counter) implements UpdateInfoHolder {
-    @Override
-    public int getTid() {
-        return tid;
+/**
+ * Packs the info of an update - the slot of its thread, the category of its counter (see SizeCalculator) and its counter -
+ * into a single long, so that structures can store it in a node field without allocating an object per update. A thread's
+ * counters start from 1, so 0 is never the info of an update and stands for no info.
+ */
+public final class UpdateInfo {
+    public static final long NONE = 0;
+
+    // The low bits hold the slot, which is below ThreadSlots.MAX_SLOTS, the next bits hold the category, and the rest hold the counter
+    private static final int TID_BITS = Integer.numberOfTrailingZeros(ThreadSlots.MAX_SLOTS);
+    private static final long TID_MASK = (1L << TID_BITS) - 1;
+    private static final int CATEGORY_BITS = 4;
+    public static final int MAX_CATEGORIES = 1 << CATEGORY_BITS;
+    private static final int COUNTER_SHIFT = TID_BITS + CATEGORY_BITS;
+    // Counters must stay below 2^COUNTER_BITS
+    public static final int COUNTER_BITS = Long.SIZE - COUNTER_SHIFT;
+    public static final long MAX_COUNTER = (1L << COUNTER_BITS) - 1;
+
+    private UpdateInfo() {}
+
+    public static long pack(int tid, long counter) {
+        return pack(0, tid, counter);
+    }
+
+    /**
+     * @throws ArithmeticException if the counter exceeds MAX_COUNTER (e.g., when weights accumulate), before the update that
+     *         would have advanced the counter to it takes effect
+     */
+    public static long pack(int category, int tid, long counter) {
+        if (counter >>> COUNTER_BITS != 0) {
+            throw new ArithmeticException("The update counter of thread slot " + tid + " would exceed 2^" + COUNTER_BITS + " - 1");
+        }
+        return (counter << COUNTER_SHIFT) | ((long) category << TID_BITS) | tid;
+    }
+
+    public static int tid(long updateInfo) {
+        return (int) (updateInfo & TID_MASK);
+    }
+
+    public static int category(long updateInfo) {
+        return (int) (updateInfo >>> TID_BITS) & (MAX_CATEGORIES - 1);
     }
 
-    @Override
-    public long getCounter() {
-        return counter;
+    public static long counter(long updateInfo) {
+        return updateInfo >>> COUNTER_SHIFT;
     }
 }
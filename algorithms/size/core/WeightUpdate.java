@@ -0,0 +1,51 @@
+package algorithms.size.core;
+
+/**
+ *  This is an implementation of the paper "Concurrent Size" by Gal Sela and Erez Petrank.
+ *  The current file holds the weight metadata of an update in a weighted structure.
+ *
+ *  Copyright (C) 2022  Gal Sela
+ *  Contact Gal Sela (sela.galy@gmail.com) with any questions or comments.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A weighted structure tracks the total weight of its elements with a second SizeCalculator, whose counters advance by
+ * weights (see SizeCalculator.createUpdateInfo(int, long)). An update that changes the total weight installs a
+ * WeightUpdate in the structure along with its own change - wrapping the value it sets, or in its removal mark - and
+ * every operation that observes the change first calls help, as with the update info of the size metadata.
+ * An update whose weight change is 0 installs no WeightUpdate.
+ */
+public final class WeightUpdate {
+    // The value set by the update, or null for a removal
+    public final Object value;
+    private final int opKind;
+    private final long updateInfo;
+
+    public WeightUpdate(Object value, int opKind, long updateInfo) {
+        this.value = value;
+        this.opKind = opKind;
+        this.updateInfo = updateInfo;
+    }
+
+    public void help(SizeCalculator weightCalculator) {
+        weightCalculator.updateMetadata(opKind, updateInfo);
+    }
+
+    // The operation kind whose counter is advanced by a change of the total weight by the given nonzero delta
+    public static int opKindOf(long weightDelta) {
+        return weightDelta > 0 ? UpdateOperations.OpKind.INSERT : UpdateOperations.OpKind.REMOVE;
+    }
+}
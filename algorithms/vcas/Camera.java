@@ -38,12 +38,8 @@ public class Camera {
   public volatile long timestamp;
 
   private static final AtomicLongFieldUpdater<Camera> timestampUpdater = AtomicLongFieldUpdater.newUpdater(Camera.class, "timestamp");
-  private static final ThreadLocal<Integer> backoffAmount = new ThreadLocal<Integer>() {
-      @Override
-      protected Integer initialValue() {
-          return 1;
-      }
-  };
+  // backoffAmounts[tid*PADDING] is the backoff amount of thread tid, where 0 stands for the initial amount 1
+  private static final int[] backoffAmounts = new int[ThreadID.MAX_THREADS*PADDING];
 
   public static Camera camera = new Camera();
 
@@ -51,12 +47,11 @@ public class Camera {
     timestamp = 0;
   }
 
-  private static void backoff(int amount) {
+  private static void backoff(int amount, int idx) {
       if(amount == 0) return;
       int limit = amount;
-      int tid = ThreadID.threadID.get();
       for(int i = 0; i < limit; i++)
-          dummyCounters[tid*PADDING] += i; 
+          dummyCounters[idx] += i; 
   }
 
   public static void set(long ts) {
@@ -66,9 +61,10 @@ public class Camera {
   public static long takeSnapshot() {
     // return timestampUpdater.getAndIncrement(camera);
     long ts = camera.timestamp;
-    int ba = backoffAmount.get();
+    int idx = ThreadID.get()*PADDING;
+    int ba = Math.max(backoffAmounts[idx], 1);
     //if(ba != 1) System.out.println(ba);
-    backoff(ba);
+    backoff(ba, idx);
     if(ts == camera.timestamp) {
       if(timestampUpdater.compareAndSet(camera, ts, ts+1))
         ba /= 2;
@@ -77,7 +73,7 @@ public class Camera {
     }
     if(ba < 1) ba = 1;
     if(ba > 512) ba = 512;
-    backoffAmount.set(ba);
+    backoffAmounts[idx] = ba;
     return ts;
   }
 
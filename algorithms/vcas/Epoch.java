@@ -36,7 +36,7 @@ public class Epoch<Node extends Reclaimable> {
   }
 
   public void announce() {
-      int idx = ThreadID.threadID.get()*PADDING;
+      int idx = ThreadID.get()*PADDING;
       int curEpoch = epochNum;
       announce[idx] = curEpoch;
       tryAdvanceEpoch(curEpoch);
@@ -57,7 +57,7 @@ public class Epoch<Node extends Reclaimable> {
   }
 
   public void tryAdvanceEpoch(int curEpoch) {
-    int idx = ThreadID.threadID.get()*PADDING;
+    int idx = ThreadID.get()*PADDING;
     int annCount = announceCount[idx];
     if(annCount == ANNOUNCES_BEFORE_COLLECT) {
       announceCount[idx] = 0;
@@ -83,14 +83,14 @@ public class Epoch<Node extends Reclaimable> {
   }
 
   public void unannounce() {
-      int idx = ThreadID.threadID.get()*PADDING;
+      int idx = ThreadID.get()*PADDING;
       announce[idx] = INACTIVE;
       // prevAnnounce[idx] = prevAnnounce[idx] & ~1); // set inactive
-      // Announce.set(ThreadID.threadID.get()*PADDING, prevAnnounce.get());
+      // Announce.set(ThreadID.get()*PADDING, prevAnnounce.get());
   } 
 
   public void retire(Node node) {
-    int idx = ThreadID.threadID.get()*PADDING;
+    int idx = ThreadID.get()*PADDING;
     int curEpoch = epochNum;
 
     int prevEpoch = prevRetireEpoch[idx];
@@ -0,0 +1,182 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (me [at] tbrown [dot] pro) with any questions or comments.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package measurements;
+
+import measurements.adapters.*;
+import measurements.support.*;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Measures bulk loads: threads insert disjoint sets of keys into an empty set and then remove them all, in batches of
+ * a given size. A batch size of 1 inserts and removes each key on its own, and a larger batch size uses the set's
+ * insertAll and removeAll.
+ */
+public class BulkLoad {
+    static final class LoadWorker extends WorkerThread {
+        final AbstractAdapter<Integer> set;
+        final List<Map<Integer,Integer>> batches;
+        final CyclicBarrier start;
+        final boolean isLoad;
+        final boolean isPerKey;
+        final int threadID;
+        long endWallTime;
+
+        LoadWorker(AbstractAdapter<Integer> set, List<Map<Integer,Integer>> batches, CyclicBarrier start, boolean isLoad, boolean isPerKey, int threadID) {
+            this.set = set;
+            this.batches = batches;
+            this.start = start;
+            this.isLoad = isLoad;
+            this.isPerKey = isPerKey;
+            this.threadID = threadID;
+        }
+
+        @Override
+        public void run() {
+            ThreadID.set(threadID);
+            try { start.await(); } catch (Exception e) { e.printStackTrace(); System.exit(-1); }
+            for (Map<Integer,Integer> batch : batches) {
+                if (isPerKey) {
+                    for (Integer key : batch.keySet()) {
+                        if (isLoad) set.insert(key);
+                        else set.remove(key);
+                    }
+                } else {
+                    if (isLoad) set.insertAll(batch);
+                    else set.removeAll(batch.keySet());
+                }
+            }
+            endWallTime = System.nanoTime();
+        }
+    }
+
+    // Splits the keys of each thread, which are disjoint from those of other threads, into batches in a random order.
+    // Keys that are updated one by one are kept in a single batch, so that both ways iterate over the same structure
+    static List<List<Map<Integer,Integer>>> createBatches(int nthreads, int keysPerThread, int batchSize, java.util.Random rng) {
+        if (batchSize == 1) batchSize = keysPerThread;
+        List<List<Map<Integer,Integer>>> threadsBatches = new ArrayList<>(nthreads);
+        for (int t = 0; t < nthreads; t++) {
+            List<Integer> keys = new ArrayList<>(keysPerThread);
+            for (int i = 0; i < keysPerThread; i++) keys.add(t + 1 + i * nthreads);
+            Collections.shuffle(keys, rng);
+            List<Map<Integer,Integer>> batches = new ArrayList<>();
+            for (int i = 0; i < keysPerThread; i += batchSize) {
+                Map<Integer,Integer> batch = new LinkedHashMap<>();
+                for (int j = i; j < Math.min(i + batchSize, keysPerThread); j++) batch.put(keys.get(j), keys.get(j));
+                batches.add(batch);
+            }
+            threadsBatches.add(batches);
+        }
+        return threadsBatches;
+    }
+
+    // Runs the threads on their batches, and returns the throughput in keys per second
+    static double runPhase(AbstractAdapter<Integer> set, List<List<Map<Integer,Integer>>> threadsBatches, int keysNum, boolean isLoad, boolean isPerKey) {
+        int nthreads = threadsBatches.size();
+        CyclicBarrier start = new CyclicBarrier(nthreads + 1);
+        LoadWorker[] workers = new LoadWorker[nthreads];
+        for (int t = 0; t < nthreads; t++) {
+            workers[t] = new LoadWorker(set, threadsBatches.get(t), start, isLoad, isPerKey, t);
+            workers[t].start();
+        }
+        try { start.await(); } catch (Exception e) { e.printStackTrace(); System.exit(-1); }
+        long startWallTime = System.nanoTime();
+        long endWallTime = startWallTime;
+        try {
+            for (LoadWorker w : workers) {
+                w.join();
+                endWallTime = Math.max(endWallTime, w.endWallTime);
+            }
+        } catch (InterruptedException e) { e.printStackTrace(); System.exit(-1); }
+        return keysNum / ((endWallTime - startWallTime) / 1e9);
+    }
+
+    static void checkSize(AbstractAdapter<Integer> set, long expectedSize) {
+        long setSize;
+        try {
+            setSize = set.size();
+        } catch (UnsupportedOperationException e) {
+            return; // size method is not supported, so skip size validation
+        }
+        if (setSize != expectedSize) {
+            System.out.println("ERROR: expected_size=" + expectedSize + " does not match set.size()=" + setSize);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public static void run(String[] args) {
+        if (args.length < 6) {
+            System.out.println("ERROR: Insufficient command-line arguments.");
+            System.out.println("Must include: bulkload #NUMBER_OF_THREADS #KEYS_PER_THREAD #BATCH_SIZE #TRIALS ALGORITHM [-file-###]");
+            System.exit(-1);
+        }
+        int nthreads = 0, keysPerThread = 0, batchSize = 0, ntrials = 0;
+        try {
+            nthreads = Integer.parseInt(args[1]);
+            keysPerThread = Integer.parseInt(args[2]);
+            batchSize = Integer.parseInt(args[3]);
+            ntrials = Integer.parseInt(args[4]);
+        } catch (Exception ex) {
+            System.out.println("ERROR: NUMBER_OF_THREADS, KEYS_PER_THREAD, BATCH_SIZE, TRIALS must all be numeric");
+            System.exit(-1);
+        }
+        if (nthreads <= 0 || keysPerThread <= 0 || batchSize <= 0 || ntrials <= 0) {
+            System.out.println("ERROR: NUMBER_OF_THREADS, KEYS_PER_THREAD, BATCH_SIZE, TRIALS must all be positive");
+            System.exit(-1);
+        }
+        String alg = args[5];
+        SetFactory<Integer> factory = null;
+        for (SetFactory<Integer> f : Factories.factories) if (f.getName().equals(alg)) factory = f;
+        if (factory == null) {
+            System.out.println("ERROR: Algorithm \"" + alg + "\" was not recognized.");
+            System.exit(-1);
+        }
+        PrintStream out = System.out;
+        if (args.length > 6 && args[6].startsWith("-file-")) {
+            try { out = new PrintStream(args[6].substring("-file-".length())); }
+            catch (Exception e) { e.printStackTrace(); System.exit(-1); }
+        }
+
+        final int keysNum = nthreads * keysPerThread;
+        out.println("name,trial,nThreads,batchSize,keysNum,loadThroughput,unloadThroughput");
+        java.util.Random rng = new java.util.Random((int) System.nanoTime());
+        for (int trial = 0; trial < ntrials; trial++) {
+            List<List<Map<Integer,Integer>>> threadsBatches = createBatches(nthreads, keysPerThread, batchSize, rng);
+            System.gc();
+            AbstractAdapter<Integer> set = (AbstractAdapter<Integer>) factory.newSet(alg.contains("HashTable") ? keysNum : null);
+
+            double loadThroughput = runPhase(set, threadsBatches, keysNum, true, batchSize == 1);
+            ThreadID.set(0);
+            checkSize(set, keysNum);
+            double unloadThroughput = runPhase(set, threadsBatches, keysNum, false, batchSize == 1);
+            ThreadID.set(0);
+            checkSize(set, 0);
+
+            out.println(alg + "," + trial + "," + nthreads + "," + batchSize + "," + keysNum + "," +
+                    Math.round(loadThroughput) + "," + Math.round(unloadThroughput));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (me [at] tbrown [dot] pro) with any questions or comments.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package measurements;
+
+import measurements.adapters.*;
+import measurements.support.*;
+
+import java.io.PrintStream;
+
+/**
+ * Measures the heap footprint per instance of many small sets: first of empty sets, and then of the same sets after
+ * the main thread has inserted a key into each, removed it and called size (so that every lazily allocated part of
+ * a size-aware set that a single thread needs has been allocated).
+ */
+public class Footprint {
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // Collect until the used heap stops shrinking, to leave only reachable objects
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            long currentUsed = runtime.totalMemory() - runtime.freeMemory();
+            if (currentUsed >= used) break;
+            used = currentUsed;
+        }
+        return used;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static void run(String[] args) {
+        if (args.length < 5) {
+            System.out.println("ERROR: Insufficient command-line arguments.");
+            System.out.println("Must include: footprint #INSTANCES #TABLE_SIZE #TRIALS ALGORITHM [-file-###]");
+            System.exit(-1);
+        }
+        int ninstances = 0, tableSize = 0, ntrials = 0;
+        try {
+            ninstances = Integer.parseInt(args[1]);
+            tableSize = Integer.parseInt(args[2]);
+            ntrials = Integer.parseInt(args[3]);
+        } catch (Exception ex) {
+            System.out.println("ERROR: INSTANCES, TABLE_SIZE, TRIALS must all be numeric");
+            System.exit(-1);
+        }
+        if (ninstances <= 0 || tableSize <= 0 || ntrials <= 0) {
+            System.out.println("ERROR: INSTANCES, TABLE_SIZE, TRIALS must all be positive");
+            System.exit(-1);
+        }
+        String alg = args[4];
+        SetFactory<Integer> factory = null;
+        for (SetFactory<Integer> f : Factories.factories) if (f.getName().equals(alg)) factory = f;
+        if (factory == null) {
+            System.out.println("ERROR: Algorithm \"" + alg + "\" was not recognized.");
+            System.exit(-1);
+        }
+        PrintStream out = System.out;
+        if (args.length > 5 && args[5].startsWith("-file-")) {
+            try { out = new PrintStream(args[5].substring("-file-".length())); }
+            catch (Exception e) { e.printStackTrace(); System.exit(-1); }
+        }
+
+        ThreadID.set(0);
+        String countersLayout = System.getProperty("sizeCalculator.countersLayout", "rows");
+        out.println("name,countersLayout,trial,instances,emptyBytesPerInstance,usedBytesPerInstance");
+        for (int trial = 0; trial < ntrials; trial++) {
+            AbstractAdapter<Integer>[] sets = new AbstractAdapter[ninstances];
+            long baseline = usedHeap();
+            for (int i = 0; i < ninstances; i++) {
+                sets[i] = (AbstractAdapter<Integer>) factory.newSet(tableSize);
+            }
+            long empty = usedHeap();
+            for (AbstractAdapter<Integer> set : sets) {
+                set.insert(1);
+                set.remove(1);
+                try {
+                    set.size();
+                } catch (UnsupportedOperationException e) {
+                    // size method is not supported, so the set has no size metadata to allocate
+                }
+            }
+            long used = usedHeap();
+            out.println(alg + "," + countersLayout + "," + trial + "," + ninstances + "," +
+                    (empty - baseline) / ninstances + "," + (used - baseline) / ninstances);
+            sets = null;
+        }
+    }
+}
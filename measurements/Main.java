@@ -47,17 +47,18 @@ public class Main {
     protected String filename;
     protected PercentageRatio workloadRatio;
     protected String alg;
-    protected int initSize;
+    protected long initSize;
     protected boolean prefill;
     protected Integer setParam;
     protected boolean isSplit;
+    protected Long sizeMaxAgeNanos; // null for exact sizes
 
     // some timing variables
     protected AtomicLong startUserTime = new AtomicLong(0);
     protected AtomicLong startWallTime = new AtomicLong(0);
 
     public Main(int nthreads, int numOfSizeWorkers, int ntrials, double nseconds, String filename,
-                PercentageRatio workloadRatio, String alg, int initSize, boolean prefill, Integer setParam, boolean isSplit) {
+                PercentageRatio workloadRatio, String alg, long initSize, boolean prefill, Integer setParam, boolean isSplit, Long sizeMaxAgeNanos) {
         this.nthreads = nthreads;
         this.numOfSizeWorkers = numOfSizeWorkers;
         this.ntrials = ntrials;
@@ -69,6 +70,7 @@ public class Main {
         this.prefill = prefill;
         this.setParam = setParam;
         this.isSplit = isSplit;
+        this.sizeMaxAgeNanos = sizeMaxAgeNanos;
     }
 
     public static final class RandomKeyGenerator {
@@ -82,6 +84,10 @@ public class Main {
         }
 
         public Integer next() {
+            return nextInt();
+        }
+
+        public int nextInt() {
             return rng.nextNatural(maxKey)+1;
         }
     }
@@ -96,7 +102,7 @@ public class Main {
         }
     }
 
-    public abstract static class Worker extends Thread {
+    public abstract static class Worker extends WorkerThread {
         public abstract long getTrueIns();
         public abstract long getFalseIns();
         public abstract long getTrueDel();
@@ -120,6 +126,8 @@ public class Main {
         CyclicBarrier start;
         RandomKeyGenerator keyGen;
         AbstractAdapter<K> set;
+        // The set if its keys are primitive ints, called without boxing the keys
+        final AbstractIntKeyAdapter<K> intSet;
         long trueDel, falseDel, trueIns, falseIns, trueFind, falseFind, doneSize;
         long keysum; // sum of new keys inserted by this thread minus keys deleted by this thread
         final Experiment ex;
@@ -158,6 +166,7 @@ public class Main {
             this.percentageRatio = percentageRatio;
             this.rng = rng;
             this.set = set;
+            this.intSet = set instanceof AbstractIntKeyAdapter ? (AbstractIntKeyAdapter<K>) set : null;
             this.start = start;
             this.sharedStartUserTime = sharedStart;
             this.sharedStartWallTime = sharedStartWallTime;
@@ -170,6 +179,10 @@ public class Main {
 
         @SuppressWarnings("unchecked")
         private void executeWorkloadOp(double op) {
+            if (intSet != null) {
+                executeIntWorkloadOp(op);
+                return;
+            }
             final Integer keyInt = keyGen.next();
             final K key = (K) keyInt;
             if (op < percentageRatio.size + percentageRatio.ins) {
@@ -188,15 +201,34 @@ public class Main {
             }
         }
 
+        private void executeIntWorkloadOp(double op) {
+            final int key = keyGen.nextInt();
+            if (op < percentageRatio.size + percentageRatio.ins) {
+                if (intSet.insertInt(key)) {
+                    keysum += key;
+                    trueIns++;
+                } else falseIns++;
+            } else if (op < percentageRatio.size + percentageRatio.ins + percentageRatio.del) {
+                if (intSet.removeInt(key)) {
+                    keysum -= key;
+                    trueDel++;
+                } else falseDel++;
+            } else {
+                if (intSet.containsInt(key)) trueFind++;
+                else falseFind++;
+            }
+        }
+
         private void executeSizeOp() {
-            set.size();
+            if (ex.sizeMaxAgeNanos == null) set.size();
+            else set.size(ex.sizeMaxAgeNanos);
             doneSize++;
         }
 
         @Override
         @SuppressWarnings("empty-statement")
         public final void run() {
-            ThreadID.threadID.set(threadID);
+            ThreadID.set(threadID);
             ThreadMXBean bean = ManagementFactory.getThreadMXBean();
             if (!bean.isCurrentThreadCpuTimeSupported()) {
                 System.out.println("ERROR: THREAD CPU TIME UNSUPPORTED");
@@ -278,7 +310,7 @@ public class Main {
         public long getContainsTime() { return containsTime; }
     }
 
-    static final class FixedNumberOfKeysWorker<K extends Comparable<? super K>> extends Thread {
+    static final class FixedNumberOfKeysWorker<K extends Comparable<? super K>> extends WorkerThread {
         final AbstractAdapter<K> set;
         final RandomKeyGenerator keyGen;
         final int maxKey;
@@ -302,7 +334,7 @@ public class Main {
         @Override
         @SuppressWarnings("unchecked")
         public void run() {
-            ThreadID.threadID.set(threadID);
+            ThreadID.set(threadID);
             int keysAdded = 0;
             while (keysAdded < keysNum) {
                 int key = keyGen.next();
@@ -371,7 +403,7 @@ public class Main {
             threadsKeysum += workers.get(i).getKeysum();
         }
 
-        ThreadID.threadID.set(0);
+        ThreadID.set(0);
 
         // check size
         long setSize = getSize(set);
@@ -387,7 +419,7 @@ public class Main {
         }
 
         // check keysum
-        if ((long) ex.initSize < 5000000) { // else, set is too large, so skip keysum validation
+        if (ex.initSize < 5000000) { // else, set is too large, so skip keysum validation
             long dsKeysum = set.getKeysum();
             if (dsKeysum != threadsKeysum) {
                 System.out.println("ERROR: threadsKeysum=" + threadsKeysum + " does not match dsKeysum=" + dsKeysum);
@@ -408,7 +440,7 @@ public class Main {
             nsize += w.getDoneSize();
         }
 
-        int finalnnodes = getSize(set);
+        long finalnnodes = getSize(set);
 
         long fidOps = ntrueins+ntruedel+ntruefind + nfalseins+nfalsedel+nfalsefind;
         long totalOps = fidOps + nsize;
@@ -503,7 +535,7 @@ public class Main {
         return true;
     }
 
-    private int getSize(AbstractAdapter<Integer> set) {
+    private long getSize(AbstractAdapter<Integer> set) {
         try {
             return set.size();
         } catch(UnsupportedOperationException e) {
@@ -520,6 +552,15 @@ public class Main {
         return result;
     }
 
+    // The keys are drawn from [1, maxKey], so that the set is kept at initSize keys in steady state
+    static long maxKeyFor(long initSize, PercentageRatio workloadRatio) {
+        if (workloadRatio.ins == 0 && workloadRatio.del == 0) {
+            // deal with an all-search workload by choosing maxKey according to 50% insert, 50% delete, namely, twice the set size
+            return 2 * initSize;
+        }
+        return Math.round(initSize * ((workloadRatio.ins + workloadRatio.del) / (double) workloadRatio.ins));
+    }
+
     protected static final class PercentageRatio {
         final int del, ins, size;
         public PercentageRatio(final int ins, final int del, final int size) {
@@ -536,23 +577,19 @@ public class Main {
         volatile boolean isRunning = false;
         final String alg;
         final Integer param;
-        final int initSize;
+        final long initSize;
         final int maxKey;
         final PercentageRatio workloadRatio;
         final RandomKeyGeneratorFactory factory;
+        final Long sizeMaxAgeNanos = Main.this.sizeMaxAgeNanos;
 
-        public Experiment(final String alg, final Integer param, final int initSize, final PercentageRatio workloadRatio, final RandomKeyGeneratorFactory factory) {
+        public Experiment(final String alg, final Integer param, final long initSize, final PercentageRatio workloadRatio, final RandomKeyGeneratorFactory factory) {
             this.alg = alg;
             this.param = param;
             this.initSize = initSize;
             this.workloadRatio = workloadRatio;
             this.factory = factory;
-            if (workloadRatio.ins == 0 && workloadRatio.del == 0) {
-                // deal with an all-search workload by choosing maxKey according to 50% insert, 50% delete, namely, twice the set size
-                maxKey = 2 * initSize;
-            } else {
-                maxKey = (int) Math.round(initSize * ((workloadRatio.ins + workloadRatio.del) / (double) workloadRatio.ins));
-            }
+            this.maxKey = (int) maxKeyFor(initSize, workloadRatio);
         }
         @Override
         public String toString() {
@@ -597,18 +634,18 @@ public class Main {
     SizeKeysumPair parallelFillToSteadyState(
             final java.util.Random rand,
             final SetInterface<Integer> set,
-            int initSize,
+            long initSize,
             int maxKey) {
         long keysum = 0;
         int numThreads = Runtime.getRuntime().availableProcessors()-4;
         if(numThreads < 1) numThreads = 1;
 
-        int sizeRemainder = initSize % numThreads;
-        int keysNum = 0;
+        int sizeRemainder = (int) (initSize % numThreads);
+        long keysNum = 0;
 
         final FixedNumberOfKeysWorker<Integer>[] workers = new FixedNumberOfKeysWorker[numThreads];
         for (int i=0;i<numThreads;i++) {
-            int currentKeysNum = initSize/numThreads + (i<sizeRemainder ? 1 : 0);
+            int currentKeysNum = (int) (initSize/numThreads) + (i<sizeRemainder ? 1 : 0);
             workers[i] = new FixedNumberOfKeysWorker<>((AbstractAdapter<Integer>) set, maxKey, currentKeysNum, new Random(rand.nextInt()), i);
             keysNum += currentKeysNum;
         }
@@ -722,6 +759,18 @@ public class Main {
             Tests.runTests();
             return;
         }
+        if (args.length > 0 && args[0].equals("bulkload")) {
+            BulkLoad.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("footprint")) {
+            Footprint.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("threadidentity")) {
+            ThreadIdentity.run(args);
+            return;
+        }
 
         if (args.length < 4) {
             System.out.println("ERROR: Insufficient command-line arguments.");
@@ -738,6 +787,10 @@ public class Main {
             System.out.println("\t-del%     to specify what % (0 to 100) of ops should be deletes");
             System.out.println("\t-initSizeN    the set will be initialized with N elements");
             System.out.println("\t-split  to split time counting per operation type");
+            System.out.println("\t-sizeMaxAgeN  size threads accept sizes that are up to N nanoseconds old");
+            System.out.println("Alternatively, measure bulk loads with: bulkload #NUMBER_OF_THREADS #KEYS_PER_THREAD #BATCH_SIZE #TRIALS ALGORITHM [-file-###]");
+            System.out.println("or the footprint of small sets with: footprint #INSTANCES #TABLE_SIZE #TRIALS ALGORITHM [-file-###]");
+            System.out.println("or the cost of thread identity lookups with: threadidentity #NUMBER_OF_THREADS #OPS_PER_THREAD #TRIALS [-file-###]");
             System.exit(-1);
         }
         int numOfWorkloadWorkers = 0;
@@ -749,9 +802,10 @@ public class Main {
         boolean prefill = false;
         int insPercent = 0;
         int remPercent = 0;
-        int initSize = 0;
+        long initSize = 0;
         Integer setParam = null;
         boolean isSplit = false;
+        Long sizeMaxAgeNanos = null;
 
         try {
             numOfWorkloadWorkers = Integer.parseInt(args[0]);
@@ -813,13 +867,13 @@ public class Main {
                     }
                 } else if (arg.matches("-initSize[0-9]+")) {
                     try {
-                        initSize = Integer.parseInt(arg.substring(9));
+                        initSize = Long.parseLong(arg.substring(9));
                         if (initSize < 1) {
                             System.out.println("ERROR: The initial set size must be > 0");
                             System.exit(-1);
                         }
                     } catch (Exception ex) {
-                        System.out.println("ERROR: The initial set size must be a 32-bit integer.");
+                        System.out.println("ERROR: The initial set size must be a 64-bit integer.");
                         System.exit(-1);
                     }
                 } else if (arg.startsWith("-param-")) {
@@ -835,6 +889,13 @@ public class Main {
                     prefill = true;
                 } else if (arg.matches("-split")) {
                     isSplit = true;
+                } else if (arg.matches("-sizeMaxAge[0-9]+")) {
+                    try {
+                        sizeMaxAgeNanos = Long.parseLong(arg.substring("-sizeMaxAge".length()));
+                    } catch (Exception ex) {
+                        System.out.println("ERROR: The maximal size age must be a 64-bit integer.");
+                        System.exit(-1);
+                    }
                 } else {
                     System.out.println("ERROR: Unrecognized command-line switch: \"" + arg + "\"");
                     System.exit(-1);
@@ -847,6 +908,12 @@ public class Main {
             System.exit(-1);
         }
 
+        // Keys are Integers, so the key range of the set must fit in an int
+        if (maxKeyFor(initSize, new PercentageRatio(insPercent, remPercent, 0)) > Integer.MAX_VALUE) {
+            System.out.println("ERROR: The initial set size requires keys beyond " + Integer.MAX_VALUE + " for this workload");
+            System.exit(-1);
+        }
+
         boolean found = false;
         for (SetFactory<Integer> f : Factories.factories) {
             String name = f.getName();
@@ -861,14 +928,14 @@ public class Main {
             System.exit(-1);
         }
 
-        if (alg.contains("HashTable")) {
-            // Pick the requested table size to be as the initial size
-            setParam = initSize;
+        if (alg.contains("HashTable") && setParam == null) {
+            // Unless -param- requests a table size, pick the requested table size to be as the initial size
+            setParam = (int) initSize;
         }
 
         (new Main(numOfWorkloadWorkers+numOfSizeWorkers, numOfSizeWorkers, ntrials, nseconds, filename,
                 new PercentageRatio(insPercent, remPercent, 0),
-                alg, initSize, prefill, setParam, isSplit)).run();
+                alg, initSize, prefill, setParam, isSplit, sizeMaxAgeNanos)).run();
     }
 
     public static void main(String[] args) throws Exception {
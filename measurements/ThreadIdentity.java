@@ -0,0 +1,139 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (me [at] tbrown [dot] pro) with any questions or comments.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package measurements;
+
+import measurements.support.*;
+import algorithms.size.SizeHashTable;
+import algorithms.size.core.ThreadSlots;
+
+import java.io.PrintStream;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Measures the cost of finding the identity of the current thread on plain threads, which look it up in a thread-local,
+ * against WorkerThreads, which carry it in a field. Each benchmark is timed on both kinds of threads:
+ * threadID reads ThreadID.get(), threadSlot reads ThreadSlots.current(), and sizeHashTableUpdate inserts and removes
+ * keys of the thread in a SizeHashTable, so each of its updates looks up the thread's slot.
+ */
+public class ThreadIdentity {
+    static final String[] BENCHMARKS = {"threadID", "threadSlot", "sizeHashTableUpdate"};
+
+    static final class Task implements Runnable {
+        final String benchmark;
+        final SizeHashTable<Integer,Integer> table;
+        final int threadID;
+        final int nthreads;
+        final int opsNum;
+        final CyclicBarrier start;
+        long elapsedNanos;
+        volatile long sink;
+
+        Task(String benchmark, SizeHashTable<Integer,Integer> table, int threadID, int nthreads, int opsNum, CyclicBarrier start) {
+            this.benchmark = benchmark;
+            this.table = table;
+            this.threadID = threadID;
+            this.nthreads = nthreads;
+            this.opsNum = opsNum;
+            this.start = start;
+        }
+
+        @Override
+        public void run() {
+            ThreadID.set(threadID);
+            try { start.await(); } catch (Exception e) { e.printStackTrace(); System.exit(-1); }
+            long sum = 0;
+            long startTime = System.nanoTime();
+            switch (benchmark) {
+                case "threadID":
+                    for (int i = 0; i < opsNum; i++) sum += ThreadID.get();
+                    break;
+                case "threadSlot":
+                    for (int i = 0; i < opsNum; i++) sum += ThreadSlots.current();
+                    break;
+                default:
+                    // Every key is inserted and then removed, so each pair of iterations is two updates on the thread's own key
+                    for (int i = 0; i < opsNum; i++) {
+                        Integer key = threadID + 1 + ((i >> 1) & 1023) * nthreads;
+                        if ((i & 1) == 0) sum += table.putIfAbsent(key, key) == null ? 1 : 0;
+                        else sum += table.remove(key) != null ? 1 : 0;
+                    }
+            }
+            elapsedNanos = System.nanoTime() - startTime;
+            sink = sum;
+        }
+    }
+
+    // Runs the benchmark on nthreads threads of the given kind, and returns the average nanoseconds per operation
+    static double runBenchmark(String benchmark, boolean isCarrier, int nthreads, int opsNum) {
+        SizeHashTable<Integer,Integer> table = new SizeHashTable<>(1024 * nthreads);
+        CyclicBarrier start = new CyclicBarrier(nthreads);
+        Task[] tasks = new Task[nthreads];
+        Thread[] threads = new Thread[nthreads];
+        for (int t = 0; t < nthreads; t++) {
+            tasks[t] = new Task(benchmark, table, t, nthreads, opsNum, start);
+            threads[t] = isCarrier ? new WorkerThread(tasks[t]) : new Thread(tasks[t]);
+            threads[t].start();
+        }
+        double totalNanos = 0;
+        try {
+            for (int t = 0; t < nthreads; t++) {
+                threads[t].join();
+                totalNanos += tasks[t].elapsedNanos;
+            }
+        } catch (InterruptedException e) { e.printStackTrace(); System.exit(-1); }
+        return totalNanos / nthreads / opsNum;
+    }
+
+    public static void run(String[] args) {
+        if (args.length < 4) {
+            System.out.println("ERROR: Insufficient command-line arguments.");
+            System.out.println("Must include: threadidentity #NUMBER_OF_THREADS #OPS_PER_THREAD #TRIALS [-file-###]");
+            System.exit(-1);
+        }
+        int nthreads = 0, opsNum = 0, ntrials = 0;
+        try {
+            nthreads = Integer.parseInt(args[1]);
+            opsNum = Integer.parseInt(args[2]);
+            ntrials = Integer.parseInt(args[3]);
+        } catch (Exception ex) {
+            System.out.println("ERROR: NUMBER_OF_THREADS, OPS_PER_THREAD, TRIALS must all be numeric");
+            System.exit(-1);
+        }
+        if (nthreads <= 0 || nthreads > ThreadID.MAX_THREADS || opsNum <= 0 || ntrials <= 0) {
+            System.out.println("ERROR: NUMBER_OF_THREADS must be between 1 and " + ThreadID.MAX_THREADS + ", and OPS_PER_THREAD, TRIALS must be positive");
+            System.exit(-1);
+        }
+        PrintStream out = System.out;
+        if (args.length > 4 && args[4].startsWith("-file-")) {
+            try { out = new PrintStream(args[4].substring("-file-".length())); }
+            catch (Exception e) { e.printStackTrace(); System.exit(-1); }
+        }
+
+        out.println("name,trial,nThreads,opsPerThread,threadLocalNsPerOp,carrierNsPerOp,savingNsPerOp");
+        for (int trial = 0; trial < ntrials; trial++) {
+            for (String benchmark : BENCHMARKS) {
+                double threadLocalNsPerOp = runBenchmark(benchmark, false, nthreads, opsNum);
+                double carrierNsPerOp = runBenchmark(benchmark, true, nthreads, opsNum);
+                out.printf("%s,%d,%d,%d,%.3f,%.3f,%.3f%n", benchmark, trial, nthreads, opsNum,
+                        threadLocalNsPerOp, carrierNsPerOp, threadLocalNsPerOp - carrierNsPerOp);
+            }
+        }
+    }
+}
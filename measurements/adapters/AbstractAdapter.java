@@ -23,12 +23,28 @@
 
 package measurements.adapters;
 
+import java.util.Collection;
+import java.util.Map;
+
 public abstract class AbstractAdapter<K> {
     public abstract boolean contains(final K key);
     public abstract boolean insert(final K key);
     public abstract boolean remove(final K key);
-    public int size() {
+    public long size() {
+        throw new UnsupportedOperationException("not overloaded");
+    }
+    public long size(long maxAgeNanos) {
         throw new UnsupportedOperationException("not overloaded");
     }
+    // Inserts the keys of the given map, each mapped to itself, as a single batch if the set supports batches
+    public void insertAll(final Map<K,K> keys) {
+        for (K key : keys.keySet()) insert(key);
+    }
+    // Removes the given keys as a single batch if the set supports batches, and returns the number of keys removed
+    public int removeAll(final Collection<K> keys) {
+        int removed = 0;
+        for (K key : keys) if (remove(key)) removed++;
+        return removed;
+    }
     public abstract long getKeysum();
 }
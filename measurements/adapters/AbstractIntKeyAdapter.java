@@ -0,0 +1,23 @@
+package measurements.adapters;
+
+// An adapter of a set whose keys are primitive ints, which the timed workers call directly, without boxing the keys
+public abstract class AbstractIntKeyAdapter<K> extends AbstractAdapter<K> {
+    public abstract boolean containsInt(final int key);
+    public abstract boolean insertInt(final int key);
+    public abstract boolean removeInt(final int key);
+
+    @Override
+    public final boolean contains(final K key) {
+        return containsInt((Integer) key);
+    }
+
+    @Override
+    public final boolean insert(final K key) {
+        return insertInt((Integer) key);
+    }
+
+    @Override
+    public final boolean remove(final K key) {
+        return removeInt((Integer) key);
+    }
+}
@@ -9,22 +9,22 @@ public class IteratorSkipListAdapter<K extends Comparable<? super K>> extends Ab
 
     @Override
     public boolean contains(K key) {
-        return set.containsKey(key, ThreadID.threadID.get());
+        return set.containsKey(key, ThreadID.get());
     }
 
     @Override
     public boolean insert(K key) {
-        return set.putIfAbsent(key, key, ThreadID.threadID.get()) == null;
+        return set.putIfAbsent(key, key, ThreadID.get()) == null;
     }
 
     @Override
     public boolean remove(K key) {
-        return set.remove(key, ThreadID.threadID.get()) != null;
+        return set.remove(key, ThreadID.get()) != null;
     }
 
     @Override
-    public int size() {
-        return set.iterSize(ThreadID.threadID.get());
+    public long size() {
+        return set.iterSize(ThreadID.get());
     }
 
     @Override
@@ -5,7 +5,15 @@ import algorithms.size.SizeBST;
 import measurements.support.SetInterface;
 
 public class SizeBSTAdapter<K extends Comparable<? super K>> extends AbstractAdapter<K> implements SetInterface<K> {
-    SizeBST<K,K> tree = new SizeBST<K,K>();
+    SizeBST<K,K> tree;
+
+    public SizeBSTAdapter() {
+        this(new SizeBST<K,K>());
+    }
+
+    public SizeBSTAdapter(SizeBST<K,K> tree) {
+        this.tree = tree;
+    }
 
     @Override
     public boolean contains(K key) {
@@ -23,8 +31,13 @@ public class SizeBSTAdapter<K extends Comparable<? super K>> extends AbstractAda
     }
 
     @Override
-    public int size() {
-        return tree.size();
+    public long size() {
+        return tree.mappingCount();
+    }
+
+    @Override
+    public long size(long maxAgeNanos) {
+        return tree.mappingCount(maxAgeNanos);
     }
 
     @Override
@@ -3,6 +3,9 @@ package measurements.adapters;
 import algorithms.size.SizeHashTable;
 import measurements.support.SetInterface;
 
+import java.util.Collection;
+import java.util.Map;
+
 public class SizeHashTableAdapter<K extends Comparable<? super K>> extends AbstractAdapter<K> implements SetInterface<K> {
     SizeHashTable<K,K> set;
 
@@ -10,6 +13,10 @@ public class SizeHashTableAdapter<K extends Comparable<? super K>> extends Abstr
         set = new SizeHashTable<K,K>(tableSize);
     }
 
+    public SizeHashTableAdapter(SizeHashTable<K,K> set) {
+        this.set = set;
+    }
+
     @Override
     public boolean contains(K key) {
         return set.containsKey(key);
@@ -26,8 +33,23 @@ public class SizeHashTableAdapter<K extends Comparable<? super K>> extends Abstr
     }
 
     @Override
-    public int size() {
-        return set.size();
+    public void insertAll(Map<K,K> keys) {
+        set.putAll(keys);
+    }
+
+    @Override
+    public int removeAll(Collection<K> keys) {
+        return set.removeAll(keys);
+    }
+
+    @Override
+    public long size() {
+        return set.mappingCount();
+    }
+
+    @Override
+    public long size(long maxAgeNanos) {
+        return set.mappingCount(maxAgeNanos);
     }
 
     @Override
@@ -0,0 +1,42 @@
+package measurements.adapters;
+
+import algorithms.size.SizeIntHashTable;
+import measurements.support.SetInterface;
+
+public class SizeIntHashTableAdapter<K extends Comparable<? super K>> extends AbstractIntKeyAdapter<K> implements SetInterface<K> {
+    SizeIntHashTable<Boolean> set;
+
+    public SizeIntHashTableAdapter(int tableSize) {
+        set = new SizeIntHashTable<Boolean>(tableSize);
+    }
+
+    @Override
+    public boolean containsInt(int key) {
+        return set.containsKey(key);
+    }
+
+    @Override
+    public boolean insertInt(int key) {
+        return set.putIfAbsent(key, Boolean.TRUE) == null;
+    }
+
+    @Override
+    public boolean removeInt(int key) {
+        return set.remove(key) != null;
+    }
+
+    @Override
+    public long size() {
+        return set.mappingCount();
+    }
+
+    @Override
+    public long size(long maxAgeNanos) {
+        return set.mappingCount(maxAgeNanos);
+    }
+
+    @Override
+    public long getKeysum() {
+        return set.getSumOfKeys();
+    }
+}
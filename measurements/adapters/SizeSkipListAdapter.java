@@ -3,8 +3,19 @@ package measurements.adapters;
 import algorithms.size.SizeConcurrentSkipListMap;
 import measurements.support.SetInterface;
 
+import java.util.Collection;
+import java.util.Map;
+
 public class SizeSkipListAdapter<K extends Comparable<? super K>> extends AbstractAdapter<K> implements SetInterface<K> {
-    SizeConcurrentSkipListMap<K,K> set = new SizeConcurrentSkipListMap<K,K>();
+    SizeConcurrentSkipListMap<K,K> set;
+
+    public SizeSkipListAdapter() {
+        this(new SizeConcurrentSkipListMap<K,K>());
+    }
+
+    public SizeSkipListAdapter(SizeConcurrentSkipListMap<K,K> set) {
+        this.set = set;
+    }
 
     @Override
     public boolean contains(K key) {
@@ -22,8 +33,23 @@ public class SizeSkipListAdapter<K extends Comparable<? super K>> extends Abstra
     }
 
     @Override
-    public int size() {
-        return set.size();
+    public void insertAll(Map<K,K> keys) {
+        set.putAll(keys);
+    }
+
+    @Override
+    public int removeAll(Collection<K> keys) {
+        return set.removeAll(keys);
+    }
+
+    @Override
+    public long size() {
+        return set.mappingCount();
+    }
+
+    @Override
+    public long size(long maxAgeNanos) {
+        return set.mappingCount(maxAgeNanos);
     }
 
     @Override
@@ -30,7 +30,7 @@ public class VcasBatchBSTGCAdapter<K extends Comparable<? super K>> extends Abst
     }
 
     @Override
-    public int size() {
+    public long size() {
 //        return tree.rangeScan((K) (Integer) Integer.MIN_VALUE, (K) (Integer) Integer.MAX_VALUE).length;
         return tree.snapshotSize();
     }
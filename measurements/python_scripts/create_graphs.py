@@ -91,6 +91,13 @@ hatches = {
 # predetermined order for the graph legends
 algs_order = ["HashTable", "SizeHashTable", "BST", "SizeBST", "SkipList", "SizeSkipList", "VcasBatchBSTGC64", "IteratorSkipList"]
 
+# SizeCalculator counters layouts, selected with -DsizeCalculator.countersLayout
+countersLayouts = ["rows", "flat", "compact"]
+# SizeCalculator backoff strategies, selected with -DsizeCalculator.backoff
+backoffStrategies = ["busy", "spin", "spin_then_yield", "park"]
+# line styles of the variants of a data structure, in the order of the variants
+variantLinestyles = ['-', '--', ':', '-.']
+
 def toRatio(insert, delete, size):
   return str(insert) + 'i-' + str(delete) + 'd-' + str(size) + 'size'
 
@@ -535,6 +542,146 @@ def plot_per_size_graph(input_file_path, output_graph_path, warmupRepeats, showS
   plt.savefig(output_graph_path, bbox_inches='tight', dpi=300)
   plt.close('all')
 
+def plot_counters_layout_graphs(input_file_path, output_graph_path, warmupRepeats, layouts=countersLayouts):
+  plot_variants_graphs(input_file_path, output_graph_path, warmupRepeats, layouts, False)
+
+def plot_backoff_graphs(input_file_path, output_graph_path, warmupRepeats):
+  plot_variants_graphs(input_file_path, output_graph_path, warmupRepeats, backoffStrategies, True)
+
+# Plots, per size-aware data structure, a line for each variant of its run (the variant is a suffix of the algorithm name),
+# against the number of workload threads or against the number of size threads
+def plot_variants_graphs(input_file_path, output_graph_path, warmupRepeats, variants, isBySizeThreads):
+  for isWorkloadThreadsTP in (True, False):
+    throughput = {}
+    stddev = {}
+    workloadThreads = []
+    sizeThreads = []
+    ratios = []
+    initSizes = []
+    algs = []
+
+    readJavaResultsFile(input_file_path, throughput, stddev, workloadThreads, sizeThreads, ratios, initSizes, algs, warmupRepeats, isWorkloadThreadsTP)
+    workloadThreads.sort()
+    sizeThreads.sort()
+    if isBySizeThreads:
+      assert(len(workloadThreads) == 1)
+      xThreads = sizeThreads
+      xlabel = 'Size threads'
+    else:
+      assert(len(sizeThreads) == 1)
+      xThreads = workloadThreads
+      xlabel = 'Workload threads'
+    assert(len(initSizes) == 1)
+    initSize = initSizes[0]
+    assert(len(ratios) == 1)
+    percentageRatio = ratios[0]
+    if isWorkloadThreadsTP:
+      threadsKind = 'workload'
+      ylabel = 'Workload threads total TP (Mop/s)'
+    else:
+      threadsKind = 'size'
+      ylabel = 'Size threads total TP (Kop/s)'
+
+    sizeAlgs = []
+    for alg in algs:
+      sizeAlg = alg[:alg.rindex('-')]
+      if sizeAlg not in sizeAlgs:
+        sizeAlgs.append(sizeAlg)
+
+    for sizeAlg in sizeAlgs:
+      fig, axs = plt.subplots(figsize=(6.5, 4.2))
+      opacity = 0.8
+      rects = {}
+      ymax = 0
+
+      for variantIndex, variant in enumerate(variants):
+        alg = sizeAlg + '-' + variant
+        if alg not in algs:
+          continue
+        series = []
+        for th in xThreads:
+          if isBySizeThreads:
+            key = toString(alg, workloadThreads[0], th, initSize, percentageRatio)
+          else:
+            key = toString(alg, th, sizeThreads[0], initSize, percentageRatio)
+          assert key in throughput
+          series.append(throughput[key])
+        ymax = max(ymax, max(series))
+        rects[alg] = axs.plot(xThreads, series,
+          alpha=opacity,
+          color=colors[sizeAlg],
+          linestyle=variantLinestyles[variantIndex % len(variantLinestyles)],
+          linewidth=3,
+          marker=markers[sizeAlg],
+          markersize=10,
+          label=names[sizeAlg] + ' (' + variant + ')')
+
+      axs.set_ylim(bottom=-0.02*ymax)
+      plt.xticks(xThreads, xThreads)
+      axs.set(xlabel=xlabel, ylabel=ylabel)
+      legend_x = 1
+      legend_y = 0.5
+      legend = plt.legend(loc='center left', bbox_to_anchor=(legend_x, legend_y), ncol=len(rects))
+      export_legend(legend, os.path.join(os.path.dirname(output_graph_path), "legend_" + os.path.basename(output_graph_path) % (sizeAlg, threadsKind)))
+      legend.remove()
+
+      plt.grid()
+      axs.set_axisbelow(True)
+      plt.savefig(output_graph_path % (sizeAlg, threadsKind), bbox_inches='tight', dpi=300)
+      plt.close('all')
+
+# Plots the bulk load (or unload) throughput of each data structure against the batch size, from the results of `bulkload` runs
+def plot_bulk_load_graphs(input_file_path, output_graph_path, warmupRepeats):
+  for isLoad in (True, False):
+    trials = {}
+    batchSizes = []
+    algs = []
+    with open(input_file_path, newline='') as csvfile:
+      for row in csv.DictReader(csvfile):
+        if row['name'] == 'name' or int(row['trial']) < warmupRepeats:
+          continue
+        alg = row['name']
+        batchSize = int(row['batchSize'])
+        if alg not in algs:
+          algs.append(alg)
+        if batchSize not in batchSizes:
+          batchSizes.append(batchSize)
+        trials.setdefault((alg, batchSize), []).append(float(row['loadThroughput' if isLoad else 'unloadThroughput']) / 1e6)
+    batchSizes.sort()
+
+    fig, axs = plt.subplots(figsize=(6.5, 4.2))
+    opacity = 0.8
+    rects = {}
+    ymax = 0
+    for alg in algs_order:
+      if alg not in algs:
+        continue
+      series = [avg(trials[(alg, batchSize)]) for batchSize in batchSizes]
+      ymax = max(ymax, max(series))
+      rects[alg] = axs.plot(batchSizes, series,
+        alpha=opacity,
+        color=colors[alg],
+        linestyle=linestyles[alg],
+        linewidth=3,
+        marker=markers[alg],
+        markersize=10,
+        label=names[alg])
+
+    axs.set_xscale('log')
+    axs.set_ylim(bottom=-0.02*ymax)
+    plt.xticks(batchSizes, batchSizes)
+    axs.set(xlabel='Batch size', ylabel=('Load' if isLoad else 'Unload') + ' TP (Mkeys/s)')
+    legend_x = 1
+    legend_y = 0.5
+    legend = plt.legend(loc='center left', bbox_to_anchor=(legend_x, legend_y), ncol=len(rects))
+    export_legend(legend, os.path.join(os.path.dirname(output_graph_path), "legend_bulk_load.png"))
+    legend.remove()
+
+    plt.grid()
+    axs.set_axisbelow(True)
+    plt.savefig(output_graph_path % ('load' if isLoad else 'unload'), bbox_inches='tight', dpi=300)
+    plt.close('all')
+
 def export_legend(legend, filename):
     fig = legend.figure
     fig.canvas.draw()
@@ -0,0 +1,57 @@
+import sys
+import os
+
+import create_graphs as graph
+
+GRAPH_DIR = "graphs"
+DATA_DIR = "results"
+
+if len(sys.argv) == 1 or sys.argv[1] == '-h':
+  print("Usage: python3 run_java_experiments_bulk_load.py <threads> <keysPerThread> <batchSizesList> <num_warmup_repeats> <num_repeats> <JVM memory size> <shouldRunMeasurements>")
+  print("For example: python3 run_java_experiments_bulk_load.py 8 100000 \"[1,10,100,1000]\" 1 5 4G T")
+  print("A batch size of 1 inserts and removes each key on its own, and a larger one uses the batch operations putAll and removeAll")
+  exit(0)
+
+dataStructures = ["HashTable", "SizeHashTable", "SkipList", "SizeSkipList"]
+
+threads = sys.argv[1]
+keysPerThread = sys.argv[2]
+batchSizes = sys.argv[3][1:-1].split(',')
+warmupRepeats = int(sys.argv[4])
+repeats = warmupRepeats + int(sys.argv[5])
+JVM_mem_size = sys.argv[6]
+shouldRunMeasurements = (sys.argv[7] == 'T')
+
+def delete_previous_results():
+  os.system("rm -rf build/*.csv")
+
+def run_experiments():
+  cmdbase = "java -server -Xms" + JVM_mem_size + " -Xmx" + JVM_mem_size + " -jar build/experiments_instr.jar bulkload "
+
+  i = 0
+  for ds in dataStructures:
+    for batchSize in batchSizes:
+      i = i+1
+      print("Running " + ds + " with batch size " + batchSize)
+      cmd = cmdbase + threads + " " + keysPerThread + " " + batchSize + " " + str(repeats) + " " + ds + " -file-build/data-trials" + str(i) + ".csv"
+      if os.system(cmd) != 0:
+        print("")
+        exit(1)
+
+def create_united_results_file():
+  os.makedirs(os.path.dirname(results_file_path), exist_ok=True)
+  os.system("cat build/data-*.csv > " + results_file_path)
+
+def draw_graphs():
+  os.makedirs(GRAPH_DIR, exist_ok=True)
+  graph.plot_bulk_load_graphs(results_file_path, os.path.join(GRAPH_DIR, graph_name + "_%s_" + benchmark_name + ".png"), warmupRepeats)
+
+graph_name = "bulk_load"
+benchmark_name = str(threads) + "threads_" + str(keysPerThread) + "keysPerThread"
+results_file_path = os.path.join(DATA_DIR, graph_name + "_" + benchmark_name + ".csv")
+
+if shouldRunMeasurements:
+    delete_previous_results()
+    run_experiments()
+    create_united_results_file()
+draw_graphs()
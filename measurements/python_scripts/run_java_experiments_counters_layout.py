@@ -0,0 +1,87 @@
+import sys
+import os
+import csv
+
+import create_graphs as graph
+
+GRAPH_DIR = "graphs"
+DATA_DIR = "results"
+
+if len(sys.argv) == 1 or sys.argv[1] == '-h':
+  print("Usage: python3 run_java_experiments_counters_layout.py <initSize> <ins>-<del> <workloadThreadsList> <sizeThreads> <num_warmup_repeats> <num_repeats> <runtime> <JVM memory size> <shouldRunMeasurements> [<countersLayoutsList>]")
+  print("For example: python3 run_java_experiments_counters_layout.py 10000 30-20 \"[1,4]\" 1 1 1 1 1G T")
+  print("By default all the SizeCalculator counters layouts (" + ",".join(graph.countersLayouts) + ") are compared, and a list of layouts restricts the comparison to them")
+  exit(0)
+
+dataStructures = ["SizeBST", "SizeSkipList", "SizeHashTable"]
+
+initSize = sys.argv[1]
+workload = sys.argv[2].split('-')
+ins = workload[0]
+rmv = workload[1]
+if int(ins) + int(rmv) > 100:
+  print("ERROR: ins+del must not exceed 100")
+  exit(0)
+workloadThreadsList = sys.argv[3][1:-1].split(',')
+sizeThreads = sys.argv[4]
+warmupRepeats = int(sys.argv[5])
+repeats = warmupRepeats + int(sys.argv[6])
+runtime = sys.argv[7]
+JVM_mem_size = sys.argv[8]
+shouldRunMeasurements = (sys.argv[9] == 'T')
+if len(sys.argv) > 10:
+  countersLayouts = sys.argv[10][1:-1].split(',')
+  for layout in countersLayouts:
+    if layout not in graph.countersLayouts:
+      print("ERROR: unknown counters layout " + layout)
+      exit(0)
+else:
+  countersLayouts = graph.countersLayouts
+
+def delete_previous_results():
+  os.system("rm -rf build/*.csv")
+  os.system("rm -rf build/*.csv_stdout")
+
+# Appends the counters layout to the algorithm name of each result row, so that the layouts are told apart in the united results file
+def tag_results_with_layout(path, layout):
+  with open(path, newline='') as csvfile:
+    rows = list(csv.reader(csvfile, delimiter=',', quotechar='|'))
+  for row in rows:
+    if row[0] != 'name':
+      row[0] = row[0] + '-' + layout
+  with open(path, 'w', newline='') as csvfile:
+    csv.writer(csvfile, delimiter=',', quotechar='|').writerows(rows)
+
+def run_experiments():
+  i = 0
+  for layout in countersLayouts:
+    cmdbase = "java -server -Xms" + JVM_mem_size + " -Xmx" + JVM_mem_size + " -DsizeCalculator.countersLayout=" + layout + " -jar build/experiments_instr.jar "
+    for ds in dataStructures:
+      for workloadThreads in workloadThreadsList:
+        i = i+1
+        results_path = "build/data-trials" + str(i) + ".csv"
+        cmd = cmdbase + workloadThreads + " " + sizeThreads + " " + str(repeats) + " " + runtime + " " + ds + " -ins" + ins + " -del" + rmv + " -initSize" + str(initSize) + " -prefill -file-" + results_path
+        if os.system(cmd) != 0:
+          print("")
+          exit(1)
+        tag_results_with_layout(results_path, layout)
+
+def create_united_results_file():
+  os.makedirs(os.path.dirname(results_file_path), exist_ok=True)
+  os.system("cat build/data-*.csv > " + results_file_path)
+
+def draw_graphs():
+  os.makedirs(GRAPH_DIR, exist_ok=True)
+
+  graph_file_path = os.path.join(GRAPH_DIR, graph_name + "_%s_%s_" + benchmark_name + ".png")
+  graph.plot_counters_layout_graphs(results_file_path, graph_file_path, warmupRepeats, countersLayouts)
+
+graph_name = "counters_layout" if countersLayouts == graph.countersLayouts else "counters_layout_" + "_".join(countersLayouts)
+benchmark_name = str(initSize) + "setSize_" + str(ins) + "ins-" + str(rmv) + "rem_" + str(sizeThreads) + "sizeThreads"
+results_file_path = os.path.join(DATA_DIR, graph_name + "_" + benchmark_name + ".csv")
+
+if shouldRunMeasurements:
+    delete_previous_results()
+    run_experiments()
+    create_united_results_file()
+draw_graphs()
@@ -2,14 +2,18 @@ import sys
 import os
 from shutil import which
 
+import csv
+
 import create_graphs as graph
 
 GRAPH_DIR = "graphs"
 DATA_DIR = "results"
 
 if len(sys.argv) == 1 or sys.argv[1] == '-h':
-  print("Usage: python3 run_java_experiments_scalability.py <initSize> <ins>-<del> <workloadThreads> <sizeThreadsList> <num_warmup_repeats> <num_repeats> <runtime> <JVM memory size> <shouldRunMeasurements>")
+  print("Usage: python3 run_java_experiments_scalability.py <initSize> <ins>-<del> <workloadThreads> <sizeThreadsList> <num_warmup_repeats> <num_repeats> <runtime> <JVM memory size> <shouldRunMeasurements> [<backoffStrategiesList>]")
   print("For example: python3 run_java_experiments_scalability.py 10000 3-2 32 \"[1,4]\" 1 1 1 1G T")
+  print("Given a list of SizeCalculator backoff strategies (out of " + ",".join(graph.backoffStrategies) + "), the size-aware data structures are run under each of them and compared")
+  print("For example: python3 run_java_experiments_scalability.py 10000 3-2 32 \"[1,4]\" 1 1 1 1G T \"[busy,park]\"")
   exit(0)
 
 dataStructures = [
@@ -31,22 +35,43 @@ repeats = warmupRepeats + int(sys.argv[6])
 runtime = sys.argv[7]
 JVM_mem_size = sys.argv[8]
 shouldRunMeasurements = (sys.argv[9] == 'T')
+if len(sys.argv) > 10:
+  backoffStrategies = sys.argv[10][1:-1].split(',')
+  dataStructures = [ds for ds in dataStructures if ds.startswith('Size')]
+else:
+  backoffStrategies = None
 
 def delete_previous_results():
   os.system("rm -rf build/*.csv")
   os.system("rm -rf build/*.csv_stdout")
 
-def run_experiments():
-  cmdbase = "java -server -Xms" + JVM_mem_size + " -Xmx" + JVM_mem_size + " -jar build/experiments_instr.jar "
+# Appends the backoff strategy to the algorithm name of each result row, so that the strategies are told apart in the united results file
+def tag_results_with_backoff(path, backoffStrategy):
+  with open(path, newline='') as csvfile:
+    rows = list(csv.reader(csvfile, delimiter=',', quotechar='|'))
+  for row in rows:
+    if row[0] != 'name':
+      row[0] = row[0] + '-' + backoffStrategy
+  with open(path, 'w', newline='') as csvfile:
+    csv.writer(csvfile, delimiter=',', quotechar='|').writerows(rows)
 
+def run_experiments():
   i = 0
-  for ds in dataStructures:
-    for sizeThreads in sizeThreadsList:
-      i = i+1
-      cmd = cmdbase + workloadThreads + " " + sizeThreads + " " + str(repeats) + " " + runtime + " " + ds + " -ins" + ins + " -del" + rmv + " -initSize" + str(initSize) + " -prefill -file-build/data-trials" + str(i) + ".csv"
-      if os.system(cmd) != 0:
-        print("")
-        exit(1)
+  for backoffStrategy in (backoffStrategies or [None]):
+    cmdbase = "java -server -Xms" + JVM_mem_size + " -Xmx" + JVM_mem_size + " "
+    if backoffStrategy is not None:
+      cmdbase += "-DsizeCalculator.backoff=" + backoffStrategy + " "
+    cmdbase += "-jar build/experiments_instr.jar "
+    for ds in dataStructures:
+      for sizeThreads in sizeThreadsList:
+        i = i+1
+        results_path = "build/data-trials" + str(i) + ".csv"
+        cmd = cmdbase + workloadThreads + " " + sizeThreads + " " + str(repeats) + " " + runtime + " " + ds + " -ins" + ins + " -del" + rmv + " -initSize" + str(initSize) + " -prefill -file-" + results_path
+        if os.system(cmd) != 0:
+          print("")
+          exit(1)
+        if backoffStrategy is not None:
+          tag_results_with_backoff(results_path, backoffStrategy)
 
 def create_united_results_file():
   os.makedirs(os.path.dirname(results_file_path), exist_ok=True)
@@ -54,10 +79,13 @@ def create_united_results_file():
 
 def draw_graphs():
   os.makedirs(GRAPH_DIR, exist_ok=True)
-  graph.plot_scalability_graph(results_file_path, os.path.join(GRAPH_DIR, graph_name + "_sizeThreads_" + benchmark_name + ".png"), warmupRepeats)
+  if backoffStrategies is None:
+    graph.plot_scalability_graph(results_file_path, os.path.join(GRAPH_DIR, graph_name + "_sizeThreads_" + benchmark_name + ".png"), warmupRepeats)
+  else:
+    graph.plot_backoff_graphs(results_file_path, os.path.join(GRAPH_DIR, graph_name + "_%s_%s_" + benchmark_name + ".png"), warmupRepeats)
 
 
-graph_name = "scalability"
+graph_name = "scalability" if backoffStrategies is None else "backoff_scalability"
 benchmark_name = str(initSize) + "setSize_" + str(ins) + "ins-" + str(rmv) + "rem_" + str(workloadThreads) + "workloadThreads"
 results_file_path = os.path.join(DATA_DIR, graph_name + "_" + benchmark_name + ".csv")
 
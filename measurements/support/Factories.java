@@ -10,12 +10,14 @@ public class Factories {
     static {
         factories.add(new ConcurrentSkipListMapFactory<Integer>());
         factories.add(new SizeConcurrentSkipListMapFactory<Integer>());
+        factories.add(new SizeLongSkipListMapFactory<Integer>());
 
         factories.add(new LockFreeBSTFactory<Integer>());
         factories.add(new SizeBSTFactory<Integer>());
 
         factories.add(new HashTableFactory<Integer>());
         factories.add(new SizeHashTableFactory<Integer>());
+        factories.add(new SizeIntHashTableFactory<Integer>());
 
         factories.add(new IteratorSkipListFactory<Integer>());
 
@@ -55,6 +57,13 @@ public class Factories {
         public String getName() { return "SizeSkipList"; }
     }
 
+    protected static class SizeLongSkipListMapFactory<K extends Comparable<? super K>> extends SetFactory<K> {
+        public SetInterface<K> newSet(final Integer param) {
+            return new SizeLongSkipListAdapter<K>();
+        }
+        public String getName() { return "SizeLongSkipList"; }
+    }
+
     protected static class SizeBSTFactory<K extends Comparable<? super K>> extends SetFactory<K> {
         public SetInterface<K> newSet(final Integer param) {
             return new SizeBSTAdapter<K>();
@@ -78,6 +87,13 @@ public class Factories {
         public String getName() { return "SizeHashTable"; }
     }
 
+    protected static class SizeIntHashTableFactory<K extends Comparable<? super K>> extends SetFactory<K> {
+        public SetInterface<K> newSet(final Integer param) {
+            return new SizeIntHashTableAdapter<K>(param);
+        }
+        public String getName() { return "SizeIntHashTable"; }
+    }
+
     protected static class IteratorSkipListFactory<K extends Comparable<? super K>> extends SetFactory<K> {
         public SetInterface<K> newSet(final Integer param) {
             return new IteratorSkipListAdapter<K>();
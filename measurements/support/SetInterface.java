@@ -23,5 +23,5 @@ public interface SetInterface<K> {
     boolean contains(final K key);
     boolean insert(final K key);
     boolean remove(final K key);
-    int size();
+    long size();
 }
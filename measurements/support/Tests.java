@@ -21,6 +21,32 @@
 package measurements.support;
 
 import measurements.adapters.*;
+import algorithms.size.SizeBST;
+import algorithms.size.SizeConcurrentSkipListMap;
+import algorithms.size.SizeGroup;
+import algorithms.size.SizeHashTable;
+import algorithms.size.SizeIntHashTable;
+import algorithms.size.SizeLongSkipListMap;
+import algorithms.size.SizedMap;
+import algorithms.size.core.Backoff;
+import algorithms.size.core.CountersLayout;
+import algorithms.size.core.SizeCalculator;
+import algorithms.size.core.UpdateInfo;
+import algorithms.size.core.UpdateOperations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class Tests {
     static volatile boolean shouldRun = false;
@@ -36,7 +62,7 @@ public class Tests {
     private static int[] TARGET_SIZES_PER_THREAD = {2, 10, 1000};
     private static double[] MAX_KEY_RATIOS = {1.1, 2, 3};
 
-    static final class FixedNumberOfKeysWorker<K extends Comparable<? super K>> extends Thread {
+    static final class FixedNumberOfKeysWorker<K extends Comparable<? super K>> extends WorkerThread {
         final AbstractAdapter<K> set;
         final int keysNum;
         final int minKey;
@@ -62,7 +88,7 @@ public class Tests {
 
         @Override
         public void run() {
-            ThreadID.threadID.set(threadID);
+            ThreadID.set(threadID);
             int keysAdded = 0;
             while (keysAdded < keysNum) {
                 int key = rng.nextNatural(maxKey-minKey+1) + minKey;
@@ -79,7 +105,7 @@ public class Tests {
         }
     }
 
-    static final class AlternatelyInsertRemoveWorker<K extends Comparable<? super K>> extends Thread {
+    static final class AlternatelyInsertRemoveWorker<K extends Comparable<? super K>> extends WorkerThread {
         final AbstractAdapter<K> set;
         final int minKey;
         final int maxKey;
@@ -105,7 +131,7 @@ public class Tests {
 
         @Override
         public void run() {
-            ThreadID.threadID.set(threadID);
+            ThreadID.set(threadID);
             while (!shouldRun);
             while (shouldRun) {
                 int key;
@@ -151,7 +177,7 @@ public class Tests {
         }
     }
 
-    static final class EmptyingWorker<K extends Comparable<? super K>> extends Thread {
+    static final class EmptyingWorker<K extends Comparable<? super K>> extends WorkerThread {
         final AbstractAdapter<K> set;
         final int keysNum;
         final int maxKey;
@@ -174,7 +200,7 @@ public class Tests {
 
         @Override
         public void run() {
-            ThreadID.threadID.set(threadID);
+            ThreadID.set(threadID);
             int keysRemoved = 0;
             while (keysRemoved < keysNum) {
                 int key = rng.nextNatural(maxKey) + 1;
@@ -191,7 +217,7 @@ public class Tests {
         }
     }
 
-    static final class IncreasingSizeVerifier<K extends Comparable<? super K>> extends Thread {
+    static final class IncreasingSizeVerifier<K extends Comparable<? super K>> extends WorkerThread {
         final AbstractAdapter<K> set;
         final int keysNum;
         final int threadID;
@@ -207,9 +233,9 @@ public class Tests {
 
         @Override
         public void run() {
-            ThreadID.threadID.set(threadID);
-            int size = 0;
-            int prevSize = 0;
+            ThreadID.set(threadID);
+            long size = 0;
+            long prevSize = 0;
             while (size < keysNum) {
                 size = set.size();
                 assert size >= prevSize;
@@ -218,7 +244,7 @@ public class Tests {
         }
     }
 
-    static final class DecreasingSizeVerifier<K extends Comparable<? super K>> extends Thread {
+    static final class DecreasingSizeVerifier<K extends Comparable<? super K>> extends WorkerThread {
         final AbstractAdapter<K> set;
         final int keysNum;
         final int threadID;
@@ -234,9 +260,9 @@ public class Tests {
 
         @Override
         public void run() {
-            ThreadID.threadID.set(threadID);
-            int size = set.size();
-            int prevSize = size;
+            ThreadID.set(threadID);
+            long size = set.size();
+            long prevSize = size;
             while (size > keysNum) {
                 size = set.size();
                 assert size <= prevSize;
@@ -245,7 +271,7 @@ public class Tests {
         }
     }
 
-    static final class SizeRangeVerifier<K extends Comparable<? super K>> extends Thread {
+    static final class SizeRangeVerifier<K extends Comparable<? super K>> extends WorkerThread {
         final AbstractAdapter<K> set;
         final int minSize;
         final int maxSize;
@@ -264,17 +290,17 @@ public class Tests {
 
         @Override
         public void run() {
-            ThreadID.threadID.set(threadID);
+            ThreadID.set(threadID);
             while (!shouldRun);
             while (shouldRun) {
-                int size = set.size();
+                long size = set.size();
                 assert size >= minSize;
                 assert size <= maxSize;
             }
         }
     }
 
-    static final class InsertOneItemWorker extends Thread {
+    static final class InsertOneItemWorker extends WorkerThread {
         final AbstractAdapter<Integer> set;
         final int threadID;
 
@@ -287,13 +313,13 @@ public class Tests {
 
         @Override
         public void run() {
-            ThreadID.threadID.set(threadID);
+            ThreadID.set(threadID);
             while (!shouldRun);
             assert set.insert(threadID);
         }
     }
 
-    static final class ContainsAndSizeWorker extends Thread {
+    static final class ContainsAndSizeWorker extends WorkerThread {
         final AbstractAdapter<Integer> set;
         final int threadID;
 
@@ -306,12 +332,12 @@ public class Tests {
 
         @Override
         public void run() {
-            ThreadID.threadID.set(threadID);
+            ThreadID.set(threadID);
             while (!shouldRun);
             int foundKeys = 0;
             for (int i = 0; i < threadID; ++i)
                 foundKeys += (set.contains(i) ? 1 : 0);
-            int size = set.size();
+            long size = set.size();
 //            if (foundKeys > size) System.out.println("foundKeys=" + foundKeys + " size=" + size);
             assert foundKeys <= size;
             assert size <= threadID;
@@ -640,7 +666,1116 @@ public class Tests {
         assert set.size() == 0;
     }
 
-    private static void runTests(AbstractAdapter<Integer> set) {
+    // Uses more threads than ThreadID.MAX_THREADS, each inserting and then removing its own key
+    static void sizeWithManyThreads(AbstractAdapter<Integer> set) {
+        final int numThreads = 4 * ThreadID.MAX_THREADS;
+        final Thread[] inserters = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final int key = i + 1;
+            inserters[i] = new Thread(() -> { assert set.insert(key); });
+        }
+        for (int i = 0; i < numThreads; i++) inserters[i].start();
+        try {
+            for (int i = 0; i < numThreads; i++) inserters[i].join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        assert set.size() == numThreads;
+
+        final Thread[] removers = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final int key = i + 1;
+            removers[i] = new Thread(() -> { assert set.remove(key); });
+        }
+        for (int i = 0; i < numThreads; i++) removers[i].start();
+        try {
+            for (int i = 0; i < numThreads; i++) removers[i].join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        assert set.size() == 0;
+        if (DEBUG_PRINTS)
+            System.out.println(new Object(){}.getClass().getEnclosingMethod().getName() + ": OK");
+    }
+
+    // A size with a maximal age may return the latest computed size, but never a size older than its maximal age
+    static void sizeWithMaxAge(AbstractAdapter<Integer> set) {
+        for (int key = 1; key <= 10; key++) assert set.insert(key);
+        assert set.size() == 10;
+        assert set.insert(11);
+        assert set.size(Long.MAX_VALUE) == 10;
+        assert set.size() == 11;
+        assert set.size(Long.MAX_VALUE) == 11;
+        assert set.remove(11);
+        assert set.size(Long.MAX_VALUE) == 11;
+        assert set.size() == 10;
+        for (int key = 1; key <= 10; key++) assert set.remove(key);
+        assert set.size() == 0;
+        assert set.size(Long.MAX_VALUE) == 0;
+        if (DEBUG_PRINTS)
+            System.out.println(new Object(){}.getClass().getEnclosingMethod().getName() + ": OK");
+    }
+
+    // Threads insert and then remove disjoint keys in batches, while the size, which only grows and then only shrinks, is checked to be monotonic
+    static void sizeWithBatches(AbstractAdapter<Integer> set) {
+        Map<Integer,Integer> batch = new LinkedHashMap<>();
+        for (int key = 1; key <= 100; key++) batch.put(key, key);
+        set.insertAll(batch);
+        assert set.size() == 100;
+        for (int key = 1; key <= 100; key++) assert set.contains(key);
+        batch.clear();
+        for (int key = 51; key <= 150; key++) batch.put(key, key);
+        set.insertAll(batch);
+        assert set.size() == 150;
+        List<Integer> keys = new ArrayList<>();
+        for (int key = 1; key <= 200; key++) keys.add(key);
+        assert set.removeAll(keys) == 150;
+        assert set.size() == 0;
+
+        final int numThreads = NUM_THREADS;
+        final int keysPerThread = 1000;
+        final int batchSize = 100;
+        for (boolean isInsert : new boolean[]{true, false}) {
+            final Thread[] updaters = new Thread[numThreads];
+            for (int i = 0; i < numThreads; i++) {
+                final int firstKey = i * keysPerThread + 1;
+                updaters[i] = new Thread(() -> {
+                    for (int k = firstKey; k < firstKey + keysPerThread; k += batchSize) {
+                        Map<Integer,Integer> threadBatch = new LinkedHashMap<>();
+                        for (int key = k; key < k + batchSize; key++) threadBatch.put(key, key);
+                        if (isInsert) set.insertAll(threadBatch);
+                        else assert set.removeAll(threadBatch.keySet()) == batchSize;
+                    }
+                });
+            }
+            shouldRun = true;
+            final Thread sizeChecker = new Thread(() -> {
+                long lastSize = set.size();
+                while (shouldRun) {
+                    long currentSize = set.size();
+                    assert isInsert ? currentSize >= lastSize : currentSize <= lastSize;
+                    assert currentSize >= 0 && currentSize <= numThreads * keysPerThread;
+                    lastSize = currentSize;
+                }
+            });
+            sizeChecker.start();
+            for (int i = 0; i < numThreads; i++) updaters[i].start();
+            try {
+                for (int i = 0; i < numThreads; i++) updaters[i].join();
+                shouldRun = false;
+                sizeChecker.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+            assert set.size() == (isInsert ? numThreads * keysPerThread : 0);
+        }
+        if (DEBUG_PRINTS)
+            System.out.println(new Object(){}.getClass().getEnclosingMethod().getName() + ": OK");
+    }
+
+    // The operations of the size-aware maps that are checked with a weigher, as the maps share no interface
+    // The weight of a mapping is its value. Inserts, replacements and removals, also in batches and with zero weights,
+    // must be reflected in the weight. Then threads replace the values of their own keys, each between weights 1 and 3,
+    // while the weight is checked to stay in the range this allows
+    static void weightWithReplacements(SizedMap<Integer,Integer> map) {
+        for (int key = 1; key <= 100; key++) assert map.put(key, key) == null;
+        assert map.weight() == 5050 && map.size() == 100;
+        assert map.put(1, 11) == 1;
+        assert map.putIfAbsent(1, 1000) == 11;
+        assert map.weight() == 5060;
+        assert map.put(100, 0) == 100;
+        assert map.weight() == 4960;
+        assert !map.remove(2, 3);
+        assert map.remove(2, 2);
+        assert map.remove(3) == 3;
+        assert map.remove(100) == 0;
+        assert map.weight() == 4955 && map.size() == 97;
+        Map<Integer,Integer> batch = new LinkedHashMap<>();
+        for (int key = 1; key <= 200; key++) batch.put(key, 1);
+        map.putAll(batch);
+        assert map.weight() == 200 && map.size() == 200;
+        List<Integer> keys = new ArrayList<>();
+        for (int key = 1; key <= 150; key++) keys.add(key);
+        assert map.removeAll(keys) == 150;
+        assert map.weight() == 50 && map.size() == 50;
+        keys.clear();
+        for (int key = 151; key <= 200; key++) keys.add(key);
+        assert map.removeAll(keys) == 50;
+        assert map.weight() == 0 && map.size() == 0;
+
+        final int numThreads = NUM_THREADS;
+        final int keysPerThread = 10;
+        final Thread[] updaters = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final int firstKey = i * keysPerThread + 1;
+            for (int key = firstKey; key < firstKey + keysPerThread; key++) map.put(key, 1);
+            updaters[i] = new Thread(() -> {
+                for (int round = 0; round < 1000; round++) {
+                    for (int key = firstKey; key < firstKey + keysPerThread; key++) {
+                        if (round % 3 == 2) {
+                            assert map.remove(key) != null;
+                            assert map.put(key, 1) == null;
+                        }
+                        else
+                            map.put(key, round % 3 == 0 ? 3 : 1);
+                    }
+                }
+            });
+        }
+        shouldRun = true;
+        final Thread weightChecker = new Thread(() -> {
+            while (shouldRun) {
+                long currentWeight = map.weight();
+                assert currentWeight >= numThreads * keysPerThread - numThreads && currentWeight <= 3 * numThreads * keysPerThread;
+            }
+        });
+        weightChecker.start();
+        for (int i = 0; i < numThreads; i++) updaters[i].start();
+        try {
+            for (int i = 0; i < numThreads; i++) updaters[i].join();
+            shouldRun = false;
+            weightChecker.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        // The last round (999) sets the weights to 3
+        assert map.weight() == 3 * numThreads * keysPerThread && map.size() == numThreads * keysPerThread;
+        if (DEBUG_PRINTS)
+            System.out.println(new Object(){}.getClass().getEnclosingMethod().getName() + ": OK");
+    }
+
+    // The weight of a mapping is its value times 2^40, so a thread's inserted weight reaches the 2^46 limit of its counter after
+    // a total value of 64. The insert or replacement that would reach it must throw without changing the map, while the
+    // removals may still proceed
+    static void weightOverflow(SizedMap<Integer,Integer> map) {
+        assert map.put(1, 63) == null;
+        boolean hasThrown = false;
+        try {
+            map.put(2, 1);
+        } catch (ArithmeticException e) {
+            hasThrown = true;
+        }
+        assert hasThrown && map.remove(2) == null && map.size() == 1 && map.weight() == 63L << 40;
+        hasThrown = false;
+        try {
+            map.put(1, 64);
+        } catch (ArithmeticException e) {
+            hasThrown = true;
+        }
+        assert hasThrown && map.putIfAbsent(1, 0) == 63 && map.weight() == 63L << 40;
+        assert map.remove(1) == 63 && map.size() == 0 && map.weight() == 0;
+        if (DEBUG_PRINTS)
+            System.out.println(new Object(){}.getClass().getEnclosingMethod().getName() + ": OK");
+    }
+
+    // Keys are classified by their parity. Inserts and removals, also in batches, must be reflected in the size of their key's
+    // category. Then each thread moves between an even key and an odd key of its own, always holding at least one of them,
+    // while the sizes of the categories, computed together, are checked to add up to at least one key per thread
+    static void categorySizesWithMoves(SizedMap<Integer,Integer> map) {
+        for (int key = 1; key <= 100; key++) assert map.put(key, 1) == null;
+        assert Arrays.equals(map.categoryMappingCounts(), new long[]{50, 50});
+        assert map.remove(2) == 1 && map.remove(4) == 1 && map.remove(1) == 1;
+        assert map.put(3, 1) == 1;
+        assert Arrays.equals(map.categoryMappingCounts(), new long[]{48, 49}) && map.size() == 97;
+        Map<Integer,Integer> batch = new LinkedHashMap<>();
+        for (int key = 101; key <= 130; key++) batch.put(key * 2, 1);
+        batch.put(1, 1);
+        map.putAll(batch);
+        assert Arrays.equals(map.categoryMappingCounts(), new long[]{78, 50});
+        List<Integer> keys = new ArrayList<>();
+        for (int key = 1; key <= 260; key++) keys.add(key);
+        assert map.removeAll(keys) == 128;
+        assert Arrays.equals(map.categoryMappingCounts(), new long[]{0, 0}) && map.size() == 0;
+
+        final int numThreads = NUM_THREADS;
+        final Thread[] movers = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final int evenKey = 2 * i, oddKey = 2 * i + 1;
+            map.put(oddKey, 1);
+            movers[i] = new Thread(() -> {
+                for (int round = 0; round < 10000; round++) {
+                    assert map.put(evenKey, 1) == null;
+                    assert map.remove(oddKey) != null;
+                    assert map.put(oddKey, 1) == null;
+                    assert map.remove(evenKey) != null;
+                }
+            });
+        }
+        shouldRun = true;
+        final Thread categoriesChecker = new Thread(() -> {
+            while (shouldRun) {
+                long[] sizes = map.categoryMappingCounts();
+                assert sizes[0] >= 0 && sizes[0] <= numThreads && sizes[1] >= 0 && sizes[1] <= numThreads;
+                assert sizes[0] + sizes[1] >= numThreads;
+            }
+        });
+        categoriesChecker.start();
+        for (int i = 0; i < numThreads; i++) movers[i].start();
+        try {
+            for (int i = 0; i < numThreads; i++) movers[i].join();
+            shouldRun = false;
+            categoriesChecker.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        assert Arrays.equals(map.categoryMappingCounts(), new long[]{0, numThreads}) && map.size() == numThreads;
+        if (DEBUG_PRINTS)
+            System.out.println(new Object(){}.getClass().getEnclosingMethod().getName() + ": OK");
+    }
+
+    // The version must advance by every insert and remove, and only by them. Then threads insert and remove keys of their own,
+    // counting their successful updates, while the version is checked to never decrease, and finally it must have advanced by
+    // their total count
+    static void versionWithUpdates(SizedMap<Integer,Integer> map) {
+        long version = map.version();
+        assert !map.changedSince(version);
+        assert map.put(1, 1) == null;
+        assert map.changedSince(version) && map.version() == version + 1;
+        version = map.version();
+        assert map.put(1, 2) == 1 && map.putIfAbsent(1, 3) == 2 && map.remove(2) == null && !map.remove(1, 3);
+        assert !map.changedSince(version) && map.version() == version;
+        assert map.remove(1) == 2;
+        assert map.version() == version + 1;
+        Map<Integer,Integer> batch = new LinkedHashMap<>();
+        for (int key = 1; key <= 50; key++) batch.put(key, 1);
+        map.putAll(batch);
+        assert map.version() == version + 51;
+        assert map.removeAll(batch.keySet()) == 50;
+        assert map.version() == version + 101 && map.changedSince(version + 100);
+
+        final long initialVersion = map.version();
+        final int numThreads = NUM_THREADS;
+        final int keysPerThread = 10;
+        final Thread[] updaters = new Thread[numThreads];
+        final long[] updatesNums = new long[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final int thread = i;
+            updaters[i] = new Thread(() -> {
+                Random rng = new Random(thread + 1);
+                long updatesNum = 0;
+                for (int round = 0; round < 20000; round++) {
+                    int key = thread * keysPerThread + rng.nextNatural(keysPerThread);
+                    if (rng.nextNatural(2) == 0 ? map.putIfAbsent(key, 1) == null : map.remove(key) != null)
+                        updatesNum++;
+                }
+                updatesNums[thread] = updatesNum;
+            });
+        }
+        shouldRun = true;
+        final Thread versionChecker = new Thread(() -> {
+            long previousVersion = initialVersion;
+            while (shouldRun) {
+                long currentVersion = map.version();
+                assert currentVersion >= previousVersion;
+                assert currentVersion == previousVersion || map.changedSince(previousVersion);
+                previousVersion = currentVersion;
+            }
+        });
+        versionChecker.start();
+        for (int i = 0; i < numThreads; i++) updaters[i].start();
+        try {
+            for (int i = 0; i < numThreads; i++) updaters[i].join();
+            shouldRun = false;
+            versionChecker.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        long updatesNum = 0;
+        for (int i = 0; i < numThreads; i++) updatesNum += updatesNums[i];
+        assert map.version() == initialVersion + updatesNum && !map.changedSince(initialVersion + updatesNum);
+        if (DEBUG_PRINTS)
+            System.out.println(new Object(){}.getClass().getEnclosingMethod().getName() + ": OK");
+    }
+
+    // Bounded inserts must fill the map exactly up to the limit when run alone. Then threads insert and remove keys of their own
+    // with bounded inserts only, while the size is checked to stay within the limit, and finally the map must again be
+    // filled exactly up to the limit
+    static void boundedInsertsWithRemoves(SizedMap<Integer,Integer> map) {
+        final int limit = 100;
+        int inserted = 0;
+        for (int key = 0; key < 2 * limit; key++) {
+            if (map.putIfAbsentAndSizeBelow(key, key, limit)) inserted++;
+        }
+        assert inserted == limit && map.size() == limit;
+        assert map.remove(0) != null;
+        assert !map.putIfAbsentAndSizeBelow(1, 1, limit);
+        assert map.putIfAbsentAndSizeBelow(-1, -1, limit);
+        assert !map.putIfAbsentAndSizeBelow(-2, -2, limit);
+        assert map.putIfAbsentAndSizeBelow(-2, -2, limit + 1);
+        for (int key = -2; key < limit; key++) map.remove(key);
+        assert map.size() == 0;
+
+        final int numThreads = NUM_THREADS;
+        final int keysPerThread = limit;
+        final Thread[] updaters = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final int firstKey = i * keysPerThread;
+            updaters[i] = new Thread(() -> {
+                Random rng = new Random(firstKey + 1);
+                for (int round = 0; round < 20000; round++) {
+                    int key = firstKey + rng.nextNatural(keysPerThread);
+                    if (rng.nextNatural(2) == 0)
+                        map.putIfAbsentAndSizeBelow(key, key, limit);
+                    else
+                        map.remove(key);
+                }
+            });
+        }
+        shouldRun = true;
+        final Thread sizeChecker = new Thread(() -> {
+            while (shouldRun) {
+                int currentSize = map.size();
+                assert currentSize >= 0 && currentSize <= limit;
+            }
+        });
+        sizeChecker.start();
+        for (int i = 0; i < numThreads; i++) updaters[i].start();
+        try {
+            for (int i = 0; i < numThreads; i++) updaters[i].join();
+            shouldRun = false;
+            sizeChecker.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        int size = map.size();
+        assert size <= limit;
+        for (int key = -1; key >= -limit; key--) {
+            if (map.putIfAbsentAndSizeBelow(key, key, limit)) size++;
+        }
+        assert size == limit && map.size() == limit;
+        if (DEBUG_PRINTS)
+            System.out.println(new Object(){}.getClass().getEnclosingMethod().getName() + ": OK");
+    }
+
+    // A wait for a threshold that already holds must return at once, and one that is not reached must time out. Then threads
+    // fill the map while a thread waits for it to exceed a watermark, and empty it while a thread waits for it to drain below
+    // one. As the size only grows (shrinks) meanwhile, it must have reached the watermark once the wait returns
+    static void sizeWatchersWithFillAndDrain(SizedMap<Integer,Integer> map) throws InterruptedException {
+        final int numThreads = NUM_THREADS;
+        final int keysPerThread = 1000;
+        final int keysNum = numThreads * keysPerThread;
+        assert map.awaitSizeAtMost(0, 1, TimeUnit.SECONDS);
+        assert !map.awaitSizeAtLeast(1, 10, TimeUnit.MILLISECONDS);
+
+        for (int phase = 0; phase < 2; phase++) {
+            final boolean isFilling = phase == 0;
+            final int watermark = isFilling ? keysNum * 3 / 4 : keysNum / 4;
+            final boolean[] didReachWatermark = new boolean[1];
+            final Thread waiter = new Thread(() -> {
+                try {
+                    didReachWatermark[0] = isFilling ? map.awaitSizeAtLeast(watermark, 30, TimeUnit.SECONDS) :
+                            map.awaitSizeAtMost(watermark, 30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    System.exit(-1);
+                }
+                int size = map.size();
+                assert isFilling ? size >= watermark : size <= watermark;
+            });
+            waiter.start();
+            final Thread[] updaters = new Thread[numThreads];
+            for (int i = 0; i < numThreads; i++) {
+                final int firstKey = i * keysPerThread;
+                updaters[i] = new Thread(() -> {
+                    for (int key = firstKey; key < firstKey + keysPerThread; key++) {
+                        if (isFilling)
+                            assert map.putIfAbsentAndSizeBelow(key, key, keysNum);
+                        else
+                            assert map.remove(key) != null;
+                    }
+                });
+            }
+            for (int i = 0; i < numThreads; i++) updaters[i].start();
+            for (int i = 0; i < numThreads; i++) updaters[i].join();
+            waiter.join();
+            assert didReachWatermark[0];
+        }
+        assert map.size() == 0;
+        if (DEBUG_PRINTS)
+            System.out.println(new Object(){}.getClass().getEnclosingMethod().getName() + ": OK");
+    }
+
+    // The shards of a group must be counted separately and together, and the group must refuse more shards than it was
+    // constructed for. Then threads move keys of their own from shard to shard, inserting each key into the next shard before
+    // removing it from the current one, while the shard sizes are checked to sum up to the group size, which must count every
+    // key at least once and at most twice
+    static void groupSizesWithMoves() {
+        final SizeGroup group = new SizeGroup(3);
+        final List<SizedMap<Integer,Integer>> shards = List.of(group.<Integer,Integer>newSizeHashTable(64),
+                group.<Integer,Integer>newSizeConcurrentSkipListMap(), group.<Integer,Integer>newSizeBST());
+        boolean didRefuse = false;
+        try {
+            group.newSizeBST();
+        } catch (IllegalStateException e) {
+            didRefuse = true;
+        }
+        assert didRefuse && group.getShardsNum() == 3;
+        for (int shard = 0; shard < 3; shard++) {
+            for (int key = 0; key <= shard; key++) assert shards.get(shard).putIfAbsentAndSizeBelow(key, key, Long.MAX_VALUE);
+        }
+        assert Arrays.equals(group.shardSizes(), new long[]{1, 2, 3}) && group.size() == 6 && group.shardSize(1) == 2;
+        assert shards.get(0).size() == 1 && shards.get(1).size() == 2 && shards.get(2).size() == 3;
+        for (int shard = 0; shard < 3; shard++) {
+            for (int key = 0; key <= shard; key++) assert shards.get(shard).remove(key) != null;
+        }
+        assert group.size() == 0;
+
+        final int numThreads = NUM_THREADS;
+        final Thread[] movers = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final int key = i;
+            shards.get(0).putIfAbsentAndSizeBelow(key, key, Long.MAX_VALUE);
+            movers[i] = new Thread(() -> {
+                for (int round = 0; round < 3000; round++) {
+                    final int from = round % 3, to = (round + 1) % 3;
+                    assert shards.get(to).putIfAbsentAndSizeBelow(key, key, Long.MAX_VALUE);
+                    assert shards.get(from).remove(key) != null;
+                }
+            });
+        }
+        shouldRun = true;
+        final Thread groupChecker = new Thread(() -> {
+            while (shouldRun) {
+                long[] sizes = group.shardSizes();
+                long total = sizes[0] + sizes[1] + sizes[2];
+                assert total >= numThreads && total <= 2L * numThreads;
+                long size = group.size();
+                assert size >= numThreads && size <= 2L * numThreads;
+            }
+        });
+        groupChecker.start();
+        for (int i = 0; i < numThreads; i++) movers[i].start();
+        try {
+            for (int i = 0; i < numThreads; i++) movers[i].join();
+            shouldRun = false;
+            groupChecker.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        // 3000 rounds bring every key back to shard 0
+        assert Arrays.equals(group.shardSizes(), new long[]{numThreads, 0, 0}) && shards.get(0).size() == numThreads;
+        if (DEBUG_PRINTS)
+            System.out.println(new Object(){}.getClass().getEnclosingMethod().getName() + ": OK");
+    }
+
+    // The shards of a dormant group must count the updates made before the first size. Then threads insert keys of their own
+    // into all the shards and remove every other one, while sizes computed concurrently activate the group in the middle of the
+    // updates and must count every key at most once. Finally the shard sizes must be exact
+    static void dormantGroupWithUpdates() {
+        final SizeGroup group = new SizeGroup(3, true);
+        final List<SizedMap<Integer,Integer>> shards = List.of(group.<Integer,Integer>newSizeHashTable(64),
+                group.<Integer,Integer>newSizeConcurrentSkipListMap(), group.<Integer,Integer>newSizeBST());
+        for (int shard = 0; shard < 3; shard++) {
+            for (int key = 0; key <= shard; key++) assert shards.get(shard).put(key, key) == null;
+        }
+        assert shards.get(2).remove(0) != null && shards.get(2).put(1, 1) != null;
+        assert Arrays.equals(group.shardSizes(), new long[]{1, 2, 2}) && group.size() == 5 && group.version() == 7;
+        for (int shard = 0; shard < 3; shard++) {
+            for (int key = 0; key <= shard; key++) shards.get(shard).remove(key);
+        }
+        assert group.size() == 0;
+
+        final SizeGroup dormantGroup = new SizeGroup(3, true);
+        final List<SizedMap<Integer,Integer>> dormantShards = List.of(dormantGroup.<Integer,Integer>newSizeHashTable(64),
+                dormantGroup.<Integer,Integer>newSizeConcurrentSkipListMap(), dormantGroup.<Integer,Integer>newSizeBST());
+        final int numThreads = NUM_THREADS;
+        final int keysPerThread = 3000;
+        final Thread[] updaters = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final int firstKey = i * keysPerThread;
+            updaters[i] = new Thread(() -> {
+                for (int key = firstKey; key < firstKey + keysPerThread; key++) {
+                    assert dormantShards.get(key % 3).put(key, key) == null;
+                    if (key % 2 == 0)
+                        assert dormantShards.get(key % 3).remove(key) != null;
+                }
+            });
+        }
+        shouldRun = true;
+        final Thread sizeChecker = new Thread(() -> {
+            while (shouldRun) {
+                long[] sizes = dormantGroup.shardSizes();
+                long total = sizes[0] + sizes[1] + sizes[2];
+                assert total >= 0 && total <= (long) numThreads * keysPerThread;
+                long size = dormantGroup.size();
+                assert size >= 0 && size <= (long) numThreads * keysPerThread;
+            }
+        });
+        for (int i = 0; i < numThreads; i++) updaters[i].start();
+        sizeChecker.start();
+        try {
+            for (int i = 0; i < numThreads; i++) updaters[i].join();
+            shouldRun = false;
+            sizeChecker.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        long[] expectedSizes = new long[3];
+        for (int key = 1; key < numThreads * keysPerThread; key += 2) expectedSizes[key % 3]++;
+        assert Arrays.equals(dormantGroup.shardSizes(), expectedSizes);
+        assert dormantGroup.size() == (long) numThreads * keysPerThread / 2 && dormantShards.get(1).size() == expectedSizes[1];
+        if (DEBUG_PRINTS)
+            System.out.println(new Object(){}.getClass().getEnclosingMethod().getName() + ": OK");
+    }
+
+    // The core size tests, run on the maps and trees of a group for every counters layout, with and without dormant updates, and
+    // on tables with and without padded bucket heads, since the JVM-wide choices only cover one configuration per run
+    static void sizeWithEachConfiguration() {
+        CountersLayout[] layouts = {CountersLayout.ROWS, CountersLayout.FLAT, CountersLayout.COMPACT};
+        for (CountersLayout layout : layouts) {
+            for (boolean isDormant : new boolean[]{false, true}) {
+                if (DEBUG_PRINTS)
+                    System.out.println("Testing with the " + layout + " layout" + (isDormant ? ", dormant:" : ":"));
+                SizeGroup group = new SizeGroup(4, isDormant, Backoff.Strategy.getDefault(), layout);
+                List<AbstractAdapter<Integer>> sets = List.of(
+                        new SizeHashTableAdapter<Integer>(group.newSizeHashTable(16, null, false)),
+                        new SizeHashTableAdapter<Integer>(group.newSizeHashTable(16, null, true)),
+                        new SizeSkipListAdapter<Integer>(group.newSizeConcurrentSkipListMap()),
+                        new SizeBSTAdapter<Integer>(group.newSizeBST()));
+                for (AbstractAdapter<Integer> set : sets) {
+                    for (int i = 0; i < 10; ++i)
+                        sizeConsistentWithContains(set);
+                    sizeWithManyThreads(set);
+                    sizeWithMaxAge(set);
+                    sizeWithBatches(set);
+                    sizeAfterEachUpdate(set);
+                }
+            }
+        }
+        if (DEBUG_PRINTS)
+            System.out.println(new Object(){}.getClass().getEnclosingMethod().getName() + ": OK");
+    }
+
+    // Under each backoff strategy, given to the constructors, concurrent sizes of maps whose threads insert keys of their own
+    // and remove every other one must stay within the possible range, and the final sizes must be exact. A strategy is found
+    // by its name in any case, and an unknown name falls back to busy
+    static void sizeWithEachBackoffStrategy() {
+        assert Backoff.Strategy.of("unknown") == Backoff.Strategy.BUSY;
+        for (Backoff.Strategy strategy : Backoff.Strategy.values()) {
+            assert Backoff.Strategy.of(strategy.name().toLowerCase()) == strategy && Backoff.Strategy.of(strategy.name()) == strategy;
+            final SizeHashTable<Integer,Integer> table = new SizeHashTable<>(4, null, null, 1, null, strategy);
+            final SizeBST<Integer,Integer> tree = new SizeBST<>(strategy);
+            final int numThreads = NUM_THREADS;
+            final int keysPerThread = 2000;
+            final Thread[] threads = new Thread[2 * numThreads];
+            for (int i = 0; i < numThreads; i++) {
+                final int firstKey = i * keysPerThread;
+                threads[i] = new Thread(() -> {
+                    for (int key = firstKey; key < firstKey + keysPerThread; key++) {
+                        assert table.putIfAbsent(key, key) == null && tree.putIfAbsent(key, key) == null;
+                        if (key % 2 == 0)
+                            assert table.remove(key) != null && tree.remove(key) != null;
+                    }
+                });
+                threads[numThreads + i] = new Thread(() -> {
+                    for (int round = 0; round < 200; round++) {
+                        long tableSize = table.mappingCount(), treeSize = tree.mappingCount();
+                        assert 0 <= tableSize && tableSize <= (long) numThreads * keysPerThread;
+                        assert 0 <= treeSize && treeSize <= (long) numThreads * keysPerThread;
+                    }
+                });
+            }
+            for (Thread thread : threads) thread.start();
+            try {
+                for (Thread thread : threads) thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+            assert table.mappingCount() == (long) numThreads * keysPerThread / 2 &&
+                    tree.mappingCount() == (long) numThreads * keysPerThread / 2;
+        }
+        if (DEBUG_PRINTS)
+            System.out.println(new Object(){}.getClass().getEnclosingMethod().getName() + ": OK");
+    }
+
+    // A dormant update entered within another one of the same thread must be counted once it exits, while the outer one must
+    // still hold back the first size until it exits too
+    static void nestedDormantUpdates() {
+        final SizeCalculator calculator = new SizeCalculator(1, Backoff.Strategy.getDefault(), true);
+        final int outerTid = calculator.enterDormantUpdate();
+        final int innerTid = calculator.enterDormantUpdate();
+        assert outerTid != SizeCalculator.NOT_DORMANT && innerTid == outerTid;
+        calculator.exitDormantUpdate(innerTid, 0, UpdateOperations.OpKind.INSERT, 1);
+        final long[] size = {-1};
+        final Thread sizer = new Thread(() -> size[0] = calculator.compute());
+        sizer.start();
+        try {
+            sizer.join(100);
+            assert sizer.isAlive();
+            calculator.exitDormantUpdate(outerTid, 0, UpdateOperations.OpKind.INSERT, 1);
+            sizer.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        assert size[0] == 2 && calculator.compute() == 2;
+        assert calculator.enterDormantUpdate() == SizeCalculator.NOT_DORMANT;
+        if (DEBUG_PRINTS)
+            System.out.println(new Object(){}.getClass().getEnclosingMethod().getName() + ": OK");
+    }
+
+    // Once a waiter has started the activation of a dormant calculator, a new update is linearized through the metadata counters,
+    // and a dormant update may help it. The help reaches the quota of the waiter, whose threshold is 1, and must not check the
+    // size within the dormant update, as the check would wait for the activation, which waits for the dormant update
+    static void dormantUpdateHelpingWaiter() {
+        final SizeCalculator calculator = new SizeCalculator(1, Backoff.Strategy.getDefault(), true);
+        final long[] updateInfo = {UpdateInfo.NONE};
+        final CountDownLatch didEnter = new CountDownLatch(1);
+        final CountDownLatch didCreate = new CountDownLatch(1);
+        final Thread helper = new Thread(() -> {
+            int tid = calculator.enterDormantUpdate();
+            assert tid != SizeCalculator.NOT_DORMANT;
+            didEnter.countDown();
+            try {
+                didCreate.await();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+            calculator.updateMetadata(UpdateOperations.OpKind.INSERT, updateInfo[0]);
+            calculator.exitDormantUpdate(tid);
+        });
+        final boolean[] didReachThreshold = new boolean[1];
+        final Thread waiter = new Thread(() -> {
+            try {
+                didReachThreshold[0] = calculator.awaitSizeAtLeast(1, 30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+        });
+        final Thread updater = new Thread(() -> {
+            // The update is not dormant once the activation has started, and then it stalls before updating the metadata
+            int tid;
+            while ((tid = calculator.enterDormantUpdate()) != SizeCalculator.NOT_DORMANT) {
+                calculator.exitDormantUpdate(tid);
+                Thread.yield();
+            }
+            updateInfo[0] = calculator.createUpdateInfo(UpdateOperations.OpKind.INSERT);
+            didCreate.countDown();
+        });
+        // A deadlocked thread must not keep the tests from exiting
+        helper.setDaemon(true);
+        waiter.setDaemon(true);
+        helper.start();
+        try {
+            didEnter.await();
+            waiter.start();
+            updater.start();
+            updater.join();
+            helper.join(30000);
+            waiter.join(30000);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        assert !helper.isAlive() && !waiter.isAlive();
+        assert didReachThreshold[0] && calculator.compute() == 1;
+        if (DEBUG_PRINTS)
+            System.out.println(new Object(){}.getClass().getEnclosingMethod().getName() + ": OK");
+    }
+
+    // A table of a single bucket must grow as threads insert keys of their own, while the keys inserted so far must stay
+    // visible to gets through the splits. Then the size must be exact, and every key must be found and removed
+    static void growingTableWithUpdates() {
+        final SizeHashTable<Integer,Integer> map = new SizeHashTable<>(1);
+        final int numThreads = NUM_THREADS;
+        final int keysPerThread = 5000;
+        final Thread[] updaters = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final int firstKey = i * keysPerThread;
+            updaters[i] = new Thread(() -> {
+                for (int key = firstKey; key < firstKey + keysPerThread; key++) {
+                    assert map.putIfAbsent(key, key) == null;
+                    assert map.get(firstKey + (key - firstKey) / 2).equals(firstKey + (key - firstKey) / 2);
+                    if (key % 3 == 0)
+                        assert map.remove(key) != null && map.putIfAbsent(key, key) == null;
+                }
+            });
+        }
+        for (int i = 0; i < numThreads; i++) updaters[i].start();
+        try {
+            for (int i = 0; i < numThreads; i++) updaters[i].join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        final int keysNum = numThreads * keysPerThread;
+        assert map.mappingCount() == keysNum && map.getSumOfKeys() == (long) keysNum * (keysNum - 1) / 2;
+        assert map.getTableSize() >= keysNum / 16;
+        for (int key = 0; key < keysNum; key++) assert map.remove(key).equals(key);
+        assert map.mappingCount() == 0 && map.get(0) == null;
+        if (DEBUG_PRINTS)
+            System.out.println(new Object(){}.getClass().getEnclosingMethod().getName() + ": OK");
+    }
+
+    // The ConcurrentMap methods of SizeHashTable must agree with a HashMap, and its views must reflect the map, while the
+    // weight follows the merged values. Then threads merge counts into shared keys and compute them down to removal, while
+    // sizes computed concurrently must stay within bounds. Finally the size must be exact
+    static void concurrentMapWithUpdates() {
+        final SizeHashTable<Integer,Integer> map = new SizeHashTable<>(4, null, (key, value) -> value);
+        final Map<Integer,Integer> expected = new HashMap<>();
+        for (int key = 0; key < 100; key++) {
+            final int value = key;
+            assert map.computeIfAbsent(key, k -> value).equals(value) && map.computeIfAbsent(key, k -> -1).equals(value);
+            expected.put(key, value);
+        }
+        assert map.computeIfAbsent(100, k -> null) == null && map.computeIfPresent(100, (k, v) -> 1) == null;
+        for (int key = 0; key < 100; key += 2) {
+            assert map.merge(key, 1, Integer::sum).equals(key + 1);
+            expected.merge(key, 1, Integer::sum);
+        }
+        for (int key = 0; key < 100; key += 3) {
+            assert Objects.equals(map.compute(key, (k, v) -> v % 2 == 0 ? null : v), expected.get(key) % 2 == 0 ? null : expected.get(key));
+            expected.compute(key, (k, v) -> v % 2 == 0 ? null : v);
+        }
+        for (int key = 0; key < 100; key += 5) {
+            Integer old = expected.get(key);
+            assert Objects.equals(map.replace(key, 7), old) && !map.replace(key, -1, 8) && map.replace(key, 7, 9) == (old != null);
+            if (old != null)
+                expected.put(key, 9);
+        }
+        assert map.merge(101, 5, Integer::sum).equals(5) && map.merge(101, 5, (a, b) -> null) == null && map.get(101) == null;
+        assert map.equals(expected) && expected.equals(map) && map.hashCode() == expected.hashCode();
+        assert map.size() == expected.size() && map.keySet().equals(expected.keySet());
+        assert map.entrySet().equals(expected.entrySet()) && map.containsValue(9) && !map.containsValue(-1);
+        long weight = 0;
+        for (int value : expected.values()) weight += value;
+        assert map.weight() == weight;
+        final long[] sums = new long[2];
+        map.forEach((key, value) -> { sums[0] += key; sums[1] += value; });
+        for (Integer value : map.values()) sums[1] -= value;
+        assert sums[0] == map.getSumOfKeys() && sums[1] == 0;
+        for (Iterator<Integer> iterator = map.keySet().iterator(); iterator.hasNext(); ) {
+            if (iterator.next() % 2 == 1)
+                iterator.remove();
+        }
+        expected.keySet().removeIf(key -> key % 2 == 1);
+        assert map.equals(expected) && map.size() == expected.size() && map.getOrDefault(1, -1) == -1;
+        map.clear();
+        assert map.isEmpty() && map.weight() == 0 && !map.entrySet().iterator().hasNext();
+
+        final SizeHashTable<Integer,Integer> counts = new SizeHashTable<>(1);
+        final int numThreads = NUM_THREADS;
+        final int keysNum = 100;
+        final int rounds = 50;
+        final Thread[] updaters = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            updaters[i] = new Thread(() -> {
+                for (int round = 0; round < rounds; round++) {
+                    for (int key = 0; key < keysNum; key++) counts.merge(key, 1, Integer::sum);
+                }
+            });
+        }
+        shouldRun = true;
+        final Thread sizeChecker = new Thread(() -> {
+            while (shouldRun) {
+                int size = counts.size();
+                assert size >= 0 && size <= keysNum;
+            }
+        });
+        sizeChecker.start();
+        for (int i = 0; i < numThreads; i++) updaters[i].start();
+        try {
+            for (int i = 0; i < numThreads; i++) updaters[i].join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        assert counts.size() == keysNum;
+        for (int key = 0; key < keysNum; key++) assert counts.get(key) == numThreads * rounds;
+        for (int i = 0; i < numThreads; i++) {
+            updaters[i] = new Thread(() -> {
+                for (int round = 0; round < rounds; round++) {
+                    for (int key = 0; key < keysNum; key++) counts.compute(key, (k, v) -> v == 1 ? null : v - 1);
+                }
+            });
+        }
+        for (int i = 0; i < numThreads; i++) updaters[i].start();
+        try {
+            for (int i = 0; i < numThreads; i++) updaters[i].join();
+            shouldRun = false;
+            sizeChecker.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        assert counts.size() == 0 && counts.isEmpty() && counts.getSumOfKeys() == 0;
+        if (DEBUG_PRINTS)
+            System.out.println(new Object(){}.getClass().getEnclosingMethod().getName() + ": OK");
+    }
+
+    // The functions of computeIfAbsent and compute on a dormant group may compute the size of the group, and update another
+    // shard or another key of the same map, which must be counted once, while a loader that waits for a concurrent first size
+    // must not hold it back. An insert of the key itself by the function of computeIfAbsent preempts its insert
+    static void sizeWithinCompute() {
+        final SizeGroup group = new SizeGroup(2, true);
+        final SizeHashTable<Integer,Integer> map = group.newSizeHashTable(4);
+        final SizeHashTable<Integer,Integer> other = group.newSizeHashTable(4);
+        assert map.computeIfAbsent(1, k -> other.put(k, k) == null ? 1 : -1) == 1;
+        assert map.compute(2, (k, v) -> other.remove(1) != null ? 2 : -1) == 2;
+        assert map.computeIfAbsent(3, k -> (int) group.size()) == 2 && map.mappingCount() == 3;
+        assert map.compute(3, (k, v) -> (int) map.mappingCount() == 3 ? null : v) == null;
+        assert map.computeIfAbsent(4, k -> map.put(5, 5) == null ? 4 : -1) == 4;
+        assert map.computeIfPresent(4, (k, v) -> map.remove(5) != null ? null : v) == null;
+        assert map.computeIfAbsent(6, k -> map.put(6, 0) == null ? 6 : -1) == 0 && map.remove(6) == 0;
+        assert Arrays.equals(group.shardSizes(), new long[]{2, 0}) && group.size() == 2;
+
+        final SizeHashTable<Integer,Integer> dormantMap = new SizeGroup(1, true).newSizeHashTable(4);
+        final CountDownLatch sizeComputed = new CountDownLatch(1);
+        final Thread sizeChecker = new Thread(() -> {
+            assert dormantMap.mappingCount() == 0;
+            sizeComputed.countDown();
+        });
+        assert dormantMap.computeIfAbsent(1, k -> {
+            sizeChecker.start();
+            try {
+                return sizeComputed.await(10, TimeUnit.SECONDS) ? 1 : -1;
+            } catch (InterruptedException e) {
+                return -1;
+            }
+        }) == 1;
+        try {
+            sizeChecker.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        assert dormantMap.mappingCount() == 1;
+        if (DEBUG_PRINTS)
+            System.out.println(new Object(){}.getClass().getEnclosingMethod().getName() + ": OK");
+    }
+
+    // A key that is not Comparable, whose hash collides with those of all the keys with the same id modulo HASHES_NUM
+    static final class CollidingKey {
+        static final int HASHES_NUM = 4;
+        final int id;
+
+        CollidingKey(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CollidingKey && ((CollidingKey) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return id % HASHES_NUM;
+        }
+    }
+
+    // Threads insert keys of their own that share a few hashes, and remove every other one, while the keys inserted so far
+    // must stay visible to gets. Then the size must be exact, and every remaining key must be found and removed
+    static void collidingKeysWithUpdates() {
+        final SizeHashTable<CollidingKey,Integer> map = new SizeHashTable<>(2);
+        final int numThreads = NUM_THREADS;
+        final int keysPerThread = 500;
+        final Thread[] updaters = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final int firstKey = i * keysPerThread;
+            updaters[i] = new Thread(() -> {
+                for (int key = firstKey; key < firstKey + keysPerThread; key++) {
+                    assert map.putIfAbsent(new CollidingKey(key), key) == null;
+                    assert map.putIfAbsent(new CollidingKey(key), -1).equals(key);
+                    if (key % 2 == 0)
+                        assert map.remove(new CollidingKey(key)).equals(key) && !map.containsKey(new CollidingKey(key));
+                    else
+                        assert map.get(new CollidingKey(firstKey + 1)).equals(firstKey + 1);
+                }
+            });
+        }
+        for (int i = 0; i < numThreads; i++) updaters[i].start();
+        try {
+            for (int i = 0; i < numThreads; i++) updaters[i].join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        final int keysNum = numThreads * keysPerThread;
+        assert map.mappingCount() == keysNum / 2;
+        for (int key = 0; key < keysNum; key++)
+            assert key % 2 == 0 ? map.get(new CollidingKey(key)) == null : map.remove(new CollidingKey(key)).equals(key);
+        assert map.isEmpty();
+        if (DEBUG_PRINTS)
+            System.out.println(new Object(){}.getClass().getEnclosingMethod().getName() + ": OK");
+    }
+
+    // Threads insert keys of their own spread over the whole int and long ranges, negative ones included, into the
+    // primitive-key structures, and remove every other one, while the sizes must stay within the possible range. Then the
+    // sizes must be exact, and every remaining key must be found and removed
+    static void primitiveKeysWithUpdates() {
+        final SizeIntHashTable<Integer> intMap = new SizeIntHashTable<>(2);
+        final SizeLongSkipListMap<Integer> longMap = new SizeLongSkipListMap<>();
+        final int numThreads = NUM_THREADS;
+        final int keysPerThread = 500;
+        final int keysNum = numThreads * keysPerThread;
+        final Thread[] updaters = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final int firstKey = i * keysPerThread;
+            updaters[i] = new Thread(() -> {
+                for (int key = firstKey; key < firstKey + keysPerThread; key++) {
+                    final int intKey = spreadIntKey(key);
+                    final long longKey = spreadLongKey(key);
+                    assert intMap.putIfAbsent(intKey, key) == null && longMap.putIfAbsent(longKey, key) == null;
+                    assert intMap.put(intKey, key + 1).equals(key) && longMap.put(longKey, key + 1).equals(key);
+                    assert !intMap.remove(intKey, key) && !longMap.remove(longKey, key);
+                    if (key % 2 == 0)
+                        assert intMap.remove(intKey, key + 1) && longMap.remove(longKey, key + 1) &&
+                                !intMap.containsKey(intKey) && !longMap.containsKey(longKey);
+                    else
+                        assert intMap.get(intKey).equals(key + 1) && longMap.get(longKey).equals(key + 1);
+                    final long intSize = intMap.mappingCount(), longSize = longMap.mappingCount();
+                    assert 0 <= intSize && intSize <= keysNum && 0 <= longSize && longSize <= keysNum;
+                }
+            });
+        }
+        for (int i = 0; i < numThreads; i++) updaters[i].start();
+        try {
+            for (int i = 0; i < numThreads; i++) updaters[i].join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        assert intMap.mappingCount() == keysNum / 2 && longMap.mappingCount() == keysNum / 2;
+        for (int key = 0; key < keysNum; key++) {
+            if (key % 2 == 0)
+                assert intMap.get(spreadIntKey(key)) == null && longMap.get(spreadLongKey(key)) == null;
+            else
+                assert intMap.remove(spreadIntKey(key)).equals(key + 1) && longMap.remove(spreadLongKey(key)).equals(key + 1);
+        }
+        assert intMap.size() == 0 && longMap.size() == 0 && intMap.getSumOfKeys() == 0 && longMap.getSumOfKeys() == 0;
+        if (DEBUG_PRINTS)
+            System.out.println(new Object(){}.getClass().getEnclosingMethod().getName() + ": OK");
+    }
+
+    // Distinct keys for distinct ids, as multiplying by an odd number is a bijection
+    private static int spreadIntKey(int id) {
+        return id * 0x9E3779B9;
+    }
+
+    private static long spreadLongKey(int id) {
+        return id * 0x9E3779B97F4A7C15L;
+    }
+
+    // Updaters insert and remove keys of their own in a small table, so that almost every size starts a collection and recycles
+    // the snapshot of the one before, while many threads compute sizes and versions. Each size must lie within the bounds of
+    // the operations completed before it started and those started before it returned
+    static void sizeWithSnapshotRecycling() {
+        final SizeHashTable<Integer,Integer> map = new SizeHashTable<>(16);
+        final int numUpdaters = NUM_THREADS;
+        final int numSizers = 2 * NUM_THREADS;
+        final int keysPerThread = 8;
+        final int rounds = 5000;
+        final int stride = 16; // A padded line per thread
+        // Per updater, at stride offsets: started inserts, completed inserts, started removes, completed removes
+        final AtomicLongArray counts = new AtomicLongArray(4 * numUpdaters * stride);
+        final Thread[] updaters = new Thread[numUpdaters];
+        for (int i = 0; i < numUpdaters; i++) {
+            final int firstKey = i * keysPerThread;
+            final int base = 4 * i * stride;
+            updaters[i] = new Thread(() -> {
+                for (int round = 0; round < rounds; round++) {
+                    for (int key = firstKey; key < firstKey + keysPerThread; key++) {
+                        counts.incrementAndGet(base);
+                        assert map.putIfAbsent(key, key) == null;
+                        counts.incrementAndGet(base + stride);
+                    }
+                    for (int key = firstKey; key < firstKey + keysPerThread; key++) {
+                        counts.incrementAndGet(base + 2 * stride);
+                        assert map.remove(key) != null;
+                        counts.incrementAndGet(base + 3 * stride);
+                    }
+                }
+            });
+        }
+        shouldRun = true;
+        final Thread[] sizers = new Thread[numSizers];
+        for (int i = 0; i < numSizers; i++) {
+            sizers[i] = new Thread(() -> {
+                long lastVersion = 0;
+                while (shouldRun) {
+                    long completedInserts = 0, completedRemoves = 0;
+                    for (int j = 0; j < numUpdaters; j++) {
+                        completedInserts += counts.get(4 * j * stride + stride);
+                        completedRemoves += counts.get(4 * j * stride + 3 * stride);
+                    }
+                    long size = map.mappingCount();
+                    long version = map.version();
+                    long startedInserts = 0, startedRemoves = 0;
+                    for (int j = 0; j < numUpdaters; j++) {
+                        startedInserts += counts.get(4 * j * stride);
+                        startedRemoves += counts.get(4 * j * stride + 2 * stride);
+                    }
+                    assert completedInserts - startedRemoves <= size && size <= startedInserts - completedRemoves;
+                    assert completedInserts + completedRemoves <= version && version <= startedInserts + startedRemoves;
+                    assert version >= lastVersion;
+                    lastVersion = version;
+                }
+            });
+        }
+        for (Thread sizer : sizers) sizer.start();
+        for (Thread updater : updaters) updater.start();
+        try {
+            for (Thread updater : updaters) updater.join();
+            shouldRun = false;
+            for (Thread sizer : sizers) sizer.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        assert map.mappingCount() == 0 && map.version() == 2L * numUpdaters * keysPerThread * rounds;
+        if (DEBUG_PRINTS)
+            System.out.println(new Object(){}.getClass().getEnclosingMethod().getName() + ": OK");
+    }
+
+    // Threads take turns, each computing the size, updating a single key and computing the size again, so that a size whose
+    // counters have not changed since the previous one may return it without a collection. Every size must be exact, as an
+    // update completed in another thread must never be missed by a size that returns the cached one
+    static void sizeAfterEachUpdate(AbstractAdapter<Integer> set) {
+        final int numThreads = Math.max(NUM_THREADS, 2);
+        final int turns = 3000;
+        final AtomicInteger turn = new AtomicInteger();
+        final Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final int threadIndex = i;
+            threads[i] = new Thread(() -> {
+                for (int myTurn = threadIndex; myTurn < turns; myTurn += numThreads) {
+                    while (turn.get() != myTurn) Thread.yield();
+                    // Turn t inserts key t / 2 + 1 if t is even, and removes key (t - 1) / 2 + 1 if it is odd
+                    long expectedSize = myTurn % 2;
+                    assert set.size() == expectedSize;
+                    if (myTurn % 2 == 0) assert set.insert(myTurn / 2 + 1);
+                    else assert set.remove(myTurn / 2 + 1);
+                    assert set.size() == 1 - expectedSize;
+                    turn.set(myTurn + 1);
+                }
+            });
+        }
+        for (Thread thread : threads) thread.start();
+        try {
+            for (Thread thread : threads) thread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        assert set.size() == turns % 2;
+        if (DEBUG_PRINTS)
+            System.out.println(new Object(){}.getClass().getEnclosingMethod().getName() + ": OK");
+    }
+
+    private static void runTests(AbstractAdapter<Integer> set, boolean isSizeMethodology) {
         // Check if set supports size
         boolean isSizeSupported = false;
         try {
@@ -663,6 +1798,14 @@ public class Tests {
             assert set.size() == 0;
             for (int i = 0; i < 100; ++i)
                 sizeConsistentWithContains(set);
+            if (isSizeMethodology) // the snapshot-based competitors are limited to ThreadID.MAX_THREADS threads
+                sizeWithManyThreads(set);
+            if (isSizeMethodology)
+                sizeWithMaxAge(set);
+            if (isSizeMethodology)
+                sizeAfterEachUpdate(set);
+            if (isSizeMethodology)
+                sizeWithBatches(set);
         }
 
         for (int i = 0; i < TARGET_SIZES_PER_THREAD.length; ++i) {
@@ -704,7 +1847,7 @@ public class Tests {
 
     public static void runTests() {
         int[] setParam = {2, 16, 64};
-        ThreadID.threadID.set(ThreadID.MAX_THREADS-1);
+        ThreadID.set(ThreadID.MAX_THREADS-1);
         System.out.println("Set DEBUG_PRINTS=true for verbose test prints.");
 
         System.out.println("[Running tests with up to " + (NUM_THREADS + 1) + " worker threads.]");
@@ -716,7 +1859,7 @@ public class Tests {
                 for (int i = 0; i < setParam.length; i++) {
                     System.out.println("[*] Testing " + set.getName() + " Batch Size " + setParam[i] + " ...");
                     AbstractAdapter<Integer> setAdapter = (AbstractAdapter<Integer>) set.newSet(setParam[i]);
-                    runTests(setAdapter);
+                    runTests(setAdapter, set.getName().startsWith("Size"));
                     System.out.println();
                 }
             }
@@ -725,16 +1868,68 @@ public class Tests {
                     int tableSize = targetSizePerThread * NUM_THREADS;
                     System.out.println("[*] Testing " + set.getName() + " Table Size " + tableSize + " ...");
                     AbstractAdapter<Integer> setAdapter = (AbstractAdapter<Integer>) set.newSet(tableSize);
-                    runTests(setAdapter);
+                    runTests(setAdapter, set.getName().startsWith("Size"));
                     System.out.println();
                 }
             }
             else {
                 System.out.println("[*] Testing " + set.getName() + " ...");
                 AbstractAdapter<Integer> setAdapter = (AbstractAdapter<Integer>) set.newSet(null);
-                runTests(setAdapter);
+                runTests(setAdapter, set.getName().startsWith("Size"));
                 System.out.println();
             }          
         }        
+
+        System.out.println("[*] Testing the weight of SizeHashTable and SizeSkipList ...");
+        weightWithReplacements(new SizeHashTable<Integer,Integer>(64, null, (key, value) -> value));
+        weightWithReplacements(new SizeConcurrentSkipListMap<Integer,Integer>(null, (key, value) -> value));
+        System.out.println("[*] Testing the weight limit of SizeHashTable and SizeSkipList ...");
+        weightOverflow(new SizeHashTable<Integer,Integer>(64, null, (key, value) -> (long) value << 40));
+        weightOverflow(new SizeConcurrentSkipListMap<Integer,Integer>(null, (key, value) -> (long) value << 40));
+        System.out.println("[*] Testing the category sizes of SizeHashTable and SizeSkipList ...");
+        categorySizesWithMoves(new SizeHashTable<Integer,Integer>(64, null, (key, value) -> value, 2, key -> key % 2));
+        categorySizesWithMoves(new SizeConcurrentSkipListMap<Integer,Integer>(null, (key, value) -> value, 2, key -> key % 2));
+        System.out.println("[*] Testing the version of SizeHashTable, SizeSkipList and SizeBST ...");
+        versionWithUpdates(new SizeHashTable<Integer,Integer>(64, null, (key, value) -> value));
+        versionWithUpdates(new SizeConcurrentSkipListMap<Integer,Integer>(null, (key, value) -> value));
+        versionWithUpdates(new SizeBST<Integer,Integer>());
+        System.out.println("[*] Testing the bounded inserts of SizeHashTable, SizeSkipList and SizeBST ...");
+        boundedInsertsWithRemoves(new SizeHashTable<Integer,Integer>(64));
+        boundedInsertsWithRemoves(new SizeConcurrentSkipListMap<Integer,Integer>());
+        boundedInsertsWithRemoves(new SizeBST<Integer,Integer>());
+        System.out.println("[*] Testing the size watchers of SizeHashTable, SizeSkipList and SizeBST ...");
+        try {
+            sizeWatchersWithFillAndDrain(new SizeHashTable<Integer,Integer>(64));
+            sizeWatchersWithFillAndDrain(new SizeConcurrentSkipListMap<Integer,Integer>());
+            sizeWatchersWithFillAndDrain(new SizeBST<Integer,Integer>());
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        System.out.println("[*] Testing the shard sizes of a SizeGroup ...");
+        groupSizesWithMoves();
+        System.out.println("[*] Testing the shard sizes of a dormant SizeGroup ...");
+        dormantGroupWithUpdates();
+        System.out.println("[*] Testing the snapshot recycling of SizeCalculator ...");
+        sizeWithSnapshotRecycling();
+        System.out.println("[*] Testing the backoff strategies of SizeHashTable and SizeBST ...");
+        sizeWithEachBackoffStrategy();
+        System.out.println("[*] Testing sizes with each counters layout, with dormant updates and with padded bucket heads ...");
+        sizeWithEachConfiguration();
+        System.out.println("[*] Testing nested dormant updates ...");
+        nestedDormantUpdates();
+        System.out.println("[*] Testing a dormant update that helps an update while a waiter activates ...");
+        dormantUpdateHelpingWaiter();
+        System.out.println("[*] Testing the growth of SizeHashTable ...");
+        growingTableWithUpdates();
+        System.out.println("[*] Testing the ConcurrentMap methods of SizeHashTable ...");
+        concurrentMapWithUpdates();
+        System.out.println("[*] Testing sizes within the compute methods of SizeHashTable ...");
+        sizeWithinCompute();
+        System.out.println("[*] Testing the colliding keys of SizeHashTable ...");
+        collidingKeysWithUpdates();
+        System.out.println("[*] Testing the primitive keys of SizeIntHashTable and SizeLongSkipList ...");
+        primitiveKeysWithUpdates();
+        System.out.println();
     }
 }
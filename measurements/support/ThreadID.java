@@ -1,6 +1,22 @@
 package measurements.support;
 
 public class ThreadID {
+  // The ids of threads other than WorkerThreads
   public static final ThreadLocal<Integer> threadID = new ThreadLocal<Integer>();
   public static final int MAX_THREADS = 64;
-}
\ No newline at end of file
+
+  public static int get() {
+    Thread thread = Thread.currentThread();
+    if (thread instanceof WorkerThread)
+      return ((WorkerThread) thread).threadID;
+    return threadID.get();
+  }
+
+  public static void set(int id) {
+    Thread thread = Thread.currentThread();
+    if (thread instanceof WorkerThread)
+      ((WorkerThread) thread).threadID = id;
+    else
+      threadID.set(id);
+  }
+}
@@ -0,0 +1,19 @@
+package measurements.support;
+
+import algorithms.size.core.ContextThread;
+
+/**
+ * A thread of the test harness, which carries its ThreadID in a field rather than in ThreadID.threadID,
+ * and its ThreadContext for the size-aware structures (see ContextThread).
+ */
+public class WorkerThread extends ContextThread {
+  int threadID;
+
+  public WorkerThread() {
+    super();
+  }
+
+  public WorkerThread(Runnable task) {
+    super(task);
+  }
+}
@@ -60,6 +60,12 @@ declare -a measurements=(
 "python3 measurements/python_scripts/run_java_experiments_overhead_split.py ${defaultDSSize} 3-2 \"${workloadThreadsListWithoutSizeThread}\" 0 ${warmupRepeats} ${repeats} ${runtime} ${JVMmem} ${shouldRunMeasurements}"
 # Runs a read-heavy workload with a concurrent size thread and produces the bottom left bars for each data structure comparison in Figure 13
 "python3 measurements/python_scripts/run_java_experiments_overhead_split.py ${defaultDSSize} 3-2 \"${workloadThreadsListWithOneSizeThread}\" 1 ${warmupRepeats} ${repeats} ${runtime} ${JVMmem} ${shouldRunMeasurements}"
+# Not part of the paper's figures: runs an update-heavy workload with a concurrent size thread once per SizeCalculator counters layout and compares the layouts
+#"python3 measurements/python_scripts/run_java_experiments_counters_layout.py ${defaultDSSize} 30-20 \"${workloadThreadsListWithOneSizeThread}\" 1 ${warmupRepeats} ${repeats} ${runtime} ${JVMmem} ${shouldRunMeasurements}"
+# Not part of the paper's figures: runs a read-heavy workload with various numbers of size threads once per SizeCalculator backoff strategy and compares the strategies
+#"python3 measurements/python_scripts/run_java_experiments_scalability.py ${defaultDSSize} 3-2 ${workloadThreadsWithVariableSizeThreads} \"${sizeThreads}\" ${warmupRepeats} ${repeats} ${runtime} ${JVMmem} ${shouldRunMeasurements} \"[busy,spin,spin_then_yield,park]\""
+# Not part of the paper's figures: loads keys into empty data structures and then removes them, in batches of various sizes, and compares the batch sizes
+#"python3 measurements/python_scripts/run_java_experiments_bulk_load.py ${workloadThreadsWithOneSizeThread} 100000 \"[1,10,100,1000]\" ${warmupRepeats} ${repeats} ${JVMmem} ${shouldRunMeasurements}"
 )
 
 for command in "${measurements[@]}"